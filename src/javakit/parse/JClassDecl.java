@@ -428,7 +428,7 @@ public class JClassDecl extends JMemberDecl {
         if (javaClass == null) {
             //javaClass = getSuperClass();
             Resolver resolver = getResolver();
-            javaClass = new JavaClass(resolver, this, className);
+            javaClass = resolver.getJavaClassForClassDecl(this, className);
         }
 
         // Otherwise see if we need to update
@@ -17,8 +17,8 @@ public class JExprAlloc extends JExpr {
     // The allocation args
     protected List<JExpr>  _args = Collections.EMPTY_LIST;
 
-    // The dimensions expression, if array
-    protected JExpr  _arrayDims;
+    // The dimension expressions, if array
+    protected List<JExpr>  _arrayDims = Collections.EMPTY_LIST;
 
     // The array init expressions, if array
     protected List<JExpr>  _arrayInits = Collections.EMPTY_LIST;
@@ -86,16 +86,19 @@ public class JExprAlloc extends JExpr {
     }
 
     /**
-     * Returns the array dimensions.
+     * Returns the array dimension expressions, if array (like [3][4] in new int[3][4][]).
      */
-    public JExpr getArrayDims()  { return _arrayDims; }
+    public List<JExpr> getArrayDims()  { return _arrayDims; }
 
     /**
-     * Sets the array dimension.
+     * Adds an array dimension expression.
      */
-    public void setArrayDims(JExpr theDims)
+    public void addArrayDim(JExpr aDimExpr)
     {
-        replaceChild(_arrayDims, _arrayDims = theDims);
+        if (_arrayDims == Collections.EMPTY_LIST)
+            _arrayDims = new ArrayList<>();
+        _arrayDims.add(aDimExpr);
+        addChild(aDimExpr, -1);
     }
 
     /**
@@ -133,7 +136,7 @@ public class JExprAlloc extends JExpr {
     {
         // If array alloc, just return Type decl
         JType type = getType();
-        if (_arrayDims != null || _arrayInits.size() > 0)
+        if (_arrayDims.size() > 0 || _arrayInits.size() > 0)
             return type.getDecl();
 
         // Get class decl and constructor call arg types
@@ -208,8 +208,16 @@ public class JExprLambda extends JExpr implements WithVarDecls, WithBlockStmt {
      */
     protected List<JavaMethod> getCompatibleMethods()
     {
-        // Get method call, method name and args
         JExprMethodCall methodCallExpr = (JExprMethodCall) getParent();
+        return getCompatibleMethodsForMethodCall(methodCallExpr);
+    }
+
+    /**
+     * Returns the compatible methods for given method call with lambda and method ref args (which match any type).
+     */
+    protected static List<JavaMethod> getCompatibleMethodsForMethodCall(JExprMethodCall methodCallExpr)
+    {
+        // Get method name and args
         String name = methodCallExpr.getName();
         List<JExpr> methodArgs = methodCallExpr.getArgs();
         int argCount = methodArgs.size();
@@ -218,7 +226,7 @@ public class JExprLambda extends JExpr implements WithVarDecls, WithBlockStmt {
         JavaType[] argTypes = new JavaType[argCount];
         for (int i = 0; i < argCount; i++) {
             JExpr arg = methodArgs.get(i);
-            argTypes[i] = arg instanceof JExprLambda ? null : arg.getEvalType();
+            argTypes[i] = arg instanceof JExprLambda || arg instanceof JExprMethodRef ? null : arg.getEvalType();
         }
 
         // Get scope node class type and search for compatible method for name and arg types
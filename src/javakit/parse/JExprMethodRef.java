@@ -2,6 +2,9 @@
  * Copyright (c) 2010, ReportMill Software. All rights reserved.
  */
 package javakit.parse;
+import java.util.List;
+import javakit.resolver.*;
+import snap.util.ListUtils;
 
 /**
  * This JExpr subclass represents a method reference: obj::method.
@@ -54,6 +57,56 @@ public class JExprMethodRef extends JExpr {
         replaceChild(_id, _id = anId);
     }
 
+    /**
+     * Override to return as type.
+     */
+    @Override
+    public JavaType getDecl()
+    {
+        return (JavaType) super.getDecl();
+    }
+
+    /**
+     * Override to resolve decl (the functional interface type) from parent.
+     */
+    protected JavaType getDeclImpl()
+    {
+        // Get Parent (just return if null)
+        JNode par = getParent();
+        if (par == null)
+            return null;
+
+        // Handle parent is method call: Get functional interface from method call decl param
+        if (par instanceof JExprMethodCall) {
+
+            // Get methodCall, matching methods and arg index of this method ref
+            JExprMethodCall methodCall = (JExprMethodCall) par;
+            List<JavaMethod> methods = JExprLambda.getCompatibleMethodsForMethodCall(methodCall);
+            int argIndex = ListUtils.indexOfId(methodCall.getArgs(), this);
+            if (methods == null || argIndex < 0)
+                return null;
+
+            // Iterate over methods and return first param type that is interface
+            for (JavaMethod method : methods) {
+                if (method.isDefault()) continue;
+                JavaType paramType = method.getParamType(argIndex);
+                JavaClass paramClass = paramType.getEvalClass();
+                if (paramClass != null && paramClass.isInterface())
+                    return paramType;
+            }
+
+            // Return not found
+            return null;
+        }
+
+        // Handle parent anything else (JVarDecl, JStmtExpr): Get functional interface from eval type
+        if (par._decl != null)
+            return par.getEvalType();
+
+        // Return not found
+        return null;
+    }
+
     /**
      * Returns the node name.
      */
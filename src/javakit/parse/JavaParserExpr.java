@@ -673,7 +673,7 @@ public class JavaParserExpr extends Parser {
                 // Handle ArrayDimsAndInits
                 case "Expression":
                     if (allocType != null && allocType.isArrayType())
-                        allocExpr.setArrayDims(aNode.getCustomNode(JExpr.class));
+                        allocExpr.addArrayDim(aNode.getCustomNode(JExpr.class));
                     break;
 
                 // Handle ArrayDimsAndInits ArrayInit
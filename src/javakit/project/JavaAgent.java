@@ -29,6 +29,9 @@ public class JavaAgent {
     // The parsed version of this JavaFile
     protected JFile  _jfile;
 
+    // The number of text changes (JFile is updated in place or cleared for each)
+    private volatile int  _textChangeCount;
+
     /**
      * Constructor for given file.
      */
@@ -119,9 +122,23 @@ public class JavaAgent {
     }
 
     /**
-     * Parses and returns JFile.
+     * Returns the JFile if already parsed from given text (or null if not parsed or parsed from other text).
+     */
+    public JFile getJFileForText(String aJavaText)
+    {
+        JFile jfile = _jfile;
+        return jfile != null && aJavaText.equals(jfile.getJavaFileString()) ? jfile : null;
+    }
+
+    /**
+     * Returns the number of text changes (JFile is updated in place or cleared for each).
+     */
+    public int getTextChangeCount()  { return _textChangeCount; }
+
+    /**
+     * Parses and returns a new JFile for current text (not set as this agent's JFile).
      */
-    protected JFile createJFile()
+    public JFile createJFile()
     {
         // Get parsed java file
         JavaParser javaParser = getJavaParser();
@@ -140,8 +157,16 @@ public class JavaAgent {
      */
     public JStmt[] getJFileStatements()
     {
-        // Get main method
         JFile jfile = getJFile();
+        return getStatementsForJFile(jfile);
+    }
+
+    /**
+     * Returns the parsed statements for given JFile (parsed from this agent's text).
+     */
+    public JStmt[] getStatementsForJFile(JFile jfile)
+    {
+        // Get main method
         JClassDecl classDecl = jfile.getClassDecl();
         JMethodDecl mainMethod = classDecl.getMethodDeclForNameAndTypes("main", null);
         if (mainMethod == null)
@@ -195,6 +220,10 @@ public class JavaAgent {
         // Get PropName
         String propName = aPC.getPropName();
 
+        // Handle CharsChange: Update TextChangeCount
+        if (propName == TextDoc.Chars_Prop)
+            _textChangeCount++;
+
         // Handle CharsChange: Try to update JFile with partial parse
         if (propName == TextDoc.Chars_Prop && _jfile != null) {
             TextDocUtils.CharsChange charsChange = (TextDocUtils.CharsChange) aPC;
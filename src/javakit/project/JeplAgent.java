@@ -51,7 +51,7 @@ public class JeplAgent extends JavaAgent {
      * Override to fix incomplete var decls.
      */
     @Override
-    protected JFile createJFile()
+    public JFile createJFile()
     {
         JFile jfile = super.createJFile();
         JeplParser.findAndFixIncompleteVarDecls(jfile);
@@ -62,10 +62,9 @@ public class JeplAgent extends JavaAgent {
      * Override to get statements from initializers.
      */
     @Override
-    public JStmt[] getJFileStatements()
+    public JStmt[] getStatementsForJFile(JFile jfile)
     {
-        // Get JFile, ClassDecl (just return if not found)
-        JFile jfile = getJFile();
+        // Get ClassDecl (just return if not found)
         JClassDecl classDecl = jfile.getClassDecl();
         if (classDecl == null)
             return new JStmt[0];
@@ -49,6 +49,9 @@ public class ProjectBuilder {
         buildSuccess &= _defaultFileBuilder.buildFiles(aTM);
         _buildDate = new Date();
 
+        // Clear resolver class path caches (new classes may have been added to build dir)
+        _proj.getWorkspace().clearResolverClassPathCaches();
+
         // Find unused imports
         findUnusedImports();
 
@@ -96,6 +99,9 @@ public class ProjectBuilder {
 
         // Otherwise, remove all class files from build directory
         else removeBuildFiles(buildDir);
+
+        // Clear resolver class path caches
+        _proj.getWorkspace().clearResolverClassPathCaches();
     }
 
     /**
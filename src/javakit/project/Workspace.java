@@ -256,6 +256,16 @@ public class Workspace extends PropObject {
         _resolver = null;
     }
 
+    /**
+     * Clears resolver caches of class path contents (called when project classes are built or removed).
+     */
+    public void clearResolverClassPathCaches()
+    {
+        Resolver resolver = _resolver;
+        if (resolver != null)
+            resolver.clearClassPathCaches();
+    }
+
     /**
      * Returns the resolver.
      */
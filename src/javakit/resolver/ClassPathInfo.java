@@ -18,6 +18,9 @@ public class ClassPathInfo {
     // A class tree
     private ClassTree  _classTree;
 
+    // An index of class simple names (including nested, like Map$Entry) by package name, for all class files in sites
+    private Map<String,Set<String>>  _packageIndex;
+
     /**
      * Constructor.
      */
@@ -103,6 +106,68 @@ public class ClassPathInfo {
         return classTree;
     }
 
+    /**
+     * Returns whether given class simple name is known not to exist in given package: Package has class files in
+     * class path sites but none for name. Returns false if package isn't in class path sites (could come from elsewhere).
+     */
+    public boolean isMissingClassName(String aPackageName, String aSimpleName)
+    {
+        Map<String,Set<String>> packageIndex = getPackageIndex();
+        Set<String> classNames = packageIndex.get(aPackageName);
+        return classNames != null && !classNames.contains(aSimpleName);
+    }
+
+    /**
+     * Returns the index of class simple names by package name (default package is "", only if sites have classes in it).
+     */
+    protected synchronized Map<String,Set<String>> getPackageIndex()
+    {
+        // If already set, just return
+        if (_packageIndex != null) return _packageIndex;
+
+        // Iterate over sites and add class files from root dir
+        Map<String,Set<String>> packageIndex = new HashMap<>();
+        try {
+            for (WebSite site : getSites())
+                addPackageIndexClassesForDir(packageIndex, site.getRootDir());
+        }
+
+        // If sites can't be read, use empty index (so nothing is assumed missing)
+        catch (Exception e) {
+            System.err.println("ClassPathInfo.getPackageIndex: Can't read class path: " + e);
+            packageIndex.clear();
+        }
+
+        // Set, return
+        return _packageIndex = packageIndex;
+    }
+
+    /**
+     * Clears the package index, so it is rebuilt on next use (called when classes are added to class path dirs).
+     */
+    public synchronized void clearPackageIndex()  { _packageIndex = null; }
+
+    /**
+     * Adds class names for given dir (and nested dirs) to package index.
+     */
+    private void addPackageIndexClassesForDir(Map<String,Set<String>> aPackageIndex, WebFile aDir)
+    {
+        // Get package name for dir
+        String dirPath = aDir.getPath();
+        String packageName = dirPath.length() > 1 ? dirPath.substring(1).replace('/', '.') : "";
+
+        // Iterate over dir files and add class names or recurse into dirs
+        for (WebFile file : aDir.getFiles()) {
+            if (file.isDir())
+                addPackageIndexClassesForDir(aPackageIndex, file);
+            else if (file.getName().endsWith(".class")) {
+                String fileName = file.getName();
+                String simpleName = fileName.substring(0, fileName.length() - 6);
+                aPackageIndex.computeIfAbsent(packageName, k -> new HashSet<>()).add(simpleName);
+            }
+        }
+    }
+
     /**
      * Loads classes from package dir.
      */
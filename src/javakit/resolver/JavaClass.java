@@ -35,7 +35,7 @@ public class JavaClass extends JavaType {
     protected JavaClass[]  _interfaces;
 
     // The field decls
-    protected List<JavaField>  _fieldDecls;
+    protected List<JavaField>  _fieldDecls = new ArrayList<>();
 
     // The method decls
     protected List<JavaMethod>  _methDecls = new ArrayList<>();
@@ -55,6 +55,34 @@ public class JavaClass extends JavaType {
     // The updater
     private JavaClassUpdater  _updater;
 
+    // The set of this class, its super classes and all their interfaces (lazily built, cleared if hierarchy changes)
+    private volatile Set<JavaClass>  _superTypesSet;
+
+    // The set of primitive classes assignable to this primitive class (lazily built)
+    private volatile Set<JavaClass>  _primitiveAssignables;
+
+    // The methods by name (lazily built from methods)
+    private volatile Map<String,List<JavaMethod>>  _methodsByName;
+
+    // The kinds of member decls loaded (volatile so member lists filled with resolver locked are safely published)
+    private volatile int  _loadedKinds;
+
+    // The kinds of member decls currently being loaded (resolver locked)
+    private int  _loadingKinds;
+
+    // Constants for kinds of member decls, loaded independently on first access
+    public static final int DECLS_INTERFACES = 1;
+    public static final int DECLS_TYPE_VARS = 2;
+    public static final int DECLS_INNER_CLASSES = 4;
+    public static final int DECLS_FIELDS = 8;
+    public static final int DECLS_METHODS = 16;
+    public static final int DECLS_CONSTRUCTORS = 32;
+    public static final int DECLS_ALL = 63;
+
+    // The primitive classes
+    private static final Class<?>[] PRIMITIVE_CLASSES = { boolean.class, byte.class, char.class, short.class,
+        int.class, long.class, float.class, double.class, void.class };
+
     /**
      * Constructor.
      */
@@ -76,11 +104,11 @@ public class JavaClass extends JavaType {
             _package = (JavaPackage) aPar;
 
         // Add to decls
-        aResolver._classes.put(_id, this);
+        aResolver.addCreatedClass(_id, this);
         if (aClass.isArray()) {
             String altName = aClass.getName();
             if (!altName.equals(_id))
-                aResolver._classes.put(altName, this);
+                aResolver.addCreatedClass(altName, this);
         }
 
         // Set Mods, Enum, Interface, Primitive
@@ -135,7 +163,7 @@ public class JavaClass extends JavaType {
         }
 
         // Add to decls
-        aResolver._classes.put(_id, this);
+        aResolver.addCreatedClass(_id, this);
 
         // Set Mods, Enum, Interface, Primitive
         _mods = aClassDecl.getMods().getValue();
@@ -204,6 +232,55 @@ public class JavaClass extends JavaType {
         return _superClass;
     }
 
+    /**
+     * Sets the super class (for class decl that changed super class).
+     */
+    protected void setSuperClass(JavaClass aClass)
+    {
+        synchronized (_resolver) {
+            _superClass = aClass;
+            _superType = null;
+            _resolver.clearSuperTypesSets();
+        }
+    }
+
+    /**
+     * Returns the set of this class, its super classes and all their interfaces.
+     */
+    public Set<JavaClass> getSuperTypesSet()
+    {
+        // If already set, just return
+        Set<JavaClass> superTypesSet = _superTypesSet;
+        if (superTypesSet != null) return superTypesSet;
+
+        // Create with resolver locked (so a concurrent hierarchy change can't leave a stale set)
+        synchronized (_resolver) {
+
+            // Check again (could have been created by another thread)
+            if (_superTypesSet != null)
+                return _superTypesSet;
+
+            // Create set and add this class, super class set and interface sets
+            Set<JavaClass> superTypes = new HashSet<>();
+            superTypes.add(this);
+            if (_superClass != null)
+                superTypes.addAll(_superClass.getSuperTypesSet());
+            JavaClass[] interfaces = getInterfaces();
+            if (interfaces != null) {
+                for (JavaClass infc : interfaces)
+                    superTypes.addAll(infc.getSuperTypesSet());
+            }
+
+            // Set/return
+            return _superTypesSet = Collections.unmodifiableSet(superTypes);
+        }
+    }
+
+    /**
+     * Clears the super types set (resolver locked).
+     */
+    protected void clearSuperTypesSet()  { _superTypesSet = null; }
+
     /**
      * Returns the class this decl evaluates to when referenced.
      */
@@ -278,7 +355,7 @@ public class JavaClass extends JavaType {
      */
     public JavaClass[] getInterfaces()
     {
-        getFields();
+        if ((_loadedKinds & DECLS_INTERFACES) == 0) loadDecls(DECLS_INTERFACES);
         return _interfaces;
     }
 
@@ -287,7 +364,7 @@ public class JavaClass extends JavaType {
      */
     public List<JavaField> getFields()
     {
-        if (_fieldDecls == null) updateDecls();
+        if ((_loadedKinds & DECLS_FIELDS) == 0) loadDecls(DECLS_FIELDS);
         return _fieldDecls;
     }
 
@@ -296,16 +373,52 @@ public class JavaClass extends JavaType {
      */
     public List<JavaMethod> getMethods()
     {
-        getFields();
+        if ((_loadedKinds & DECLS_METHODS) == 0) loadDecls(DECLS_METHODS);
         return _methDecls;
     }
 
+    /**
+     * Returns the methods for given name.
+     */
+    public List<JavaMethod> getMethodsForName(String aName)
+    {
+        // Get methods by name, creating if needed
+        Map<String,List<JavaMethod>> methodsByName = _methodsByName;
+        if (methodsByName == null)
+            methodsByName = getMethodsByName();
+
+        // Return methods for name
+        List<JavaMethod> methods = methodsByName.get(aName);
+        return methods != null ? methods : Collections.EMPTY_LIST;
+    }
+
+    /**
+     * Returns the methods by name, creating with resolver locked if needed.
+     */
+    private Map<String,List<JavaMethod>> getMethodsByName()
+    {
+        synchronized (_resolver) {
+
+            // If already set, just return
+            if (_methodsByName != null) return _methodsByName;
+
+            // Create map and add methods
+            List<JavaMethod> methods = getMethods();
+            Map<String,List<JavaMethod>> methodsByName = new HashMap<>(methods.size() * 2);
+            for (JavaMethod method : methods)
+                methodsByName.computeIfAbsent(method.getName(), k -> new ArrayList<>(2)).add(method);
+
+            // Set/return
+            return _methodsByName = methodsByName;
+        }
+    }
+
     /**
      * Returns the Constructors.
      */
     public List<JavaConstructor> getConstructors()
     {
-        getFields();
+        if ((_loadedKinds & DECLS_CONSTRUCTORS) == 0) loadDecls(DECLS_CONSTRUCTORS);
         return _constrDecls;
     }
 
@@ -314,7 +427,7 @@ public class JavaClass extends JavaType {
      */
     public List<JavaClass> getInnerClasses()
     {
-        getFields();
+        if ((_loadedKinds & DECLS_INNER_CLASSES) == 0) loadDecls(DECLS_INNER_CLASSES);
         return _innerClasses;
     }
 
@@ -323,10 +436,48 @@ public class JavaClass extends JavaType {
      */
     public List<JavaTypeVariable> getTypeVars()
     {
-        getFields();
+        if ((_loadedKinds & DECLS_TYPE_VARS) == 0) loadDecls(DECLS_TYPE_VARS);
         return _typeVarDecls;
     }
 
+    /**
+     * Loads member decls of given kind with resolver locked (once, unless cleared).
+     */
+    private void loadDecls(int aKind)
+    {
+        synchronized (_resolver) {
+
+            // If already loaded or being loaded by this thread (reentrant access from load), just return
+            if (((_loadedKinds | _loadingKinds) & aKind) != 0)
+                return;
+
+            // Get kinds updater loads together with given kind and load
+            int kinds = _updater.getDeclKindsToLoad(aKind) & ~_loadedKinds;
+            _loadingKinds |= kinds;
+            try {
+                _updater.loadDecls(kinds);
+                _loadedKinds |= kinds;
+            }
+            finally { _loadingKinds &= ~kinds; }
+
+            // If methods loaded, clear methods by name
+            if ((kinds & DECLS_METHODS) != 0)
+                _methodsByName = null;
+        }
+    }
+
+    /**
+     * Clears member decls so they are reloaded on next access.
+     */
+    protected void clearDecls()
+    {
+        synchronized (_resolver) {
+            _loadedKinds = 0;
+            _methodsByName = null;
+            _resolver.clearCompatibleMethods();
+        }
+    }
+
     /**
      * Returns a field decl for field name.
      */
@@ -475,13 +626,13 @@ public class JavaClass extends JavaType {
     }
 
     /**
-     * Returns the lambda method.
+     * Returns the lambda method (the abstract method for given arg count - static and default methods are skipped).
      */
     public JavaMethod getLambdaMethod(int argCount)
     {
         List<JavaMethod> methods = getMethods();
         for (JavaMethod method : methods)
-            if (method.getParamCount() == argCount)
+            if (method.getParamCount() == argCount && !method.isStatic() && !method.isDefault())
                 return method;
         return null;
     }
@@ -512,23 +663,8 @@ public class JavaClass extends JavaType {
             return false;
         }
 
-        // Iterate up given class superclasses and check class and interfaces
-        for (JavaClass cls = otherClass; cls != null; cls = cls.getSuperClass()) {
-
-            // If classes match, return true
-            if (cls == this)
-                return true;
-
-            // If any interface of this decl match, return true
-            if (isInterface()) {
-                for (JavaClass infc : cls.getInterfaces())
-                    if (isAssignable(infc))
-                        return true;
-            }
-        }
-
-        // Return false since no match found
-        return false;
+        // Return whether this class is given class or one of its super classes or interfaces
+        return otherClass.getSuperTypesSet().contains(this);
     }
 
     /**
@@ -542,8 +678,27 @@ public class JavaClass extends JavaType {
         JavaClass otherPrimitive = otherClass.getPrimitive();
         if (otherPrimitive == null)
             return false;
-        JavaDecl common = getCommonAncestorPrimitive(otherPrimitive);
-        return common == this;
+        return getPrimitiveAssignables().contains(otherPrimitive);
+    }
+
+    /**
+     * Returns the set of primitive classes assignable to this primitive class (common primitive ancestor is this).
+     */
+    private Set<JavaClass> getPrimitiveAssignables()
+    {
+        // If already set, just return
+        if (_primitiveAssignables != null) return _primitiveAssignables;
+
+        // Create set and add primitives that widen to this primitive
+        Set<JavaClass> primitiveAssignables = new HashSet<>();
+        for (Class<?> primitiveClass : PRIMITIVE_CLASSES) {
+            JavaClass primitive = getJavaClassForClass(primitiveClass);
+            if (getCommonAncestorPrimitive(primitive) == this)
+                primitiveAssignables.add(primitive);
+        }
+
+        // Set/return
+        return _primitiveAssignables = Collections.unmodifiableSet(primitiveAssignables);
     }
 
     /**
@@ -671,7 +826,19 @@ public class JavaClass extends JavaType {
      */
     public boolean updateDecls()
     {
-        return _updater.updateDecls();
+        synchronized (_resolver) {
+            boolean changed = _updater.updateDecls();
+            _loadedKinds = DECLS_ALL;
+
+            // If changed, clear methods by name and resolved methods
+            if (changed) {
+                _methodsByName = null;
+                _resolver.clearCompatibleMethods();
+            }
+
+            // Return
+            return changed;
+        }
     }
 
     /**
@@ -679,6 +846,8 @@ public class JavaClass extends JavaType {
      */
     public List<JavaDecl> getAllDecls()
     {
-        return _updater.getAllDecls();
+        synchronized (_resolver) {
+            return _updater.getAllDecls();
+        }
     }
 }
\ No newline at end of file
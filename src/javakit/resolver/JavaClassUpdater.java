@@ -43,15 +43,68 @@ public class JavaClassUpdater {
         }
     }
 
+    /**
+     * Returns the kinds of decls to load together when given kind is first accessed (see JavaClass.DECLS_XXX).
+     */
+    public int getDeclKindsToLoad(int aKind)  { return aKind; }
+
+    /**
+     * Loads JavaDecls of given kinds on first access (resolver locked).
+     */
+    public void loadDecls(int theKinds)
+    {
+        try { loadDeclsImpl(theKinds); }
+        catch (SecurityException e) { e.printStackTrace(); }
+    }
+
+    /**
+     * Loads JavaDecls of given kinds on first access (resolver locked).
+     */
+    protected void loadDeclsImpl(int theKinds) throws SecurityException
+    {
+        // Get real class
+        Class<?> realClass = _javaClass.getRealClass();
+        if (realClass == null) {
+            System.err.println("JavaClass: Failed to load class: " + _javaClass.getClassName());
+            return;
+        }
+
+        // Set Decls from Object[] for efficiency
+        if (realClass.isArray() && realClass != Object[].class) {
+            updateArrayClass(theKinds);
+            return;
+        }
+
+        // Load interfaces, type variables, inner classes
+        if ((theKinds & JavaClass.DECLS_INTERFACES) != 0)
+            updateInterfaces(realClass);
+        if ((theKinds & JavaClass.DECLS_TYPE_VARS) != 0)
+            updateTypeVariables(realClass, null);
+        if ((theKinds & JavaClass.DECLS_INNER_CLASSES) != 0)
+            updateInnerClasses(realClass, null);
+
+        // Load fields (and Array.length for Object[])
+        if ((theKinds & JavaClass.DECLS_FIELDS) != 0) {
+            updateFields(realClass, null);
+            if (_javaClass.isArray())
+                _javaClass._fieldDecls = Arrays.asList(getLengthField());
+        }
+
+        // Load methods, constructors
+        if ((theKinds & JavaClass.DECLS_METHODS) != 0)
+            updateMethods(realClass, null);
+        if ((theKinds & JavaClass.DECLS_CONSTRUCTORS) != 0)
+            updateConstructors(realClass, null);
+
+        // Clear cached AllDecls
+        _allDecls = null;
+    }
+
     /**
      * Updates JavaDecls. Returns whether the decls changed since last update.
      */
     public boolean updateDeclsImpl() throws SecurityException
     {
-        // If first time, set decls
-        if (_javaClass._fieldDecls == null)
-            _javaClass._fieldDecls = new ArrayList<>();
-
         // Get ClassName
         String className = _javaClass.getClassName();
 
@@ -64,7 +117,7 @@ public class JavaClassUpdater {
 
         // Set Decls from Object[] for efficiency
         if (realClass.isArray() && realClass != Object[].class) {
-            updateArrayClass();
+            updateArrayClass(JavaClass.DECLS_ALL);
             return true;
         }
 
@@ -95,10 +148,14 @@ public class JavaClassUpdater {
         updateConstructors(realClass, removedDecls);
 
         // Array.length: Handle this special for Object[]
-        if (_javaClass.isArray() && _javaClass.getFieldForName("length") == null) {
-            JavaField javaField = getLengthField();
-            _javaClass._fieldDecls = Arrays.asList(javaField);
-            _addedDecls++;
+        if (_javaClass.isArray()) {
+            JavaField lengthField = _javaClass.getFieldForName("length");
+            if (lengthField == null) {
+                JavaField javaField = getLengthField();
+                _javaClass._fieldDecls = Arrays.asList(javaField);
+                _addedDecls++;
+            }
+            else removedDecls.remove(lengthField);
         }
 
         // Remove unused decls
@@ -131,7 +188,7 @@ public class JavaClassUpdater {
     }
 
     /**
-     * Updates inner classes.
+     * Updates type variables (removedDecls is null for first load).
      */
     private void updateTypeVariables(Class<?> realClass, Set<JavaDecl> removedDecls) throws SecurityException
     {
@@ -141,7 +198,7 @@ public class JavaClassUpdater {
         // Add JavaDecl for each Type parameter
         for (TypeVariable<?> typeVariable : typeVariables) {
             String name = typeVariable.getName();
-            JavaDecl decl = _javaClass.getTypeVarForName(name);
+            JavaDecl decl = removedDecls != null ? _javaClass.getTypeVarForName(name) : null;
             if (decl == null) {
                 decl = new JavaTypeVariable(_resolver, _javaClass, typeVariable);
                 addDecl(decl);
@@ -152,7 +209,7 @@ public class JavaClassUpdater {
     }
 
     /**
-     * Updates inner classes.
+     * Updates inner classes (removedDecls is null for first load).
      */
     private void updateInnerClasses(Class<?> realClass, Set<JavaDecl> removedDecls) throws SecurityException
     {
@@ -161,7 +218,7 @@ public class JavaClassUpdater {
 
         // Add JavaDecl for each inner class
         for (Class<?> innerClass : innerClasses) {   //if(icls.isSynthetic()) continue;
-            JavaDecl decl = _javaClass.getInnerClassForName(innerClass.getSimpleName());
+            JavaDecl decl = removedDecls != null ? _javaClass.getInnerClassForName(innerClass.getSimpleName()) : null;
             if (decl == null) {
                 decl = _resolver.getJavaClassForClass(innerClass);
                 addDecl(decl);
@@ -172,7 +229,7 @@ public class JavaClassUpdater {
     }
 
     /**
-     * Updates fields.
+     * Updates fields (removedDecls is null for first load).
      */
     private void updateFields(Class<?> realClass, Set<JavaDecl> removedDecls) throws SecurityException
     {
@@ -188,7 +245,7 @@ public class JavaClassUpdater {
 
         // Add JavaDecl for each declared field - also make sure field type is in refs
         for (Field field : fields) {
-            JavaDecl decl = getJavaFieldForField(field);
+            JavaDecl decl = removedDecls != null ? getJavaFieldForField(field) : null;
             if (decl == null) {
                 decl = new JavaField(_resolver, _javaClass, field);
                 addDecl(decl);
@@ -199,7 +256,7 @@ public class JavaClassUpdater {
     }
 
     /**
-     * Updates methods.
+     * Updates methods (removedDecls is null for first load).
      */
     private void updateMethods(Class<?> realClass, Set<JavaDecl> removedDecls) throws SecurityException
     {
@@ -216,7 +273,7 @@ public class JavaClassUpdater {
         // Add JavaDecl for each declared method - also make sure return/parameter types are in refs
         for (Method meth : methods) {
             if (meth.isSynthetic()) continue;
-            JavaMethod decl = getJavaMethodForMethod(meth);
+            JavaMethod decl = removedDecls != null ? getJavaMethodForMethod(meth) : null;
             if (decl == null) {
                 decl = new JavaMethod(_resolver, _javaClass, meth);
                 addDecl(decl);
@@ -228,7 +285,7 @@ public class JavaClassUpdater {
     }
 
     /**
-     * Updates constructors.
+     * Updates constructors (removedDecls is null for first load).
      */
     private void updateConstructors(Class<?> realClass, Set<JavaDecl> removedDecls) throws SecurityException
     {
@@ -245,7 +302,7 @@ public class JavaClassUpdater {
         // Add JavaDecl for each constructor - also make sure parameter types are in refs
         for (Constructor<?> constr : constructors) {
             if (constr.isSynthetic()) continue;
-            JavaConstructor decl = getJavaConstructorForConstructor(constr);
+            JavaConstructor decl = removedDecls != null ? getJavaConstructorForConstructor(constr) : null;
             if (decl == null) {
                 decl = new JavaConstructor(_resolver, _javaClass, constr);
                 addDecl(decl);
@@ -257,17 +314,23 @@ public class JavaClassUpdater {
     }
 
     /**
-     * Updates array class.
+     * Updates array class decls of given kinds from Object[].
      */
-    private void updateArrayClass()
+    private void updateArrayClass(int theKinds)
     {
         JavaClass aryDecl = _resolver.getJavaClassForClass(Object[].class);
-        _javaClass._fieldDecls = aryDecl.getFields();
-        _javaClass._interfaces = aryDecl._interfaces;
-        _javaClass._methDecls = aryDecl._methDecls;
-        _javaClass._constrDecls = aryDecl._constrDecls;
-        _javaClass._innerClasses = aryDecl._innerClasses;
-        _javaClass._typeVarDecls = aryDecl._typeVarDecls;
+        if ((theKinds & JavaClass.DECLS_FIELDS) != 0)
+            _javaClass._fieldDecls = aryDecl.getFields();
+        if ((theKinds & JavaClass.DECLS_INTERFACES) != 0)
+            _javaClass._interfaces = aryDecl.getInterfaces();
+        if ((theKinds & JavaClass.DECLS_METHODS) != 0)
+            _javaClass._methDecls = aryDecl.getMethods();
+        if ((theKinds & JavaClass.DECLS_CONSTRUCTORS) != 0)
+            _javaClass._constrDecls = aryDecl.getConstructors();
+        if ((theKinds & JavaClass.DECLS_INNER_CLASSES) != 0)
+            _javaClass._innerClasses = aryDecl.getInnerClasses();
+        if ((theKinds & JavaClass.DECLS_TYPE_VARS) != 0)
+            _javaClass._typeVarDecls = aryDecl.getTypeVars();
     }
 
     /**
@@ -280,14 +343,17 @@ public class JavaClassUpdater {
 
         // Create new AllDecls cached list with decls for fields, methods, constructors, inner classes and this class
         List<JavaField> fdecls = _javaClass.getFields();
-        int memberCount = fdecls.size() + _javaClass._methDecls.size() + _javaClass._constrDecls.size();
-        int declCount = memberCount + _javaClass._innerClasses.size() + 1;
+        List<JavaMethod> mdecls = _javaClass.getMethods();
+        List<JavaConstructor> cdecls = _javaClass.getConstructors();
+        List<JavaClass> icdecls = _javaClass.getInnerClasses();
+        int memberCount = fdecls.size() + mdecls.size() + cdecls.size();
+        int declCount = memberCount + icdecls.size() + 1;
         List<JavaDecl> decls = new ArrayList<>(declCount);
         decls.add(_javaClass);
-        decls.addAll(_javaClass._fieldDecls);
-        decls.addAll(_javaClass._methDecls);
-        decls.addAll(_javaClass._constrDecls);
-        decls.addAll(_javaClass._innerClasses);
+        decls.addAll(fdecls);
+        decls.addAll(mdecls);
+        decls.addAll(cdecls);
+        decls.addAll(icdecls);
 
         // Set/return
         return _allDecls = decls;
@@ -29,7 +29,27 @@ public class JavaClassUpdaterDecl extends JavaClassUpdater {
     public void setClassDecl(JClassDecl aClassDecl)
     {
         _classDecl = aClassDecl;
-        _javaClass._fieldDecls = null;
+        _javaClass.clearDecls();
+
+        // If super class changed, update (clears super types sets)
+        JavaClass superClass = aClassDecl.getSuperClass();
+        if (superClass != _javaClass.getSuperClass())
+            _javaClass.setSuperClass(superClass);
+    }
+
+    /**
+     * Override to load all kinds together, since they come from class decl.
+     */
+    @Override
+    public int getDeclKindsToLoad(int aKind)  { return JavaClass.DECLS_ALL; }
+
+    /**
+     * Override to update all decls from class decl.
+     */
+    @Override
+    protected void loadDeclsImpl(int theKinds) throws SecurityException
+    {
+        updateDeclsImpl();
     }
 
     /**
@@ -38,10 +58,6 @@ public class JavaClassUpdaterDecl extends JavaClassUpdater {
     @Override
     public boolean updateDeclsImpl() throws SecurityException
     {
-        // If first time, set decls
-        if (_javaClass._fieldDecls == null)
-            _javaClass._fieldDecls = Collections.EMPTY_LIST;
-
         // Update interfaces
         //updateInterfaces();
         _javaClass._interfaces = new JavaClass[0];
@@ -36,18 +36,16 @@ public class JavaClassUtils {
      */
     public static JavaMethod getCompatibleMethod(JavaClass aClass, String aName, JavaType[] theTypes)
     {
-        List<JavaMethod> methods = aClass.getMethods();
+        List<JavaMethod> methods = aClass.getMethodsForName(aName);
         JavaMethod method = null;
         int rating = 0;
 
         // Iterate over methods to find highest rating
         for (JavaMethod meth : methods) {
-            if (meth.getName().equals(aName)) {
-                int rtg = JavaExecutable.getMatchRatingForTypes(meth, theTypes);
-                if (rtg > rating) {
-                    method = meth;
-                    rating = rtg;
-                }
+            int rtg = JavaExecutable.getMatchRatingForTypes(meth, theTypes);
+            if (rtg > rating) {
+                method = meth;
+                rating = rtg;
             }
         }
 
@@ -73,6 +71,26 @@ public class JavaClassUtils {
      * Returns a compatible method for given name and param types.
      */
     public static JavaMethod getCompatibleMethodAll(JavaClass aClass, String aName, JavaType[] theTypes)
+    {
+        // Get cache (before resolving, so if cleared meanwhile result goes to discarded cache) and key - if cached, return
+        Map<String,Object> cache = aClass._resolver.getCompatibleMethodsCache();
+        String key = getCompatibleMethodKey(aClass, aName, theTypes);
+        Object cached = cache.get(key);
+        if (cached != null)
+            return cached instanceof JavaMethod ? (JavaMethod) cached : null;
+
+        // Get compatible method and add to cache (FALSE if not found)
+        JavaMethod method = getCompatibleMethodAllImpl(aClass, aName, theTypes);
+        cache.put(key, method != null ? method : Boolean.FALSE);
+
+        // Return
+        return method;
+    }
+
+    /**
+     * Returns a compatible method for given name and param types.
+     */
+    private static JavaMethod getCompatibleMethodAllImpl(JavaClass aClass, String aName, JavaType[] theTypes)
     {
         // Search this class and superclasses for compatible method
         JavaMethod decl = getCompatibleMethodDeep(aClass, aName, theTypes);
@@ -99,23 +117,37 @@ public class JavaClassUtils {
         return null;
     }
 
+    /**
+     * Returns the compatible method cache key for given class, method name and param types.
+     */
+    private static String getCompatibleMethodKey(JavaClass aClass, String aName, JavaType[] theTypes)
+    {
+        StringBuilder sb = new StringBuilder(aClass.getId()).append('.').append(aName).append('(');
+        for (int i = 0; i < theTypes.length; i++) {
+            if (i > 0) sb.append(',');
+            JavaType type = theTypes[i];
+            sb.append(type != null ? type.getId() : "null");
+        }
+
+        // Return
+        return sb.append(')').toString();
+    }
+
     /**
      * Returns a compatible methods for given name and param types.
      */
     public static List<JavaMethod> getCompatibleMethods(JavaClass aClass, String aName, JavaType[] theTypes)
     {
         List<JavaMethod> matches = Collections.EMPTY_LIST;
-        List<JavaMethod> methods = aClass.getMethods();
+        List<JavaMethod> methods = aClass.getMethodsForName(aName);
 
         // Iterate over methods to find highest rating
         for (JavaMethod method : methods) {
-            if (method.getName().equals(aName)) {
-                int rtg = JavaExecutable.getMatchRatingForTypes(method, theTypes);
-                if (rtg > 0) {
-                    if (matches == Collections.EMPTY_LIST)
-                        matches = new ArrayList<>();
-                    matches.add(method);
-                }
+            int rtg = JavaExecutable.getMatchRatingForTypes(method, theTypes);
+            if (rtg > 0) {
+                if (matches == Collections.EMPTY_LIST)
+                    matches = new ArrayList<>();
+                matches.add(method);
             }
         }
 
@@ -3,7 +3,9 @@
  */
 package javakit.resolver;
 import snap.util.StringUtils;
+import java.lang.invoke.MethodHandle;
 import java.lang.reflect.*;
+import java.util.Map;
 
 /**
  * This class represents a Java Method or Constructor.
@@ -19,6 +21,12 @@ public class JavaExecutable extends JavaMember {
     // Whether method has VarArgs
     protected boolean  _varArgs;
 
+    // The cached invoke MethodHandle, adapted to (Object receiver, Object[] args)Object (set by ResolverSys)
+    protected MethodHandle  _methodHandle;
+
+    // The cached invoke MethodHandles for unpackaged VarArgs calls, by arg count (set by ResolverSys, concurrent map)
+    protected volatile Map<Integer,MethodHandle>  _varArgsMethodHandles;
+
     /**
      * Constructor.
      */
@@ -10,6 +10,9 @@ import java.util.Arrays;
  */
 public class JavaField extends JavaMember {
 
+    // The field
+    protected Field  _field;
+
     /**
      * Constructor.
      */
@@ -18,11 +21,19 @@ public class JavaField extends JavaMember {
         super(aResolver, DeclType.Field, aDeclaringClass, aField);
         if (aField == null) return;
 
+        // Set Field
+        _field = aField;
+
         // Set EvalType
         Type fieldType = aResolver.getGenericTypeForField(aField);
         _evalType = _resolver.getJavaTypeForType(fieldType);
     }
 
+    /**
+     * Returns the Field.
+     */
+    public Field getField()  { return _field; }
+
     /**
      * Returns whether field is enum constant.
      */
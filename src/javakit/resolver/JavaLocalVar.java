@@ -11,6 +11,32 @@ public class JavaLocalVar extends JavaDecl {
     // The index of this local var in the current frame of the call stack
     private int  _indexInStackFrame = -1;
 
+    // The type of stack slot this local var is stored in
+    private SlotType  _slotType = SlotType.Object;
+
+    /**
+     * Constants for the types of stack slots: Primitive int, long and double values are stored unboxed.
+     */
+    public enum SlotType {
+
+        Object, Int, Long, Double;
+
+        /**
+         * Returns the slot type for given type.
+         */
+        public static SlotType getSlotTypeForType(JavaType aType)
+        {
+            String className = aType != null && aType.isPrimitive() ? aType.getClassName() : null;
+            if ("int".equals(className))
+                return Int;
+            if ("long".equals(className))
+                return Long;
+            if ("double".equals(className))
+                return Double;
+            return Object;
+        }
+    }
+
     /**
      * Constructor.
      */
@@ -34,6 +60,16 @@ public class JavaLocalVar extends JavaDecl {
      */
     public void setIndexInStackFrame(int anIndex)  { _indexInStackFrame = anIndex; }
 
+    /**
+     * Returns the type of stack slot this local var is stored in.
+     */
+    public SlotType getSlotType()  { return _slotType; }
+
+    /**
+     * Sets the type of stack slot this local var is stored in.
+     */
+    public void setSlotType(SlotType aSlotType)  { _slotType = aSlotType; }
+
     /**
      * Returns a string representation of suggestion.
      */
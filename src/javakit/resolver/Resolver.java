@@ -4,11 +4,17 @@
 package javakit.resolver;
 import java.lang.reflect.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import snap.util.ClassUtils;
 import snap.util.SnapUtils;
 
 /**
  * A class that manages all the JavaDecls for a project.
+ *
+ * A Resolver can be shared by threads: Decl caches are concurrent maps that are read without locking, while decls are
+ * created with the resolver locked (reentrant, since creating a class creates its super class, component class, etc.)
+ * with a double-check, so each name maps to one decl. Classes are published to the cache only once the outermost
+ * creation completes, so other threads never see a partially constructed class.
  */
 public class Resolver {
 
@@ -21,17 +27,38 @@ public class Resolver {
     // The ClassPathInfo
     private ClassPathInfo  _classPathInfo;
 
+    // A version number for class path contents, incremented when class paths are set or class path caches cleared
+    private volatile int  _classPathVersion;
+
     // A cache of JavaPackages by name
-    private Map<String,JavaPackage>  _packages = new HashMap<>();
+    private Map<String,JavaPackage>  _packages = new ConcurrentHashMap<>();
 
     // A map of class/package names to JavaDecls to provide JavaDecls for project
-    protected Map<String, JavaClass>  _classes = new HashMap<>();
+    protected Map<String, JavaClass>  _classes = new ConcurrentHashMap<>();
+
+    // The classes created by current outermost class creation, not yet published to classes map (resolver locked)
+    private Map<String,JavaClass>  _pendingClasses = new HashMap<>();
+
+    // The depth of nested class creation (resolver locked)
+    private int  _createDepth;
 
     // A cache of JavaParameterizedTypes by id
-    private Map<String,JavaParameterizedType>  _paramTypes = new HashMap<>();
+    private Map<String,JavaParameterizedType>  _paramTypes = new ConcurrentHashMap<>();
 
     // A cache of JavaGenericArrayType by id
-    private Map<String,JavaGenericArrayType>  _arrayTypes = new HashMap<>();
+    private Map<String,JavaGenericArrayType>  _arrayTypes = new ConcurrentHashMap<>();
+
+    // A cache of compatible methods (or FALSE if none) for key of class id, method name and arg type ids (replaced
+    // on clear, so a result computed before clear is added to discarded map, never to current one)
+    private volatile Map<String,Object>  _compatibleMethods = new ConcurrentHashMap<>();
+
+    // A bounded cache of class names known not to exist (oldest evicted first)
+    private Map<String,Boolean>  _missingClassNames = Collections.synchronizedMap(new LinkedHashMap<String,Boolean>() {
+        protected boolean removeEldestEntry(Map.Entry<String,Boolean> anEntry)  { return size() > MISSING_CLASS_NAMES_MAX; }
+    });
+
+    // The maximum number of cached missing class names
+    private static final int MISSING_CLASS_NAMES_MAX = 8192;
 
     // Global literals
     private static JavaLocalVar[]  _literals;
@@ -55,15 +82,61 @@ public class Resolver {
     /**
      * Sets the ClassPaths.
      */
-    public void setClassPaths(String[] theClassPaths)
+    public synchronized void setClassPaths(String[] theClassPaths)
     {
         _classPaths = theClassPaths;
+
+        // Clear ClassPathInfo and missing class names, since they depend on class paths
+        _classPathInfo = null;
+        _missingClassNames.clear();
+        _classPathVersion++;
+    }
+
+    /**
+     * Returns a version number for class path contents, which changes when class paths are set or project classes are
+     * built (so callers can cache things derived from class path contents).
+     */
+    public int getClassPathVersion()  { return _classPathVersion; }
+
+    /**
+     * Clears caches of class path contents: Package index and missing class names (called when project classes are
+     * built, since class names looked up before may now exist in build dir).
+     */
+    public synchronized void clearClassPathCaches()
+    {
+        if (_classPathInfo != null)
+            _classPathInfo.clearPackageIndex();
+        _missingClassNames.clear();
+        _classPathVersion++;
+    }
+
+    /**
+     * Returns the cache of compatible methods for class, method name and arg types (see JavaClassUtils). Callers should
+     * get cache once before resolving and add result to that instance.
+     */
+    protected Map<String,Object> getCompatibleMethodsCache()  { return _compatibleMethods; }
+
+    /**
+     * Clears the cache of compatible methods (called when class decls change).
+     */
+    protected void clearCompatibleMethods()  { _compatibleMethods = new ConcurrentHashMap<>(); }
+
+    /**
+     * Clears the super types sets of all classes (called when a class changes super class).
+     */
+    protected synchronized void clearSuperTypesSets()
+    {
+        for (JavaClass javaClass : _classes.values())
+            javaClass.clearSuperTypesSet();
+        for (JavaClass javaClass : _pendingClasses.values())
+            javaClass.clearSuperTypesSet();
+        clearCompatibleMethods();
     }
 
     /**
      * Returns the ClassPathInfo.
      */
-    public ClassPathInfo getClassPathInfo()
+    public synchronized ClassPathInfo getClassPathInfo()
     {
         // If already set, just return
         if (_classPathInfo != null) return _classPathInfo;
@@ -105,15 +178,48 @@ public class Resolver {
         if (javaClass != null)
             return javaClass;
 
+        // If name is known not to exist, just return
+        if (_missingClassNames.containsKey(aClassName))
+            return null;
+
+        // If class path index says name can't exist, add to missing names and return (avoids ClassLoader search)
+        if (!isTeaVM && isMissingClassNameForClassPath(aClassName)) {
+            _missingClassNames.put(aClassName, Boolean.TRUE);
+            return null;
+        }
+
         // Otherwise lookup Class for name
         Class<?> cls = getClassForName(aClassName);
         if (cls != null)
             return getJavaClassForClass(cls);
 
-        // Return
+        // Add to missing names and return
+        _missingClassNames.put(aClassName, Boolean.TRUE);
         return null;
     }
 
+    /**
+     * Returns whether class path package index shows that given class name doesn't exist: Name package is indexed
+     * and doesn't contain name (for simple names, neither default package nor java.lang contain name).
+     */
+    private boolean isMissingClassNameForClassPath(String aClassName)
+    {
+        // Get class path info (just return if not available)
+        ClassPathInfo classPathInfo;
+        try { classPathInfo = getClassPathInfo(); }
+        catch (Exception e) { return false; }
+
+        // Handle simple name: Check default package and java.lang
+        int lastDot = aClassName.lastIndexOf('.');
+        if (lastDot < 0)
+            return classPathInfo.isMissingClassName("", aClassName) && classPathInfo.isMissingClassName("java.lang", aClassName);
+
+        // Handle qualified name: Check package
+        String packageName = aClassName.substring(0, lastDot);
+        String simpleName = aClassName.substring(lastDot + 1);
+        return classPathInfo.isMissingClassName(packageName, simpleName);
+    }
+
     /**
      * Returns a JavaClass for given Class.
      */
@@ -125,16 +231,84 @@ public class Resolver {
         if (javaClass != null)
             return javaClass;
 
-        // Get parent package or class for class
-        JavaDecl parDecl = getParentPackageOrClassForClass(aClass);
+        // Create with resolver locked
+        synchronized (this) {
+
+            // Check again (could have been created by another thread or be pending in this one)
+            javaClass = getCreatedClassForName(className);
+            if (javaClass != null)
+                return javaClass;
+
+            // Get parent package or class for class
+            startCreate();
+            try {
+                JavaDecl parDecl = getParentPackageOrClassForClass(aClass);
 
-        // Create JavaClass and add to Classes cache map (this is done in constructor)
-        javaClass = new JavaClass(this, parDecl, aClass);
+                // Create JavaClass and add to pending classes (this is done in constructor)
+                javaClass = new JavaClass(this, parDecl, aClass);
+            }
+            finally { endCreate(); }
+        }
 
         // Return
         return javaClass;
     }
 
+    /**
+     * Returns a JavaClass for given class decl and name, creating it if missing (class not compiled).
+     */
+    public JavaClass getJavaClassForClassDecl(javakit.parse.JClassDecl aClassDecl, String aClassName)
+    {
+        synchronized (this) {
+
+            // Check again (could have been created by another thread)
+            JavaClass javaClass = getCreatedClassForName(aClassName);
+            if (javaClass != null)
+                return javaClass;
+
+            // Create JavaClass and add to pending classes (this is done in constructor)
+            startCreate();
+            try { return new JavaClass(this, aClassDecl, aClassName); }
+            finally { endCreate(); }
+        }
+    }
+
+    /**
+     * Returns a class already created for given name: Published or pending in current creation (resolver locked).
+     */
+    private JavaClass getCreatedClassForName(String aClassName)
+    {
+        JavaClass javaClass = _classes.get(aClassName);
+        return javaClass != null ? javaClass : _pendingClasses.get(aClassName);
+    }
+
+    /**
+     * Adds a newly created class for given name to pending classes (called from JavaClass constructor).
+     */
+    protected void addCreatedClass(String aClassName, JavaClass aClass)
+    {
+        // If not within create (subclass created class directly), just publish
+        if (_createDepth == 0)
+            _classes.put(aClassName, aClass);
+        else _pendingClasses.put(aClassName, aClass);
+    }
+
+    /**
+     * Called with resolver locked before class creation.
+     */
+    private void startCreate()  { _createDepth++; }
+
+    /**
+     * Called with resolver locked after class creation: If outermost creation, publishes pending classes.
+     */
+    private void endCreate()
+    {
+        if (--_createDepth > 0)
+            return;
+        _classes.putAll(_pendingClasses);
+        _pendingClasses.clear();
+    }
+
     /**
      * Returns whether given package really exists. This probably needs a real implementation.
      */
@@ -154,6 +328,22 @@ public class Resolver {
         if (pkg != null)
             return pkg;
 
+        // Create with resolver locked
+        synchronized (this) {
+            pkg = _packages.get(aName);
+            if (pkg == null)
+                pkg = createJavaPackageForName(aName);
+        }
+
+        // Return
+        return pkg;
+    }
+
+    /**
+     * Creates a package decl (resolver locked).
+     */
+    private JavaPackage createJavaPackageForName(String aName)
+    {
         // Get parent package
         JavaPackage parent = null;
         int ind = aName.lastIndexOf('.');
@@ -163,7 +353,7 @@ public class Resolver {
         }
 
         // Create new JavaPackage and add to Packages cache
-        pkg = new JavaPackage(this, parent, aName);
+        JavaPackage pkg = new JavaPackage(this, parent, aName);
         _packages.put(aName, pkg);
 
         // Return
@@ -229,9 +419,14 @@ public class Resolver {
         if (decl != null)
             return decl;
 
-        // Create and add to cache
-        decl = new JavaGenericArrayType(this, aGAT);
-        _arrayTypes.put(id, decl);
+        // Create with resolver locked (check again, could have been created by another thread) and add to cache
+        synchronized (this) {
+            decl = _arrayTypes.get(id);
+            if (decl == null) {
+                decl = new JavaGenericArrayType(this, aGAT);
+                _arrayTypes.put(id, decl);
+            }
+        }
 
         // Return
         return decl;
@@ -255,11 +450,7 @@ public class Resolver {
         JavaType[] typeArgDecls = getJavaTypesForTypes(typArgs);
 
         // Create and add to cache
-        decl = new JavaParameterizedType(this, rawTypeDecl, typeArgDecls);
-        _paramTypes.put(id, decl);
-
-        // Return
-        return decl;
+        return getJavaParameterizedTypeForId(id, rawTypeDecl, typeArgDecls);
     }
 
     /**
@@ -274,10 +465,22 @@ public class Resolver {
             return decl;
 
         // Create new decl, add to map
-        decl = new JavaParameterizedType(this, aRawType, theTypeArgs);
-        _paramTypes.put(id, decl);
+        return getJavaParameterizedTypeForId(id, aRawType, theTypeArgs);
+    }
 
-        // Return
+    /**
+     * Returns the JavaParameterizedType for given id, creating with given parts if missing (atomically).
+     */
+    private synchronized JavaParameterizedType getJavaParameterizedTypeForId(String anId, JavaType aRawType, JavaType[] theTypeArgs)
+    {
+        // Check again (could have been created by another thread)
+        JavaParameterizedType decl = _paramTypes.get(anId);
+        if (decl != null)
+            return decl;
+
+        // Create new decl, add to map and return
+        decl = new JavaParameterizedType(this, aRawType, theTypeArgs);
+        _paramTypes.put(anId, decl);
         return decl;
     }
 
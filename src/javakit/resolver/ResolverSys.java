@@ -2,14 +2,24 @@
  * Copyright (c) 2010, ReportMill Software. All rights reserved.
  */
 package javakit.resolver;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
 import java.lang.reflect.*;
 import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * A class that manages all the JavaDecls for a project.
  */
 public class ResolverSys extends Resolver {
 
+    // The lookup used to create MethodHandles
+    private static final MethodHandles.Lookup  _lookup = MethodHandles.lookup();
+
+    // A MethodHandle to mark methods that can't be invoked with MethodHandles (not accessible)
+    private static final MethodHandle NULL_HANDLE = MethodHandles.constant(Object.class, null);
+
     /**
      * Constructor.
      */
@@ -35,6 +45,11 @@ public class ResolverSys extends Resolver {
         // Get method
         Method meth = javaMethod.getMethod();
 
+        // If MethodHandle available, invoke
+        MethodHandle methodHandle = getMethodHandle(javaMethod, meth, theArgs);
+        if (methodHandle != null)
+            return invokeMethodHandle(methodHandle, anObj, theArgs);
+
         // If VarArgs, need to repackage args
         if (meth.isVarArgs())
             theArgs = repackageArgsForVarArgsMethod(meth, theArgs);
@@ -52,13 +67,91 @@ public class ResolverSys extends Resolver {
         if (isTeaVM)
             return super.invokeConstructor(aClass, javaConstructor, theArgs);
 
-        // Get method
-        Constructor<?> constructor = javaConstructor.getConstructor();
+        // Get constructor (if no JavaConstructor, use default constructor)
+        Constructor<?> constructor = javaConstructor != null ? javaConstructor.getConstructor() : null;
+        if (constructor == null)
+            return aClass.getDeclaredConstructor().newInstance(theArgs);
+
+        // If MethodHandle available, invoke
+        MethodHandle methodHandle = getMethodHandle(javaConstructor, constructor, theArgs);
+        if (methodHandle != null)
+            return invokeMethodHandle(methodHandle, null, theArgs);
 
-        // Invoke method
+        // If VarArgs, need to repackage args
+        if (constructor.isVarArgs())
+            theArgs = repackageArgsForVarArgsMethod(constructor, theArgs);
+
+        // Invoke constructor
         return constructor.newInstance(theArgs);
     }
 
+    /**
+     * Returns the cached invoke MethodHandle for given executable and args (or null if not accessible).
+     */
+    private static MethodHandle getMethodHandle(JavaExecutable javaExec, Executable anExec, Object[] theArgs)
+    {
+        // Handle VarArgs with unpackaged args: Get/create handle with collector for arg count
+        if (anExec.isVarArgs() && !isVarArgsPackaged(anExec, theArgs)) {
+            Map<Integer,MethodHandle> varArgsHandles = javaExec._varArgsMethodHandles;
+            if (varArgsHandles == null)
+                varArgsHandles = javaExec._varArgsMethodHandles = new ConcurrentHashMap<>();
+            int varArgCount = theArgs.length - anExec.getParameterCount() + 1;
+            MethodHandle methodHandle = varArgsHandles.computeIfAbsent(theArgs.length, argCount -> createMethodHandle(anExec, varArgCount));
+            return methodHandle != NULL_HANDLE ? methodHandle : null;
+        }
+
+        // Get/create handle for normal call
+        MethodHandle methodHandle = javaExec._methodHandle;
+        if (methodHandle == null)
+            methodHandle = javaExec._methodHandle = createMethodHandle(anExec, -1);
+        return methodHandle != NULL_HANDLE ? methodHandle : null;
+    }
+
+    /**
+     * Creates an invoke MethodHandle for given executable adapted to (Object receiver, Object[] args)Object.
+     * If VarArgCount is provided, adds collector for given number of var args.
+     */
+    private static MethodHandle createMethodHandle(Executable anExec, int varArgCount)
+    {
+        // Get MethodHandle with fixed arity (add ignored receiver param for static methods and constructors)
+        MethodHandle methodHandle;
+        try {
+            if (anExec instanceof Method) {
+                Method method = (Method) anExec;
+                methodHandle = _lookup.unreflect(method).asFixedArity();
+                if (Modifier.isStatic(method.getModifiers()))
+                    methodHandle = MethodHandles.dropArguments(methodHandle, 0, Object.class);
+            }
+            else {
+                methodHandle = _lookup.unreflectConstructor((Constructor<?>) anExec).asFixedArity();
+                methodHandle = MethodHandles.dropArguments(methodHandle, 0, Object.class);
+            }
+        }
+        catch (IllegalAccessException e) { return NULL_HANDLE; }
+
+        // If VarArgs count provided, add collector
+        int argCount = anExec.getParameterCount();
+        if (varArgCount >= 0) {
+            Class<?> varArgArrayClass = anExec.getParameterTypes()[argCount - 1];
+            methodHandle = methodHandle.asCollector(varArgArrayClass, varArgCount);
+            argCount += varArgCount - 1;
+        }
+
+        // Convert to generic types and add spreader for args array
+        methodHandle = methodHandle.asType(methodHandle.type().generic());
+        return methodHandle.asSpreader(Object[].class, argCount);
+    }
+
+    /**
+     * Invokes given MethodHandle (created by createMethodHandle) with given receiver and args.
+     * Exceptions are wrapped in InvocationTargetException, as with Method.invoke().
+     */
+    private static Object invokeMethodHandle(MethodHandle aMethodHandle, Object anObj, Object[] theArgs) throws Exception
+    {
+        try { return (Object) aMethodHandle.invokeExact(anObj, theArgs); }
+        catch (Throwable t) { throw new InvocationTargetException(t); }
+    }
+
     /**
      * Needed for TeaVM.
      */
@@ -129,12 +222,29 @@ public class ResolverSys extends Resolver {
         return aMethod.isDefault();
     }
 
+    /**
+     * Returns whether given args are already packaged for VarArgs executable (last arg is VarArgs array or null).
+     */
+    private static boolean isVarArgsPackaged(Executable anExec, Object[] theArgs)
+    {
+        int argCount = anExec.getParameterCount();
+        if (theArgs.length != argCount)
+            return false;
+        Object lastArg = theArgs[argCount - 1];
+        Class<?> varArgArrayClass = anExec.getParameterTypes()[argCount - 1];
+        return lastArg == null || varArgArrayClass.isInstance(lastArg);
+    }
+
     /**
      * This method takes an array of args from a method call and repackages them for VarArgs call.
      * It basically moves collates the var args into an array.
      */
-    private static Object[] repackageArgsForVarArgsMethod(Method aMethod, Object[] theArgs)
+    private static Object[] repackageArgsForVarArgsMethod(Executable aMethod, Object[] theArgs)
     {
+        // If already packaged as VarArgArrayClass, just return
+        if (isVarArgsPackaged(aMethod, theArgs))
+            return theArgs;
+
         // Get VarArg class
         int argCount = aMethod.getParameterCount();
         int varArgIndex = argCount - 1;
@@ -142,13 +252,6 @@ public class ResolverSys extends Resolver {
         Class<?> varArgArrayClass = paramClasses[varArgIndex];
         Class<?> varArgClass = varArgArrayClass.getComponentType();
 
-        // If only one varArg and it is already packaged as VarArgArrayClass, just return
-        if (theArgs.length == argCount) {
-            Object firstVarArg = theArgs[varArgIndex];
-            if (firstVarArg.getClass() == varArgArrayClass)
-                return theArgs;
-        }
-
         // Create new args array of proper length
         Object[] args = Arrays.copyOf(theArgs, argCount);
 
@@ -165,4 +268,4 @@ public class ResolverSys extends Resolver {
         // Return
         return args;
     }
-}
\ No newline at end of file
+}
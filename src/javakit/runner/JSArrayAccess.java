@@ -0,0 +1,261 @@
+/*
+ * Copyright (c) 2010, ReportMill Software. All rights reserved.
+ */
+package javakit.runner;
+import java.lang.reflect.Array;
+import static javakit.runner.JSExprEvalUtils.*;
+
+/**
+ * This class provides array element get/set and allocation specialized for an array component type (int[], double[],
+ * Object[], etc.), so evaluators can pick one once and avoid java.lang.reflect.Array and boxing for typed access.
+ */
+public abstract class JSArrayAccess {
+
+    // The shared accessors for primitive component types
+    public static final JSArrayAccess INT = new IntAccess();
+    public static final JSArrayAccess LONG = new LongAccess();
+    public static final JSArrayAccess DOUBLE = new DoubleAccess();
+    public static final JSArrayAccess FLOAT = new FloatAccess();
+    public static final JSArrayAccess SHORT = new ShortAccess();
+    public static final JSArrayAccess BYTE = new ByteAccess();
+    public static final JSArrayAccess CHAR = new CharAccess();
+    public static final JSArrayAccess BOOLEAN = new BooleanAccess();
+
+    // The shared accessor for Object arrays of unknown component type (can't allocate)
+    public static final JSArrayAccess OBJECT = new ObjectAccess(Object.class);
+
+    /**
+     * Returns the array element at given index.
+     */
+    public abstract Object get(Object anArray, int anIndex);
+
+    /**
+     * Returns the array element at given index as int.
+     */
+    public int getInt(Object anArray, int anIndex)  { return intValue(get(anArray, anIndex)); }
+
+    /**
+     * Returns the array element at given index as long.
+     */
+    public long getLong(Object anArray, int anIndex)  { return longValue(get(anArray, anIndex)); }
+
+    /**
+     * Returns the array element at given index as double.
+     */
+    public double getDouble(Object anArray, int anIndex)  { return doubleValue(get(anArray, anIndex)); }
+
+    /**
+     * Returns the array element at given index as boolean.
+     */
+    public boolean getBoolean(Object anArray, int anIndex)  { return boolValue(get(anArray, anIndex)); }
+
+    /**
+     * Sets the array element at given index (converting value to component type, if primitive).
+     */
+    public abstract void set(Object anArray, int anIndex, Object aValue);
+
+    /**
+     * Sets the array element at given index from int (narrowing to component type, if needed).
+     */
+    public void setInt(Object anArray, int anIndex, int aValue)  { set(anArray, anIndex, aValue); }
+
+    /**
+     * Sets the array element at given index from long (narrowing to component type, if needed).
+     */
+    public void setLong(Object anArray, int anIndex, long aValue)  { set(anArray, anIndex, aValue); }
+
+    /**
+     * Sets the array element at given index from double (narrowing to component type, if needed).
+     */
+    public void setDouble(Object anArray, int anIndex, double aValue)  { set(anArray, anIndex, aValue); }
+
+    /**
+     * Returns a new array of component type with given length.
+     */
+    public abstract Object newArray(int aLength);
+
+    /**
+     * Returns the accessor for given array component class.
+     */
+    public static JSArrayAccess getAccessForComponentClass(Class<?> aClass)
+    {
+        if (aClass == int.class) return INT;
+        if (aClass == double.class) return DOUBLE;
+        if (aClass == long.class) return LONG;
+        if (aClass == float.class) return FLOAT;
+        if (aClass == byte.class) return BYTE;
+        if (aClass == char.class) return CHAR;
+        if (aClass == short.class) return SHORT;
+        if (aClass == boolean.class) return BOOLEAN;
+        return aClass == Object.class ? OBJECT : new ObjectAccess(aClass);
+    }
+
+    /**
+     * Returns the accessor for given array (for evaluators that can't resolve array type statically).
+     */
+    public static JSArrayAccess getAccessForArray(Object anArray)
+    {
+        if (anArray instanceof Object[]) return OBJECT;
+        if (anArray instanceof int[]) return INT;
+        if (anArray instanceof double[]) return DOUBLE;
+        if (anArray instanceof long[]) return LONG;
+        if (anArray instanceof float[]) return FLOAT;
+        if (anArray instanceof byte[]) return BYTE;
+        if (anArray instanceof char[]) return CHAR;
+        if (anArray instanceof short[]) return SHORT;
+        if (anArray instanceof boolean[]) return BOOLEAN;
+        throw new RuntimeException("JSArrayAccess.getAccessForArray: Not an array: " + anArray);
+    }
+
+    /**
+     * Returns a new array of given array class with given dimensions (trailing dimensions can be left unspecified).
+     */
+    public static Object newArrayForDims(Class<?> anArrayClass, int[] theDims)
+    {
+        // Handle single dimension
+        Class<?> compClass = anArrayClass.getComponentType();
+        if (theDims.length == 1)
+            return getAccessForComponentClass(compClass).newArray(theDims[0]);
+
+        // Handle multiple dimensions: Get component class below given dimensions and allocate all at once
+        for (int i = 1; i < theDims.length; i++)
+            compClass = compClass.getComponentType();
+        return Array.newInstance(compClass, theDims);
+    }
+
+    /**
+     * Accessor for int[].
+     */
+    private static class IntAccess extends JSArrayAccess {
+        public Object get(Object anArray, int anIndex)  { return ((int[]) anArray)[anIndex]; }
+        public int getInt(Object anArray, int anIndex)  { return ((int[]) anArray)[anIndex]; }
+        public long getLong(Object anArray, int anIndex)  { return ((int[]) anArray)[anIndex]; }
+        public double getDouble(Object anArray, int anIndex)  { return ((int[]) anArray)[anIndex]; }
+        public void set(Object anArray, int anIndex, Object aValue)  { ((int[]) anArray)[anIndex] = intValue(aValue); }
+        public void setInt(Object anArray, int anIndex, int aValue)  { ((int[]) anArray)[anIndex] = aValue; }
+        public void setLong(Object anArray, int anIndex, long aValue)  { ((int[]) anArray)[anIndex] = (int) aValue; }
+        public void setDouble(Object anArray, int anIndex, double aValue)  { ((int[]) anArray)[anIndex] = (int) aValue; }
+        public Object newArray(int aLength)  { return new int[aLength]; }
+    }
+
+    /**
+     * Accessor for long[].
+     */
+    private static class LongAccess extends JSArrayAccess {
+        public Object get(Object anArray, int anIndex)  { return ((long[]) anArray)[anIndex]; }
+        public int getInt(Object anArray, int anIndex)  { return (int) ((long[]) anArray)[anIndex]; }
+        public long getLong(Object anArray, int anIndex)  { return ((long[]) anArray)[anIndex]; }
+        public double getDouble(Object anArray, int anIndex)  { return ((long[]) anArray)[anIndex]; }
+        public void set(Object anArray, int anIndex, Object aValue)  { ((long[]) anArray)[anIndex] = longValue(aValue); }
+        public void setInt(Object anArray, int anIndex, int aValue)  { ((long[]) anArray)[anIndex] = aValue; }
+        public void setLong(Object anArray, int anIndex, long aValue)  { ((long[]) anArray)[anIndex] = aValue; }
+        public void setDouble(Object anArray, int anIndex, double aValue)  { ((long[]) anArray)[anIndex] = (long) aValue; }
+        public Object newArray(int aLength)  { return new long[aLength]; }
+    }
+
+    /**
+     * Accessor for double[].
+     */
+    private static class DoubleAccess extends JSArrayAccess {
+        public Object get(Object anArray, int anIndex)  { return ((double[]) anArray)[anIndex]; }
+        public int getInt(Object anArray, int anIndex)  { return (int) ((double[]) anArray)[anIndex]; }
+        public long getLong(Object anArray, int anIndex)  { return (long) ((double[]) anArray)[anIndex]; }
+        public double getDouble(Object anArray, int anIndex)  { return ((double[]) anArray)[anIndex]; }
+        public void set(Object anArray, int anIndex, Object aValue)  { ((double[]) anArray)[anIndex] = doubleValue(aValue); }
+        public void setInt(Object anArray, int anIndex, int aValue)  { ((double[]) anArray)[anIndex] = aValue; }
+        public void setLong(Object anArray, int anIndex, long aValue)  { ((double[]) anArray)[anIndex] = aValue; }
+        public void setDouble(Object anArray, int anIndex, double aValue)  { ((double[]) anArray)[anIndex] = aValue; }
+        public Object newArray(int aLength)  { return new double[aLength]; }
+    }
+
+    /**
+     * Accessor for float[].
+     */
+    private static class FloatAccess extends JSArrayAccess {
+        public Object get(Object anArray, int anIndex)  { return ((float[]) anArray)[anIndex]; }
+        public int getInt(Object anArray, int anIndex)  { return (int) ((float[]) anArray)[anIndex]; }
+        public long getLong(Object anArray, int anIndex)  { return (long) ((float[]) anArray)[anIndex]; }
+        public double getDouble(Object anArray, int anIndex)  { return ((float[]) anArray)[anIndex]; }
+        public void set(Object anArray, int anIndex, Object aValue)  { ((float[]) anArray)[anIndex] = (float) doubleValue(aValue); }
+        public void setInt(Object anArray, int anIndex, int aValue)  { ((float[]) anArray)[anIndex] = aValue; }
+        public void setLong(Object anArray, int anIndex, long aValue)  { ((float[]) anArray)[anIndex] = aValue; }
+        public void setDouble(Object anArray, int anIndex, double aValue)  { ((float[]) anArray)[anIndex] = (float) aValue; }
+        public Object newArray(int aLength)  { return new float[aLength]; }
+    }
+
+    /**
+     * Accessor for short[].
+     */
+    private static class ShortAccess extends JSArrayAccess {
+        public Object get(Object anArray, int anIndex)  { return ((short[]) anArray)[anIndex]; }
+        public int getInt(Object anArray, int anIndex)  { return ((short[]) anArray)[anIndex]; }
+        public long getLong(Object anArray, int anIndex)  { return ((short[]) anArray)[anIndex]; }
+        public double getDouble(Object anArray, int anIndex)  { return ((short[]) anArray)[anIndex]; }
+        public void set(Object anArray, int anIndex, Object aValue)  { ((short[]) anArray)[anIndex] = (short) intValue(aValue); }
+        public void setInt(Object anArray, int anIndex, int aValue)  { ((short[]) anArray)[anIndex] = (short) aValue; }
+        public void setLong(Object anArray, int anIndex, long aValue)  { ((short[]) anArray)[anIndex] = (short) aValue; }
+        public void setDouble(Object anArray, int anIndex, double aValue)  { ((short[]) anArray)[anIndex] = (short) aValue; }
+        public Object newArray(int aLength)  { return new short[aLength]; }
+    }
+
+    /**
+     * Accessor for byte[].
+     */
+    private static class ByteAccess extends JSArrayAccess {
+        public Object get(Object anArray, int anIndex)  { return ((byte[]) anArray)[anIndex]; }
+        public int getInt(Object anArray, int anIndex)  { return ((byte[]) anArray)[anIndex]; }
+        public long getLong(Object anArray, int anIndex)  { return ((byte[]) anArray)[anIndex]; }
+        public double getDouble(Object anArray, int anIndex)  { return ((byte[]) anArray)[anIndex]; }
+        public void set(Object anArray, int anIndex, Object aValue)  { ((byte[]) anArray)[anIndex] = (byte) intValue(aValue); }
+        public void setInt(Object anArray, int anIndex, int aValue)  { ((byte[]) anArray)[anIndex] = (byte) aValue; }
+        public void setLong(Object anArray, int anIndex, long aValue)  { ((byte[]) anArray)[anIndex] = (byte) aValue; }
+        public void setDouble(Object anArray, int anIndex, double aValue)  { ((byte[]) anArray)[anIndex] = (byte) aValue; }
+        public Object newArray(int aLength)  { return new byte[aLength]; }
+    }
+
+    /**
+     * Accessor for char[].
+     */
+    private static class CharAccess extends JSArrayAccess {
+        public Object get(Object anArray, int anIndex)  { return ((char[]) anArray)[anIndex]; }
+        public int getInt(Object anArray, int anIndex)  { return ((char[]) anArray)[anIndex]; }
+        public long getLong(Object anArray, int anIndex)  { return ((char[]) anArray)[anIndex]; }
+        public double getDouble(Object anArray, int anIndex)  { return ((char[]) anArray)[anIndex]; }
+        public void set(Object anArray, int anIndex, Object aValue)  { ((char[]) anArray)[anIndex] = (char) intValue(aValue); }
+        public void setInt(Object anArray, int anIndex, int aValue)  { ((char[]) anArray)[anIndex] = (char) aValue; }
+        public void setLong(Object anArray, int anIndex, long aValue)  { ((char[]) anArray)[anIndex] = (char) aValue; }
+        public void setDouble(Object anArray, int anIndex, double aValue)  { ((char[]) anArray)[anIndex] = (char) aValue; }
+        public Object newArray(int aLength)  { return new char[aLength]; }
+    }
+
+    /**
+     * Accessor for boolean[].
+     */
+    private static class BooleanAccess extends JSArrayAccess {
+        public Object get(Object anArray, int anIndex)  { return ((boolean[]) anArray)[anIndex]; }
+        public boolean getBoolean(Object anArray, int anIndex)  { return ((boolean[]) anArray)[anIndex]; }
+        public void set(Object anArray, int anIndex, Object aValue)  { ((boolean[]) anArray)[anIndex] = boolValue(aValue); }
+        public Object newArray(int aLength)  { return new boolean[aLength]; }
+    }
+
+    /**
+     * Accessor for Object arrays (String[], int[][], etc.).
+     */
+    private static class ObjectAccess extends JSArrayAccess {
+
+        // The component class
+        private Class<?>  _compClass;
+
+        /** Constructor. */
+        public ObjectAccess(Class<?> aClass)  { _compClass = aClass; }
+
+        public Object get(Object anArray, int anIndex)  { return ((Object[]) anArray)[anIndex]; }
+        public void set(Object anArray, int anIndex, Object aValue)  { ((Object[]) anArray)[anIndex] = aValue; }
+        public Object newArray(int aLength)
+        {
+            if (_compClass == Object.class)
+                return new Object[aLength];
+            return Array.newInstance(_compClass, aLength);
+        }
+    }
+}
@@ -0,0 +1,293 @@
+/*
+ * Copyright (c) 2010, ReportMill Software. All rights reserved.
+ */
+package javakit.runner;
+import javakit.parse.JStmt;
+import snap.util.SnapUtils;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class holds execution limits for a run (executed statements, wall time and allocated bytes) and checks them
+ * when JSStmtEval hits a loop back-edge or method entry. A limit of zero means no limit. Limits apply to the whole
+ * run: Statements and allocation are summed across the run thread and the fork threads running script lambdas.
+ */
+public class JSBudget {
+
+    // The maximum number of statements executed (block statements and loop iterations)
+    private long  _maxStatementCount;
+
+    // The maximum wall time in milliseconds
+    private long  _maxTimeMillis;
+
+    // The maximum number of bytes allocated by run and fork threads
+    private long  _maxAllocatedBytes;
+
+    // The start time in nanos
+    private volatile long  _startNanos;
+
+    // The number of statements flushed by run and fork evaluators
+    private final AtomicLong  _runStmtCount = new AtomicLong();
+
+    // The allocated bytes at start and last read for run and fork threads (empty if not tracking allocation)
+    private final Map<Thread,long[]>  _threadAllocatedBytes = new ConcurrentHashMap<>();
+
+    // The ThreadMXBean (if it supports thread allocated bytes)
+    private static com.sun.management.ThreadMXBean  _threadBean;
+
+    // The number of checks between time and allocation checks
+    private static final int CHECK_INTERVAL = 1024;
+
+    // The number of statements an evaluator counts locally before flushing to run count
+    private static final int STMT_FLUSH_INTERVAL = 256;
+
+    /**
+     * Constructor.
+     */
+    public JSBudget()  { }
+
+    /**
+     * Constructor for given limits.
+     */
+    public JSBudget(long maxStatementCount, long maxTimeMillis, long maxAllocatedBytes)
+    {
+        _maxStatementCount = maxStatementCount;
+        _maxTimeMillis = maxTimeMillis;
+        _maxAllocatedBytes = maxAllocatedBytes;
+    }
+
+    /**
+     * Returns the maximum number of statements executed.
+     */
+    public long getMaxStatementCount()  { return _maxStatementCount; }
+
+    /**
+     * Sets the maximum number of statements executed.
+     */
+    public void setMaxStatementCount(long aValue)  { _maxStatementCount = aValue; }
+
+    /**
+     * Returns the maximum wall time in milliseconds.
+     */
+    public long getMaxTimeMillis()  { return _maxTimeMillis; }
+
+    /**
+     * Sets the maximum wall time in milliseconds.
+     */
+    public void setMaxTimeMillis(long aValue)  { _maxTimeMillis = aValue; }
+
+    /**
+     * Returns the maximum number of bytes allocated by run and fork threads.
+     */
+    public long getMaxAllocatedBytes()  { return _maxAllocatedBytes; }
+
+    /**
+     * Sets the maximum number of bytes allocated by run and fork threads.
+     */
+    public void setMaxAllocatedBytes(long aValue)  { _maxAllocatedBytes = aValue; }
+
+    /**
+     * Called when run starts on current thread.
+     */
+    public void start()
+    {
+        _startNanos = System.nanoTime();
+        _runStmtCount.set(0);
+        _threadAllocatedBytes.clear();
+        addThread(Thread.currentThread());
+    }
+
+    /**
+     * Called when a fork evaluator starts running script code for current run on given thread.
+     */
+    public void addThread(Thread aThread)
+    {
+        if (_maxAllocatedBytes <= 0)
+            return;
+        long allocatedBytes = getThreadAllocatedBytes(aThread);
+        if (allocatedBytes >= 0)
+            _threadAllocatedBytes.put(aThread, new long[] { allocatedBytes, allocatedBytes });
+    }
+
+    /**
+     * Returns the number of statements executed by run and fork evaluators since start (flushed counts only).
+     */
+    public long getStatementCount()  { return _runStmtCount.get(); }
+
+    /**
+     * Returns the elapsed wall time in milliseconds since start.
+     */
+    public long getElapsedMillis()  { return (System.nanoTime() - _startNanos) / 1000000; }
+
+    /**
+     * Returns the number of bytes allocated by run and fork threads since start (or -1 if not supported).
+     */
+    public long getAllocatedBytes()
+    {
+        if (_threadAllocatedBytes.isEmpty())
+            return -1;
+
+        // Sum bytes for each thread (keep last read value for threads that have since ended)
+        long allocatedBytes = 0;
+        for (Map.Entry<Thread,long[]> entry : _threadAllocatedBytes.entrySet()) {
+            long[] startAndLast = entry.getValue();
+            long threadBytes = getThreadAllocatedBytes(entry.getKey());
+            if (threadBytes >= 0)
+                startAndLast[1] = threadBytes;
+            allocatedBytes += startAndLast[1] - startAndLast[0];
+        }
+
+        // Return
+        return allocatedBytes;
+    }
+
+    /**
+     * Checks budget for given statement evaluator and throws BudgetExceededException if exceeded.
+     */
+    public void check(JSStmtEval aStmtEval)
+    {
+        // Get run statement count: Flush evaluator count to run count periodically, otherwise add unflushed count
+        long unflushedCount = aStmtEval._stmtCount - aStmtEval._budgetStmtCount;
+        long stmtCount;
+        if (unflushedCount >= STMT_FLUSH_INTERVAL) {
+            stmtCount = _runStmtCount.addAndGet(unflushedCount);
+            aStmtEval._budgetStmtCount = aStmtEval._stmtCount;
+        }
+        else stmtCount = _runStmtCount.get() + unflushedCount;
+
+        // Check statement count
+        if (_maxStatementCount > 0 && stmtCount > _maxStatementCount)
+            throw exceeded(aStmtEval, "statement count", _maxStatementCount, stmtCount);
+
+        // Time and allocation are more expensive to get, so only check periodically (count is per evaluator)
+        if (++aStmtEval._budgetCheckCount < CHECK_INTERVAL)
+            return;
+        aStmtEval._budgetCheckCount = 0;
+
+        // Check wall time
+        if (_maxTimeMillis > 0) {
+            long elapsedMillis = getElapsedMillis();
+            if (elapsedMillis > _maxTimeMillis)
+                throw exceeded(aStmtEval, "time millis", _maxTimeMillis, elapsedMillis);
+        }
+
+        // Check allocated bytes
+        if (_maxAllocatedBytes > 0) {
+            long allocatedBytes = getAllocatedBytes();
+            if (allocatedBytes > _maxAllocatedBytes)
+                throw exceeded(aStmtEval, "allocated bytes", _maxAllocatedBytes, allocatedBytes);
+        }
+    }
+
+    /**
+     * Stops given run and returns exception for exceeded budget.
+     */
+    private BudgetExceededException exceeded(JSStmtEval aStmtEval, String aName, long aLimit, long aValue)
+    {
+        aStmtEval.stopRun();
+        return new BudgetExceededException(aName, aLimit, aValue, aStmtEval._currentStmt);
+    }
+
+    /**
+     * Returns the bytes allocated by given thread (or -1 if not supported or thread has ended).
+     */
+    private static long getThreadAllocatedBytes(Thread aThread)
+    {
+        com.sun.management.ThreadMXBean threadBean = getThreadBean();
+        return threadBean != null ? threadBean.getThreadAllocatedBytes(aThread.getId()) : -1;
+    }
+
+    /**
+     * Returns the ThreadMXBean if it supports thread allocated bytes.
+     */
+    private static com.sun.management.ThreadMXBean getThreadBean()
+    {
+        // If already set or TeaVM, just return
+        if (_threadBean != null || SnapUtils.isTeaVM)
+            return _threadBean;
+
+        // Get platform bean and enable allocated memory if supported
+        try {
+            ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+            if (threadBean instanceof com.sun.management.ThreadMXBean) {
+                com.sun.management.ThreadMXBean sunThreadBean = (com.sun.management.ThreadMXBean) threadBean;
+                if (sunThreadBean.isThreadAllocatedMemorySupported()) {
+                    if (!sunThreadBean.isThreadAllocatedMemoryEnabled())
+                        sunThreadBean.setThreadAllocatedMemoryEnabled(true);
+                    _threadBean = sunThreadBean;
+                }
+            }
+        }
+        catch (Throwable t) { System.err.println("JSBudget.getThreadBean: Allocation tracking not available: " + t); }
+
+        // Return
+        return _threadBean;
+    }
+
+    /**
+     * Standard toString implementation.
+     */
+    public String toString()
+    {
+        return "JSBudget { MaxStatementCount=" + _maxStatementCount + ", MaxTimeMillis=" + _maxTimeMillis +
+            ", MaxAllocatedBytes=" + _maxAllocatedBytes + " }";
+    }
+
+    /**
+     * An exception thrown when a run exceeds its budget.
+     */
+    public static class BudgetExceededException extends RuntimeException {
+
+        // The serial version UID
+        private static final long serialVersionUID = 1L;
+
+        // The budget name
+        private String  _budgetName;
+
+        // The limit and value that exceeded it
+        private long  _limit, _value;
+
+        // The statement running when budget was exceeded
+        private JStmt  _stmt;
+
+        /** Constructor. */
+        public BudgetExceededException(String aName, long aLimit, long aValue, JStmt aStmt)
+        {
+            super(getMessage(aName, aLimit, aValue, aStmt));
+            _budgetName = aName;
+            _limit = aLimit;
+            _value = aValue;
+            _stmt = aStmt;
+        }
+
+        /** Returns the budget name. */
+        public String getBudgetName()  { return _budgetName; }
+
+        /** Returns the budget limit. */
+        public long getLimit()  { return _limit; }
+
+        /** Returns the value that exceeded the limit. */
+        public long getValue()  { return _value; }
+
+        /** Returns the statement running when budget was exceeded. */
+        public JStmt getStmt()  { return _stmt; }
+
+        /** Returns message for given budget info. */
+        private static String getMessage(String aName, long aLimit, long aValue, JStmt aStmt)
+        {
+            String msg = "JSBudget: Run exceeded " + aName + " budget (limit " + aLimit + ", reached " + aValue + ")";
+            if (aStmt == null)
+                return msg;
+
+            // Add statement line and text (just first line if multiline)
+            String stmtStr = aStmt.getString().trim();
+            int newlineIndex = stmtStr.indexOf('\n');
+            if (newlineIndex > 0)
+                stmtStr = stmtStr.substring(0, newlineIndex).trim() + " ...";
+            return msg + " at line " + (aStmt.getLineIndex() + 1) + ": " + stmtStr;
+        }
+    }
+}
@@ -0,0 +1,1032 @@
+/*
+ * Copyright (c) 2010, ReportMill Software. All rights reserved.
+ */
+package javakit.runner;
+import javakit.parse.*;
+import javakit.resolver.*;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.*;
+import static javakit.runner.JSClassWriter.*;
+
+/**
+ * This class compiles hot local method decls to JVM bytecode, so the JVM JIT can optimize them like javac output.
+ *
+ * Only methods with primitive (int, long, double, boolean) params, locals and return values are supported, using
+ * locals, math, conditionals, loops and calls to other compilable local methods or public static JDK methods.
+ * Anything else is left to the evaluator tree. Generated methods are static and take the JSStmtEval as first param,
+ * which is used to check for stop at loop back-edges.
+ */
+public class JSBytecodeCompiler {
+
+    // The class loader for generated classes
+    private BytecodeLoader  _loader = new BytecodeLoader();
+
+    // A map of compiled methods for method decls (value is null if method can't be compiled)
+    private Map<JMethodDecl,Method>  _compiledMethods = new HashMap<>();
+
+    // A map of internal class names for method decls currently being compiled
+    private Map<JMethodDecl,String>  _compilingClassNames = new HashMap<>();
+
+    // A counter for generated class names
+    private static int  _classCount;
+
+    // Constants for generated methods
+    private static final String STMT_EVAL_CLASS = "javakit/runner/JSStmtEval";
+    private static final String METHOD_NAME = "invoke";
+
+    // The exception thrown to bail out of compile for nodes that can't be compiled
+    private static final CantCompileException CANT_COMPILE = new CantCompileException();
+
+    /**
+     * Constructor.
+     */
+    public JSBytecodeCompiler()
+    {
+        super();
+    }
+
+    /**
+     * Returns the compiled method for given method decl, compiling if needed (or null if method can't be compiled).
+     */
+    public Method getCompiledMethod(JMethodDecl aMethodDecl)
+    {
+        // If already tried, just return
+        if (_compiledMethods.containsKey(aMethodDecl))
+            return _compiledMethods.get(aMethodDecl);
+
+        // Compile, add and return
+        Method method = null;
+        try { method = compileMethod(aMethodDecl); }
+        catch (CantCompileException ignore) { }
+        catch (Throwable e) {
+            if (JSCompiler.DEBUG_TIER_UP)
+                System.err.println("JSBytecodeCompiler.getCompiledMethod: Failed for " + aMethodDecl.getName() + ": " + e);
+        }
+        finally { _compilingClassNames.remove(aMethodDecl); }
+        _compiledMethods.put(aMethodDecl, method);
+        return method;
+    }
+
+    /**
+     * Compiles given method decl and returns method.
+     */
+    private Method compileMethod(JMethodDecl aMethodDecl) throws Exception
+    {
+        // Get method and body
+        JavaMethod javaMethod = (JavaMethod) aMethodDecl.getDecl();
+        JStmtBlock methodBody = aMethodDecl.getBlock();
+        if (javaMethod == null || javaMethod.isVarArgs() || methodBody == null)
+            throw CANT_COMPILE;
+
+        // Get param and return classes
+        List<JVarDecl> params = aMethodDecl.getParameters();
+        Class<?>[] paramClasses = new Class<?>[params.size() + 1];
+        paramClasses[0] = JSStmtEval.class;
+        for (int i = 0; i < params.size(); i++)
+            paramClasses[i + 1] = getPrimitiveClass(params.get(i).getEvalType());
+        Class<?> returnClass = getPrimitiveClassOrVoid(javaMethod.getEvalType());
+
+        // Register class name, so recursive calls can find it
+        String className = "javakit/runner/JSCompiledMethod$" + (++_classCount) + '_' + aMethodDecl.getName();
+        _compilingClassNames.put(aMethodDecl, className);
+
+        // Create class writer and method generator and generate method
+        JSClassWriter classWriter = new JSClassWriter(className);
+        MethodGen methodGen = new MethodGen(classWriter, aMethodDecl, paramClasses, returnClass);
+        methodGen.genMethod(methodBody);
+
+        // Define class, initialize (which verifies it) and return method
+        byte[] classBytes = classWriter.toBytes();
+        String classNameDots = className.replace('/', '.');
+        _loader.defineClass(classNameDots, classBytes);
+        Class<?> compiledClass = Class.forName(classNameDots, true, _loader);
+        return compiledClass.getMethod(METHOD_NAME, paramClasses);
+    }
+
+    /**
+     * Returns the method descriptor for given param classes (including JSStmtEval) and return class.
+     */
+    private static String getMethodDescriptor(Class<?>[] paramClasses, Class<?> returnClass)
+    {
+        StringBuilder sb = new StringBuilder("(L").append(STMT_EVAL_CLASS).append(';');
+        for (int i = 1; i < paramClasses.length; i++)
+            sb.append(getDescriptorChar(paramClasses[i]));
+        return sb.append(')').append(getDescriptorChar(returnClass)).toString();
+    }
+
+    /**
+     * Returns the primitive class for given type (int, long, double or boolean) or throws Unsupported.
+     */
+    private static Class<?> getPrimitiveClass(JavaType aType)
+    {
+        Class<?> primitiveClass = getPrimitiveClassOrVoid(aType);
+        if (primitiveClass == void.class)
+            throw CANT_COMPILE;
+        return primitiveClass;
+    }
+
+    /**
+     * Returns the primitive class for given type (int, long, double, boolean or void) or throws Unsupported.
+     */
+    private static Class<?> getPrimitiveClassOrVoid(JavaType aType)
+    {
+        String className = aType != null ? aType.getClassName() : null;
+        Class<?> primitiveClass = getPrimitiveClassForName(className);
+        if (primitiveClass == null)
+            throw CANT_COMPILE;
+        return primitiveClass;
+    }
+
+    /**
+     * Returns the supported primitive class for given class name.
+     */
+    private static Class<?> getPrimitiveClassForName(String aName)
+    {
+        if (aName == null) return null;
+        switch (aName) {
+            case "int": return int.class;
+            case "long": return long.class;
+            case "double": return double.class;
+            case "boolean": return boolean.class;
+            case "void": return void.class;
+            default: return null;
+        }
+    }
+
+    /**
+     * Returns whether given class is supported numeric primitive class.
+     */
+    private static boolean isNumeric(Class<?> aClass)
+    {
+        return aClass == int.class || aClass == long.class || aClass == double.class;
+    }
+
+    /**
+     * Returns the binary numeric promotion type for given types.
+     */
+    private static Class<?> getPromotedType(Class<?> aType1, Class<?> aType2)
+    {
+        if (!isNumeric(aType1) || !isNumeric(aType2))
+            throw CANT_COMPILE;
+        if (aType1 == double.class || aType2 == double.class)
+            return double.class;
+        if (aType1 == long.class || aType2 == long.class)
+            return long.class;
+        return int.class;
+    }
+
+    /**
+     * A class to generate the code for a single method.
+     */
+    private class MethodGen {
+
+        // The method decl
+        private JMethodDecl  _methodDecl;
+
+        // The class writer
+        private JSClassWriter  _classWriter;
+
+        // The code writer
+        private JSClassWriter.CodeWriter  _code;
+
+        // The return class
+        private Class<?>  _returnClass;
+
+        // A map of local var slots
+        private Map<JavaLocalVar,Integer>  _localSlots = new HashMap<>();
+
+        // A map of local var types
+        private Map<JavaLocalVar,Class<?>>  _localTypes = new HashMap<>();
+
+        // A stack of break and continue labels for loops
+        private Deque<Label[]>  _loopLabels = new ArrayDeque<>();
+
+        /**
+         * Constructor.
+         */
+        MethodGen(JSClassWriter aClassWriter, JMethodDecl aMethodDecl, Class<?>[] paramClasses, Class<?> returnClass)
+        {
+            _classWriter = aClassWriter;
+            _methodDecl = aMethodDecl;
+            _returnClass = returnClass;
+
+            // Get arg slot count
+            int argSlots = 1;
+            for (int i = 1; i < paramClasses.length; i++)
+                argSlots += getSlotCount(paramClasses[i]);
+
+            // Create code writer
+            String desc = getMethodDescriptor(paramClasses, returnClass);
+            _code = _classWriter.newMethod(ACC_PUBLIC | ACC_STATIC, METHOD_NAME, desc, argSlots);
+
+            // Add param slots
+            List<JVarDecl> params = aMethodDecl.getParameters();
+            int slot = 1;
+            for (int i = 0; i < params.size(); i++) {
+                JavaLocalVar localVar = getLocalVar(params.get(i).getId());
+                _localSlots.put(localVar, slot);
+                _localTypes.put(localVar, paramClasses[i + 1]);
+                slot += getSlotCount(paramClasses[i + 1]);
+            }
+        }
+
+        /**
+         * Generates method for given body.
+         */
+        void genMethod(JStmtBlock aBody)
+        {
+            // Generate method entry budget check: stmtEval.checkMethodEntry()
+            _code.load(Object.class, 0);
+            _code.invoke(INVOKEVIRTUAL, STMT_EVAL_CLASS, "checkMethodEntry", "()V", -1);
+
+            // Generate body
+            genStmt(aBody);
+
+            // Add trailing return (unreachable for non-void methods)
+            if (_returnClass == void.class)
+                _code.op(RETURN, 0);
+            else {
+                pushZero(_returnClass);
+                genReturn();
+            }
+            _code.end();
+        }
+
+        /**
+         * Generates code for given statement.
+         */
+        void genStmt(JStmt aStmt)
+        {
+            // Handle block statement
+            if (aStmt instanceof JStmtBlock) {
+                for (JStmt stmt : ((JStmtBlock) aStmt).getStatements())
+                    genStmt(stmt);
+            }
+
+            // Handle expression statement
+            else if (aStmt instanceof JStmtExpr) {
+                Class<?> exprType = genExpr(((JStmtExpr) aStmt).getExpr());
+                if (exprType != void.class)
+                    _code.op(getSlotCount(exprType) == 2 ? POP2 : POP, -getSlotCount(exprType));
+            }
+
+            // Handle variable declaration statement
+            else if (aStmt instanceof JStmtVarDecl) {
+                for (JVarDecl varDecl : ((JStmtVarDecl) aStmt).getVarDecls())
+                    genVarDecl(varDecl);
+            }
+
+            // Handle if statement
+            else if (aStmt instanceof JStmtIf)
+                genIfStmt((JStmtIf) aStmt);
+
+            // Handle while statement
+            else if (aStmt instanceof JStmtWhile) {
+                JStmtWhile whileStmt = (JStmtWhile) aStmt;
+                genLoop(null, whileStmt.getConditional(), null, whileStmt.getStatement(), false);
+            }
+
+            // Handle do statement
+            else if (aStmt instanceof JStmtDo) {
+                JStmtDo doStmt = (JStmtDo) aStmt;
+                genLoop(null, doStmt.getConditional(), null, doStmt.getStatement(), true);
+            }
+
+            // Handle for statement
+            else if (aStmt instanceof JStmtFor) {
+                JStmtFor forStmt = (JStmtFor) aStmt;
+                if (forStmt.isForEach())
+                    throw CANT_COMPILE;
+                genLoop(forStmt.getInitDecl(), forStmt.getConditional(), forStmt.getUpdateStmts(), forStmt.getStatement(), false);
+            }
+
+            // Handle return statement
+            else if (aStmt instanceof JStmtReturn) {
+                JExpr returnExpr = ((JStmtReturn) aStmt).getExpr();
+                if (returnExpr == null) {
+                    if (_returnClass != void.class)
+                        throw CANT_COMPILE;
+                    _code.op(RETURN, 0);
+                }
+                else {
+                    if (_returnClass == void.class)
+                        throw CANT_COMPILE;
+                    genExprAs(returnExpr, _returnClass);
+                    genReturn();
+                }
+            }
+
+            // Handle break statement
+            else if (aStmt instanceof JStmtBreak) {
+                if (((JStmtBreak) aStmt).getLabel() != null || _loopLabels.isEmpty())
+                    throw CANT_COMPILE;
+                genGoto(_loopLabels.peek()[0]);
+            }
+
+            // Handle continue statement
+            else if (aStmt instanceof JStmtContinue) {
+                if (((JStmtContinue) aStmt).getLabel() != null || _loopLabels.isEmpty())
+                    throw CANT_COMPILE;
+                genGoto(_loopLabels.peek()[1]);
+            }
+
+            // Handle anything else: Unsupported (Empty statement is fine)
+            else if (!(aStmt instanceof JStmtEmpty))
+                throw CANT_COMPILE;
+        }
+
+        /**
+         * Generates code for given var decl.
+         */
+        void genVarDecl(JVarDecl aVarDecl)
+        {
+            // Get local var, type and slot
+            if (aVarDecl.getArrayCount() > 0)
+                throw CANT_COMPILE;
+            JavaLocalVar localVar = getLocalVar(aVarDecl.getId());
+            Class<?> varType = getPrimitiveClass(localVar.getEvalType());
+            int slot = _code.allocLocal(varType);
+            _localSlots.put(localVar, slot);
+            _localTypes.put(localVar, varType);
+
+            // Generate initializer (or zero, so verifier always sees initialized local)
+            JExpr initExpr = aVarDecl.getInitializer();
+            if (initExpr != null)
+                genExprAs(initExpr, varType);
+            else pushZero(varType);
+            _code.store(varType, slot);
+        }
+
+        /**
+         * Generates code for given if statement.
+         */
+        void genIfStmt(JStmtIf anIfStmt)
+        {
+            // Generate conditional and branch to else
+            Label elseLabel = new Label();
+            genExprAs(anIfStmt.getConditional(), boolean.class);
+            _code.branch(IFEQ, elseLabel, -1);
+
+            // Generate true statement
+            JStmt trueStmt = anIfStmt.getStatement();
+            if (trueStmt != null)
+                genStmt(trueStmt);
+
+            // Generate else statement
+            JStmt elseStmt = anIfStmt.getElseStatement();
+            if (elseStmt != null) {
+                Label endLabel = new Label();
+                genGoto(endLabel);
+                _code.mark(elseLabel);
+                genStmt(elseStmt);
+                _code.mark(endLabel);
+            }
+            else _code.mark(elseLabel);
+        }
+
+        /**
+         * Generates code for a loop (for, while, do).
+         */
+        void genLoop(JStmtVarDecl anInit, JExpr aCond, List<JStmtExpr> theUpdates, JStmt aBody, boolean isDo)
+        {
+            // Generate init
+            if (anInit != null)
+                genStmt(anInit);
+
+            // Create labels and push break/continue labels
+            Label condLabel = new Label(), bodyLabel = new Label();
+            Label breakLabel = new Label(), continueLabel = new Label();
+            _loopLabels.push(new Label[] { breakLabel, continueLabel });
+
+            // If not Do, go to conditional first
+            if (!isDo)
+                genGoto(condLabel);
+
+            // Generate body
+            _code.mark(bodyLabel);
+            if (aBody != null)
+                genStmt(aBody);
+
+            // Generate back-edge stop check: stmtEval.checkCompiledBackEdge()
+            _code.mark(continueLabel);
+            _code.load(Object.class, 0);
+            _code.invoke(INVOKEVIRTUAL, STMT_EVAL_CLASS, "checkCompiledBackEdge", "()V", -1);
+
+            // Generate updates
+            if (theUpdates != null) {
+                for (JStmtExpr updateStmt : theUpdates)
+                    genStmt(updateStmt);
+            }
+
+            // Generate conditional: Branch to body if true
+            _code.mark(condLabel);
+            if (aCond != null) {
+                genExprAs(aCond, boolean.class);
+                _code.branch(IFNE, bodyLabel, -1);
+            }
+            else genGoto(bodyLabel);
+
+            // Mark break and pop loop labels
+            _code.mark(breakLabel);
+            _loopLabels.pop();
+        }
+
+        /**
+         * Generates goto.
+         */
+        void genGoto(Label aLabel)
+        {
+            _code.branch(GOTO, aLabel, 0);
+        }
+
+        /**
+         * Generates return for value on stack.
+         */
+        void genReturn()
+        {
+            int opcode = _returnClass == long.class ? LRETURN : _returnClass == double.class ? DRETURN : IRETURN;
+            _code.op(opcode, -getSlotCount(_returnClass));
+        }
+
+        /**
+         * Generates code for given expression and converts to given type.
+         */
+        void genExprAs(JExpr anExpr, Class<?> aType)
+        {
+            Class<?> exprType = genExpr(anExpr);
+            genConvert(exprType, aType);
+        }
+
+        /**
+         * Generates code for given expression and returns type left on stack.
+         */
+        Class<?> genExpr(JExpr anExpr)
+        {
+            // Handle literal
+            if (anExpr instanceof JExprLiteral)
+                return genLiteral((JExprLiteral) anExpr);
+
+            // Handle identifier
+            if (anExpr instanceof JExprId) {
+                JavaLocalVar localVar = getLocalVar((JExprId) anExpr);
+                Class<?> varType = getLocalType(localVar);
+                _code.load(varType, _localSlots.get(localVar));
+                return varType;
+            }
+
+            // Handle paren
+            if (anExpr instanceof JExprParen)
+                return genExpr(((JExprParen) anExpr).getExpr());
+
+            // Handle math
+            if (anExpr instanceof JExprMath)
+                return genMathExpr((JExprMath) anExpr);
+
+            // Handle assign
+            if (anExpr instanceof JExprAssign)
+                return genAssignExpr((JExprAssign) anExpr);
+
+            // Handle cast
+            if (anExpr instanceof JExprCast) {
+                JExprCast castExpr = (JExprCast) anExpr;
+                Class<?> castType = getPrimitiveClass(castExpr.getType().getDecl());
+                genExprAs(castExpr.getExpr(), castType);
+                return castType;
+            }
+
+            // Handle method call
+            if (anExpr instanceof JExprMethodCall)
+                return genMethodCall((JExprMethodCall) anExpr);
+
+            // Handle chain of static class and method call (e.g.: Math.sqrt(x))
+            if (anExpr instanceof JExprChain) {
+                JExprChain chainExpr = (JExprChain) anExpr;
+                if (chainExpr.getExprCount() == 2 && chainExpr.getExpr(0).getDecl() instanceof JavaClass &&
+                        chainExpr.getExpr(1) instanceof JExprMethodCall)
+                    return genMethodCall((JExprMethodCall) chainExpr.getExpr(1));
+            }
+
+            // Handle anything else: Unsupported
+            throw CANT_COMPILE;
+        }
+
+        /**
+         * Generates code for literal.
+         */
+        Class<?> genLiteral(JExprLiteral aLiteral)
+        {
+            Object value = aLiteral.isNull() ? null : aLiteral.getValue();
+            if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+                _code.pushInt(((Number) value).intValue());
+                return int.class;
+            }
+            if (value instanceof Character) {
+                _code.pushInt((Character) value);
+                return int.class;
+            }
+            if (value instanceof Long) {
+                _code.pushLong((Long) value);
+                return long.class;
+            }
+            if (value instanceof Double) {
+                _code.pushDouble((Double) value);
+                return double.class;
+            }
+            if (value instanceof Boolean) {
+                _code.pushInt((Boolean) value ? 1 : 0);
+                return boolean.class;
+            }
+            throw CANT_COMPILE;
+        }
+
+        /**
+         * Generates code for math expression.
+         */
+        Class<?> genMathExpr(JExprMath anExpr)
+        {
+            JExprMath.Op op = anExpr.getOp();
+            JExpr expr1 = anExpr.getOperand(0);
+
+            switch (op) {
+
+                // Handle arithmetic
+                case Add: case Subtract: case Multiply: case Divide: case Mod: {
+                    Class<?> type = getPromotedType(getExprType(expr1), getExprType(anExpr.getOperand(1)));
+                    genExprAs(expr1, type);
+                    genExprAs(anExpr.getOperand(1), type);
+                    genArithmeticOp(op, type);
+                    return type;
+                }
+
+                // Handle compare
+                case Equal: case NotEqual: case LessThan: case GreaterThan: case LessThanOrEqual: case GreaterThanOrEqual:
+                    genCompare(op, expr1, anExpr.getOperand(1));
+                    return boolean.class;
+
+                // Handle And, Or
+                case And: case Or: {
+                    Label shortLabel = new Label(), endLabel = new Label();
+                    int shortOp = op == JExprMath.Op.And ? IFEQ : IFNE;
+                    genExprAs(expr1, boolean.class);
+                    _code.branch(shortOp, shortLabel, -1);
+                    genExprAs(anExpr.getOperand(1), boolean.class);
+                    _code.branch(shortOp, shortLabel, -1);
+                    _code.pushInt(op == JExprMath.Op.And ? 1 : 0);
+                    genGoto(endLabel);
+                    _code.setStackDepth(_code.getStackDepth() - 1);
+                    _code.mark(shortLabel);
+                    _code.pushInt(op == JExprMath.Op.And ? 0 : 1);
+                    _code.mark(endLabel);
+                    return boolean.class;
+                }
+
+                // Handle Not
+                case Not:
+                    genExprAs(expr1, boolean.class);
+                    _code.pushInt(1);
+                    _code.op(IXOR, -1);
+                    return boolean.class;
+
+                // Handle Negate
+                case Negate: {
+                    Class<?> type = genExpr(expr1);
+                    if (!isNumeric(type))
+                        throw CANT_COMPILE;
+                    _code.op(type == long.class ? LNEG : type == double.class ? DNEG : INEG, 0);
+                    return type;
+                }
+
+                // Handle increment/decrement
+                case PreIncrement: case PreDecrement: case PostIncrement: case PostDecrement:
+                    return genIncrement(op, expr1);
+
+                // Handle conditional
+                case Conditional: {
+                    JExpr trueExpr = anExpr.getOperand(1), falseExpr = anExpr.getOperand(2);
+                    Class<?> trueType = getExprType(trueExpr), falseType = getExprType(falseExpr);
+                    Class<?> type = trueType == boolean.class && falseType == boolean.class ? boolean.class :
+                        getPromotedType(trueType, falseType);
+                    Label falseLabel = new Label(), endLabel = new Label();
+                    genExprAs(expr1, boolean.class);
+                    _code.branch(IFEQ, falseLabel, -1);
+                    genExprAs(trueExpr, type);
+                    genGoto(endLabel);
+                    _code.setStackDepth(_code.getStackDepth() - getSlotCount(type));
+                    _code.mark(falseLabel);
+                    genExprAs(falseExpr, type);
+                    _code.mark(endLabel);
+                    return type;
+                }
+
+                // Handle anything else (bit ops, shifts): Unsupported
+                default: throw CANT_COMPILE;
+            }
+        }
+
+        /**
+         * Generates arithmetic op for given type.
+         */
+        void genArithmeticOp(JExprMath.Op anOp, Class<?> aType)
+        {
+            int base;
+            switch (anOp) {
+                case Add: base = IADD; break;
+                case Subtract: base = ISUB; break;
+                case Multiply: base = IMUL; break;
+                case Divide: base = IDIV; break;
+                case Mod: base = IREM; break;
+                default: throw CANT_COMPILE;
+            }
+
+            // Opcodes are ordered int, long, float, double
+            int opcode = aType == long.class ? base + 1 : aType == double.class ? base + 3 : base;
+            _code.op(opcode, -getSlotCount(aType));
+        }
+
+        /**
+         * Generates compare, leaving boolean on stack.
+         */
+        void genCompare(JExprMath.Op anOp, JExpr expr1, JExpr expr2)
+        {
+            // Get operand type (boolean compare is only supported for Equal/NotEqual)
+            Class<?> type1 = getExprType(expr1), type2 = getExprType(expr2);
+            boolean isEquality = anOp == JExprMath.Op.Equal || anOp == JExprMath.Op.NotEqual;
+            Class<?> type = type1 == boolean.class && type2 == boolean.class && isEquality ? int.class : getPromotedType(type1, type2);
+
+            // Generate operands
+            genExprAs(expr1, type1 == boolean.class ? boolean.class : type);
+            genExprAs(expr2, type2 == boolean.class ? boolean.class : type);
+
+            // Generate compare to branch to true label
+            Label trueLabel = new Label(), endLabel = new Label();
+            int ifOffset = getCompareIfOffset(anOp);
+            if (type == int.class)
+                _code.branch(IF_ICMPEQ + ifOffset, trueLabel, -2);
+            else {
+                if (type == long.class)
+                    _code.op(LCMP, -3);
+                else {
+                    // Use dcmpg for LessThan(OrEqual), so NaN gives false
+                    boolean isLess = anOp == JExprMath.Op.LessThan || anOp == JExprMath.Op.LessThanOrEqual;
+                    _code.op(isLess ? DCMPG : DCMPL, -3);
+                }
+                _code.branch(IFEQ + ifOffset, trueLabel, -1);
+            }
+
+            // Generate false/true values
+            _code.pushInt(0);
+            genGoto(endLabel);
+            _code.setStackDepth(_code.getStackDepth() - 1);
+            _code.mark(trueLabel);
+            _code.pushInt(1);
+            _code.mark(endLabel);
+        }
+
+        /**
+         * Returns the offset from IFEQ/IF_ICMPEQ for given compare op.
+         */
+        int getCompareIfOffset(JExprMath.Op anOp)
+        {
+            switch (anOp) {
+                case Equal: return 0;
+                case NotEqual: return 1;
+                case LessThan: return 2;
+                case GreaterThanOrEqual: return 3;
+                case GreaterThan: return 4;
+                case LessThanOrEqual: return 5;
+                default: throw CANT_COMPILE;
+            }
+        }
+
+        /**
+         * Generates increment/decrement of local var.
+         */
+        Class<?> genIncrement(JExprMath.Op anOp, JExpr anExpr)
+        {
+            // Get local var, type and slot
+            if (!(anExpr instanceof JExprId))
+                throw CANT_COMPILE;
+            JavaLocalVar localVar = getLocalVar((JExprId) anExpr);
+            Class<?> type = getLocalType(localVar);
+            int slot = _localSlots.get(localVar);
+            boolean isPre = anOp == JExprMath.Op.PreIncrement || anOp == JExprMath.Op.PreDecrement;
+            int delta = anOp == JExprMath.Op.PreIncrement || anOp == JExprMath.Op.PostIncrement ? 1 : -1;
+
+            // Handle int: Use iinc
+            if (type == int.class) {
+                if (!isPre)
+                    _code.load(type, slot);
+                _code.iinc(slot, delta);
+                if (isPre)
+                    _code.load(type, slot);
+                return type;
+            }
+
+            // Handle long/double: load, (dup), add 1, (dup), store
+            if (!isNumeric(type))
+                throw CANT_COMPILE;
+            _code.load(type, slot);
+            if (!isPre)
+                _code.op(DUP2, 2);
+            if (type == long.class)
+                _code.pushLong(delta);
+            else _code.pushDouble(delta);
+            _code.op(type == long.class ? LADD : DADD, -2);
+            if (isPre)
+                _code.op(DUP2, 2);
+            _code.store(type, slot);
+            return type;
+        }
+
+        /**
+         * Generates assign to local var.
+         */
+        Class<?> genAssignExpr(JExprAssign anExpr)
+        {
+            // Get local var, type and slot
+            JExpr assignToExpr = anExpr.getIdExpr();
+            if (!(assignToExpr instanceof JExprId))
+                throw CANT_COMPILE;
+            JavaLocalVar localVar = getLocalVar((JExprId) assignToExpr);
+            Class<?> type = getLocalType(localVar);
+            int slot = _localSlots.get(localVar);
+            JExpr valueExpr = anExpr.getValueExpr();
+
+            // Handle simple assign
+            JExprAssign.Op op = anExpr.getOp();
+            if (op == JExprAssign.Op.Assign)
+                genExprAs(valueExpr, type);
+
+            // Handle math assign: Load var, generate value, perform op and convert back (with implicit narrowing)
+            else {
+                JExprMath.Op mathOp = JSExprEvalUtils.getMathOpForAssignOp(op);
+                if (mathOp == null)
+                    throw CANT_COMPILE;
+                Class<?> opType = getPromotedType(type, getExprType(valueExpr));
+                _code.load(type, slot);
+                genConvert(type, opType);
+                genExprAs(valueExpr, opType);
+                genArithmeticOp(mathOp, opType);
+                genConvert(opType, type);
+            }
+
+            // Dup value and store
+            _code.op(getSlotCount(type) == 2 ? DUP2 : DUP, getSlotCount(type));
+            _code.store(type, slot);
+            return type;
+        }
+
+        /**
+         * Generates method call to compilable local method or public static method.
+         */
+        Class<?> genMethodCall(JExprMethodCall aMethodCall)
+        {
+            // Get method
+            JavaMethod javaMethod = aMethodCall.getDecl();
+            if (javaMethod == null || javaMethod.isVarArgs())
+                throw CANT_COMPILE;
+            List<JExpr> args = aMethodCall.getArgs();
+
+            // Handle local method decl: Push StmtEval, args and invoke compiled method class
+            JMethodDecl methodDecl = javaMethod.getMethodDecl();
+            if (methodDecl != null) {
+
+                // Get class name: If not current method, compile other (mutual recursion not supported)
+                String className = _compilingClassNames.get(methodDecl);
+                if (methodDecl != _methodDecl) {
+                    Method compiledMethod = className == null ? getCompiledMethod(methodDecl) : null;
+                    if (compiledMethod == null)
+                        throw CANT_COMPILE;
+                    className = compiledMethod.getDeclaringClass().getName().replace('.', '/');
+                }
+
+                // Get param classes
+                List<JVarDecl> params = methodDecl.getParameters();
+                Class<?>[] paramClasses = new Class<?>[params.size() + 1];
+                paramClasses[0] = JSStmtEval.class;
+                for (int i = 0; i < params.size(); i++)
+                    paramClasses[i + 1] = getPrimitiveClass(params.get(i).getEvalType());
+                Class<?> returnClass = getPrimitiveClassOrVoid(javaMethod.getEvalType());
+
+                // Generate args and invoke
+                _code.load(Object.class, 0);
+                int argSlots = genArgs(args, paramClasses, 1);
+                String desc = getMethodDescriptor(paramClasses, returnClass);
+                _code.invoke(INVOKESTATIC, className, METHOD_NAME, desc, getSlotCount(returnClass) - argSlots - 1);
+                return returnClass;
+            }
+
+            // Get real method: Must be public static in public class visible from generated classes
+            Method method = javaMethod.getMethod();
+            if (method == null || !Modifier.isStatic(method.getModifiers()) || !Modifier.isPublic(method.getModifiers()))
+                throw CANT_COMPILE;
+            Class<?> declaringClass = method.getDeclaringClass();
+            if (!Modifier.isPublic(declaringClass.getModifiers()) || !_loader.isVisible(declaringClass))
+                throw CANT_COMPILE;
+
+            // Get param and return classes (must be supported primitives)
+            Class<?>[] methodParamClasses = method.getParameterTypes();
+            Class<?>[] paramClasses = new Class<?>[methodParamClasses.length + 1];
+            paramClasses[0] = JSStmtEval.class;
+            StringBuilder desc = new StringBuilder("(");
+            for (int i = 0; i < methodParamClasses.length; i++) {
+                Class<?> paramClass = getPrimitiveClassForName(methodParamClasses[i].getName());
+                if (paramClass == null || paramClass == void.class)
+                    throw CANT_COMPILE;
+                paramClasses[i + 1] = paramClass;
+                desc.append(getDescriptorChar(paramClass));
+            }
+            Class<?> returnClass = getPrimitiveClassForName(method.getReturnType().getName());
+            if (returnClass == null)
+                throw CANT_COMPILE;
+            desc.append(')').append(getDescriptorChar(returnClass));
+
+            // Generate args and invoke
+            int argSlots = genArgs(args, paramClasses, 1);
+            String owner = declaringClass.getName().replace('.', '/');
+            _code.invoke(INVOKESTATIC, owner, method.getName(), desc.toString(), getSlotCount(returnClass) - argSlots);
+            return returnClass;
+        }
+
+        /**
+         * Generates args converted to given param classes (starting at given index) and returns arg slot count.
+         */
+        int genArgs(List<JExpr> theArgs, Class<?>[] paramClasses, int aStart)
+        {
+            if (theArgs.size() != paramClasses.length - aStart)
+                throw CANT_COMPILE;
+            int argSlots = 0;
+            for (int i = 0; i < theArgs.size(); i++) {
+                Class<?> paramClass = paramClasses[i + aStart];
+                genExprAs(theArgs.get(i), paramClass);
+                argSlots += getSlotCount(paramClass);
+            }
+            return argSlots;
+        }
+
+        /**
+         * Generates conversion from given type to given type.
+         */
+        void genConvert(Class<?> fromType, Class<?> toType)
+        {
+            // If same, just return
+            if (fromType == toType)
+                return;
+
+            // Boolean only converts to boolean
+            if (!isNumeric(fromType) || !isNumeric(toType))
+                throw CANT_COMPILE;
+
+            // Do numeric conversion
+            if (fromType == int.class)
+                _code.op(toType == long.class ? I2L : I2D, 1);
+            else if (fromType == long.class)
+                _code.op(toType == int.class ? L2I : L2D, toType == int.class ? -1 : 0);
+            else _code.op(toType == int.class ? D2I : D2L, toType == int.class ? -1 : 0);
+        }
+
+        /**
+         * Pushes zero value for given type.
+         */
+        void pushZero(Class<?> aType)
+        {
+            if (aType == long.class)
+                _code.pushLong(0);
+            else if (aType == double.class)
+                _code.pushDouble(0);
+            else _code.pushInt(0);
+        }
+
+        /**
+         * Returns the type an expression evaluates to (without generating code).
+         */
+        Class<?> getExprType(JExpr anExpr)
+        {
+            // Handle literal
+            if (anExpr instanceof JExprLiteral) {
+                Object value = ((JExprLiteral) anExpr).isNull() ? null : ((JExprLiteral) anExpr).getValue();
+                if (value instanceof Integer || value instanceof Short || value instanceof Byte || value instanceof Character)
+                    return int.class;
+                if (value instanceof Long) return long.class;
+                if (value instanceof Double) return double.class;
+                if (value instanceof Boolean) return boolean.class;
+                throw CANT_COMPILE;
+            }
+
+            // Handle identifier
+            if (anExpr instanceof JExprId)
+                return getLocalType(getLocalVar((JExprId) anExpr));
+
+            // Handle paren
+            if (anExpr instanceof JExprParen)
+                return getExprType(((JExprParen) anExpr).getExpr());
+
+            // Handle math
+            if (anExpr instanceof JExprMath) {
+                JExprMath mathExpr = (JExprMath) anExpr;
+                switch (mathExpr.getOp()) {
+                    case Add: case Subtract: case Multiply: case Divide: case Mod:
+                        return getPromotedType(getExprType(mathExpr.getOperand(0)), getExprType(mathExpr.getOperand(1)));
+                    case Negate: case PreIncrement: case PreDecrement: case PostIncrement: case PostDecrement:
+                        return getExprType(mathExpr.getOperand(0));
+                    case Conditional: {
+                        Class<?> trueType = getExprType(mathExpr.getOperand(1));
+                        Class<?> falseType = getExprType(mathExpr.getOperand(2));
+                        return trueType == boolean.class && falseType == boolean.class ? boolean.class :
+                            getPromotedType(trueType, falseType);
+                    }
+                    case Equal: case NotEqual: case LessThan: case GreaterThan: case LessThanOrEqual:
+                    case GreaterThanOrEqual: case And: case Or: case Not:
+                        return boolean.class;
+                    default: throw CANT_COMPILE;
+                }
+            }
+
+            // Handle assign
+            if (anExpr instanceof JExprAssign) {
+                JExpr assignToExpr = ((JExprAssign) anExpr).getIdExpr();
+                if (assignToExpr instanceof JExprId)
+                    return getLocalType(getLocalVar((JExprId) assignToExpr));
+                throw CANT_COMPILE;
+            }
+
+            // Handle cast
+            if (anExpr instanceof JExprCast)
+                return getPrimitiveClass(((JExprCast) anExpr).getType().getDecl());
+
+            // Handle anything else (method call or chain): Use eval type
+            return getPrimitiveClassOrVoid(anExpr.getEvalType());
+        }
+
+        /**
+         * Returns the local var for given id (or throws Unsupported).
+         */
+        JavaLocalVar getLocalVar(JExprId anId)
+        {
+            JavaDecl decl = anId.getDecl();
+            if (!(decl instanceof JavaLocalVar))
+                throw CANT_COMPILE;
+            return (JavaLocalVar) decl;
+        }
+
+        /**
+         * Returns the type for given local var (or throws Unsupported if not declared in method).
+         */
+        Class<?> getLocalType(JavaLocalVar aLocalVar)
+        {
+            Class<?> type = _localTypes.get(aLocalVar);
+            if (type == null)
+                throw CANT_COMPILE;
+            return type;
+        }
+    }
+
+    /**
+     * An exception thrown to bail out of compile for nodes that can't be compiled (shared, without stack trace).
+     */
+    private static class CantCompileException extends RuntimeException {
+
+        // The serial version UID
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * Constructor.
+         */
+        CantCompileException()
+        {
+            super("JSBytecodeCompiler: Can't compile", null, false, false);
+        }
+    }
+
+    /**
+     * A class loader for generated classes.
+     */
+    private static class BytecodeLoader extends ClassLoader {
+
+        /**
+         * Constructor.
+         */
+        BytecodeLoader()
+        {
+            super(JSBytecodeCompiler.class.getClassLoader());
+        }
+
+        /**
+         * Defines class for given name and bytes.
+         */
+        void defineClass(String aName, byte[] theBytes)
+        {
+            defineClass(aName, theBytes, 0, theBytes.length);
+        }
+
+        /**
+         * Returns whether given class is visible to generated classes.
+         */
+        boolean isVisible(Class<?> aClass)
+        {
+            try { return Class.forName(aClass.getName(), false, this) == aClass; }
+            catch (ClassNotFoundException e) { return false; }
+        }
+    }
+}
@@ -0,0 +1,518 @@
+/*
+ * Copyright (c) 2010, ReportMill Software. All rights reserved.
+ */
+package javakit.runner;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * A minimal class file writer to generate classes with static methods.
+ *
+ * Classes are written as version 49 (Java 5) class files, so no StackMapTable frames are needed.
+ */
+public class JSClassWriter {
+
+    // The internal class name (with slashes)
+    private String  _className;
+
+    // The constant pool bytes
+    private ByteArrayOutputStream  _constPoolBytes = new ByteArrayOutputStream();
+
+    // The constant pool output stream
+    private DataOutputStream  _constPool = new DataOutputStream(_constPoolBytes);
+
+    // The next constant pool index
+    private int  _constCount = 1;
+
+    // A map of constant pool indexes by key
+    private Map<String,Integer>  _constIndexes = new HashMap<>();
+
+    // The method bytes
+    private List<byte[]>  _methods = new ArrayList<>();
+
+    // Constants for access flags
+    public static final int ACC_PUBLIC = 0x0001;
+    public static final int ACC_STATIC = 0x0008;
+    public static final int ACC_FINAL = 0x0010;
+    public static final int ACC_SUPER = 0x0020;
+
+    // Constants for opcodes
+    public static final int ICONST_0 = 0x03, LCONST_0 = 0x09, DCONST_0 = 0x0e, BIPUSH = 0x10, SIPUSH = 0x11;
+    public static final int LDC = 0x12, LDC_W = 0x13, LDC2_W = 0x14;
+    public static final int ILOAD = 0x15, LLOAD = 0x16, DLOAD = 0x18, ALOAD = 0x19;
+    public static final int ISTORE = 0x36, LSTORE = 0x37, DSTORE = 0x39;
+    public static final int POP = 0x57, POP2 = 0x58, DUP = 0x59, DUP2 = 0x5c;
+    public static final int IADD = 0x60, LADD = 0x61, DADD = 0x63, ISUB = 0x64, LSUB = 0x65, DSUB = 0x67;
+    public static final int IMUL = 0x68, LMUL = 0x69, DMUL = 0x6b, IDIV = 0x6c, LDIV = 0x6d, DDIV = 0x6f;
+    public static final int IREM = 0x70, LREM = 0x71, DREM = 0x73, INEG = 0x74, LNEG = 0x75, DNEG = 0x77;
+    public static final int IXOR = 0x82, IINC = 0x84;
+    public static final int I2L = 0x85, I2D = 0x87, L2I = 0x88, L2D = 0x8a, D2I = 0x8e, D2L = 0x8f;
+    public static final int LCMP = 0x94, DCMPL = 0x97, DCMPG = 0x98;
+    public static final int IFEQ = 0x99, IFNE = 0x9a, IFLT = 0x9b, IFGE = 0x9c, IFGT = 0x9d, IFLE = 0x9e;
+    public static final int IF_ICMPEQ = 0x9f, IF_ICMPNE = 0xa0, IF_ICMPLT = 0xa1, IF_ICMPGE = 0xa2;
+    public static final int IF_ICMPGT = 0xa3, IF_ICMPLE = 0xa4, GOTO = 0xa7;
+    public static final int IRETURN = 0xac, LRETURN = 0xad, DRETURN = 0xaf, RETURN = 0xb1;
+    public static final int INVOKEVIRTUAL = 0xb6, INVOKESTATIC = 0xb8;
+
+    /**
+     * Constructor for given internal class name (with slashes).
+     */
+    public JSClassWriter(String aClassName)
+    {
+        _className = aClassName;
+    }
+
+    /**
+     * Returns the internal class name (with slashes).
+     */
+    public String getClassName()  { return _className; }
+
+    /**
+     * Returns the constant pool index for given UTF8 string.
+     */
+    public int getUtf8Index(String aString)
+    {
+        return getConstIndex("Utf8:" + aString, 1, () -> { _constPool.writeByte(1); _constPool.writeUTF(aString); });
+    }
+
+    /**
+     * Returns the constant pool index for given internal class name.
+     */
+    public int getClassIndex(String aClassName)
+    {
+        int nameIndex = getUtf8Index(aClassName);
+        return getConstIndex("Class:" + aClassName, 1, () -> { _constPool.writeByte(7); _constPool.writeShort(nameIndex); });
+    }
+
+    /**
+     * Returns the constant pool index for given method owner, name and descriptor.
+     */
+    public int getMethodRefIndex(String anOwner, String aName, String aDesc)
+    {
+        int classIndex = getClassIndex(anOwner);
+        int nameIndex = getUtf8Index(aName);
+        int descIndex = getUtf8Index(aDesc);
+        int nameAndTypeIndex = getConstIndex("NameAndType:" + aName + aDesc, 1, () -> {
+            _constPool.writeByte(12); _constPool.writeShort(nameIndex); _constPool.writeShort(descIndex); });
+        return getConstIndex("Methodref:" + anOwner + '.' + aName + aDesc, 1, () -> {
+            _constPool.writeByte(10); _constPool.writeShort(classIndex); _constPool.writeShort(nameAndTypeIndex); });
+    }
+
+    /**
+     * Returns the constant pool index for given int.
+     */
+    public int getIntIndex(int aValue)
+    {
+        return getConstIndex("Integer:" + aValue, 1, () -> { _constPool.writeByte(3); _constPool.writeInt(aValue); });
+    }
+
+    /**
+     * Returns the constant pool index for given long.
+     */
+    public int getLongIndex(long aValue)
+    {
+        return getConstIndex("Long:" + aValue, 2, () -> { _constPool.writeByte(5); _constPool.writeLong(aValue); });
+    }
+
+    /**
+     * Returns the constant pool index for given double.
+     */
+    public int getDoubleIndex(double aValue)
+    {
+        String key = "Double:" + Double.doubleToRawLongBits(aValue);
+        return getConstIndex(key, 2, () -> { _constPool.writeByte(6); _constPool.writeDouble(aValue); });
+    }
+
+    /**
+     * Returns the constant pool index for given key, adding entry if missing.
+     */
+    private int getConstIndex(String aKey, int aSize, ConstWriter aWriter)
+    {
+        // If already added, just return
+        Integer index = _constIndexes.get(aKey);
+        if (index != null)
+            return index;
+
+        // Write entry and add index
+        try { aWriter.write(); }
+        catch (IOException e) { throw new RuntimeException(e); }
+        int newIndex = _constCount;
+        _constCount += aSize;
+        _constIndexes.put(aKey, newIndex);
+        if (_constCount > 0xffff)
+            throw new UnsupportedOperationException("JSClassWriter: Constant pool too large");
+        return newIndex;
+    }
+
+    /**
+     * Returns a new CodeWriter for a method with given access flags, name, descriptor and count of argument slots.
+     */
+    public CodeWriter newMethod(int theAccess, String aName, String aDesc, int argSlots)
+    {
+        return new CodeWriter(theAccess, aName, aDesc, argSlots);
+    }
+
+    /**
+     * Returns the class file bytes.
+     */
+    public byte[] toBytes()
+    {
+        // Get class indexes first, since they add to constant pool
+        int thisClassIndex = getClassIndex(_className);
+        int superClassIndex = getClassIndex("java/lang/Object");
+
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+
+            // Write magic, version and constant pool
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(49);
+            out.writeShort(_constCount);
+            out.write(_constPoolBytes.toByteArray());
+
+            // Write access, this class, super class, interfaces count, fields count
+            out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+            out.writeShort(thisClassIndex);
+            out.writeShort(superClassIndex);
+            out.writeShort(0);
+            out.writeShort(0);
+
+            // Write methods
+            out.writeShort(_methods.size());
+            for (byte[] methodBytes : _methods)
+                out.write(methodBytes);
+
+            // Write class attributes count and return
+            out.writeShort(0);
+            return bytes.toByteArray();
+        }
+        catch (IOException e) { throw new RuntimeException(e); }
+    }
+
+    /**
+     * Returns the descriptor char for given primitive class (or void).
+     */
+    public static char getDescriptorChar(Class<?> aClass)
+    {
+        if (aClass == int.class) return 'I';
+        if (aClass == long.class) return 'J';
+        if (aClass == double.class) return 'D';
+        if (aClass == boolean.class) return 'Z';
+        if (aClass == void.class) return 'V';
+        throw new UnsupportedOperationException("JSClassWriter: Unsupported type: " + aClass);
+    }
+
+    /**
+     * Returns the number of stack/local slots for given primitive class.
+     */
+    public static int getSlotCount(Class<?> aClass)
+    {
+        if (aClass == void.class) return 0;
+        return aClass == long.class || aClass == double.class ? 2 : 1;
+    }
+
+    /**
+     * An interface to write a constant pool entry.
+     */
+    private interface ConstWriter {
+        void write() throws IOException;
+    }
+
+    /**
+     * A class to represent a branch target in code.
+     */
+    public static class Label {
+
+        // The code position (or -1 if not yet marked)
+        private int  _pos = -1;
+
+        // The positions of branch instructions (and their offset bytes) that need fixup
+        private List<int[]>  _fixups = new ArrayList<>();
+    }
+
+    /**
+     * A class to write the code for a method.
+     */
+    public class CodeWriter {
+
+        // The access flags, name index and descriptor index
+        private int  _access, _nameIndex, _descIndex;
+
+        // The code bytes
+        private byte[]  _code = new byte[256];
+
+        // The code length
+        private int  _length;
+
+        // The current and max stack depth
+        private int  _stack, _maxStack;
+
+        // The max locals
+        private int  _maxLocals;
+
+        /**
+         * Constructor.
+         */
+        CodeWriter(int theAccess, String aName, String aDesc, int argSlots)
+        {
+            _access = theAccess;
+            _nameIndex = getUtf8Index(aName);
+            _descIndex = getUtf8Index(aDesc);
+            _maxLocals = argSlots;
+        }
+
+        /**
+         * Returns the current stack depth.
+         */
+        public int getStackDepth()  { return _stack; }
+
+        /**
+         * Sets the current stack depth (after unconditional branches, when code continues at a branch target).
+         */
+        public void setStackDepth(int aValue)  { _stack = aValue; }
+
+        /**
+         * Allocates a new local slot(s) for given type and returns slot index.
+         */
+        public int allocLocal(Class<?> aType)
+        {
+            int slot = _maxLocals;
+            _maxLocals += getSlotCount(aType);
+            return slot;
+        }
+
+        /**
+         * Writes a single byte.
+         */
+        private void writeByte(int aByte)
+        {
+            if (_length == _code.length)
+                _code = Arrays.copyOf(_code, _code.length * 2);
+            _code[_length++] = (byte) aByte;
+        }
+
+        /**
+         * Writes a short.
+         */
+        private void writeShort(int aShort)
+        {
+            writeByte(aShort >> 8);
+            writeByte(aShort);
+        }
+
+        /**
+         * Updates stack depth by given delta.
+         */
+        private void adjustStack(int aDelta)
+        {
+            _stack += aDelta;
+            _maxStack = Math.max(_maxStack, _stack);
+        }
+
+        /**
+         * Writes an instruction with no operands and given stack delta.
+         */
+        public void op(int anOpcode, int aStackDelta)
+        {
+            writeByte(anOpcode);
+            adjustStack(aStackDelta);
+        }
+
+        /**
+         * Pushes an int constant.
+         */
+        public void pushInt(int aValue)
+        {
+            if (aValue >= -1 && aValue <= 5)
+                writeByte(ICONST_0 + aValue);
+            else if (aValue >= Byte.MIN_VALUE && aValue <= Byte.MAX_VALUE) {
+                writeByte(BIPUSH);
+                writeByte(aValue);
+            }
+            else if (aValue >= Short.MIN_VALUE && aValue <= Short.MAX_VALUE) {
+                writeByte(SIPUSH);
+                writeShort(aValue);
+            }
+            else writeLdc(getIntIndex(aValue));
+            adjustStack(1);
+        }
+
+        /**
+         * Pushes a long constant.
+         */
+        public void pushLong(long aValue)
+        {
+            if (aValue == 0 || aValue == 1)
+                writeByte(LCONST_0 + (int) aValue);
+            else {
+                writeByte(LDC2_W);
+                writeShort(getLongIndex(aValue));
+            }
+            adjustStack(2);
+        }
+
+        /**
+         * Pushes a double constant.
+         */
+        public void pushDouble(double aValue)
+        {
+            if (Double.doubleToRawLongBits(aValue) == 0 || aValue == 1)
+                writeByte(DCONST_0 + (int) aValue);
+            else {
+                writeByte(LDC2_W);
+                writeShort(getDoubleIndex(aValue));
+            }
+            adjustStack(2);
+        }
+
+        /**
+         * Writes an LDC for given constant pool index.
+         */
+        private void writeLdc(int anIndex)
+        {
+            if (anIndex <= 0xff) {
+                writeByte(LDC);
+                writeByte(anIndex);
+            }
+            else {
+                writeByte(LDC_W);
+                writeShort(anIndex);
+            }
+        }
+
+        /**
+         * Loads a local of given type (int, long, double, boolean or Object for anything else).
+         */
+        public void load(Class<?> aType, int aSlot)
+        {
+            int opcode = aType == long.class ? LLOAD : aType == double.class ? DLOAD : aType.isPrimitive() ? ILOAD : ALOAD;
+            writeLocalOp(opcode, aSlot);
+            adjustStack(aType.isPrimitive() ? getSlotCount(aType) : 1);
+        }
+
+        /**
+         * Stores a local of given type (int, long, double or boolean).
+         */
+        public void store(Class<?> aType, int aSlot)
+        {
+            int opcode = aType == long.class ? LSTORE : aType == double.class ? DSTORE : ISTORE;
+            writeLocalOp(opcode, aSlot);
+            adjustStack(-getSlotCount(aType));
+        }
+
+        /**
+         * Writes a local var instruction.
+         */
+        private void writeLocalOp(int anOpcode, int aSlot)
+        {
+            if (aSlot > 0xff)
+                throw new UnsupportedOperationException("JSClassWriter: Too many locals");
+            writeByte(anOpcode);
+            writeByte(aSlot);
+        }
+
+        /**
+         * Increments an int local by given amount.
+         */
+        public void iinc(int aSlot, int anAmount)
+        {
+            if (aSlot > 0xff)
+                throw new UnsupportedOperationException("JSClassWriter: Too many locals");
+            writeByte(IINC);
+            writeByte(aSlot);
+            writeByte(anAmount);
+        }
+
+        /**
+         * Writes a branch instruction to given label with given stack delta.
+         */
+        public void branch(int anOpcode, Label aLabel, int aStackDelta)
+        {
+            int opPos = _length;
+            writeByte(anOpcode);
+            adjustStack(aStackDelta);
+
+            // If label already marked, write offset, otherwise add fixup
+            if (aLabel._pos >= 0)
+                writeBranchOffset(aLabel._pos - opPos);
+            else {
+                aLabel._fixups.add(new int[] { opPos, _length });
+                writeShort(0);
+            }
+        }
+
+        /**
+         * Writes a branch offset.
+         */
+        private void writeBranchOffset(int anOffset)
+        {
+            if (anOffset < Short.MIN_VALUE || anOffset > Short.MAX_VALUE)
+                throw new UnsupportedOperationException("JSClassWriter: Method too large");
+            writeShort(anOffset);
+        }
+
+        /**
+         * Marks the given label at current position.
+         */
+        public void mark(Label aLabel)
+        {
+            aLabel._pos = _length;
+            for (int[] fixup : aLabel._fixups) {
+                int offset = _length - fixup[0];
+                if (offset > Short.MAX_VALUE)
+                    throw new UnsupportedOperationException("JSClassWriter: Method too large");
+                _code[fixup[1]] = (byte) (offset >> 8);
+                _code[fixup[1] + 1] = (byte) offset;
+            }
+            aLabel._fixups.clear();
+        }
+
+        /**
+         * Writes a method invocation with given stack delta.
+         */
+        public void invoke(int anOpcode, String anOwner, String aName, String aDesc, int aStackDelta)
+        {
+            writeByte(anOpcode);
+            writeShort(getMethodRefIndex(anOwner, aName, aDesc));
+            adjustStack(aStackDelta);
+        }
+
+        /**
+         * Finishes method and adds it to class.
+         */
+        public void end()
+        {
+            if (_length > 0xffff)
+                throw new UnsupportedOperationException("JSClassWriter: Method too large");
+
+            try {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                DataOutputStream out = new DataOutputStream(bytes);
+
+                // Write access, name, descriptor, attribute count
+                out.writeShort(_access);
+                out.writeShort(_nameIndex);
+                out.writeShort(_descIndex);
+                out.writeShort(1);
+
+                // Write Code attribute
+                out.writeShort(getUtf8Index("Code"));
+                out.writeInt(12 + _length);
+                out.writeShort(_maxStack);
+                out.writeShort(_maxLocals);
+                out.writeInt(_length);
+                out.write(_code, 0, _length);
+                out.writeShort(0);
+                out.writeShort(0);
+
+                // Add method
+                _methods.add(bytes.toByteArray());
+            }
+            catch (IOException e) { throw new RuntimeException(e); }
+        }
+    }
+}
@@ -0,0 +1,1703 @@
+/*
+ * Copyright (c) 2010, ReportMill Software. All rights reserved.
+ */
+package javakit.runner;
+import javakit.parse.*;
+import javakit.resolver.*;
+import javakit.resolver.JavaLocalVar.SlotType;
+import snap.props.PropObject;
+import snap.util.SnapUtils;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.List;
+import static javakit.runner.JSExprEvalUtils.*;
+
+/**
+ * This class is the base of a tree of pre-resolved evaluators for a JExpr. Each subclass handles one kind of
+ * expression and holds everything that can be resolved once (decls, stack indexes, literal values, child evaluators).
+ */
+public abstract class JSCompiledExpr {
+
+    // The expression this evaluator was compiled from
+    protected JExpr  _expr;
+
+    /**
+     * Constructor.
+     */
+    public JSCompiledExpr(JExpr anExpr)
+    {
+        _expr = anExpr;
+    }
+
+    /**
+     * Returns the expression this evaluator was compiled from.
+     */
+    public JExpr getExpr()  { return _expr; }
+
+    /**
+     * Evaluates expression on given object reference.
+     */
+    public abstract Object eval(JSExprEval anEval, Object anOR) throws Exception;
+
+    /**
+     * Evaluates expression as int (subclasses with primitive results override to avoid boxing).
+     */
+    public int evalInt(JSExprEval anEval, Object anOR) throws Exception
+    {
+        return intValue(eval(anEval, anOR));
+    }
+
+    /**
+     * Evaluates expression as long (subclasses with primitive results override to avoid boxing).
+     */
+    public long evalLong(JSExprEval anEval, Object anOR) throws Exception
+    {
+        return longValue(eval(anEval, anOR));
+    }
+
+    /**
+     * Evaluates expression as double (subclasses with primitive results override to avoid boxing).
+     */
+    public double evalDouble(JSExprEval anEval, Object anOR) throws Exception
+    {
+        return doubleValue(eval(anEval, anOR));
+    }
+
+    /**
+     * Evaluates expression as boolean (subclasses with primitive results override to avoid boxing).
+     */
+    public boolean evalBoolean(JSExprEval anEval, Object anOR) throws Exception
+    {
+        return boolValue(eval(anEval, anOR));
+    }
+
+    /**
+     * Evaluates expression for side effects only, when result isn't needed (expression statement).
+     */
+    public void exec(JSExprEval anEval, Object anOR) throws Exception
+    {
+        eval(anEval, anOR);
+    }
+
+    /**
+     * Sets an assignment value for this expression (if assignable) and returns the value actually assigned.
+     */
+    public Object setValue(JSExprEval anEval, Object aValue) throws Exception
+    {
+        throw new RuntimeException("JExprEval.setAssignExprValue: Unexpected assign to class: " + _expr.getClass());
+    }
+
+    /**
+     * Standard toString implementation.
+     */
+    public String toString()
+    {
+        return getClass().getSimpleName() + " { " + _expr + " }";
+    }
+
+    /**
+     * Returns the primitive slot type for given expression eval class (byte, short and char are treated as int).
+     */
+    protected static SlotType getSlotTypeForExpr(JExpr anExpr)
+    {
+        JavaClass evalClass = anExpr.getEvalClass();
+        String className = evalClass != null && evalClass.isPrimitive() ? evalClass.getClassName() : null;
+        if (className == null)
+            return SlotType.Object;
+        switch (className) {
+            case "int": case "short": case "byte": case "char": return SlotType.Int;
+            case "long": return SlotType.Long;
+            case "double": return SlotType.Double;
+            default: return SlotType.Object;
+        }
+    }
+
+    /**
+     * An evaluator for a literal.
+     */
+    public static class Literal extends JSCompiledExpr {
+
+        // The value
+        private Object  _value;
+
+        /** Constructor. */
+        public Literal(JExpr anExpr, Object aValue)
+        {
+            super(anExpr);
+            _value = aValue;
+        }
+
+        /** Returns the value. */
+        public Object getValue()  { return _value; }
+
+        @Override
+        public Object eval(JSExprEval anEval, Object anOR)  { return _value; }
+    }
+
+    /**
+     * An evaluator for a local variable identifier.
+     */
+    public static class LocalVar extends JSCompiledExpr {
+
+        // The index of variable in stack frame
+        protected int  _index;
+
+        // The stack slot type
+        protected SlotType  _slotType;
+
+        // The class values are converted to when assigned
+        private Class<?>  _assignClass;
+
+        /** Constructor. */
+        public LocalVar(JExpr anExpr, JavaLocalVar aLocalVar)
+        {
+            super(anExpr);
+            _index = aLocalVar.getIndexInStackFrame();
+            _slotType = aLocalVar.getSlotType();
+            JavaClass assignClass = anExpr.getEvalClass();
+            _assignClass = assignClass != null ? assignClass.getRealClass() : null;
+        }
+
+        /** Returns the index in stack frame. */
+        public int getIndex()  { return _index; }
+
+        /** Returns the stack slot type. */
+        public SlotType getSlotType()  { return _slotType; }
+
+        @Override
+        public Object eval(JSExprEval anEval, Object anOR)
+        {
+            JSVarStack varStack = anEval._varStack;
+            switch (_slotType) {
+                case Int: return varStack.getIntValue(_index);
+                case Long: return varStack.getLongValue(_index);
+                case Double: return varStack.getDoubleValue(_index);
+                default: return varStack.getStackValue(_index);
+            }
+        }
+
+        @Override
+        public int evalInt(JSExprEval anEval, Object anOR) throws Exception
+        {
+            JSVarStack varStack = anEval._varStack;
+            switch (_slotType) {
+                case Int: return varStack.getIntValue(_index);
+                case Long: return (int) varStack.getLongValue(_index);
+                case Double: return (int) varStack.getDoubleValue(_index);
+                default: return super.evalInt(anEval, anOR);
+            }
+        }
+
+        @Override
+        public long evalLong(JSExprEval anEval, Object anOR) throws Exception
+        {
+            JSVarStack varStack = anEval._varStack;
+            switch (_slotType) {
+                case Int: return varStack.getIntValue(_index);
+                case Long: return varStack.getLongValue(_index);
+                case Double: return (long) varStack.getDoubleValue(_index);
+                default: return super.evalLong(anEval, anOR);
+            }
+        }
+
+        @Override
+        public double evalDouble(JSExprEval anEval, Object anOR) throws Exception
+        {
+            JSVarStack varStack = anEval._varStack;
+            switch (_slotType) {
+                case Int: return varStack.getIntValue(_index);
+                case Long: return varStack.getLongValue(_index);
+                case Double: return varStack.getDoubleValue(_index);
+                default: return super.evalDouble(anEval, anOR);
+            }
+        }
+
+        @Override
+        public Object setValue(JSExprEval anEval, Object aValue)
+        {
+            JSVarStack varStack = anEval._varStack;
+            switch (_slotType) {
+                case Int: {
+                    int value = intValue(aValue);
+                    varStack.setIntValue(value, _index);
+                    return value;
+                }
+                case Long: {
+                    long value = longValue(aValue);
+                    varStack.setLongValue(value, _index);
+                    return value;
+                }
+                case Double: {
+                    double value = doubleValue(aValue);
+                    varStack.setDoubleValue(value, _index);
+                    return value;
+                }
+                default: {
+                    Object assignValue = _assignClass != null ? castOrConvertValueToPrimitiveClass(aValue, _assignClass) : aValue;
+                    varStack.setStackValue(assignValue, _index);
+                    return assignValue;
+                }
+            }
+        }
+    }
+
+    /**
+     * An evaluator for a non-local identifier (field, class name, this, etc.).
+     */
+    public static class Name extends JSCompiledExpr {
+
+        // The name
+        private String  _name;
+
+        // The class this identifier refers to (if class name)
+        private JavaClass  _javaClass;
+
+        // The real class this identifier refers to (if class name)
+        private Class<?>  _realClass;
+
+        // The field this identifier refers to (if resolved field)
+        private Field  _field;
+
+        // Whether field is static
+        private boolean  _static;
+
+        // Whether field is a static final constant (value can be cached after first read)
+        private boolean  _constant;
+
+        // The cached value of static final constant field
+        private Object  _constValue;
+
+        // Whether constant value has been cached
+        private boolean  _constValueSet;
+
+        /** Constructor. */
+        public Name(JExprId anExpr)
+        {
+            super(anExpr);
+            _name = anExpr.getName();
+            JavaDecl decl = anExpr.getDecl();
+
+            // Handle class name
+            if (decl instanceof JavaClass)
+                _javaClass = (JavaClass) decl;
+
+            // Handle field: Get field and whether static and/or constant (System in/out/err can be reset, so never constant)
+            else if (decl instanceof JavaField && !SnapUtils.isTeaVM) {
+                _field = ((JavaField) decl).getField();
+                if (_field != null && !isAccessible(_field) && !_field.trySetAccessible())
+                    _field = null;
+                if (_field != null) {
+                    int mods = _field.getModifiers();
+                    _static = Modifier.isStatic(mods);
+                    _constant = _static && Modifier.isFinal(mods) && _field.getDeclaringClass() != System.class;
+                }
+            }
+        }
+
+        @Override
+        public Object eval(JSExprEval anEval, Object anOR) throws Exception
+        {
+            // Handle cached constant
+            if (_constValueSet)
+                return _constValue;
+
+            // Handle resolved field
+            if (_field != null) {
+                if (_static)
+                    return getStaticFieldValue();
+                if (_field.getDeclaringClass().isInstance(anOR))
+                    return getFieldValue(anOR);
+            }
+
+            // Handle resolved class name
+            if (_javaClass != null) {
+                if (_realClass == null)
+                    _realClass = _javaClass.getRealClass();
+                if (_realClass != null)
+                    return _realClass;
+            }
+
+            // Evaluate name
+            return anEval.evalName(anOR, _name);
+        }
+
+        /**
+         * Returns whether field is public in public class.
+         */
+        private static boolean isAccessible(Field aField)
+        {
+            return Modifier.isPublic(aField.getModifiers()) && Modifier.isPublic(aField.getDeclaringClass().getModifiers());
+        }
+
+        /**
+         * Returns the static field value (caching it if constant).
+         */
+        private Object getStaticFieldValue() throws Exception
+        {
+            Object value = _field.get(null);
+            if (_constant) {
+                _constValue = value;
+                _constValueSet = true;
+            }
+            return value;
+        }
+
+        /**
+         * Returns the field value for given object.
+         */
+        private Object getFieldValue(Object anOR) throws Exception
+        {
+            return _field.get(anOR);
+        }
+
+        /**
+         * Sets the field value for given object and returns the value actually assigned.
+         */
+        public Object setFieldValue(JSExprEval anEval, Object anOR, Object aValue) throws Exception
+        {
+            // If no field, complain
+            if (_field == null || !_static && !_field.getDeclaringClass().isInstance(anOR))
+                return setValue(anEval, aValue);
+
+            // Convert value and set
+            Object assignValue = castOrConvertValueToPrimitiveClass(aValue, _field.getType());
+            _field.set(_static ? null : anOR, assignValue);
+            return assignValue;
+        }
+
+        @Override
+        public Object setValue(JSExprEval anEval, Object aValue) throws Exception
+        {
+            // Handle static field
+            if (_field != null && _static)
+                return setFieldValue(anEval, null, aValue);
+
+            System.err.println("JSExprEval: Unknown id: " + _expr);
+            return aValue;
+        }
+    }
+
+    /**
+     * An evaluator for an expression chain.
+     */
+    public static class Chain extends JSCompiledExpr {
+
+        // The chain expressions
+        private JSCompiledExpr[]  _exprs;
+
+        /** Constructor. */
+        public Chain(JExpr anExpr, JSCompiledExpr[] theExprs)
+        {
+            super(anExpr);
+            _exprs = theExprs;
+        }
+
+        @Override
+        public Object eval(JSExprEval anEval, Object anOR) throws Exception
+        {
+            Object val = anOR;
+            for (JSCompiledExpr expr : _exprs)
+                val = expr.eval(anEval, val);
+            return val;
+        }
+
+        @Override
+        public Object setValue(JSExprEval anEval, Object aValue) throws Exception
+        {
+            // If last expression isn't name, do normal version
+            JSCompiledExpr lastExpr = _exprs[_exprs.length - 1];
+            if (!(lastExpr instanceof Name))
+                return super.setValue(anEval, aValue);
+
+            // Evaluate chain up to last expression and set field value
+            Object val = anEval.thisObject();
+            for (int i = 0; i < _exprs.length - 1; i++)
+                val = _exprs[i].eval(anEval, val);
+            return ((Name) lastExpr).setFieldValue(anEval, val, aValue);
+        }
+    }
+
+    /**
+     * An evaluator for unary math expressions (not, negate, increment, decrement).
+     */
+    public static class MathUnary extends JSCompiledExpr {
+
+        // The op
+        private JExprMath.Op  _op;
+
+        // The operand
+        private JSCompiledExpr  _operand;
+
+        // The primitive slot local var operand, if increment/decrement of int/long/double local var
+        private LocalVar  _typedLocal;
+
+        // The increment amount (1 or -1) and whether increment is post
+        private int  _delta;
+        private boolean  _post;
+
+        /** Constructor. */
+        public MathUnary(JExprMath anExpr, JSCompiledExpr anOperand)
+        {
+            super(anExpr);
+            _op = anExpr.getOp();
+            _operand = anOperand;
+
+            // If increment/decrement of primitive slot local var, set typed local
+            switch (_op) {
+                case PreIncrement: case PreDecrement: case PostIncrement: case PostDecrement:
+                    if (anOperand instanceof LocalVar && ((LocalVar) anOperand)._slotType != SlotType.Object)
+                        _typedLocal = (LocalVar) anOperand;
+                    _delta = _op == JExprMath.Op.PreIncrement || _op == JExprMath.Op.PostIncrement ? 1 : -1;
+                    _post = _op == JExprMath.Op.PostIncrement || _op == JExprMath.Op.PostDecrement;
+                    break;
+                default: break;
+            }
+        }
+
+        @Override
+        public Object eval(JSExprEval anEval, Object anOR) throws Exception
+        {
+            // Handle increment/decrement of primitive slot local var
+            if (_typedLocal != null) {
+                switch (_typedLocal._slotType) {
+                    case Int: return evalInt(anEval, anOR);
+                    case Long: return evalLong(anEval, anOR);
+                    default: return evalDouble(anEval, anOR);
+                }
+            }
+
+            Object val1 = _operand.eval(anEval, anOR);
+
+            switch (_op) {
+
+                // Handle Not
+                case Not:
+                    if (isBoolean(val1))
+                        return !boolValue(val1);
+                    throw new RuntimeException("Logical Not MathExpr not boolean: " + _expr);
+
+                // Handle Negate
+                case Negate:
+                    if (isNumberOrChar(val1))
+                        return negate(val1);
+                    throw new RuntimeException("Numeric Negate Expr not numeric: " + _expr);
+
+                // Handle Increment, Decrement
+                case PreIncrement:
+                case PreDecrement: {
+                    if (isNumberOrChar(val1)) {
+                        Object val2 = add(val1, _op == JExprMath.Op.PreIncrement ? 1 : -1);
+                        _operand.setValue(anEval, val2);
+                        return val2;
+                    }
+                    throw new RuntimeException("Numeric " + _op + " Expr not numeric: " + _expr);
+                }
+
+                // Handle PostIncrement, PostDecrement
+                case PostIncrement:
+                case PostDecrement: {
+                    if (isNumberOrChar(val1)) {
+                        _operand.setValue(anEval, add(val1, _op == JExprMath.Op.PostIncrement ? 1 : -1));
+                        return val1;
+                    }
+                    throw new RuntimeException("Numeric " + _op + " Expr not numeric: " + _expr);
+                }
+
+                // Handle unknown (BitComp?)
+                default: throw new RuntimeException("Operator not supported " + _op);
+            }
+        }
+
+        @Override
+        public int evalInt(JSExprEval anEval, Object anOR) throws Exception
+        {
+            if (_typedLocal == null || _typedLocal._slotType != SlotType.Int)
+                return super.evalInt(anEval, anOR);
+            JSVarStack varStack = anEval._varStack;
+            int oldValue = varStack.getIntValue(_typedLocal._index);
+            int newValue = oldValue + _delta;
+            varStack.setIntValue(newValue, _typedLocal._index);
+            return _post ? oldValue : newValue;
+        }
+
+        @Override
+        public long evalLong(JSExprEval anEval, Object anOR) throws Exception
+        {
+            if (_typedLocal == null || _typedLocal._slotType != SlotType.Long)
+                return super.evalLong(anEval, anOR);
+            JSVarStack varStack = anEval._varStack;
+            long oldValue = varStack.getLongValue(_typedLocal._index);
+            long newValue = oldValue + _delta;
+            varStack.setLongValue(newValue, _typedLocal._index);
+            return _post ? oldValue : newValue;
+        }
+
+        @Override
+        public double evalDouble(JSExprEval anEval, Object anOR) throws Exception
+        {
+            if (_typedLocal == null || _typedLocal._slotType != SlotType.Double)
+                return super.evalDouble(anEval, anOR);
+            JSVarStack varStack = anEval._varStack;
+            double oldValue = varStack.getDoubleValue(_typedLocal._index);
+            double newValue = oldValue + _delta;
+            varStack.setDoubleValue(newValue, _typedLocal._index);
+            return _post ? oldValue : newValue;
+        }
+
+        @Override
+        public void exec(JSExprEval anEval, Object anOR) throws Exception
+        {
+            // Handle increment/decrement of primitive slot local var: Don't box result
+            if (_typedLocal != null) {
+                switch (_typedLocal._slotType) {
+                    case Int: evalInt(anEval, anOR); break;
+                    case Long: evalLong(anEval, anOR); break;
+                    default: evalDouble(anEval, anOR); break;
+                }
+            }
+            else eval(anEval, anOR);
+        }
+    }
+
+    /**
+     * An evaluator for binary math expressions.
+     */
+    public static class MathBinary extends JSCompiledExpr {
+
+        // The op
+        private JExprMath.Op  _op;
+
+        // The operands
+        private JSCompiledExpr  _operand1, _operand2;
+
+        /** Constructor. */
+        public MathBinary(JExprMath anExpr, JSCompiledExpr anOperand1, JSCompiledExpr anOperand2)
+        {
+            super(anExpr);
+            _op = anExpr.getOp();
+            _operand1 = anOperand1;
+            _operand2 = anOperand2;
+        }
+
+        @Override
+        public Object eval(JSExprEval anEval, Object anOR) throws Exception
+        {
+            Object val1 = _operand1.eval(anEval, anOR);
+            Object val2 = _operand2.eval(anEval, anOR);
+            return evalBinaryOp(_op, val1, val2);
+        }
+    }
+
+    /**
+     * An evaluator base class for binary math expressions with operand types known at compile time.
+     */
+    public static abstract class MathTyped extends JSCompiledExpr {
+
+        // The op
+        protected JExprMath.Op  _op;
+
+        // The operands
+        protected JSCompiledExpr  _operand1, _operand2;
+
+        /** Constructor. */
+        public MathTyped(JExprMath anExpr, JSCompiledExpr anOperand1, JSCompiledExpr anOperand2)
+        {
+            super(anExpr);
+            _op = anExpr.getOp();
+            _operand1 = anOperand1;
+            _operand2 = anOperand2;
+        }
+    }
+
+    /**
+     * An evaluator for arithmetic on int operands (int, short, byte, char) with int overflow and division semantics.
+     */
+    public static class MathInt extends MathTyped {
+
+        /** Constructor. */
+        public MathInt(JExprMath anExpr, JSCompiledExpr anOperand1, JSCompiledExpr anOperand2)
+        {
+            super(anExpr, anOperand1, anOperand2);
+        }
+
+        @Override
+        public Object eval(JSExprEval anEval, Object anOR) throws Exception  { return evalInt(anEval, anOR); }
+
+        @Override
+        public int evalInt(JSExprEval anEval, Object anOR) throws Exception
+        {
+            int val1 = _operand1.evalInt(anEval, anOR);
+            int val2 = _operand2.evalInt(anEval, anOR);
+            return evalIntOp(_op, val1, val2);
+        }
+
+        @Override
+        public long evalLong(JSExprEval anEval, Object anOR) throws Exception  { return evalInt(anEval, anOR); }
+
+        @Override
+        public double evalDouble(JSExprEval anEval, Object anOR) throws Exception  { return evalInt(anEval, anOR); }
+    }
+
+    /**
+     * An evaluator for arithmetic on long operands with long overflow and division semantics.
+     */
+    public static class MathLong extends MathTyped {
+
+        /** Constructor. */
+        public MathLong(JExprMath anExpr, JSCompiledExpr anOperand1, JSCompiledExpr anOperand2)
+        {
+            super(anExpr, anOperand1, anOperand2);
+        }
+
+        @Override
+        public Object eval(JSExprEval anEval, Object anOR) throws Exception  { return evalLong(anEval, anOR); }
+
+        @Override
+        public int evalInt(JSExprEval anEval, Object anOR) throws Exception  { return (int) evalLong(anEval, anOR); }
+
+        @Override
+        public long evalLong(JSExprEval anEval, Object anOR) throws Exception
+        {
+            long val1 = _operand1.evalLong(anEval, anOR);
+            long val2 = _operand2.evalLong(anEval, anOR);
+            return evalLongOp(_op, val1, val2);
+        }
+
+        @Override
+        public double evalDouble(JSExprEval anEval, Object anOR) throws Exception  { return evalLong(anEval, anOR); }
+    }
+
+    /**
+     * An evaluator for arithmetic on float operands (result is rounded to float).
+     */
+    public static class MathFloat extends MathTyped {
+
+        /** Constructor. */
+        public MathFloat(JExprMath anExpr, JSCompiledExpr anOperand1, JSCompiledExpr anOperand2)
+        {
+            super(anExpr, anOperand1, anOperand2);
+        }
+
+        @Override
+        public Object eval(JSExprEval anEval, Object anOR) throws Exception  { return (float) evalDouble(anEval, anOR); }
+
+        @Override
+        public int evalInt(JSExprEval anEval, Object anOR) throws Exception  { return (int) evalDouble(anEval, anOR); }
+
+        @Override
+        public long evalLong(JSExprEval anEval, Object anOR) throws Exception  { return (long) evalDouble(anEval, anOR); }
+
+        @Override
+        public double evalDouble(JSExprEval anEval, Object anOR) throws Exception
+        {
+            float val1 = (float) _operand1.evalDouble(anEval, anOR);
+            float val2 = (float) _operand2.evalDouble(anEval, anOR);
+            return (float) evalDoubleOp(_op, val1, val2);
+        }
+    }
+
+    /**
+     * An evaluator for arithmetic on double operands.
+     */
+    public static class MathDouble extends MathTyped {
+
+        /** Constructor. */
+        public MathDouble(JExprMath anExpr, JSCompiledExpr anOperand1, JSCompiledExpr anOperand2)
+        {
+            super(anExpr, anOperand1, anOperand2);
+        }
+
+        @Override
+        public Object eval(JSExprEval anEval, Object anOR) throws Exception  { return evalDouble(anEval, anOR); }
+
+        @Override
+        public int evalInt(JSExprEval anEval, Object anOR) throws Exception  { return (int) evalDouble(anEval, anOR); }
+
+        @Override
+        public long evalLong(JSExprEval anEval, Object anOR) throws Exception  { return (long) evalDouble(anEval, anOR); }
+
+        @Override
+        public double evalDouble(JSExprEval anEval, Object anOR) throws Exception
+        {
+            double val1 = _operand1.evalDouble(anEval, anOR);
+            double val2 = _operand2.evalDouble(anEval, anOR);
+            return evalDoubleOp(_op, val1, val2);
+        }
+    }
+
+    /**
+     * An evaluator for numeric compares of integral operands (int, long, etc.).
+     */
+    public static class CompareLong extends MathTyped {
+
+        /** Constructor. */
+        public CompareLong(JExprMath anExpr, JSCompiledExpr anOperand1, JSCompiledExpr anOperand2)
+        {
+            super(anExpr, anOperand1, anOperand2);
+        }
+
+        @Override
+        public Object eval(JSExprEval anEval, Object anOR) throws Exception  { return evalBoolean(anEval, anOR); }
+
+        @Override
+        public boolean evalBoolean(JSExprEval anEval, Object anOR) throws Exception
+        {
+            long val1 = _operand1.evalLong(anEval, anOR);
+            long val2 = _operand2.evalLong(anEval, anOR);
+            return compareNumeric(val1, val2, _op);
+        }
+    }
+
+    /**
+     * An evaluator for numeric compares where either operand is floating point.
+     */
+    public static class CompareDouble extends MathTyped {
+
+        /** Constructor. */
+        public CompareDouble(JExprMath anExpr, JSCompiledExpr anOperand1, JSCompiledExpr anOperand2)
+        {
+            super(anExpr, anOperand1, anOperand2);
+        }
+
+        @Override
+        public Object eval(JSExprEval anEval, Object anOR) throws Exception  { return evalBoolean(anEval, anOR); }
+
+        @Override
+        public boolean evalBoolean(JSExprEval anEval, Object anOR) throws Exception
+        {
+            double val1 = _operand1.evalDouble(anEval, anOR);
+            double val2 = _operand2.evalDouble(anEval, anOR);
+            return compareNumeric(val1, val2, _op);
+        }
+    }
+
+    /**
+     * An evaluator for conditional And/Or (short-circuits second operand).
+     */
+    public static class Logical extends MathTyped {
+
+        /** Constructor. */
+        public Logical(JExprMath anExpr, JSCompiledExpr anOperand1, JSCompiledExpr anOperand2)
+        {
+            super(anExpr, anOperand1, anOperand2);
+        }
+
+        @Override
+        public Object eval(JSExprEval anEval, Object anOR) throws Exception  { return evalBoolean(anEval, anOR); }
+
+        @Override
+        public boolean evalBoolean(JSExprEval anEval, Object anOR) throws Exception
+        {
+            if (_op == JExprMath.Op.And)
+                return _operand1.evalBoolean(anEval, anOR) && _operand2.evalBoolean(anEval, anOR);
+            return _operand1.evalBoolean(anEval, anOR) || _operand2.evalBoolean(anEval, anOR);
+        }
+    }
+
+    /**
+     * An evaluator for String concatenation chains (a + b + c), evaluated with a single presized builder.
+     */
+    public static class StringConcat extends JSCompiledExpr {
+
+        // The operands
+        private JSCompiledExpr[]  _operands;
+
+        /** Constructor. */
+        public StringConcat(JExprMath anExpr, JSCompiledExpr[] theOperands)
+        {
+            super(anExpr);
+            _operands = theOperands;
+        }
+
+        @Override
+        public Object eval(JSExprEval anEval, Object anOR) throws Exception
+        {
+            // Handle simple binary
+            if (_operands.length == 2) {
+                Object val1 = _operands[0].eval(anEval, anOR);
+                Object val2 = _operands[1].eval(anEval, anOR);
+                return String.valueOf(val1).concat(String.valueOf(val2));
+            }
+
+            // Evaluate operands and concat with single builder
+            Object[] values = new Object[_operands.length];
+            for (int i = 0; i < _operands.length; i++)
+                values[i] = _operands[i].eval(anEval, anOR);
+            return concatStrings(values);
+        }
+    }
+
+    /**
+     * An evaluator for compound string assign (s += x), with value concatenation chain fused in (s += a + b).
+     */
+    public static class StringConcatAssign extends JSCompiledExpr {
+
+        // The assign-to expression
+        private JSCompiledExpr  _assignToExpr;
+
+        // The value operands
+        private JSCompiledExpr[]  _operands;
+
+        /** Constructor. */
+        public StringConcatAssign(JExprAssign anExpr, JSCompiledExpr anAssignToExpr, JSCompiledExpr[] theOperands)
+        {
+            super(anExpr);
+            _assignToExpr = anAssignToExpr;
+            _operands = theOperands;
+        }
+
+        @Override
+        public Object eval(JSExprEval anEval, Object anOR) throws Exception
+        {
+            // Evaluate assign-to value, then operands (in Java order) and concat with single builder
+            Object[] values = new Object[_operands.length + 1];
+            values[0] = _assignToExpr.eval(anEval, anOR);
+            for (int i = 0; i < _operands.length; i++)
+                values[i + 1] = _operands[i].eval(anEval, anOR);
+            String value = values.length == 2 ? String.valueOf(values[0]).concat(String.valueOf(values[1])) : concatStrings(values);
+
+            // Set value
+            return _assignToExpr.setValue(anEval, value);
+        }
+    }
+
+    /**
+     * An evaluator for ternary conditional expressions.
+     */
+    public static class Conditional extends JSCompiledExpr {
+
+        // The conditional, true and false expressions
+        private JSCompiledExpr  _condExpr, _trueExpr, _falseExpr;
+
+        /** Constructor. */
+        public Conditional(JExprMath anExpr, JSCompiledExpr aCond, JSCompiledExpr aTrue, JSCompiledExpr aFalse)
+        {
+            super(anExpr);
+            _condExpr = aCond;
+            _trueExpr = aTrue;
+            _falseExpr = aFalse;
+        }
+
+        @Override
+        public Object eval(JSExprEval anEval, Object anOR) throws Exception
+        {
+            // Evaluate resulting expression and return
+            JSCompiledExpr resultExpr = _condExpr.evalBoolean(anEval, anOR) ? _trueExpr : _falseExpr;
+            return resultExpr.eval(anEval, anOR);
+        }
+    }
+
+    /**
+     * An evaluator for method calls.
+     */
+    public static class MethodCall extends JSCompiledExpr {
+
+        // The method
+        private JavaMethod  _method;
+
+        // The method name
+        private String  _name;
+
+        // Whether method is static
+        private boolean  _static;
+
+        // The local method (if method is declared in script)
+        private LocalMethod  _localMethod;
+
+        // The arg expressions
+        private JSCompiledExpr[]  _args;
+
+        // The resolver
+        private Resolver  _resolver;
+
+        // The static arg types (used to resolve method against receiver class if not resolved at compile time)
+        private JavaType[]  _argTypes;
+
+        // The inline cache of targets for receiver classes (if method not resolved at compile time)
+        private JSInlineCache  _inlineCache;
+
+        /** Constructor. */
+        public MethodCall(JSCompiler aCompiler, JExprMethodCall anExpr, JSCompiledExpr[] theArgs)
+        {
+            super(anExpr);
+            _method = anExpr.getDecl();
+            _name = anExpr.getName();
+            _static = _method != null && _method.isStatic();
+            _args = theArgs;
+            _resolver = anExpr.getResolver();
+
+            // If method not resolved, create inline cache to resolve by receiver class
+            if (_method == null) {
+                _argTypes = anExpr.getArgEvalTypes();
+                _inlineCache = new JSInlineCache();
+            }
+
+            // If local method decl, create local method
+            JMethodDecl methodDecl = _method != null ? _method.getMethodDecl() : null;
+            if (methodDecl != null)
+                _localMethod = new LocalMethod(aCompiler, methodDecl);
+        }
+
+        @Override
+        public Object eval(JSExprEval anEval, Object anOR) throws Exception
+        {
+            // Get arg values
+            Object thisObj = anEval.thisObject();
+            int argCount = _args.length;
+            Object[] argValues = new Object[argCount];
+            for (int i = 0; i < argCount; i++)
+                argValues[i] = _args[i].eval(anEval, thisObj);
+
+            // Handle method not resolved at compile time: Dispatch on receiver class
+            if (_method == null)
+                return evalWithInlineCache(anEval, anOR, argValues);
+
+            // If object null, throw NullPointerException
+            if (anOR == null && !_static)
+                throw new NullPointerException("JSExprEval: Can't call " + _name + " on null");
+
+            // Handle local MethodDecl
+            if (_localMethod != null)
+                return _localMethod.invoke(anEval, anOR, argValues);
+
+            // Invoke method
+            return _resolver.invokeMethod(anOR, _method, argValues);
+        }
+
+        /**
+         * Evaluate method call for method not resolved at compile time, using inline cache of targets by receiver class.
+         */
+        private Object evalWithInlineCache(JSExprEval anEval, Object anOR, Object[] argValues) throws Exception
+        {
+            // Get receiver class (if null, complain)
+            if (anOR == null)
+                throw new NullPointerException("JSExprEval: Can't call " + _name + " on null");
+            Class<?> receiverClass = anOR.getClass();
+
+            // Get cached target for receiver class - if found, just invoke
+            JSInlineCache.Target target = _inlineCache.getTarget(receiverClass);
+            if (target != null)
+                return target.invoke(anOR, argValues);
+
+            // Handle megamorphic call site: Use generic dispatch
+            if (_inlineCache.isMegamorphic()) {
+                if (anOR instanceof PropObject)
+                    return anEval.evalMethodCallExprForPropObject((PropObject) anOR, _name, argValues);
+                target = getTargetForReceiverClass(receiverClass);
+                if (target == null)
+                    throw new NoSuchMethodException("JSExprEval: Method not found for " + _name);
+                return target.invoke(anOR, argValues);
+            }
+
+            // Resolve target for receiver class, add to cache and invoke
+            target = getTargetForReceiverClass(receiverClass);
+            if (target == null)
+                throw new NoSuchMethodException("JSExprEval: Method not found for " + _name);
+            _inlineCache.addTarget(receiverClass, target);
+            return target.invoke(anOR, argValues);
+        }
+
+        /**
+         * Returns the invocation target for given receiver class (or null if not found).
+         */
+        private JSInlineCache.Target getTargetForReceiverClass(Class<?> aClass)
+        {
+            // Handle PropObject
+            if (PropObject.class.isAssignableFrom(aClass))
+                return JSInlineCache.PropTarget.getPropTargetForMethodName(_name, _args.length);
+
+            // Look for compatible method in receiver class
+            JavaClass javaClass = _resolver.getJavaClassForClass(aClass);
+            JavaMethod method = javaClass != null ? JavaClassUtils.getCompatibleMethodAll(javaClass, _name, _argTypes) : null;
+            return method != null ? new JSInlineCache.MethodTarget(_resolver, method) : null;
+        }
+
+        /**
+         * Returns the inline cache (if method not resolved at compile time).
+         */
+        public JSInlineCache getInlineCache()  { return _inlineCache; }
+    }
+
+    /**
+     * A method declared in script, called from compiled code (method calls and method references): Runs method bytecode
+     * if method is hot and compiled, otherwise runs compiled method body in new stack frame.
+     */
+    public static class LocalMethod {
+
+        // The compiler (to get compiled method body and profile)
+        private JSCompiler  _compiler;
+
+        // The method decl
+        private JMethodDecl  _methodDecl;
+
+        // The params
+        private LocalVar[]  _params;
+
+        // The compiled method body
+        private JSCompiledStmt  _methodBody;
+
+        // The method profile
+        private JSCompiler.MethodProfile  _profile;
+
+        /** Constructor. */
+        public LocalMethod(JSCompiler aCompiler, JMethodDecl aMethodDecl)
+        {
+            _compiler = aCompiler;
+            _methodDecl = aMethodDecl;
+
+            // Get params
+            List<JVarDecl> params = aMethodDecl.getParameters();
+            _params = new LocalVar[params.size()];
+            for (int i = 0; i < _params.length; i++) {
+                JExprId paramId = params.get(i).getId();
+                _params[i] = new LocalVar(paramId, (JavaLocalVar) paramId.getDecl());
+            }
+        }
+
+        /** Returns the method decl. */
+        public JMethodDecl getMethodDecl()  { return _methodDecl; }
+
+        /**
+         * Invokes method with given evaluator, this object and args.
+         */
+        public Object invoke(JSExprEval anEval, Object anOR, Object[] argValues) throws Exception
+        {
+            // Check budget and push method on profiler call stack (if profiling)
+            JSStmtEval stmtEval = anEval._stmtEval;
+            stmtEval.checkMethodEntry();
+            JSProfiler profiler = stmtEval._profiler;
+            if (profiler != null)
+                profiler.enterMethod(_methodDecl.getName());
+
+            // Run method (all in this Java frame, since deep script recursion nests these)
+            try {
+
+                // Get method profile: If method is hot and compiled to bytecode, just invoke
+                if (_profile == null)
+                    _profile = _compiler.getProfileForMethodDecl(_methodDecl);
+                if (_profile.isCompiled())
+                    return _profile.invokeCompiled(stmtEval, argValues);
+
+                // Get compiled method body
+                if (_methodBody == null)
+                    _methodBody = _compiler.getCompiledBodyForMethodDecl(_methodDecl);
+
+                // Create stack frame
+                JSVarStack varStack = anEval._varStack;
+                varStack.pushStackFrame();
+                long backEdgeCount = stmtEval._backEdgeCount;
+
+                // Install params, run method body and pop stack frame (and record invocation in profile)
+                try {
+                    for (int i = 0; i < _params.length; i++)
+                        _params[i].setValue(anEval, argValues[i]);
+                    return stmtEval.evalExecutable(anOR, _methodBody);
+                }
+                finally {
+                    varStack.popStackFrame();
+                    _compiler.recordInvocation(_profile, stmtEval._backEdgeCount - backEdgeCount);
+                }
+            }
+
+            // Pop method from profiler call stack
+            finally {
+                if (profiler != null)
+                    profiler.exitMethod();
+            }
+        }
+    }
+
+    /**
+     * An evaluator for assignment expressions.
+     */
+    public static class Assign extends JSCompiledExpr {
+
+        // The op
+        private JExprAssign.Op  _op;
+
+        // The assign-to expression
+        private JSCompiledExpr  _assignToExpr;
+
+        // The value expression
+        private JSCompiledExpr  _valueExpr;
+
+        // The primitive slot type of assign-to local var or array element (or Object if not int/long/double)
+        private SlotType  _slotType = SlotType.Object;
+
+        // The primitive type of value expression
+        private SlotType  _valueType;
+
+        // The math op for compound assign (or null if simple assign)
+        private JExprMath.Op  _mathOp;
+
+        // The narrow primitive class of assign-to int slot (char/byte/short), or null if int
+        private Class<?>  _narrowClass;
+
+        /** Constructor. */
+        public Assign(JExprAssign anExpr, JSCompiledExpr anAssignToExpr, JSCompiledExpr aValueExpr)
+        {
+            super(anExpr);
+            _op = anExpr.getOp();
+            _assignToExpr = anAssignToExpr;
+            _valueExpr = aValueExpr;
+
+            // If assign to primitive slot local var or typed array element (with simple assign or compound math assign
+            // with primitive value), set slot type
+            _valueType = getSlotTypeForExpr(anExpr.getValueExpr());
+            _mathOp = getMathOpForAssignOp(_op);
+            boolean isTypedOp = _op == JExprAssign.Op.Assign || _mathOp != null && _valueType != SlotType.Object;
+            if (isTypedOp) {
+                if (anAssignToExpr instanceof LocalVar)
+                    _slotType = ((LocalVar) anAssignToExpr)._slotType;
+                else if (anAssignToExpr instanceof ArrayIndex && ((ArrayIndex) anAssignToExpr)._access != null)
+                    _slotType = getSlotTypeForExpr(anExpr.getIdExpr());
+            }
+
+            // If int slot holds char/byte/short, get class to convert eval result to
+            if (_slotType == SlotType.Int) {
+                JavaClass assignClass = anExpr.getIdExpr().getEvalClass();
+                Class<?> realClass = assignClass != null ? assignClass.getRealClass() : null;
+                _narrowClass = realClass != int.class ? realClass : null;
+            }
+        }
+
+        @Override
+        public Object eval(JSExprEval anEval, Object anOR) throws Exception
+        {
+            // Handle primitive slot local var or array element
+            switch (_slotType) {
+                case Int: {
+                    int value = evalInt(anEval, anOR);
+                    return _narrowClass != null ? castOrConvertValueToPrimitiveClass(value, _narrowClass) : value;
+                }
+                case Long: return evalLong(anEval, anOR);
+                case Double: return evalDouble(anEval, anOR);
+                default: break;
+            }
+
+            // Get value
+            Object value = _valueExpr.eval(anEval, anOR);
+
+            // If op not simple, perform math
+            if (_op != JExprAssign.Op.Assign) {
+                Object assignToValue = _assignToExpr.eval(anEval, anOR);
+                value = evalAssignOp(_op, assignToValue, value);
+            }
+
+            // Set value
+            return _assignToExpr.setValue(anEval, value);
+        }
+
+        @Override
+        public int evalInt(JSExprEval anEval, Object anOR) throws Exception
+        {
+            if (_slotType != SlotType.Int)
+                return super.evalInt(anEval, anOR);
+
+            // Handle array element: Get array and index, then value (narrowed to component type on set)
+            if (_assignToExpr instanceof ArrayIndex) {
+                ArrayIndex arrayIndex = (ArrayIndex) _assignToExpr;
+                JSArrayAccess access = arrayIndex._access;
+                Object array = arrayIndex._arrayExpr.eval(anEval, anOR);
+                int index = arrayIndex._indexExpr.evalInt(anEval, anEval.thisObject());
+                int oldValue = _mathOp != null ? access.getInt(array, index) : 0;
+                access.setInt(array, index, getIntValue(anEval, anOR, oldValue));
+                return access.getInt(array, index);
+            }
+
+            // Get value and set local var
+            JSVarStack varStack = anEval._varStack;
+            int index = ((LocalVar) _assignToExpr)._index;
+            int oldValue = _mathOp != null ? varStack.getIntValue(index) : 0;
+            int value = getIntValue(anEval, anOR, oldValue);
+            varStack.setIntValue(value, index);
+            return value;
+        }
+
+        @Override
+        public long evalLong(JSExprEval anEval, Object anOR) throws Exception
+        {
+            if (_slotType != SlotType.Long)
+                return super.evalLong(anEval, anOR);
+
+            // Handle array element: Get array and index, then value
+            if (_assignToExpr instanceof ArrayIndex) {
+                ArrayIndex arrayIndex = (ArrayIndex) _assignToExpr;
+                JSArrayAccess access = arrayIndex._access;
+                Object array = arrayIndex._arrayExpr.eval(anEval, anOR);
+                int index = arrayIndex._indexExpr.evalInt(anEval, anEval.thisObject());
+                long oldValue = _mathOp != null ? access.getLong(array, index) : 0;
+                long value = getLongValue(anEval, anOR, oldValue);
+                access.setLong(array, index, value);
+                return value;
+            }
+
+            // Get value and set local var
+            JSVarStack varStack = anEval._varStack;
+            int index = ((LocalVar) _assignToExpr)._index;
+            long oldValue = _mathOp != null ? varStack.getLongValue(index) : 0;
+            long value = getLongValue(anEval, anOR, oldValue);
+            varStack.setLongValue(value, index);
+            return value;
+        }
+
+        @Override
+        public double evalDouble(JSExprEval anEval, Object anOR) throws Exception
+        {
+            if (_slotType != SlotType.Double)
+                return super.evalDouble(anEval, anOR);
+
+            // Handle array element: Get array and index, then value
+            if (_assignToExpr instanceof ArrayIndex) {
+                ArrayIndex arrayIndex = (ArrayIndex) _assignToExpr;
+                JSArrayAccess access = arrayIndex._access;
+                Object array = arrayIndex._arrayExpr.eval(anEval, anOR);
+                int index = arrayIndex._indexExpr.evalInt(anEval, anEval.thisObject());
+                double oldValue = _mathOp != null ? access.getDouble(array, index) : 0;
+                double value = getDoubleValue(anEval, anOR, oldValue);
+                access.setDouble(array, index, value);
+                return value;
+            }
+
+            // Get value and set local var
+            JSVarStack varStack = anEval._varStack;
+            int index = ((LocalVar) _assignToExpr)._index;
+            double oldValue = _mathOp != null ? varStack.getDoubleValue(index) : 0;
+            double value = getDoubleValue(anEval, anOR, oldValue);
+            varStack.setDoubleValue(value, index);
+            return value;
+        }
+
+        /**
+         * Returns the int value to assign: If compound, does math in promoted type and narrows.
+         */
+        private int getIntValue(JSExprEval anEval, Object anOR, int oldValue) throws Exception
+        {
+            if (_mathOp == null)
+                return _valueExpr.evalInt(anEval, anOR);
+            switch (_valueType) {
+                case Int: return evalIntOp(_mathOp, oldValue, _valueExpr.evalInt(anEval, anOR));
+                case Long: return (int) evalLongOp(_mathOp, oldValue, _valueExpr.evalLong(anEval, anOR));
+                default: return (int) evalDoubleOp(_mathOp, oldValue, _valueExpr.evalDouble(anEval, anOR));
+            }
+        }
+
+        /**
+         * Returns the long value to assign: If compound, does math in promoted type and narrows.
+         */
+        private long getLongValue(JSExprEval anEval, Object anOR, long oldValue) throws Exception
+        {
+            if (_mathOp == null)
+                return _valueExpr.evalLong(anEval, anOR);
+            if (_valueType == SlotType.Double)
+                return (long) evalDoubleOp(_mathOp, oldValue, _valueExpr.evalDouble(anEval, anOR));
+            return evalLongOp(_mathOp, oldValue, _valueExpr.evalLong(anEval, anOR));
+        }
+
+        /**
+         * Returns the double value to assign: If compound, does math.
+         */
+        private double getDoubleValue(JSExprEval anEval, Object anOR, double oldValue) throws Exception
+        {
+            double value = _valueExpr.evalDouble(anEval, anOR);
+            if (_mathOp != null)
+                value = evalDoubleOp(_mathOp, oldValue, value);
+            return value;
+        }
+
+        @Override
+        public void exec(JSExprEval anEval, Object anOR) throws Exception
+        {
+            // Handle primitive slot local var or array element: Don't box result
+            switch (_slotType) {
+                case Int: evalInt(anEval, anOR); break;
+                case Long: evalLong(anEval, anOR); break;
+                case Double: evalDouble(anEval, anOR); break;
+                default: eval(anEval, anOR); break;
+            }
+        }
+    }
+
+    /**
+     * An evaluator for array index expressions, with element access specialized for the static array type.
+     */
+    public static class ArrayIndex extends JSCompiledExpr {
+
+        // The array and index expressions
+        private JSCompiledExpr  _arrayExpr, _indexExpr;
+
+        // The array access for static array component type (or null if array type not resolved)
+        private JSArrayAccess  _access;
+
+        /** Constructor. */
+        public ArrayIndex(JExprArrayIndex anExpr, JSCompiledExpr anArrayExpr, JSCompiledExpr anIndexExpr)
+        {
+            super(anExpr);
+            _arrayExpr = anArrayExpr;
+            _indexExpr = anIndexExpr;
+
+            // Get array access for static array type
+            JavaClass arrayClass = anExpr.getArrayExpr().getEvalClass();
+            Class<?> realClass = arrayClass != null && arrayClass.isArray() ? arrayClass.getRealClass() : null;
+            if (realClass != null && realClass.isArray())
+                _access = JSArrayAccess.getAccessForComponentClass(realClass.getComponentType());
+        }
+
+        @Override
+        public Object eval(JSExprEval anEval, Object anOR) throws Exception
+        {
+            // Get Array
+            Object arrayObj = _arrayExpr.eval(anEval, anOR);
+            if (!isArray(arrayObj))
+                return null;
+
+            // Get index and return array value at index
+            int index = _indexExpr.evalInt(anEval, anEval.thisObject());
+            return getAccess(arrayObj).get(arrayObj, index);
+        }
+
+        @Override
+        public int evalInt(JSExprEval anEval, Object anOR) throws Exception
+        {
+            Object arrayObj = _arrayExpr.eval(anEval, anOR);
+            int index = _indexExpr.evalInt(anEval, anEval.thisObject());
+            return getAccess(arrayObj).getInt(arrayObj, index);
+        }
+
+        @Override
+        public long evalLong(JSExprEval anEval, Object anOR) throws Exception
+        {
+            Object arrayObj = _arrayExpr.eval(anEval, anOR);
+            int index = _indexExpr.evalInt(anEval, anEval.thisObject());
+            return getAccess(arrayObj).getLong(arrayObj, index);
+        }
+
+        @Override
+        public double evalDouble(JSExprEval anEval, Object anOR) throws Exception
+        {
+            Object arrayObj = _arrayExpr.eval(anEval, anOR);
+            int index = _indexExpr.evalInt(anEval, anEval.thisObject());
+            return getAccess(arrayObj).getDouble(arrayObj, index);
+        }
+
+        @Override
+        public boolean evalBoolean(JSExprEval anEval, Object anOR) throws Exception
+        {
+            Object arrayObj = _arrayExpr.eval(anEval, anOR);
+            int index = _indexExpr.evalInt(anEval, anEval.thisObject());
+            return getAccess(arrayObj).getBoolean(arrayObj, index);
+        }
+
+        @Override
+        public Object setValue(JSExprEval anEval, Object aValue) throws Exception
+        {
+            // Get Index and array
+            Object thisObj = anEval.thisObject();
+            int index = _indexExpr.evalInt(anEval, thisObj);
+            Object array = _arrayExpr.eval(anEval, thisObj);
+
+            // Set value (converted to component type, if primitive) and return
+            getAccess(array).set(array, index, aValue);
+            return aValue;
+        }
+
+        /**
+         * Returns the array access for static array type (or for given array if array type not resolved).
+         */
+        private JSArrayAccess getAccess(Object anArray)
+        {
+            return _access != null ? _access : JSArrayAccess.getAccessForArray(anArray);
+        }
+    }
+
+    /**
+     * An evaluator for allocation expressions.
+     */
+    public static class Alloc extends JSCompiledExpr {
+
+        // The real class
+        private Class<?>  _realClass;
+
+        // The constructor
+        private JavaConstructor  _constructor;
+
+        // The constructor arg expressions
+        private JSCompiledExpr[]  _args;
+
+        // The array init expressions
+        private JSCompiledExpr[]  _arrayInits;
+
+        // The array dimension expressions
+        private JSCompiledExpr[]  _arrayDims;
+
+        // The array access for array component type (if array)
+        private JSArrayAccess  _access;
+
+        // The primitive slot type of array component (if array)
+        private SlotType  _compSlotType = SlotType.Object;
+
+        // The resolver
+        private Resolver  _resolver;
+
+        /** Constructor. */
+        public Alloc(JExprAlloc anExpr, JSCompiledExpr[] theArgs, JSCompiledExpr[] theArrayInits, JSCompiledExpr[] theArrayDims)
+        {
+            super(anExpr);
+            JavaDecl exprDecl = anExpr.getDecl();
+            JavaClass javaClass = exprDecl.getEvalClass();
+            _realClass = javaClass.getRealClass();
+            _constructor = exprDecl instanceof JavaConstructor ? (JavaConstructor) exprDecl : null;
+            _args = theArgs;
+            _arrayInits = theArrayInits;
+            _arrayDims = theArrayDims;
+            _resolver = anExpr.getResolver();
+
+            // If array, get array access and component slot type
+            if (_realClass.isArray()) {
+                _access = JSArrayAccess.getAccessForComponentClass(_realClass.getComponentType());
+                _compSlotType = SlotType.getSlotTypeForType(javaClass.getComponentType());
+            }
+        }
+
+        @Override
+        public Object eval(JSExprEval anEval, Object anOR) throws Exception
+        {
+            Object thisObj = anEval.thisObject();
+
+            // Handle array
+            if (_access != null) {
+
+                // Handle inits
+                if (_arrayInits.length > 0) {
+
+                    // Create array
+                    int arrayLen = _arrayInits.length;
+                    Object array = _access.newArray(arrayLen);
+
+                    // Iterate over init expressions and set evaluated values (unboxed for int/long/double)
+                    for (int i = 0; i < arrayLen; i++) {
+                        JSCompiledExpr initExpr = _arrayInits[i];
+                        switch (_compSlotType) {
+                            case Int: _access.setInt(array, i, initExpr.evalInt(anEval, thisObj)); break;
+                            case Long: _access.setLong(array, i, initExpr.evalLong(anEval, thisObj)); break;
+                            case Double: _access.setDouble(array, i, initExpr.evalDouble(anEval, thisObj)); break;
+                            default: _access.set(array, i, initExpr.eval(anEval, thisObj)); break;
+                        }
+                    }
+
+                    // Return
+                    return array;
+                }
+
+                // Handle single dimension
+                if (_arrayDims.length == 1) {
+                    int arrayLen = _arrayDims[0].evalInt(anEval, thisObj);
+                    return _access.newArray(arrayLen);
+                }
+
+                // Handle multiple dimensions
+                if (_arrayDims.length > 1) {
+                    int[] dims = new int[_arrayDims.length];
+                    for (int i = 0; i < dims.length; i++)
+                        dims[i] = _arrayDims[i].evalInt(anEval, thisObj);
+                    return JSArrayAccess.newArrayForDims(_realClass, dims);
+                }
+            }
+
+            // Get arg values
+            int argCount = _args.length;
+            Object[] argValues = new Object[argCount];
+            for (int i = 0; i < argCount; i++)
+                argValues[i] = _args[i].eval(anEval, thisObj);
+
+            // Invoke constructor
+            return _resolver.invokeConstructor(_realClass, _constructor, argValues);
+        }
+    }
+
+    /**
+     * An evaluator for cast expressions.
+     */
+    public static class Cast extends JSCompiledExpr {
+
+        // The expression being cast
+        private JSCompiledExpr  _castExpr;
+
+        // The cast type
+        private JavaType  _castType;
+
+        // The cast class (if primitive)
+        private Class<?>  _castClass;
+
+        /** Constructor. */
+        public Cast(JExprCast anExpr, JSCompiledExpr aCastExpr)
+        {
+            super(anExpr);
+            _castExpr = aCastExpr;
+            JType type = anExpr.getType();
+            _castType = type != null ? type.getDecl() : null;
+            if (_castType != null && _castType.isPrimitive())
+                _castClass = _castType.getEvalClass().getRealClass();
+        }
+
+        @Override
+        public Object eval(JSExprEval anEval, Object anOR) throws Exception
+        {
+            // Get value
+            Object value = _castExpr.eval(anEval, anOR);
+
+            // If no type, complain and just return
+            if (_castType == null) {
+                System.out.println("JSExprEval: Couldn't get type for cast expression: " + _expr);
+                return value;
+            }
+
+            // If not primitve, just return value
+            if (_castClass == null)
+                return value;
+
+            // If value is null, complain
+            if (value == null)
+                throw new RuntimeException("JSExprEval: Trying to cast null to " + _castType.getClassName());
+
+            // If valueClass is assignable to cast class, just return value
+            if (_castClass.isAssignableFrom(value.getClass()))
+                return value;
+
+            // Cast value and return
+            return castOrConvertValueToPrimitiveClass(value, _castClass);
+        }
+    }
+
+    /**
+     * An evaluator for lambda expression: Returns functional interface instance that runs compiled body.
+     */
+    public static class Lambda extends JSCompiledExpr {
+
+        // The functional interface class
+        private Class<?>  _lambdaClass;
+
+        // The param local vars
+        private JavaLocalVar[]  _params;
+
+        // The body expression (if expression lambda)
+        private JSCompiledExpr  _bodyExpr;
+
+        // The body statement (if block lambda)
+        private JSCompiledStmt  _bodyStmt;
+
+        /** Constructor. */
+        public Lambda(JExprLambda anExpr, Class<?> aLambdaClass, JSCompiledExpr aBodyExpr, JSCompiledStmt aBodyStmt)
+        {
+            super(anExpr);
+            _lambdaClass = aLambdaClass;
+            _params = JSLambda.Expr.getParamsForLambdaExpr(anExpr);
+            _bodyExpr = aBodyExpr;
+            _bodyStmt = aBodyStmt;
+        }
+
+        @Override
+        public Object eval(JSExprEval anEval, Object anOR)
+        {
+            JSLambda lambda = new JSLambda.Expr(anEval, anOR, _params, _bodyExpr, _bodyStmt);
+            return lambda.getInstanceForClass(_lambdaClass);
+        }
+    }
+
+    /**
+     * An evaluator for method reference: Returns functional interface instance that calls method.
+     */
+    public static class MethodRef extends JSCompiledExpr {
+
+        // The functional interface class
+        private Class<?>  _lambdaClass;
+
+        // The class (for Type::method and Type::new)
+        private Class<?>  _refClass;
+
+        // The receiver expression (for expr::method)
+        private JSCompiledExpr  _receiverExpr;
+
+        // The method name
+        private String  _name;
+
+        // The resolver
+        private Resolver  _resolver;
+
+        // The local method (for this::method and ScriptClass::method, if method is declared in script)
+        private LocalMethod  _localMethod;
+
+        /** Constructor. */
+        public MethodRef(JExprMethodRef anExpr, Class<?> aLambdaClass, Class<?> aRefClass, JSCompiledExpr aReceiverExpr)
+        {
+            super(anExpr);
+            _lambdaClass = aLambdaClass;
+            _refClass = aRefClass;
+            _receiverExpr = aReceiverExpr;
+            _name = anExpr.getId().getName();
+            _resolver = anExpr.getResolver();
+        }
+
+        /** Constructor for method declared in script. */
+        public MethodRef(JExprMethodRef anExpr, Class<?> aLambdaClass, LocalMethod aLocalMethod)
+        {
+            super(anExpr);
+            _lambdaClass = aLambdaClass;
+            _name = anExpr.getId().getName();
+            _resolver = anExpr.getResolver();
+            _localMethod = aLocalMethod;
+        }
+
+        @Override
+        public Object eval(JSExprEval anEval, Object anOR) throws Exception
+        {
+            // Handle method declared in script: Return new instance that calls local method
+            if (_localMethod != null) {
+                JSLambda lambda = new JSLambda.LocalMethodRef(anEval, anEval.thisObject(), _localMethod.getMethodDecl(), _localMethod);
+                return lambda.getInstanceForClass(_lambdaClass);
+            }
+
+            // Handle Type::method and Type::new: Return new instance (bound to this run's evaluator)
+            if (_refClass != null) {
+                JSLambda lambda = new JSLambda.MethodRef(anEval, _resolver, null, _refClass, _name);
+                return lambda.getInstanceForClass(_lambdaClass);
+            }
+
+            // Handle expr::method: Get receiver and return new instance
+            Object receiver = _receiverExpr.eval(anEval, anOR);
+            if (receiver == null)
+                throw new NullPointerException("JSExprEval: Method reference receiver is null: " + _expr);
+            JSLambda lambda = new JSLambda.MethodRef(anEval, _resolver, receiver, null, _name);
+            return lambda.getInstanceForClass(_lambdaClass);
+        }
+    }
+
+    /**
+     * An evaluator that falls back to the tree walking JSExprEval for expressions that aren't compiled.
+     */
+    public static class Interpreted extends JSCompiledExpr {
+
+        // The resolver
+        private Resolver  _resolver;
+
+        /** Constructor. */
+        public Interpreted(JExpr anExpr)
+        {
+            super(anExpr);
+            _resolver = anExpr.getResolver();
+        }
+
+        @Override
+        public Object eval(JSExprEval anEval, Object anOR) throws Exception
+        {
+            anEval._resolver = _resolver;
+            return anEval.evalExpr(anOR, _expr);
+        }
+
+        @Override
+        public Object setValue(JSExprEval anEval, Object aValue) throws Exception
+        {
+            return anEval.setAssignExprValue(_expr, aValue);
+        }
+    }
+}
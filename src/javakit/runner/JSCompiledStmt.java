@@ -0,0 +1,707 @@
+/*
+ * Copyright (c) 2010, ReportMill Software. All rights reserved.
+ */
+package javakit.runner;
+import javakit.parse.*;
+import javakit.resolver.Resolver;
+import snap.util.ListUtils;
+import java.util.*;
+
+/**
+ * This class is the base of a tree of pre-resolved evaluators for a JStmt.
+ */
+public abstract class JSCompiledStmt {
+
+    // The statement this evaluator was compiled from
+    protected JStmt  _stmt;
+
+    /**
+     * Constructor.
+     */
+    public JSCompiledStmt(JStmt aStmt)
+    {
+        _stmt = aStmt;
+    }
+
+    /**
+     * Returns the statement this evaluator was compiled from.
+     */
+    public JStmt getStmt()  { return _stmt; }
+
+    /**
+     * Evaluates statement on given object reference.
+     */
+    public abstract Object eval(JSStmtEval aStmtEval, Object anOR) throws Exception;
+
+    /**
+     * Standard toString implementation.
+     */
+    public String toString()
+    {
+        return getClass().getSimpleName() + " { " + _stmt + " }";
+    }
+
+    /**
+     * An evaluator for block statements.
+     */
+    public static class Block extends JSCompiledStmt {
+
+        // The statements
+        private JSCompiledStmt[]  _stmts;
+
+        // Whether statement at index is return statement
+        private boolean[]  _returnStmts;
+
+        /** Constructor. */
+        public Block(JStmt aStmt, JSCompiledStmt[] theStmts)
+        {
+            super(aStmt);
+            _stmts = theStmts;
+            _returnStmts = new boolean[theStmts.length];
+            for (int i = 0; i < theStmts.length; i++)
+                _returnStmts[i] = theStmts[i].getStmt() instanceof JStmtReturn;
+        }
+
+        @Override
+        public Object eval(JSStmtEval aStmtEval, Object anOR) throws Exception
+        {
+            // If instrumenting profiler, use profiled version
+            JSProfiler profiler = aStmtEval._profiler;
+            if (profiler != null && profiler.isInstrument())
+                return evalProfiled(aStmtEval, anOR, profiler);
+
+            Object returnVal = null;
+
+            // Iterate over statements and evaluate each
+            for (int i = 0; i < _stmts.length; i++) {
+                JSCompiledStmt stmt = _stmts[i];
+                aStmtEval._currentStmt = stmt._stmt;
+                aStmtEval._stmtCount++;
+                Object rval = stmt.eval(aStmtEval, anOR);
+                if (_returnStmts[i])
+                    returnVal = rval;
+                if (aStmtEval._breakWasHit || aStmtEval._continueWasHit || aStmtEval._stopRun || aStmtEval._returnValueHit != null)
+                    return aStmtEval._returnValueHit;
+            }
+
+            // Return
+            return returnVal;
+        }
+
+        /**
+         * Evaluates block with each statement timed by given profiler.
+         */
+        private Object evalProfiled(JSStmtEval aStmtEval, Object anOR, JSProfiler aProfiler) throws Exception
+        {
+            Object returnVal = null;
+
+            // Iterate over statements and evaluate each
+            for (int i = 0; i < _stmts.length; i++) {
+                JSCompiledStmt stmt = _stmts[i];
+                aStmtEval._currentStmt = stmt._stmt;
+                aStmtEval._stmtCount++;
+                aProfiler.enterStmt(stmt._stmt);
+                Object rval;
+                try { rval = stmt.eval(aStmtEval, anOR); }
+                finally { aProfiler.exitStmt(); }
+                if (_returnStmts[i])
+                    returnVal = rval;
+                if (aStmtEval._breakWasHit || aStmtEval._continueWasHit || aStmtEval._stopRun || aStmtEval._returnValueHit != null)
+                    return aStmtEval._returnValueHit;
+            }
+
+            // Return
+            return returnVal;
+        }
+    }
+
+    /**
+     * An evaluator for expression statements.
+     */
+    public static class Expr extends JSCompiledStmt {
+
+        // The expression
+        private JSCompiledExpr  _expr;
+
+        // Whether result is discarded (statement is in block or loop), so expression can skip boxing result
+        private boolean  _discardResult;
+
+        /** Constructor. */
+        public Expr(JStmt aStmt, JSCompiledExpr anExpr)
+        {
+            super(aStmt);
+            _expr = anExpr;
+            JNode parent = aStmt.getParent();
+            _discardResult = parent instanceof JStmtBlock || parent instanceof JStmtFor || parent instanceof JStmtWhile ||
+                parent instanceof JStmtDo || parent instanceof JStmtIf;
+        }
+
+        @Override
+        public Object eval(JSStmtEval aStmtEval, Object anOR) throws Exception
+        {
+            if (_discardResult) {
+                _expr.exec(aStmtEval._exprEval, anOR);
+                return null;
+            }
+            return _expr.eval(aStmtEval._exprEval, anOR);
+        }
+    }
+
+    /**
+     * An evaluator for synchronized statements: Evaluates lock expression and runs block holding its monitor.
+     */
+    public static class Synchronized extends JSCompiledStmt {
+
+        // The lock expression
+        private JSCompiledExpr  _lockExpr;
+
+        // The block statement
+        private JSCompiledStmt  _blockStmt;
+
+        /** Constructor. */
+        public Synchronized(JStmt aStmt, JSCompiledExpr aLockExpr, JSCompiledStmt aBlockStmt)
+        {
+            super(aStmt);
+            _lockExpr = aLockExpr;
+            _blockStmt = aBlockStmt;
+        }
+
+        @Override
+        public Object eval(JSStmtEval aStmtEval, Object anOR) throws Exception
+        {
+            // Get lock object
+            Object lockObj = _lockExpr.eval(aStmtEval._exprEval, anOR);
+            if (lockObj == null)
+                throw new NullPointerException("JSCompiledStmt.Synchronized: synchronized on null");
+
+            // Run block holding monitor
+            synchronized (lockObj) {
+                return _blockStmt.eval(aStmtEval, anOR);
+            }
+        }
+    }
+
+    /**
+     * An evaluator for return statements.
+     */
+    public static class Return extends JSCompiledStmt {
+
+        // The return expression
+        private JSCompiledExpr  _expr;
+
+        /** Constructor. */
+        public Return(JStmt aStmt, JSCompiledExpr anExpr)
+        {
+            super(aStmt);
+            _expr = anExpr;
+        }
+
+        @Override
+        public Object eval(JSStmtEval aStmtEval, Object anOR) throws Exception
+        {
+            // Get return value
+            Object returnVal = aStmtEval.NULL_RETURN_VALUE;
+
+            // If return expression set, evaluate and set returnVal
+            if (_expr != null) {
+                returnVal = _expr.eval(aStmtEval._exprEval, anOR);
+                if (returnVal == null)
+                    returnVal = aStmtEval.NULL_RETURN_VALUE;
+            }
+
+            // Set and return value
+            return aStmtEval._returnValueHit = returnVal;
+        }
+    }
+
+    /**
+     * An evaluator for if statements.
+     */
+    public static class If extends JSCompiledStmt {
+
+        // The conditional
+        private JSCompiledExpr  _condExpr;
+
+        // The true and else statements
+        private JSCompiledStmt  _trueStmt, _elseStmt;
+
+        /** Constructor. */
+        public If(JStmt aStmt, JSCompiledExpr aCond, JSCompiledStmt aTrueStmt, JSCompiledStmt anElseStmt)
+        {
+            super(aStmt);
+            _condExpr = aCond;
+            _trueStmt = aTrueStmt;
+            _elseStmt = anElseStmt;
+        }
+
+        @Override
+        public Object eval(JSStmtEval aStmtEval, Object anOR) throws Exception
+        {
+            // Handle true: Eval true statement
+            if (_condExpr.evalBoolean(aStmtEval._exprEval, anOR))
+                return _trueStmt != null ? _trueStmt.eval(aStmtEval, anOR) : null;
+
+            // If else statement set, forward to it
+            if (_elseStmt != null)
+                return _elseStmt.eval(aStmtEval, anOR);
+
+            // Return
+            return null;
+        }
+    }
+
+    /**
+     * An evaluator for basic for statements.
+     */
+    public static class For extends JSCompiledStmt {
+
+        // The init statement
+        private JSCompiledStmt  _initStmt;
+
+        // The conditional
+        private JSCompiledExpr  _condExpr;
+
+        // The update statements
+        private JSCompiledStmt[]  _updateStmts;
+
+        // The body statement
+        private JSCompiledStmt  _bodyStmt;
+
+        /** Constructor. */
+        public For(JStmt aStmt, JSCompiledStmt anInit, JSCompiledExpr aCond, JSCompiledStmt[] theUpdates, JSCompiledStmt aBody)
+        {
+            super(aStmt);
+            _initStmt = anInit;
+            _condExpr = aCond;
+            _updateStmts = theUpdates;
+            _bodyStmt = aBody;
+        }
+
+        @Override
+        public Object eval(JSStmtEval aStmtEval, Object anOR) throws Exception
+        {
+            // Eval init statement
+            JSExprEval exprEval = aStmtEval._exprEval;
+            if (_initStmt != null)
+                _initStmt.eval(aStmtEval, anOR);
+
+            // Iterate while conditional is true
+            while (true) {
+
+                // Evaluate conditional and break if false
+                if (_condExpr != null) {
+                    if (!_condExpr.evalBoolean(exprEval, anOR))
+                        break;
+                }
+
+                // Evaluate body statement
+                if (_bodyStmt != null)
+                    _bodyStmt.eval(aStmtEval, anOR);
+
+                // If break was hit, break
+                if (aStmtEval.handleBreakCheck())
+                    return aStmtEval._returnValueHit;
+
+                // Execute update statements
+                for (JSCompiledStmt updateStmt : _updateStmts)
+                    updateStmt.eval(aStmtEval, anOR);
+            }
+
+            // Return
+            return null;
+        }
+    }
+
+    /**
+     * An evaluator for for-each statements.
+     */
+    public static class ForEach extends JSCompiledStmt {
+
+        // The loop variable
+        private JSCompiledExpr  _varExpr;
+
+        // The list expression
+        private JSCompiledExpr  _listExpr;
+
+        // The body statement
+        private JSCompiledStmt  _bodyStmt;
+
+        /** Constructor. */
+        public ForEach(JStmt aStmt, JSCompiledExpr aVarExpr, JSCompiledExpr aListExpr, JSCompiledStmt aBody)
+        {
+            super(aStmt);
+            _varExpr = aVarExpr;
+            _listExpr = aListExpr;
+            _bodyStmt = aBody;
+        }
+
+        @Override
+        public Object eval(JSStmtEval aStmtEval, Object anOR) throws Exception
+        {
+            // Get list value
+            JSExprEval exprEval = aStmtEval._exprEval;
+            Object listValue = _listExpr.eval(exprEval, anOR);
+
+            // If Object[], convert to list
+            if (listValue instanceof Object[])
+                listValue = Arrays.asList((Object[]) listValue);
+
+            // Handle Iterable
+            if (listValue instanceof Iterable) {
+
+                // Iterate over objects
+                Iterable<?> iterable = (Iterable<?>) listValue;
+                for (Object obj : iterable) {
+
+                    // Set loop var and eval statement
+                    _varExpr.setValue(exprEval, obj);
+                    if (_bodyStmt != null)
+                        _bodyStmt.eval(aStmtEval, anOR);
+
+                    // If break was hit, break
+                    if (aStmtEval.handleBreakCheck())
+                        return aStmtEval._returnValueHit;
+                }
+            }
+
+            // Return
+            return null;
+        }
+    }
+
+    /**
+     * An evaluator for while statements.
+     */
+    public static class While extends JSCompiledStmt {
+
+        // The conditional
+        private JSCompiledExpr  _condExpr;
+
+        // The body statement
+        private JSCompiledStmt  _bodyStmt;
+
+        /** Constructor. */
+        public While(JStmt aStmt, JSCompiledExpr aCond, JSCompiledStmt aBody)
+        {
+            super(aStmt);
+            _condExpr = aCond;
+            _bodyStmt = aBody;
+        }
+
+        @Override
+        public Object eval(JSStmtEval aStmtEval, Object anOR) throws Exception
+        {
+            // Iterate while conditional is true
+            JSExprEval exprEval = aStmtEval._exprEval;
+            while (true) {
+
+                // Evaluate conditional and break if false
+                if (!_condExpr.evalBoolean(exprEval, anOR))
+                    break;
+
+                // Evaluate body statement
+                if (_bodyStmt != null)
+                    _bodyStmt.eval(aStmtEval, anOR);
+
+                // If break was hit, break
+                if (aStmtEval.handleBreakCheck())
+                    return aStmtEval._returnValueHit;
+            }
+
+            // Return
+            return null;
+        }
+    }
+
+    /**
+     * An evaluator for do statements.
+     */
+    public static class Do extends JSCompiledStmt {
+
+        // The conditional
+        private JSCompiledExpr  _condExpr;
+
+        // The body statement
+        private JSCompiledStmt  _bodyStmt;
+
+        /** Constructor. */
+        public Do(JStmt aStmt, JSCompiledExpr aCond, JSCompiledStmt aBody)
+        {
+            super(aStmt);
+            _condExpr = aCond;
+            _bodyStmt = aBody;
+        }
+
+        @Override
+        public Object eval(JSStmtEval aStmtEval, Object anOR) throws Exception
+        {
+            // Iterate while conditional is true
+            JSExprEval exprEval = aStmtEval._exprEval;
+            while (true) {
+
+                // Evaluate body statement
+                if (_bodyStmt != null)
+                    _bodyStmt.eval(aStmtEval, anOR);
+
+                // If break was hit, break
+                if (aStmtEval.handleBreakCheck())
+                    return aStmtEval._returnValueHit;
+
+                // Evaluate conditional and break if false
+                if (!_condExpr.evalBoolean(exprEval, anOR))
+                    break;
+            }
+
+            // Return
+            return null;
+        }
+    }
+
+    /**
+     * An evaluator for variable declaration statements.
+     */
+    public static class VarDecl extends JSCompiledStmt {
+
+        // The variables with initializers
+        private JSCompiledExpr[]  _varExprs;
+
+        // The initializer expressions
+        private JSCompiledExpr[]  _initExprs;
+
+        /** Constructor. */
+        public VarDecl(JStmt aStmt, JSCompiledExpr[] theVarExprs, JSCompiledExpr[] theInitExprs)
+        {
+            super(aStmt);
+            _varExprs = theVarExprs;
+            _initExprs = theInitExprs;
+        }
+
+        @Override
+        public Object eval(JSStmtEval aStmtEval, Object anOR) throws Exception
+        {
+            // Handle common case of single var
+            JSExprEval exprEval = aStmtEval._exprEval;
+            if (_initExprs.length == 1) {
+                Object val = _initExprs[0].eval(exprEval, anOR);
+                _varExprs[0].setValue(exprEval, val);
+                return val;
+            }
+
+            // Iterate over vars, evaluate initializer and set local var
+            List<Object> vals = new ArrayList<>(_initExprs.length);
+            for (int i = 0; i < _initExprs.length; i++) {
+                Object val = _initExprs[i].eval(exprEval, anOR);
+                _varExprs[i].setValue(exprEval, val);
+                vals.add(val);
+            }
+
+            // Return joined string
+            return ListUtils.joinStrings(vals, ", ");
+        }
+    }
+
+    /**
+     * An evaluator for break statements.
+     */
+    public static class Break extends JSCompiledStmt {
+
+        /** Constructor. */
+        public Break(JStmt aStmt)  { super(aStmt); }
+
+        @Override
+        public Object eval(JSStmtEval aStmtEval, Object anOR)
+        {
+            aStmtEval._breakWasHit = true;
+            return null;
+        }
+    }
+
+    /**
+     * An evaluator for continue statements.
+     */
+    public static class Continue extends JSCompiledStmt {
+
+        /** Constructor. */
+        public Continue(JStmt aStmt)  { super(aStmt); }
+
+        @Override
+        public Object eval(JSStmtEval aStmtEval, Object anOR)
+        {
+            aStmtEval._continueWasHit = true;
+            return null;
+        }
+    }
+
+    /**
+     * An evaluator for empty statements.
+     */
+    public static class Empty extends JSCompiledStmt {
+
+        /** Constructor. */
+        public Empty(JStmt aStmt)  { super(aStmt); }
+
+        @Override
+        public Object eval(JSStmtEval aStmtEval, Object anOR)  { return null; }
+    }
+
+    /**
+     * An evaluator for switch statements: Case labels are resolved once into a jump table to the flattened case
+     * statements (an array for dense int keys, otherwise a hash map), so dispatch doesn't depend on case count.
+     */
+    public static class Switch extends JSCompiledStmt {
+
+        // The selector expression
+        private JSCompiledExpr  _selector;
+
+        // The key type
+        private KeyType  _keyType;
+
+        // The statements of all cases in order (execution starts at case index and falls through)
+        private JSCompiledStmt[]  _stmts;
+
+        // The dense table of statement start index + 1 for int key - min key (0 for no case)
+        private int[]  _intTable;
+
+        // The min int key (for dense table)
+        private int  _minKey;
+
+        // The statement start index for case keys (if not dense table)
+        private Map<Object,Integer>  _startIndexes;
+
+        // The statement start index for default (or statement count if no default)
+        private int  _defaultIndex;
+
+        // The maximum range of a dense table
+        private static final int MAX_DENSE_RANGE = 4096;
+
+        // The key types
+        public enum KeyType { Int, String, Enum }
+
+        /** Constructor. */
+        public Switch(JStmt aStmt, JSCompiledExpr aSelector, KeyType aKeyType, JSCompiledStmt[] theStmts,
+                      Map<Object,Integer> theStartIndexes, int aDefaultIndex)
+        {
+            super(aStmt);
+            _selector = aSelector;
+            _keyType = aKeyType;
+            _stmts = theStmts;
+            _defaultIndex = aDefaultIndex;
+
+            // If int keys are dense, use table
+            if (aKeyType == KeyType.Int && !theStartIndexes.isEmpty()) {
+                int minKey = Integer.MAX_VALUE, maxKey = Integer.MIN_VALUE;
+                for (Object key : theStartIndexes.keySet()) {
+                    minKey = Math.min(minKey, (Integer) key);
+                    maxKey = Math.max(maxKey, (Integer) key);
+                }
+                long range = (long) maxKey - minKey + 1;
+                if (range <= MAX_DENSE_RANGE && range <= theStartIndexes.size() * 2L + 16) {
+                    _minKey = minKey;
+                    _intTable = new int[(int) range];
+                    for (Map.Entry<Object,Integer> entry : theStartIndexes.entrySet())
+                        _intTable[(Integer) entry.getKey() - minKey] = entry.getValue() + 1;
+                    return;
+                }
+            }
+
+            // Otherwise use map
+            _startIndexes = theStartIndexes;
+        }
+
+        /** Returns whether switch uses dense table. */
+        public boolean isDenseTable()  { return _intTable != null; }
+
+        @Override
+        public Object eval(JSStmtEval aStmtEval, Object anOR) throws Exception
+        {
+            // Get start index for selector
+            int startIndex = getStartIndex(aStmtEval._exprEval, anOR);
+
+            // Iterate over statements from start index (fall through) and evaluate each
+            for (int i = startIndex; i < _stmts.length; i++) {
+                JSCompiledStmt stmt = _stmts[i];
+                aStmtEval._currentStmt = stmt._stmt;
+                aStmtEval._stmtCount++;
+                stmt.eval(aStmtEval, anOR);
+
+                // If break was hit, clear and stop (break only exits switch)
+                if (aStmtEval._breakWasHit) {
+                    aStmtEval._breakWasHit = false;
+                    return null;
+                }
+
+                // If continue, return or stop, return (leave for enclosing loop/method)
+                if (aStmtEval._continueWasHit || aStmtEval._stopRun || aStmtEval._returnValueHit != null)
+                    return aStmtEval._returnValueHit;
+            }
+
+            // Return
+            return null;
+        }
+
+        /**
+         * Returns the statement start index for selector value.
+         */
+        private int getStartIndex(JSExprEval anEval, Object anOR) throws Exception
+        {
+            // Handle dense int table
+            if (_intTable != null) {
+                int key = _selector.evalInt(anEval, anOR) - _minKey;
+                int startIndex = key >= 0 && key < _intTable.length ? _intTable[key] - 1 : -1;
+                return startIndex >= 0 ? startIndex : _defaultIndex;
+            }
+
+            // Handle map
+            Object value = _selector.eval(anEval, anOR);
+            if (value == null)
+                throw new NullPointerException("JSStmtEval: Switch selector is null: " + _selector.getExpr());
+            Integer startIndex = _startIndexes.get(getKeyForValue(value, _keyType));
+            return startIndex != null ? startIndex : _defaultIndex;
+        }
+
+        /**
+         * Returns the case key for given value and key type: Integer for int/char, String or enum constant name.
+         */
+        public static Object getKeyForValue(Object aValue, KeyType aKeyType)
+        {
+            switch (aKeyType) {
+                case Int: return aValue instanceof Character ? (int) (Character) aValue : aValue instanceof Number ? ((Number) aValue).intValue() : null;
+                case Enum: return aValue instanceof Enum ? ((Enum<?>) aValue).name() : null;
+                default: return aValue instanceof String ? aValue : null;
+            }
+        }
+
+        /**
+         * Returns the key type for given value.
+         */
+        public static KeyType getKeyTypeForValue(Object aValue)
+        {
+            if (aValue instanceof Enum) return KeyType.Enum;
+            if (aValue instanceof String) return KeyType.String;
+            return KeyType.Int;
+        }
+    }
+
+    /**
+     * An evaluator that falls back to the tree walking JSStmtEval for statements that aren't compiled.
+     */
+    public static class Interpreted extends JSCompiledStmt {
+
+        // The resolver
+        private Resolver  _resolver;
+
+        /** Constructor. */
+        public Interpreted(JStmt aStmt)
+        {
+            super(aStmt);
+            _resolver = aStmt.getResolver();
+        }
+
+        @Override
+        public Object eval(JSStmtEval aStmtEval, Object anOR) throws Exception
+        {
+            aStmtEval._exprEval._resolver = _resolver;
+            return aStmtEval.evalStmt(anOR, _stmt);
+        }
+    }
+}
@@ -0,0 +1,847 @@
+/*
+ * Copyright (c) 2010, ReportMill Software. All rights reserved.
+ */
+package javakit.runner;
+import javakit.parse.*;
+import javakit.resolver.*;
+import javakit.runner.JSExprEvalUtils.MathType;
+import snap.util.SnapUtils;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Method;
+import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class compiles JStmt/JExpr nodes into trees of pre-resolved JSCompiledStmt/JSCompiledExpr evaluators,
+ * so the instanceof dispatch and decl lookups happen once instead of on every evaluation.
+ * Should be used after Simpiler.setVarStackIndexForJFile() has set local var stack indexes.
+ *
+ * Local methods are also profiled: Once a method is hot (by invocation or loop back-edge count), it is compiled to
+ * JVM bytecode with JSBytecodeCompiler if possible, and calls switch to the bytecode version.
+ */
+public class JSCompiler {
+
+    // A map of compiled top level statements (concurrent, since lambdas can run on many threads)
+    private Map<JStmt,JSCompiledStmt>  _compiledStmts = new ConcurrentHashMap<>();
+
+    // A map of compiled method bodies for local method decls
+    private Map<JMethodDecl,JSCompiledStmt>  _methodBodies = new ConcurrentHashMap<>();
+
+    // A map of method profiles for local method decls
+    private Map<JMethodDecl,MethodProfile>  _methodProfiles = new ConcurrentHashMap<>();
+
+    // The bytecode compiler for hot methods
+    private JSBytecodeCompiler  _bytecodeCompiler;
+
+    // Whether to compile hot local methods to bytecode (tiered mode)
+    public static boolean TIERED_COMPILE = !SnapUtils.isTeaVM;
+
+    // Whether to print why hot local methods fail to compile to bytecode (for debugging tiered mode)
+    public static boolean DEBUG_TIER_UP = false;
+
+    // The invocation count at which a local method is considered hot
+    public static int HOT_INVOCATION_COUNT = 10;
+
+    // The loop back-edge count at which a local method is considered hot
+    public static long HOT_BACK_EDGE_COUNT = 10000;
+
+    /**
+     * Constructor.
+     */
+    public JSCompiler()
+    {
+        super();
+    }
+
+    /**
+     * Returns the compiled evaluator for given top level statement (cached, so re-runs reuse it).
+     */
+    public JSCompiledStmt getCompiledStmt(JStmt aStmt)
+    {
+        // If already compiled, just return
+        JSCompiledStmt compiledStmt = _compiledStmts.get(aStmt);
+        if (compiledStmt != null)
+            return compiledStmt;
+
+        // Compile, add to cache and return (compiled outside map, since compile can recurse - first added wins)
+        compiledStmt = compileStmt(aStmt);
+        JSCompiledStmt oldStmt = _compiledStmts.putIfAbsent(aStmt, compiledStmt);
+        return oldStmt != null ? oldStmt : compiledStmt;
+    }
+
+    /**
+     * Returns the compiled body for given method decl.
+     */
+    public JSCompiledStmt getCompiledBodyForMethodDecl(JMethodDecl aMethodDecl)
+    {
+        // If already compiled, just return
+        JSCompiledStmt methodBody = _methodBodies.get(aMethodDecl);
+        if (methodBody != null)
+            return methodBody;
+
+        // Compile, add to cache and return (compiled outside map, since compile can recurse - first added wins)
+        JStmtBlock blockStmt = aMethodDecl.getBlock();
+        methodBody = compileStmt(blockStmt);
+        JSCompiledStmt oldBody = _methodBodies.putIfAbsent(aMethodDecl, methodBody);
+        return oldBody != null ? oldBody : methodBody;
+    }
+
+    /**
+     * Returns the profile for given method decl.
+     */
+    public MethodProfile getProfileForMethodDecl(JMethodDecl aMethodDecl)
+    {
+        return _methodProfiles.computeIfAbsent(aMethodDecl, MethodProfile::new);
+    }
+
+    /**
+     * Records an interpreted invocation of given profile's method with given loop back-edge count.
+     * If method becomes hot, compiles it to bytecode.
+     */
+    public void recordInvocation(MethodProfile aProfile, long backEdgeCount)
+    {
+        // If compile already tried (or not tiered), just return
+        if (aProfile._compileTried || !TIERED_COMPILE)
+            return;
+
+        // Update counts and if not hot, just return
+        int invocationCount = aProfile._invocationCount.incrementAndGet();
+        long backEdges = aProfile._backEdgeCount.addAndGet(backEdgeCount);
+        if (invocationCount < HOT_INVOCATION_COUNT && backEdges < HOT_BACK_EDGE_COUNT)
+            return;
+
+        // Compile to bytecode (locked, but only once per method)
+        synchronized (this) {
+            if (aProfile._compileTried)
+                return;
+            if (_bytecodeCompiler == null)
+                _bytecodeCompiler = new JSBytecodeCompiler();
+            aProfile._compileTried = true;
+            Method compiledMethod = _bytecodeCompiler.getCompiledMethod(aProfile._methodDecl);
+            if (compiledMethod != null)
+                aProfile.setCompiledMethod(compiledMethod);
+        }
+    }
+
+    /**
+     * Compiles given statement.
+     */
+    public JSCompiledStmt compileStmt(JStmt aStmt)
+    {
+        // Handle block statement
+        if (aStmt instanceof JStmtBlock)
+            return compileBlockStmt((JStmtBlock) aStmt);
+
+        // Handle break statement
+        if (aStmt instanceof JStmtBreak)
+            return new JSCompiledStmt.Break(aStmt);
+
+        // Handle continue statement
+        if (aStmt instanceof JStmtContinue)
+            return new JSCompiledStmt.Continue(aStmt);
+
+        // Handle Do statement
+        if (aStmt instanceof JStmtDo) {
+            JStmtDo doStmt = (JStmtDo) aStmt;
+            JSCompiledExpr condExpr = compileExpr(doStmt.getConditional());
+            JSCompiledStmt bodyStmt = compileStmtOrNull(doStmt.getStatement());
+            return new JSCompiledStmt.Do(aStmt, condExpr, bodyStmt);
+        }
+
+        // Empty statement
+        if (aStmt instanceof JStmtEmpty)
+            return new JSCompiledStmt.Empty(aStmt);
+
+        // Expression statement
+        if (aStmt instanceof JStmtExpr) {
+            JExpr expr = ((JStmtExpr) aStmt).getExpr();
+            return new JSCompiledStmt.Expr(aStmt, compileExpr(expr));
+        }
+
+        // For statement
+        if (aStmt instanceof JStmtFor)
+            return compileForStmt((JStmtFor) aStmt);
+
+        // Handle if statement
+        if (aStmt instanceof JStmtIf) {
+            JStmtIf ifStmt = (JStmtIf) aStmt;
+            JSCompiledExpr condExpr = compileExpr(ifStmt.getConditional());
+
+            // If conditional is constant, just compile live branch
+            if (isConstant(condExpr) && getConstant(condExpr) instanceof Boolean) {
+                JStmt liveStmt = (Boolean) getConstant(condExpr) ? ifStmt.getStatement() : ifStmt.getElseStatement();
+                return liveStmt != null ? compileStmt(liveStmt) : new JSCompiledStmt.Empty(aStmt);
+            }
+
+            // Return if statement
+            JSCompiledStmt trueStmt = compileStmtOrNull(ifStmt.getStatement());
+            JSCompiledStmt elseStmt = compileStmtOrNull(ifStmt.getElseStatement());
+            return new JSCompiledStmt.If(aStmt, condExpr, trueStmt, elseStmt);
+        }
+
+        // Handle return statement
+        if (aStmt instanceof JStmtReturn) {
+            JExpr returnExpr = ((JStmtReturn) aStmt).getExpr();
+            JSCompiledExpr compiledExpr = returnExpr != null ? compileExpr(returnExpr) : null;
+            return new JSCompiledStmt.Return(aStmt, compiledExpr);
+        }
+
+        // Handle sync statement
+        if (aStmt instanceof JStmtSynchronized) {
+            JStmtSynchronized syncStmt = (JStmtSynchronized) aStmt;
+            JSCompiledExpr lockExpr = compileExpr(syncStmt.getExpression());
+            JSCompiledStmt blockStmt = compileStmt(syncStmt.getBlock());
+            return new JSCompiledStmt.Synchronized(aStmt, lockExpr, blockStmt);
+        }
+
+        // Handle switch statement
+        if (aStmt instanceof JStmtSwitch)
+            return compileSwitchStmt((JStmtSwitch) aStmt);
+
+        // Handle variable declaration statement
+        if (aStmt instanceof JStmtVarDecl)
+            return compileVarDeclStmt((JStmtVarDecl) aStmt);
+
+        // Handle while statement
+        if (aStmt instanceof JStmtWhile) {
+            JStmtWhile whileStmt = (JStmtWhile) aStmt;
+            JSCompiledExpr condExpr = compileExpr(whileStmt.getConditional());
+
+            // If conditional is constant false, loop never runs
+            if (isConstant(condExpr) && Boolean.FALSE.equals(getConstant(condExpr)))
+                return new JSCompiledStmt.Empty(aStmt);
+
+            // Return while statement
+            JSCompiledStmt bodyStmt = compileStmtOrNull(whileStmt.getStatement());
+            return new JSCompiledStmt.While(aStmt, condExpr, bodyStmt);
+        }
+
+        // Handle anything else (Assert, ClassDecl, ConstrCall, Labeled, Throw, Try): Use interpreter
+        return new JSCompiledStmt.Interpreted(aStmt);
+    }
+
+    /**
+     * Compiles JStmtSwitch: Resolves constant case labels into jump table keys (or uses interpreter if not constant).
+     */
+    private JSCompiledStmt compileSwitchStmt(JStmtSwitch aSwitchStmt)
+    {
+        // Get selector key type (if unknown, use interpreter)
+        JExpr selectorExpr = aSwitchStmt.getExpr();
+        JavaClass selectorClass = selectorExpr != null ? selectorExpr.getEvalClass() : null;
+        if (selectorClass == null)
+            return new JSCompiledStmt.Interpreted(aSwitchStmt);
+        JSCompiledStmt.Switch.KeyType keyType = selectorClass.isEnum() ? JSCompiledStmt.Switch.KeyType.Enum :
+            selectorClass.getName().equals("java.lang.String") ? JSCompiledStmt.Switch.KeyType.String : JSCompiledStmt.Switch.KeyType.Int;
+
+        // Iterate over cases to get flattened statements, start index for each case key and default start index
+        List<JSCompiledStmt> stmts = new ArrayList<>();
+        Map<Object,Integer> startIndexes = new HashMap<>();
+        int defaultIndex = -1;
+        for (JStmtSwitchCase switchCase : aSwitchStmt.getSwitchCases()) {
+
+            // Handle default
+            int startIndex = stmts.size();
+            if (switchCase.isDefault())
+                defaultIndex = startIndex;
+
+            // Handle case: Get key for enum constant name or constant label (if not constant, use interpreter)
+            else {
+                JExpr labelExpr = switchCase.getExpr();
+                Object key = null;
+                if (keyType == JSCompiledStmt.Switch.KeyType.Enum)
+                    key = labelExpr instanceof JExprId ? labelExpr.getName() : null;
+                else if (labelExpr != null) {
+                    JSCompiledExpr labelCompiled = compileExpr(labelExpr);
+                    if (isConstant(labelCompiled))
+                        key = JSCompiledStmt.Switch.getKeyForValue(getConstant(labelCompiled), keyType);
+                }
+                if (key == null)
+                    return new JSCompiledStmt.Interpreted(aSwitchStmt);
+                startIndexes.putIfAbsent(key, startIndex);
+            }
+
+            // Add case statements
+            for (JStmt stmt : switchCase.getStatements())
+                stmts.add(compileStmt(stmt));
+        }
+
+        // Return switch
+        JSCompiledExpr selector = compileExpr(selectorExpr);
+        JSCompiledStmt[] stmtsArray = stmts.toArray(new JSCompiledStmt[0]);
+        return new JSCompiledStmt.Switch(aSwitchStmt, selector, keyType, stmtsArray, startIndexes, defaultIndex >= 0 ? defaultIndex : stmtsArray.length);
+    }
+
+    /**
+     * Compiles given statement, or returns null if statement is null.
+     */
+    private JSCompiledStmt compileStmtOrNull(JStmt aStmt)
+    {
+        return aStmt != null ? compileStmt(aStmt) : null;
+    }
+
+    /**
+     * Compiles JStmtBlock.
+     */
+    private JSCompiledStmt compileBlockStmt(JStmtBlock aBlockStmt)
+    {
+        List<JStmt> stmts = aBlockStmt.getStatements();
+        JSCompiledStmt[] compiledStmts = new JSCompiledStmt[stmts.size()];
+        for (int i = 0; i < compiledStmts.length; i++)
+            compiledStmts[i] = compileStmt(stmts.get(i));
+        return new JSCompiledStmt.Block(aBlockStmt, compiledStmts);
+    }
+
+    /**
+     * Compiles JStmtFor.
+     */
+    private JSCompiledStmt compileForStmt(JStmtFor aForStmt)
+    {
+        // Get body statement
+        JSCompiledStmt bodyStmt = compileStmtOrNull(aForStmt.getStatement());
+        JStmtVarDecl initDeclStmt = aForStmt.getInitDecl();
+
+        // Handle ForEach
+        if (aForStmt.isForEach()) {
+            JVarDecl varDecl = initDeclStmt.getVarDecls().get(0);
+            JSCompiledExpr varExpr = compileExpr(varDecl.getId());
+            JSCompiledExpr listExpr = compileExpr(aForStmt.getConditional());
+            return new JSCompiledStmt.ForEach(aForStmt, varExpr, listExpr, bodyStmt);
+        }
+
+        // Get init statement and conditional
+        JSCompiledStmt initStmt = compileStmtOrNull(initDeclStmt);
+        JExpr condExpr = aForStmt.getConditional();
+        JSCompiledExpr compiledCond = condExpr != null ? compileExpr(condExpr) : null;
+
+        // If conditional is constant true, no need to evaluate it each iteration
+        if (compiledCond != null && isConstant(compiledCond) && Boolean.TRUE.equals(getConstant(compiledCond)))
+            compiledCond = null;
+
+        // Get update statements
+        List<JStmtExpr> updateStmts = aForStmt.getUpdateStmts();
+        JSCompiledStmt[] compiledUpdates = new JSCompiledStmt[updateStmts.size()];
+        for (int i = 0; i < compiledUpdates.length; i++)
+            compiledUpdates[i] = compileStmt(updateStmts.get(i));
+
+        // Return
+        return new JSCompiledStmt.For(aForStmt, initStmt, compiledCond, compiledUpdates, bodyStmt);
+    }
+
+    /**
+     * Compiles JStmtVarDecl.
+     */
+    private JSCompiledStmt compileVarDeclStmt(JStmtVarDecl aVarDeclStmt)
+    {
+        // Get var decls with initializers
+        List<JVarDecl> varDecls = aVarDeclStmt.getVarDecls();
+        List<JSCompiledExpr> varExprs = new ArrayList<>(varDecls.size());
+        List<JSCompiledExpr> initExprs = new ArrayList<>(varDecls.size());
+
+        // Iterate over VarDecls and compile var id and initializer
+        for (JVarDecl varDecl : varDecls) {
+            JExpr initExpr = varDecl.getInitializer();
+            if (initExpr != null) {
+                varExprs.add(compileExpr(varDecl.getId()));
+                initExprs.add(compileExpr(initExpr));
+            }
+        }
+
+        // Return
+        JSCompiledExpr[] varExprsArray = varExprs.toArray(new JSCompiledExpr[0]);
+        JSCompiledExpr[] initExprsArray = initExprs.toArray(new JSCompiledExpr[0]);
+        return new JSCompiledStmt.VarDecl(aVarDeclStmt, varExprsArray, initExprsArray);
+    }
+
+    /**
+     * Compiles given expression.
+     */
+    public JSCompiledExpr compileExpr(JExpr anExpr)
+    {
+        // Handle Literal
+        if (anExpr instanceof JExprLiteral) {
+            JExprLiteral literal = (JExprLiteral) anExpr;
+            Object value = literal.isNull() ? null : literal.getValue();
+            return new JSCompiledExpr.Literal(anExpr, value);
+        }
+
+        // Handle identifier
+        if (anExpr instanceof JExprId)
+            return compileIdExpr((JExprId) anExpr);
+
+        // Handle expression chain
+        if (anExpr instanceof JExprChain) {
+            JExprChain chainExpr = (JExprChain) anExpr;
+            JSCompiledExpr[] exprs = new JSCompiledExpr[chainExpr.getExprCount()];
+            for (int i = 0; i < exprs.length; i++)
+                exprs[i] = compileExpr(chainExpr.getExpr(i));
+
+            // If chain is constant field reference (like Math.PI), return constant
+            if (isConstant(exprs[exprs.length - 1]) && isClassReferenceChain(chainExpr))
+                return exprs[exprs.length - 1];
+
+            // Return chain
+            return new JSCompiledExpr.Chain(anExpr, exprs);
+        }
+
+        // Handle math expression
+        if (anExpr instanceof JExprMath)
+            return compileMathExpr((JExprMath) anExpr);
+
+        // Handle method call
+        if (anExpr instanceof JExprMethodCall) {
+            JExprMethodCall methodCall = (JExprMethodCall) anExpr;
+            JSCompiledExpr[] args = compileExprs(methodCall.getArgs());
+            return new JSCompiledExpr.MethodCall(this, methodCall, args);
+        }
+
+        // Handle assign expression
+        if (anExpr instanceof JExprAssign) {
+            JExprAssign assignExpr = (JExprAssign) anExpr;
+            JSCompiledExpr assignToExpr = compileExpr(assignExpr.getIdExpr());
+
+            // Handle compound string assign (s += x): Fuse value concatenation chain into single concat
+            if (assignExpr.getOp() == JExprAssign.Op.Add &&
+                    JSExprEvalUtils.getMathTypeForExpr(assignExpr.getIdExpr()) == MathType.String) {
+                JExpr valueExpr = assignExpr.getValueExpr();
+                List<JExpr> operandExprs = JSExprEvalUtils.isStringConcatExpr(valueExpr) ?
+                    JSExprEvalUtils.getStringConcatOperands(valueExpr) : Collections.singletonList(valueExpr);
+                JSCompiledExpr[] operands = compileExprs(operandExprs);
+                return new JSCompiledExpr.StringConcatAssign(assignExpr, assignToExpr, operands);
+            }
+
+            JSCompiledExpr valueExpr = compileExpr(assignExpr.getValueExpr());
+            return new JSCompiledExpr.Assign(assignExpr, assignToExpr, valueExpr);
+        }
+
+        // Handle array dereference
+        if (anExpr instanceof JExprArrayIndex) {
+            JExprArrayIndex arrayIndexExpr = (JExprArrayIndex) anExpr;
+            JSCompiledExpr arrayExpr = compileExpr(arrayIndexExpr.getArrayExpr());
+            JSCompiledExpr indexExpr = compileExpr(arrayIndexExpr.getIndexExpr());
+            return new JSCompiledExpr.ArrayIndex(arrayIndexExpr, arrayExpr, indexExpr);
+        }
+
+        // Handle alloc expression
+        if (anExpr instanceof JExprAlloc)
+            return compileAllocExpr((JExprAlloc) anExpr);
+
+        // Handle cast expression
+        if (anExpr instanceof JExprCast) {
+            JExprCast castExpr = (JExprCast) anExpr;
+            JSCompiledExpr expr = compileExpr(castExpr.getExpr());
+
+            // If constant, fold primitive cast
+            if (isConstant(expr)) {
+                JavaClass castClass = castExpr.getEvalClass();
+                Class<?> realClass = castClass != null && castClass.isPrimitive() ? castClass.getRealClass() : null;
+                Object value = Simpiler.getFoldedValueForCast(getConstant(expr), realClass);
+                if (value != Simpiler.NOT_CONSTANT)
+                    return new JSCompiledExpr.Literal(anExpr, value);
+            }
+
+            // Return cast
+            return new JSCompiledExpr.Cast(castExpr, expr);
+        }
+
+        // Handle paren expression: Just compile inner expression
+        if (anExpr instanceof JExprParen) {
+            JExpr innerExpr = ((JExprParen) anExpr).getExpr();
+            return compileExpr(innerExpr);
+        }
+
+        // Handle Type expression: Resolve class once
+        if (anExpr instanceof JExprType) {
+            JavaClass evalClass = anExpr.getEvalClass();
+            Class<?> realClass = evalClass != null ? evalClass.getRealClass() : null;
+            if (realClass != null)
+                return new JSCompiledExpr.Literal(anExpr, realClass);
+        }
+
+        // Handle lambda: Compile body expression or block (if interface and params resolved)
+        if (anExpr instanceof JExprLambda) {
+            JExprLambda lambdaExpr = (JExprLambda) anExpr;
+            JavaClass lambdaClass = lambdaExpr.getEvalClass();
+            Class<?> realClass = lambdaClass != null ? lambdaClass.getRealClass() : null;
+            if (realClass != null && isLambdaParamsResolved(lambdaExpr)) {
+                JExpr bodyExpr = lambdaExpr.getExpr();
+                JStmtBlock bodyBlock = lambdaExpr.getBlock();
+                JSCompiledExpr compiledExpr = bodyExpr != null ? compileExpr(bodyExpr) : null;
+                JSCompiledStmt compiledStmt = bodyExpr == null && bodyBlock != null ? compileStmt(bodyBlock) : null;
+                return new JSCompiledExpr.Lambda(lambdaExpr, realClass, compiledExpr, compiledStmt);
+            }
+        }
+
+        // Handle method ref: Resolve interface and ref class once, compile receiver expression otherwise
+        if (anExpr instanceof JExprMethodRef) {
+            JExprMethodRef methodRef = (JExprMethodRef) anExpr;
+            JavaClass lambdaClass = methodRef.getEvalClass();
+            Class<?> realClass = lambdaClass != null ? lambdaClass.getRealClass() : null;
+            JExpr prefixExpr = methodRef.getExpr();
+            if (realClass != null && prefixExpr != null && methodRef.getId() != null) {
+
+                // Handle method declared in script (this::method, ScriptClass::method): Call through local method
+                JMethodDecl methodDecl = JSLambda.LocalMethodRef.getMethodDeclForMethodRef(methodRef);
+                if (methodDecl != null)
+                    return new JSCompiledExpr.MethodRef(methodRef, realClass, new JSCompiledExpr.LocalMethod(this, methodDecl));
+
+                // Handle anything else: Type::method, Type::new, expr::method
+                Class<?> refClass = JSLambda.MethodRef.getClassForPrefixExpr(prefixExpr);
+                JSCompiledExpr receiverExpr = refClass == null ? compileExpr(prefixExpr) : null;
+                return new JSCompiledExpr.MethodRef(methodRef, realClass, refClass, receiverExpr);
+            }
+        }
+
+        // Handle anything else (InstanceOf, unresolved Lambda/MethodRef): Use interpreter
+        return new JSCompiledExpr.Interpreted(anExpr);
+    }
+
+    /**
+     * Returns whether all params of given lambda resolve to local vars.
+     */
+    private static boolean isLambdaParamsResolved(JExprLambda aLambdaExpr)
+    {
+        for (JVarDecl param : aLambdaExpr.getParams())
+            if (!(param.getDecl() instanceof JavaLocalVar))
+                return false;
+        return true;
+    }
+
+    /**
+     * Compiles given list of expressions.
+     */
+    private JSCompiledExpr[] compileExprs(List<JExpr> theExprs)
+    {
+        JSCompiledExpr[] compiledExprs = new JSCompiledExpr[theExprs.size()];
+        for (int i = 0; i < compiledExprs.length; i++)
+            compiledExprs[i] = compileExpr(theExprs.get(i));
+        return compiledExprs;
+    }
+
+    /**
+     * Compiles JExprId.
+     */
+    private JSCompiledExpr compileIdExpr(JExprId anId)
+    {
+        // If LocalVar with stack index, return LocalVar
+        JavaDecl idDecl = anId.getDecl();
+        if (idDecl instanceof JavaLocalVar) {
+            JavaLocalVar localVar = (JavaLocalVar) idDecl;
+            if (localVar.getIndexInStackFrame() >= 0)
+                return new JSCompiledExpr.LocalVar(anId, localVar);
+        }
+
+        // If static final primitive/String field, return constant
+        if (idDecl instanceof JavaField) {
+            Object value = Simpiler.getConstantValueForField((JavaField) idDecl);
+            if (value != Simpiler.NOT_CONSTANT)
+                return new JSCompiledExpr.Literal(anId, value);
+        }
+
+        // Return Name
+        return new JSCompiledExpr.Name(anId);
+    }
+
+    /**
+     * Returns whether chain expressions before last are just package/class names (evaluation has no side effects).
+     */
+    private static boolean isClassReferenceChain(JExprChain aChainExpr)
+    {
+        for (int i = 0, iMax = aChainExpr.getExprCount() - 1; i < iMax; i++) {
+            JExpr expr = aChainExpr.getExpr(i);
+            JavaDecl decl = expr instanceof JExprId ? expr.getDecl() : null;
+            if (!(decl instanceof JavaClass || decl instanceof JavaPackage))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Compiles JExprMath.
+     */
+    private JSCompiledExpr compileMathExpr(JExprMath anExpr)
+    {
+        // Handle string concatenation chain
+        if (JSExprEvalUtils.isStringConcatExpr(anExpr))
+            return compileStringConcatExpr(anExpr);
+
+        // Get first operand
+        JSCompiledExpr operand1 = compileExpr(anExpr.getOperand(0));
+        int opCount = anExpr.getOperandCount();
+
+        // Handle unary (fold if operand is constant)
+        if (opCount == 1) {
+            if (isConstant(operand1)) {
+                Object value = Simpiler.getFoldedValueForMathOp(anExpr.getOp(), getConstant(operand1), Simpiler.NOT_CONSTANT);
+                if (value != Simpiler.NOT_CONSTANT)
+                    return new JSCompiledExpr.Literal(anExpr, value);
+            }
+            return new JSCompiledExpr.MathUnary(anExpr, operand1);
+        }
+
+        // Handle binary (fold if operands are constant)
+        JSCompiledExpr operand2 = compileExpr(anExpr.getOperand(1));
+        if (opCount == 2) {
+            JSCompiledExpr foldedExpr = getFoldedMathExprBinary(anExpr, operand1, operand2);
+            if (foldedExpr != null)
+                return foldedExpr;
+            return compileMathExprBinary(anExpr, operand1, operand2);
+        }
+
+        // Handle ternary (if conditional is constant, just return resulting expression)
+        if (opCount == 3) {
+            JSCompiledExpr operand3 = compileExpr(anExpr.getOperand(2));
+            if (isConstant(operand1) && getConstant(operand1) instanceof Boolean)
+                return (Boolean) getConstant(operand1) ? operand2 : operand3;
+            return new JSCompiledExpr.Conditional(anExpr, operand1, operand2, operand3);
+        }
+
+        // Handle anything else: Use interpreter
+        return new JSCompiledExpr.Interpreted(anExpr);
+    }
+
+    /**
+     * Compiles string concatenation chain (like a + b + c + d) to a single n-ary concat, with adjacent constants merged.
+     */
+    private JSCompiledExpr compileStringConcatExpr(JExprMath anExpr)
+    {
+        // Get flattened operands
+        List<JExpr> operandExprs = JSExprEvalUtils.getStringConcatOperands(anExpr);
+        List<JSCompiledExpr> operands = new ArrayList<>(operandExprs.size());
+
+        // Compile operands, merging adjacent constants (all adds in chain are string adds, so this is safe)
+        for (JExpr operandExpr : operandExprs) {
+            JSCompiledExpr operand = compileExpr(operandExpr);
+            int lastIndex = operands.size() - 1;
+            if (isConstant(operand) && lastIndex >= 0 && isConstant(operands.get(lastIndex))) {
+                String value = String.valueOf(getConstant(operands.get(lastIndex))) + getConstant(operand);
+                operand = new JSCompiledExpr.Literal(anExpr, value);
+                operands.remove(lastIndex);
+            }
+            operands.add(operand);
+        }
+
+        // If folded to single constant, return string literal
+        if (operands.size() == 1 && isConstant(operands.get(0)))
+            return new JSCompiledExpr.Literal(anExpr, String.valueOf(getConstant(operands.get(0))));
+
+        // Return concat
+        return new JSCompiledExpr.StringConcat(anExpr, operands.toArray(new JSCompiledExpr[0]));
+    }
+
+    /**
+     * Returns a folded expression for binary JExprMath with constant operands (or null if it can't be folded).
+     */
+    private JSCompiledExpr getFoldedMathExprBinary(JExprMath anExpr, JSCompiledExpr operand1, JSCompiledExpr operand2)
+    {
+        // Handle conditional And/Or with constant first operand: Result is either constant or second operand
+        JExprMath.Op op = anExpr.getOp();
+        if ((op == JExprMath.Op.And || op == JExprMath.Op.Or) && isConstant(operand1) && getConstant(operand1) instanceof Boolean) {
+            boolean value1 = (Boolean) getConstant(operand1);
+            if (op == JExprMath.Op.And)
+                return value1 ? operand2 : operand1;
+            return value1 ? operand1 : operand2;
+        }
+
+        // If both operands constant, return folded literal
+        if (isConstant(operand1) && isConstant(operand2)) {
+            Object value = Simpiler.getFoldedValueForMathOp(op, getConstant(operand1), getConstant(operand2));
+            if (value != Simpiler.NOT_CONSTANT)
+                return new JSCompiledExpr.Literal(anExpr, value);
+        }
+
+        // Return not folded
+        return null;
+    }
+
+    /**
+     * Returns whether compiled expression is a constant value.
+     */
+    private static boolean isConstant(JSCompiledExpr anExpr)
+    {
+        return anExpr instanceof JSCompiledExpr.Literal && !(((JSCompiledExpr.Literal) anExpr).getValue() instanceof Class);
+    }
+
+    /**
+     * Returns the value of compiled constant expression.
+     */
+    private static Object getConstant(JSCompiledExpr anExpr)
+    {
+        return ((JSCompiledExpr.Literal) anExpr).getValue();
+    }
+
+    /**
+     * Compiles binary JExprMath: Picks an evaluator specialized for the static operand types (or generic MathBinary).
+     */
+    private JSCompiledExpr compileMathExprBinary(JExprMath anExpr, JSCompiledExpr operand1, JSCompiledExpr operand2)
+    {
+        // Get static operand types and numeric promotion type
+        MathType type1 = JSExprEvalUtils.getMathTypeForExpr(anExpr.getOperand(0));
+        MathType type2 = JSExprEvalUtils.getMathTypeForExpr(anExpr.getOperand(1));
+        MathType numType = JSExprEvalUtils.getPromotedMathType(type1, type2);
+        JExprMath.Op op = anExpr.getOp();
+
+        switch (op) {
+
+            // Handle arithmetic
+            case Add: case Subtract: case Multiply: case Divide: case Mod:
+                switch (numType) {
+                    case Int: return new JSCompiledExpr.MathInt(anExpr, operand1, operand2);
+                    case Long: return new JSCompiledExpr.MathLong(anExpr, operand1, operand2);
+                    case Float: return new JSCompiledExpr.MathFloat(anExpr, operand1, operand2);
+                    case Double: return new JSCompiledExpr.MathDouble(anExpr, operand1, operand2);
+                    default: break;
+                }
+                break;
+
+            // Handle compare: Equal/NotEqual with wrapper operands compare identity, so only specialize primitives
+            case Equal: case NotEqual:
+                if (!isPrimitiveExpr(anExpr.getOperand(0)) || !isPrimitiveExpr(anExpr.getOperand(1)))
+                    break;
+            case LessThan: case GreaterThan: case LessThanOrEqual: case GreaterThanOrEqual:
+                if (numType == MathType.Int || numType == MathType.Long)
+                    return new JSCompiledExpr.CompareLong(anExpr, operand1, operand2);
+                if (numType == MathType.Float || numType == MathType.Double)
+                    return new JSCompiledExpr.CompareDouble(anExpr, operand1, operand2);
+                break;
+
+            // Handle conditional And/Or
+            case And: case Or:
+                return new JSCompiledExpr.Logical(anExpr, operand1, operand2);
+
+            default: break;
+        }
+
+        // Handle anything else: Use generic evaluator
+        return new JSCompiledExpr.MathBinary(anExpr, operand1, operand2);
+    }
+
+    /**
+     * Returns whether given expression has primitive eval type.
+     */
+    private static boolean isPrimitiveExpr(JExpr anExpr)
+    {
+        JavaClass evalClass = anExpr.getEvalClass();
+        return evalClass != null && evalClass.isPrimitive();
+    }
+
+    /**
+     * Compiles JExprAlloc.
+     */
+    private JSCompiledExpr compileAllocExpr(JExprAlloc anExpr)
+    {
+        // If decl can't be resolved, use interpreter
+        JavaDecl exprDecl = anExpr.getDecl();
+        if (exprDecl == null || exprDecl.getEvalClass() == null)
+            return new JSCompiledExpr.Interpreted(anExpr);
+
+        // Get args, array inits and array dims
+        JSCompiledExpr[] args = compileExprs(anExpr.getArgs());
+        List<JExpr> arrayInits = anExpr.getArrayInits();
+        JSCompiledExpr[] compiledInits = arrayInits != null ? compileExprs(arrayInits) : new JSCompiledExpr[0];
+        JSCompiledExpr[] compiledDims = compileExprs(anExpr.getArrayDims());
+
+        // Return
+        return new JSCompiledExpr.Alloc(anExpr, args, compiledInits, compiledDims);
+    }
+
+    /**
+     * A class to hold execution counts for a local method decl and its bytecode compiled method (if hot).
+     */
+    public static class MethodProfile {
+
+        // The method decl
+        private JMethodDecl  _methodDecl;
+
+        // The number of interpreted invocations (until compile is tried)
+        private AtomicInteger  _invocationCount = new AtomicInteger();
+
+        // The number of loop back-edges taken in interpreted invocations (until compile is tried)
+        private AtomicLong  _backEdgeCount = new AtomicLong();
+
+        // Whether compile to bytecode was tried (volatile, since checked without lock)
+        private volatile boolean  _compileTried;
+
+        // The bytecode compiled method (static, with JSStmtEval as first param - volatile, since read from any thread)
+        private volatile Method  _compiledMethod;
+
+        // The compiled method param classes (after JSStmtEval)
+        private Class<?>[]  _compiledParamClasses;
+
+        // The compiled method handle adapted to (Object[] args)Object, with JSStmtEval as first arg
+        private MethodHandle  _compiledHandle;
+
+        /**
+         * Constructor.
+         */
+        public MethodProfile(JMethodDecl aMethodDecl)
+        {
+            _methodDecl = aMethodDecl;
+        }
+
+        /**
+         * Returns the number of interpreted invocations.
+         */
+        public int getInvocationCount()  { return _invocationCount.get(); }
+
+        /**
+         * Returns the number of loop back-edges taken in interpreted invocations.
+         */
+        public long getBackEdgeCount()  { return _backEdgeCount.get(); }
+
+        /**
+         * Returns whether method is compiled to bytecode.
+         */
+        public boolean isCompiled()  { return _compiledMethod != null; }
+
+        /**
+         * Sets the bytecode compiled method: Caches param classes and invoke MethodHandle, then publishes method.
+         */
+        protected void setCompiledMethod(Method aMethod)
+        {
+            // Get MethodHandle adapted to generic types with spreader for args array (if not accessible, just return)
+            MethodHandle methodHandle;
+            try { methodHandle = MethodHandles.publicLookup().unreflect(aMethod); }
+            catch (IllegalAccessException e) {
+                if (DEBUG_TIER_UP)
+                    System.err.println("JSCompiler.setCompiledMethod: Can't access compiled method: " + e);
+                return;
+            }
+            methodHandle = methodHandle.asType(methodHandle.type().generic());
+            _compiledHandle = methodHandle.asSpreader(Object[].class, aMethod.getParameterCount());
+
+            // Set param classes (after StmtEval) and method
+            Class<?>[] paramClasses = aMethod.getParameterTypes();
+            _compiledParamClasses = Arrays.copyOfRange(paramClasses, 1, paramClasses.length);
+            _compiledMethod = aMethod;
+        }
+
+        /**
+         * Invokes the bytecode compiled method with given args.
+         */
+        public Object invokeCompiled(JSStmtEval aStmtEval, Object[] theArgs) throws Exception
+        {
+            // Get args with StmtEval first, converted to primitive param classes
+            Class<?>[] paramClasses = _compiledParamClasses;
+            Object[] invokeArgs = new Object[theArgs.length + 1];
+            invokeArgs[0] = aStmtEval;
+            for (int i = 0; i < theArgs.length; i++)
+                invokeArgs[i + 1] = JSExprEvalUtils.castOrConvertValueToPrimitiveClass(theArgs[i], paramClasses[i]);
+
+            // Invoke method
+            try { return (Object) _compiledHandle.invokeExact(invokeArgs); }
+
+            // If run was stopped, just return
+            catch (CancellationException e) {
+                if (aStmtEval._stopRun)
+                    return null;
+                throw e;
+            }
+            catch (Exception | Error e) { throw e; }
+            catch (Throwable t) { throw new RuntimeException(t); }
+        }
+    }
+}
@@ -4,8 +4,6 @@
 package javakit.runner;
 import java.lang.reflect.*;
 import java.util.*;
-import java.util.function.DoubleBinaryOperator;
-import java.util.function.DoubleUnaryOperator;
 import javakit.parse.*;
 
 import static javakit.runner.JSExprEvalUtils.*;
@@ -13,7 +11,6 @@ import static javakit.runner.JSExprEvalUtils.*;
 import javakit.resolver.*;
 import snap.props.PropObject;
 import snap.util.*;
-import snap.view.EventListener;
 
 /**
  * A class to evaluate expressions.
@@ -21,7 +18,7 @@ import snap.view.EventListener;
 public class JSExprEval {
 
     // The Statement Evaluator that created this instance
-    private JSStmtEval  _stmtEval;
+    protected JSStmtEval  _stmtEval;
 
     // The current "this" object
     protected Object  _thisObj;
@@ -107,7 +104,7 @@ public class JSExprEval {
 
         // Handle method ref expression
         if (anExpr instanceof JExprMethodRef)
-            throw new RuntimeException("JSExprEval.evalMethodRef() not implemented");
+            return evalMethodRefExpr(anOR, (JExprMethodRef) anExpr);
 
         // Handle Type expression
         if (anExpr instanceof JExprType)
@@ -146,9 +143,9 @@ public class JSExprEval {
         // If LocalVar, get from stack
         JavaDecl idDecl = anId.getDecl();
         if (idDecl instanceof JavaLocalVar) {
-            int indexInStackFrame = ((JavaLocalVar) idDecl).getIndexInStackFrame();
-            if (indexInStackFrame >= 0) {
-                Object value = _varStack.getStackValue(indexInStackFrame);
+            JavaLocalVar localVar = (JavaLocalVar) idDecl;
+            if (localVar.getIndexInStackFrame() >= 0) {
+                Object value = _varStack.getStackValueForLocalVar(localVar);
                 return value;
             }
         }
@@ -170,7 +167,7 @@ public class JSExprEval {
     /**
      * Evaluate JIdentifier.
      */
-    private Object evalName(Object anOR, String aName) throws Exception
+    protected Object evalName(Object anOR, String aName) throws Exception
     {
         // If name is "this", return ThisObject
         if (aName == null)
@@ -249,34 +246,41 @@ public class JSExprEval {
     /**
      * Evaluate JExprMethodCall for local JMethodDecl.
      */
-    private Object evalMethodCallExprForMethodDecl(Object anOR, JMethodDecl aMethodDecl, Object[] argValues) throws Exception
+    protected Object evalMethodCallExprForMethodDecl(Object anOR, JMethodDecl aMethodDecl, Object[] argValues) throws Exception
     {
-        // Create stack frame
+        // Check budget, push method on profiler call stack (if profiling) and create stack frame
+        _stmtEval.checkMethodEntry();
+        JSProfiler profiler = _stmtEval._profiler;
+        if (profiler != null)
+            profiler.enterMethod(aMethodDecl.getName());
         _varStack.pushStackFrame();
 
-        // Install params
-        List<JVarDecl> params = aMethodDecl.getParameters();
-        for (int i = 0, iMax = params.size(); i < iMax; i++) {
-            JVarDecl varDecl = params.get(i);
-            JExprId varId = varDecl.getId();
-            setExprIdValue(varId, argValues[i]);
-        }
-
-        // Get method body and run
-        JStmtBlock methodBody = aMethodDecl.getBlock();
-        Object returnVal = _stmtEval.evalExecutable(anOR, methodBody);
+        // Install params and run method body
+        try {
+            List<JVarDecl> params = aMethodDecl.getParameters();
+            for (int i = 0, iMax = params.size(); i < iMax; i++) {
+                JVarDecl varDecl = params.get(i);
+                JExprId varId = varDecl.getId();
+                setExprIdValue(varId, argValues[i]);
+            }
 
-        // Pop stack frame
-        _varStack.popStackFrame();
+            // Get method body and run
+            JStmtBlock methodBody = aMethodDecl.getBlock();
+            return _stmtEval.evalExecutable(anOR, methodBody);
+        }
 
-        // Return
-        return returnVal;
+        // Pop stack frame and profiler method
+        finally {
+            _varStack.popStackFrame();
+            if (profiler != null)
+                profiler.exitMethod();
+        }
     }
 
     /**
      * Evaluate JExprMethodCall for PropObject.
      */
-    private Object evalMethodCallExprForPropObject(PropObject propObject, String methName, Object[] argValues) throws Exception
+    protected Object evalMethodCallExprForPropObject(PropObject propObject, String methName, Object[] argValues) throws Exception
     {
         if ((methName.startsWith("is") || methName.startsWith("get") || methName.startsWith("set"))) {
 
@@ -316,7 +320,7 @@ public class JSExprEval {
         int index = intValue(indexObj);
 
         // Return Array value at index
-        return Array.get(arrayObj, index);
+        return JSArrayAccess.getAccessForArray(arrayObj).get(arrayObj, index);
     }
 
     /**
@@ -334,49 +338,46 @@ public class JSExprEval {
 
             // Handle inits
             List<JExpr> initsExpr = anExpr.getArrayInits();
+            JSArrayAccess access = JSArrayAccess.getAccessForComponentClass(realClass.getComponentType());
             if (initsExpr != null && initsExpr.size() > 0) {
 
                 // Create array
                 int arrayLen = initsExpr.size();
-                Class<?> compClass = realClass.getComponentType();
-                Object array = Array.newInstance(compClass, arrayLen);
+                Object array = access.newArray(arrayLen);
                 Object thisObj = thisObject();
 
-                // Iterate over arg expressions and get evaluated values
+                // Iterate over arg expressions and set evaluated values (converted to component type, if primitive)
                 for (int i = 0; i < arrayLen; i++) {
                     JExpr initExpr = initsExpr.get(i);
                     Object initValue = evalExpr(thisObj, initExpr);
-                    initValue = castOrConvertValueToPrimitiveClass(initValue, compClass);
-                    Array.set(array, i, initValue);
+                    access.set(array, i, initValue);
                 }
 
                 // Return
                 return array;
             }
 
-            // Get Index
-            JExpr dimensionExpr = anExpr.getArrayDims(); // Should be a list
-            if (dimensionExpr != null) {
+            // Handle dimensions
+            List<JExpr> dimensionExprs = anExpr.getArrayDims();
+            if (dimensionExprs.size() > 0) {
 
-                // Get dimension
+                // Get dimensions
                 Object thisObj = thisObject();
-                Object dimensionObj = evalExpr(thisObj, dimensionExpr);
-                int arrayLen = intValue(dimensionObj);
+                int[] dims = new int[dimensionExprs.size()];
+                for (int i = 0; i < dims.length; i++)
+                    dims[i] = intValue(evalExpr(thisObj, dimensionExprs.get(i)));
 
                 // Create/return array
-                Class<?> compClass = realClass.getComponentType();
-                return Array.newInstance(compClass, arrayLen);
+                return JSArrayAccess.newArrayForDims(realClass, dims);
             }
         }
 
-        // Special case
+        // Get args
         List<JExpr> argExprs = anExpr.getArgs();
         int argCount = argExprs.size();
-        if (argCount == 0)
-            return realClass.newInstance();
 
-        // Get constructor
-        JavaConstructor javaConstructor = (JavaConstructor) exprDecl;
+        // Get constructor (can be null for default constructor)
+        JavaConstructor javaConstructor = exprDecl instanceof JavaConstructor ? (JavaConstructor) exprDecl : null;
 
         // Get arg info
         Object thisObj = thisObject();
@@ -451,6 +452,10 @@ public class JSExprEval {
      */
     private Object evalMathExpr(Object anOR, JExprMath anExpr) throws Exception
     {
+        // Handle string concatenation chain: Evaluate operands and concat with single builder
+        if (isStringConcatExpr(anExpr))
+            return evalStringConcatExpr(anOR, getStringConcatOperands(anExpr));
+
         // Get first value
         JExpr expr1 = anExpr.getOperand(0);
         Object val1 = evalExpr(anOR, expr1);
@@ -462,6 +467,14 @@ public class JSExprEval {
 
         // Handle Binary: Get second expression and value
         else if (opCount == 2) {
+
+            // Handle conditional And/Or: Short-circuit if first value determines result
+            JExprMath.Op op = anExpr.getOp();
+            if (op == JExprMath.Op.And && isBoolean(val1) && !boolValue(val1))
+                return Boolean.FALSE;
+            if (op == JExprMath.Op.Or && isBoolean(val1) && boolValue(val1))
+                return Boolean.TRUE;
+
             JExpr expr2 = anExpr.getOperand(1);
             Object val2 = evalExpr(anOR, expr2);
             return evalMathExprBinary(anExpr, val1, val2);
@@ -505,7 +518,7 @@ public class JSExprEval {
                 // Handle Negate
             case Negate: {
                 if (isNumberOrChar(val1))
-                    return -doubleValue(val1);
+                    return negate(val1);
                 throw new RuntimeException("Numeric Negate Expr not numeric: " + anExpr);
             }
 
@@ -558,34 +571,18 @@ public class JSExprEval {
     private Object evalMathExprBinary(JExprMath anExpr, Object val1, Object val2)
     {
         JExprMath.Op op = anExpr.getOp();
+        return evalBinaryOp(op, val1, val2);
+    }
 
-        // Handle binary op
-        switch (op) {
-
-            // Handle add, subtract, multiply, divide, mod
-            case Add: return add(val1, val2);
-            case Subtract: return subtract(val1, val2);
-            case Multiply: return multiply(val1, val2);
-            case Divide: return divide(val1, val2);
-            case Mod: return mod(val1, val2);
-
-            // Handle equal/not-equal
-            case Equal:
-            case NotEqual: return compareEquals(val1, val2, op);
-
-            // Handle compare numeric
-            case LessThan:
-            case GreaterThan:
-            case LessThanOrEqual:
-            case GreaterThanOrEqual: return compareNumeric(val1, val2, op);
-
-            // Handle compare logical
-            case Or:
-            case And: return compareLogical(val1, val2, op);
-
-            // Handle unsupported: BitOr, BitXOr, BitAnd, InstanceOf, ShiftLeft, ShiftRight, ShiftRightUnsigned
-            default: throw new RuntimeException("Operator not supported " + anExpr.getOp());
-        }
+    /**
+     * Evaluates string concatenation operands and returns concatenation.
+     */
+    private String evalStringConcatExpr(Object anOR, List<JExpr> theOperands) throws Exception
+    {
+        Object[] values = new Object[theOperands.size()];
+        for (int i = 0; i < values.length; i++)
+            values[i] = evalExpr(anOR, theOperands.get(i));
+        return concatStrings(values);
     }
 
     /**
@@ -593,29 +590,31 @@ public class JSExprEval {
      */
     private Object evalAssignExpr(Object anOR, JExprAssign anExpr) throws Exception
     {
-        // Get value expression/value
+        // Handle compound string assign (s += x): Fuse assign-to value and value concatenation chain into single concat
         JExpr valExpr = anExpr.getValueExpr();
-        Object value = evalExpr(anOR, valExpr);
-
-        // Get name expression/name
         JExpr assignToExpr = anExpr.getIdExpr();
+        JExprAssign.Op assignOp = anExpr.getOp();
+        if (assignOp == JExprAssign.Op.Add && getMathTypeForExpr(assignToExpr) == MathType.String) {
+            List<JExpr> operandExprs = new ArrayList<>();
+            operandExprs.add(assignToExpr);
+            if (isStringConcatExpr(valExpr))
+                operandExprs.addAll(getStringConcatOperands(valExpr));
+            else operandExprs.add(valExpr);
+            String value = evalStringConcatExpr(anOR, operandExprs);
+            return setAssignExprValue(assignToExpr, value);
+        }
+
+        // Get value
+        Object value = evalExpr(anOR, valExpr);
 
         // If op not simple, perform math
-        JExprAssign.Op assignOp = anExpr.getOp();
         if (assignOp != JExprAssign.Op.Assign) {
 
             // Get AssignToExpr value
             Object assignToValue = evalExpr(anOR, assignToExpr);
 
             // Get value with assign op
-            switch (assignOp) {
-                case Add: value = add(assignToValue, value); break;
-                case Subtract: value = subtract(assignToValue, value); break;
-                case Multiply: value = multiply(assignToValue, value); break;
-                case Divide: value = divide(assignToValue, value); break;
-                case Mod: value = mod(assignToValue, value); break;
-                default: throw new RuntimeException("JSExprEval.evalAssignExpr: Op not yet supported: " + assignOp);
-            }
+            value = evalAssignOp(assignOp, assignToValue, value);
         }
 
         // Set value
@@ -633,12 +632,40 @@ public class JSExprEval {
         if (lambdaClass == null)
             throw new RuntimeException("JSExprEval.evalLambdaExpr: Can't determine lambda class for expr: " + aLambdaExpr);
 
-        // Need to wrap Lambda in real expression
+        // Get/return instance of lambda class that evaluates lambda expression
         Class<?> realClass = lambdaClass.getRealClass();
+        JSLambda lambda = new JSLambda.Expr(this, anOR, aLambdaExpr);
+        return lambda.getInstanceForClass(realClass);
+    }
+
+    /**
+     * Handle JExprMethodRef.
+     */
+    private Object evalMethodRefExpr(Object anOR, JExprMethodRef aMethodRef) throws Exception
+    {
+        // Get method ref interface class
+        JavaClass lambdaClass = aMethodRef.getEvalClass();
+        if (lambdaClass == null)
+            throw new RuntimeException("JSExprEval.evalMethodRefExpr: Can't determine lambda class for expr: " + aMethodRef);
+
+        // Handle method declared in script (this::method, ScriptClass::method)
+        JMethodDecl methodDecl = JSLambda.LocalMethodRef.getMethodDeclForMethodRef(aMethodRef);
+        if (methodDecl != null) {
+            JSLambda lambda = new JSLambda.LocalMethodRef(this, thisObject(), methodDecl, null);
+            return lambda.getInstanceForClass(lambdaClass.getRealClass());
+        }
 
-        // Get/return lambda of lambda class that wraps given expression
-        Object wrappedLambda = getWrappedLambdaExpression(anOR, aLambdaExpr, realClass);
-        return wrappedLambda;
+        // Get class (for Type::method) or receiver (for expr::method)
+        JExpr prefixExpr = aMethodRef.getExpr();
+        Class<?> refClass = JSLambda.MethodRef.getClassForPrefixExpr(prefixExpr);
+        Object receiver = refClass == null ? evalExpr(anOR, prefixExpr) : null;
+        if (refClass == null && receiver == null)
+            throw new NullPointerException("JSExprEval.evalMethodRefExpr: Method reference receiver is null: " + prefixExpr);
+
+        // Get/return instance of lambda class that calls method
+        String name = aMethodRef.getId().getName();
+        JSLambda lambda = new JSLambda.MethodRef(this, aMethodRef.getResolver(), receiver, refClass, name);
+        return lambda.getInstanceForClass(lambdaClass.getRealClass());
     }
 
     /**
@@ -705,15 +732,8 @@ public class JSExprEval {
         // Get array
         Object array = _varStack.getStackValueForNode(arrayExpr);
 
-        // Make sure value is right type
-        if (SnapUtils.isTeaVM) {
-            Class<?> cls = array.getClass().getComponentType();
-            if (cls.isPrimitive())
-                aValue = castOrConvertValueToPrimitiveClass(aValue, cls);
-        }
-
-        // Set value and return
-        Array.set(array, index, aValue);
+        // Set value (converted to component type, if primitive) and return
+        JSArrayAccess.getAccessForArray(array).set(array, index, aValue);
         return aValue;
     }
 
@@ -779,70 +799,4 @@ public class JSExprEval {
         // Return not found
         return null;
     }
-
-    /**
-     * Returns a wrapped lambda expression for given class.
-     */
-    private Object getWrappedLambdaExpression(Object anOR, JExprLambda lambdaExpr, Class<?> aClass)
-    {
-        // Get params and content expression
-        List<JVarDecl> varDecls = lambdaExpr.getParams();
-        JVarDecl param0 = varDecls.size() > 0 ? varDecls.get(0) : null;
-        JVarDecl param1 = varDecls.size() > 1 ? varDecls.get(1) : null;
-        JExpr contentExpr = lambdaExpr.getExpr();
-
-        // Handle DoubleUnaryOperator
-        if (aClass == DoubleUnaryOperator.class) {
-            return (DoubleUnaryOperator) d -> {
-                _varStack.pushStackFrame();
-                _varStack.setStackValueForNode(param0, d);
-                try {
-                    Object value = evalExpr(anOR, contentExpr);
-                    return Convert.doubleValue(value);
-                }
-                catch (Exception e) {
-                    throw new RuntimeException(e);
-                }
-                finally {
-                    _varStack.popStackFrame();
-                }
-            };
-        }
-
-        // Handle DoubleBinaryOperator
-        if (aClass == DoubleBinaryOperator.class) {
-            return (DoubleBinaryOperator) (x,y) -> {
-                _varStack.pushStackFrame();
-                _varStack.setStackValueForNode(param0, x);
-                _varStack.setStackValueForNode(param1, y);
-                try {
-                    Object value = evalExpr(anOR, contentExpr);
-                    return Convert.doubleValue(value);
-                }
-                catch (Exception e) {
-                    throw new RuntimeException(e);
-                }
-                finally {
-                    _varStack.popStackFrame();
-                }
-            };
-        }
-
-        // Handle EventListener
-        if (aClass == EventListener.class) {
-            return (EventListener) (e) -> {
-                _varStack.pushStackFrame();
-                _varStack.setStackValueForNode(param0, e);
-                try { evalExpr(anOR, contentExpr); }
-                catch (Exception e2) {
-                    throw new RuntimeException(e2); }
-                finally {
-                    _varStack.popStackFrame();
-                }
-            };
-        }
-
-        // Complain
-        throw new RuntimeException("JSExprEval.getWrappedLambdaExpr: Unknown lambda class: " + aClass.getName());
-    }
 }
\ No newline at end of file
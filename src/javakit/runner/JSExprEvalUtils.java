@@ -1,6 +1,12 @@
 package javakit.runner;
+import javakit.parse.JExpr;
+import javakit.parse.JExprAssign;
 import javakit.parse.JExprMath;
+import javakit.parse.JExprParen;
+import javakit.resolver.JavaClass;
 import snap.util.Convert;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Utility methods for JSExprEval.
@@ -12,17 +18,13 @@ public class JSExprEvalUtils {
      */
     protected static Object add(Object aVal1, Object aVal2)
     {
-        // Handle Number, Character
-        if (isNumberOrChar(aVal1) && isNumberOrChar(aVal2)) {
-            double val1 = doubleValue(aVal1);
-            double val2 = doubleValue(aVal2);
-            double result = val1 + val2;
-            return value(result, aVal1, aVal2);
-        }
-
         // Handle strings
         if (isString(aVal1) || isString(aVal2))
-            return toString(aVal1) + toString(aVal2);
+            return String.valueOf(aVal1) + aVal2;
+
+        // Handle Number, Character
+        if (isNumberOrChar(aVal1) && isNumberOrChar(aVal2))
+            return evalArithmeticOp(JExprMath.Op.Add, aVal1, aVal2);
 
         // Complain
         throw new RuntimeException("Can't add types " + aVal1 + " + " + aVal2);
@@ -34,12 +36,8 @@ public class JSExprEvalUtils {
     protected static Object subtract(Object aVal1, Object aVal2)
     {
         // Handle Number, Character
-        if (isNumberOrChar(aVal1) && isNumberOrChar(aVal2)) {
-            double val1 = doubleValue(aVal1);
-            double val2 = doubleValue(aVal2);
-            double result = val1 - val2;
-            return value(result, aVal1, aVal2);
-        }
+        if (isNumberOrChar(aVal1) && isNumberOrChar(aVal2))
+            return evalArithmeticOp(JExprMath.Op.Subtract, aVal1, aVal2);
 
         // Complain
         throw new RuntimeException("Can't subtract types " + aVal1 + " + " + aVal2);
@@ -51,12 +49,8 @@ public class JSExprEvalUtils {
     protected static Object multiply(Object aVal1, Object aVal2)
     {
         // Handle Number, Character
-        if (isNumberOrChar(aVal1) && isNumberOrChar(aVal2)) {
-            double val1 = doubleValue(aVal1);
-            double val2 = doubleValue(aVal2);
-            double result = val1 * val2;
-            return value(result, aVal1, aVal2);
-        }
+        if (isNumberOrChar(aVal1) && isNumberOrChar(aVal2))
+            return evalArithmeticOp(JExprMath.Op.Multiply, aVal1, aVal2);
 
         // Complain
         throw new RuntimeException("Can't multiply types " + aVal1 + " + " + aVal2);
@@ -68,12 +62,8 @@ public class JSExprEvalUtils {
     protected static Object divide(Object aVal1, Object aVal2)
     {
         // Handle Number, Character
-        if (isNumberOrChar(aVal1) && isNumberOrChar(aVal2)) {
-            double val1 = doubleValue(aVal1);
-            double val2 = doubleValue(aVal2);
-            double result = val1 / val2;
-            return value(result, aVal1, aVal2);
-        }
+        if (isNumberOrChar(aVal1) && isNumberOrChar(aVal2))
+            return evalArithmeticOp(JExprMath.Op.Divide, aVal1, aVal2);
 
         // Complain
         throw new RuntimeException("Can't divide types " + aVal1 + " + " + aVal2);
@@ -85,28 +75,166 @@ public class JSExprEvalUtils {
     protected static Object mod(Object aVal1, Object aVal2)
     {
         // Handle Number, Character
-        if (isNumberOrChar(aVal1) && isNumberOrChar(aVal2)) {
-            long val1 = longValue(aVal1);
-            long val2 = longValue(aVal2);
-            double result = val1 % val2;
-            return value(result, aVal1, aVal2);
-        }
+        if (isNumberOrChar(aVal1) && isNumberOrChar(aVal2))
+            return evalArithmeticOp(JExprMath.Op.Mod, aVal1, aVal2);
 
         // Complain
         throw new RuntimeException("Can't mod types " + aVal1 + " + " + aVal2);
     }
 
+    /**
+     * Negate value.
+     */
+    protected static Object negate(Object aVal)
+    {
+        if (isDouble(aVal))
+            return -doubleValue(aVal);
+        if (isFloat(aVal))
+            return -((Float) aVal);
+        if (isLong(aVal))
+            return -longValue(aVal);
+        if (isNumberOrChar(aVal))
+            return -intValue(aVal);
+        throw new RuntimeException("Numeric Negate Expr not numeric: " + aVal);
+    }
+
+    /**
+     * Evaluates an arithmetic op for two number/char values, using Java binary numeric promotion of runtime types.
+     */
+    protected static Object evalArithmeticOp(JExprMath.Op anOp, Object aVal1, Object aVal2)
+    {
+        // Handle double
+        if (isDouble(aVal1) || isDouble(aVal2))
+            return evalDoubleOp(anOp, doubleValue(aVal1), doubleValue(aVal2));
+
+        // Handle float (double result of two floats rounds to correct float result)
+        if (isFloat(aVal1) || isFloat(aVal2))
+            return (float) evalDoubleOp(anOp, doubleValue(aVal1), doubleValue(aVal2));
+
+        // Handle long
+        if (isLong(aVal1) || isLong(aVal2))
+            return evalLongOp(anOp, longValue(aVal1), longValue(aVal2));
+
+        // Math op with anything else (Integer, Short, Byte, Character) is int
+        return evalIntOp(anOp, intValue(aVal1), intValue(aVal2));
+    }
+
+    /**
+     * Evaluates given binary op for given values.
+     */
+    protected static Object evalBinaryOp(JExprMath.Op anOp, Object aVal1, Object aVal2)
+    {
+        switch (anOp) {
+
+            // Handle add, subtract, multiply, divide, mod
+            case Add: return add(aVal1, aVal2);
+            case Subtract: return subtract(aVal1, aVal2);
+            case Multiply: return multiply(aVal1, aVal2);
+            case Divide: return divide(aVal1, aVal2);
+            case Mod: return mod(aVal1, aVal2);
+
+            // Handle equal/not-equal
+            case Equal:
+            case NotEqual: return compareEquals(aVal1, aVal2, anOp);
+
+            // Handle compare numeric
+            case LessThan:
+            case GreaterThan:
+            case LessThanOrEqual:
+            case GreaterThanOrEqual: return compareNumeric(aVal1, aVal2, anOp);
+
+            // Handle compare logical
+            case Or:
+            case And: return compareLogical(aVal1, aVal2, anOp);
+
+            // Handle unsupported: BitOr, BitXOr, BitAnd, InstanceOf, ShiftLeft, ShiftRight, ShiftRightUnsigned
+            default: throw new RuntimeException("Operator not supported " + anOp);
+        }
+    }
+
+    /**
+     * Evaluates an arithmetic op (Add, Subtract, Multiply, Divide, Mod) for int values with Java semantics.
+     */
+    protected static int evalIntOp(JExprMath.Op anOp, int aVal1, int aVal2)
+    {
+        switch (anOp) {
+            case Add: return aVal1 + aVal2;
+            case Subtract: return aVal1 - aVal2;
+            case Multiply: return aVal1 * aVal2;
+            case Divide: return aVal1 / aVal2;
+            case Mod: return aVal1 % aVal2;
+            default: throw new RuntimeException("JSExprEvalUtils.evalIntOp: Not arithmetic op: " + anOp);
+        }
+    }
+
+    /**
+     * Evaluates an arithmetic op (Add, Subtract, Multiply, Divide, Mod) for long values with Java semantics.
+     */
+    protected static long evalLongOp(JExprMath.Op anOp, long aVal1, long aVal2)
+    {
+        switch (anOp) {
+            case Add: return aVal1 + aVal2;
+            case Subtract: return aVal1 - aVal2;
+            case Multiply: return aVal1 * aVal2;
+            case Divide: return aVal1 / aVal2;
+            case Mod: return aVal1 % aVal2;
+            default: throw new RuntimeException("JSExprEvalUtils.evalLongOp: Not arithmetic op: " + anOp);
+        }
+    }
+
+    /**
+     * Evaluates an arithmetic op (Add, Subtract, Multiply, Divide, Mod) for double values with Java semantics.
+     */
+    protected static double evalDoubleOp(JExprMath.Op anOp, double aVal1, double aVal2)
+    {
+        switch (anOp) {
+            case Add: return aVal1 + aVal2;
+            case Subtract: return aVal1 - aVal2;
+            case Multiply: return aVal1 * aVal2;
+            case Divide: return aVal1 / aVal2;
+            case Mod: return aVal1 % aVal2;
+            default: throw new RuntimeException("JSExprEvalUtils.evalDoubleOp: Not arithmetic op: " + anOp);
+        }
+    }
+
+    /**
+     * Returns the arithmetic math op for given compound assign op (or null if simple assign or not arithmetic).
+     */
+    protected static JExprMath.Op getMathOpForAssignOp(JExprAssign.Op anOp)
+    {
+        switch (anOp) {
+            case Add: return JExprMath.Op.Add;
+            case Subtract: return JExprMath.Op.Subtract;
+            case Multiply: return JExprMath.Op.Multiply;
+            case Divide: return JExprMath.Op.Divide;
+            case Mod: return JExprMath.Op.Mod;
+            default: return null;
+        }
+    }
+
+    /**
+     * Evaluates given assign op for given assign-to value and value.
+     */
+    protected static Object evalAssignOp(JExprAssign.Op anOp, Object assignToValue, Object aValue)
+    {
+        switch (anOp) {
+            case Add: return add(assignToValue, aValue);
+            case Subtract: return subtract(assignToValue, aValue);
+            case Multiply: return multiply(assignToValue, aValue);
+            case Divide: return divide(assignToValue, aValue);
+            case Mod: return mod(assignToValue, aValue);
+            default: throw new RuntimeException("JSExprEval.evalAssignExpr: Op not yet supported: " + anOp);
+        }
+    }
+
     /**
      * Compare two numeric values.
      */
     protected static Object compareEquals(Object aVal1, Object aVal2, JExprMath.Op anOp)
     {
         // Handle Number, Character
-        if (isNumberOrChar(aVal1) && isNumberOrChar(aVal2)) {
-            double v1 = doubleValue(aVal1);
-            double v2 = doubleValue(aVal2);
-            return compareNumeric(v1, v2, anOp);
-        }
+        if (isNumberOrChar(aVal1) && isNumberOrChar(aVal2))
+            return compareNumeric(aVal1, aVal2, anOp);
 
         // Handle anything
         if (anOp == JExprMath.Op.Equal)
@@ -123,11 +251,11 @@ public class JSExprEvalUtils {
      */
     protected static Object compareNumeric(Object aVal1, Object aVal2, JExprMath.Op anOp)
     {
-        // Handle Number, Character
+        // Handle Number, Character: Compare as double if either is floating point, otherwise as long
         if (isNumberOrChar(aVal1) && isNumberOrChar(aVal2)) {
-            double v1 = doubleValue(aVal1);
-            double v2 = doubleValue(aVal2);
-            return compareNumeric(v1, v2, anOp);
+            if (isDouble(aVal1) || isDouble(aVal2) || isFloat(aVal1) || isFloat(aVal2))
+                return compareNumeric(doubleValue(aVal1), doubleValue(aVal2), anOp);
+            return compareNumeric(longValue(aVal1), longValue(aVal2), anOp);
         }
 
         // Complain
@@ -150,6 +278,22 @@ public class JSExprEvalUtils {
         }
     }
 
+    /**
+     * Compare two integral numeric values.
+     */
+    protected static boolean compareNumeric(long aVal1, long aVal2, JExprMath.Op anOp)
+    {
+        switch (anOp) {
+            case Equal: return aVal1 == aVal2;
+            case NotEqual: return aVal1 != aVal2;
+            case LessThan: return aVal1 < aVal2;
+            case GreaterThan: return aVal1 > aVal2;
+            case LessThanOrEqual: return aVal1 <= aVal2;
+            case GreaterThanOrEqual: return aVal1 >= aVal2;
+            default: throw new RuntimeException("Not a compare op " + anOp);
+        }
+    }
+
     /**
      * Compare two boolean values.
      */
@@ -181,19 +325,115 @@ public class JSExprEvalUtils {
     }
 
     /**
-     * Return value of appropriate type for given number and original two values.
+     * Constants for the static types of math expression operands, used to pick specialized evaluators.
+     * Numeric types are in promotion order.
+     */
+    protected enum MathType {
+
+        Int, Long, Float, Double, Boolean, String, Object;
+
+        /**
+         * Returns whether type is numeric.
+         */
+        public boolean isNumeric()  { return ordinal() <= Double.ordinal(); }
+    }
+
+    /**
+     * Returns the static math type for given expression (from its resolved eval class).
      */
-    protected static Object value(double aValue, Object aVal1, Object aVal2)
+    protected static MathType getMathTypeForExpr(JExpr anExpr)
     {
-        if (isDouble(aVal1) || isDouble(aVal2))
-            return aValue;
-        if (isFloat(aVal1) || isFloat(aVal2))
-            return (float) aValue;
-        if (isLong(aVal1) || isLong(aVal2))
-            return (long) aValue;
+        JavaClass evalClass = anExpr.getEvalClass();
+        String className = evalClass != null ? evalClass.getClassName() : null;
+        if (className == null)
+            return MathType.Object;
+
+        switch (className) {
+            case "int": case "short": case "byte": case "char":
+            case "java.lang.Integer": case "java.lang.Short": case "java.lang.Byte": case "java.lang.Character":
+                return MathType.Int;
+            case "long": case "java.lang.Long": return MathType.Long;
+            case "float": case "java.lang.Float": return MathType.Float;
+            case "double": case "java.lang.Double": return MathType.Double;
+            case "boolean": case "java.lang.Boolean": return MathType.Boolean;
+            case "java.lang.String": return MathType.String;
+            default: return MathType.Object;
+        }
+    }
+
+    /**
+     * Returns whether given expression is a string concatenation (binary add with a String operand).
+     */
+    protected static boolean isStringConcatExpr(JExpr anExpr)
+    {
+        if (!(anExpr instanceof JExprMath))
+            return false;
+        JExprMath mathExpr = (JExprMath) anExpr;
+        if (mathExpr.getOp() != JExprMath.Op.Add || mathExpr.getOperandCount() != 2)
+            return false;
+        return getMathTypeForExpr(mathExpr.getOperand(0)) == MathType.String ||
+            getMathTypeForExpr(mathExpr.getOperand(1)) == MathType.String;
+    }
+
+    /**
+     * Returns the operands of given string concatenation chain (like a + b + c + d) in order, with nested
+     * concatenations (including parenthesized ones) flattened. Operands that aren't string concatenations
+     * (like the int add in "x" + (1 + 2)) are kept whole.
+     */
+    protected static List<JExpr> getStringConcatOperands(JExpr anExpr)
+    {
+        List<JExpr> operands = new ArrayList<>();
+        addStringConcatOperands(anExpr, operands);
+        return operands;
+    }
+
+    /**
+     * Adds the operands of given string concatenation expression to given list (or expression if not concatenation).
+     */
+    private static void addStringConcatOperands(JExpr anExpr, List<JExpr> theOperands)
+    {
+        // Skip parens
+        JExpr expr = anExpr;
+        while (expr instanceof JExprParen && isStringConcatExpr(((JExprParen) expr).getExpr()))
+            expr = ((JExprParen) expr).getExpr();
+
+        // If concatenation, add operands, otherwise add expression
+        if (isStringConcatExpr(expr)) {
+            JExprMath mathExpr = (JExprMath) expr;
+            addStringConcatOperands(mathExpr.getOperand(0), theOperands);
+            addStringConcatOperands(mathExpr.getOperand(1), theOperands);
+        }
+        else theOperands.add(anExpr);
+    }
+
+    /**
+     * Returns the concatenation of given values (as strings) using a single builder presized to the total length.
+     */
+    protected static String concatStrings(Object[] theValues)
+    {
+        // Get strings and total length
+        String[] strings = new String[theValues.length];
+        int length = 0;
+        for (int i = 0; i < theValues.length; i++) {
+            strings[i] = String.valueOf(theValues[i]);
+            length += strings[i].length();
+        }
+
+        // Append to builder and return
+        StringBuilder sb = new StringBuilder(length);
+        for (String str : strings)
+            sb.append(str);
+        return sb.toString();
+    }
 
-        // Math op with anything else seems to be an int
-        return (int) aValue;
+    /**
+     * Returns the binary numeric promotion of given math types (or Object if either isn't numeric).
+     */
+    protected static MathType getPromotedMathType(MathType aType1, MathType aType2)
+    {
+        if (!aType1.isNumeric() || !aType2.isNumeric())
+            return MathType.Object;
+        return aType1.ordinal() > aType2.ordinal() ? aType1 : aType2;
     }
 
     /**
@@ -244,6 +484,8 @@ public class JSExprEvalUtils {
      */
     protected static int intValue(Object anObj)
     {
+        if (anObj instanceof Character)
+            return (Character) anObj;
         return Convert.intValue(anObj);
     }
 
@@ -252,6 +494,8 @@ public class JSExprEvalUtils {
      */
     protected static long longValue(Object anObj)
     {
+        if (anObj instanceof Character)
+            return (Character) anObj;
         return Convert.longValue(anObj);
     }
 
@@ -0,0 +1,247 @@
+/*
+ * Copyright (c) 2010, ReportMill Software. All rights reserved.
+ */
+package javakit.runner;
+import javakit.resolver.JavaMethod;
+import javakit.resolver.Resolver;
+import snap.props.PropObject;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class is an inline cache for a method call site: It maps receiver classes seen at the call site to resolved
+ * invocation targets. It starts monomorphic, goes polymorphic as new receiver classes show up and goes megamorphic
+ * (stops caching) once the number of receiver classes exceeds POLYMORPHIC_LIMIT.
+ */
+public class JSInlineCache {
+
+    // The receiver classes and targets cached (replaced together, so lookups from any thread see a matching pair)
+    private volatile Entries  _entries = new Entries(new Class<?>[0], new Target[0]);
+
+    // Whether call site has seen too many receiver classes to cache
+    private volatile boolean  _megamorphic;
+
+    // The number of cache hits and misses for call site (plain ints: approximate if call site is shared by threads)
+    private int  _hitCount, _missCount;
+
+    // The total number of cache hits, misses and megamorphic call sites for all call sites
+    private static final LongAdder  _totalHitCount = new LongAdder();
+    private static final LongAdder  _totalMissCount = new LongAdder();
+    private static final LongAdder  _totalMegamorphicCount = new LongAdder();
+
+    // The maximum number of receiver classes cached before call site goes megamorphic
+    public static int POLYMORPHIC_LIMIT = 4;
+
+    /**
+     * Constructor.
+     */
+    public JSInlineCache()  { }
+
+    /**
+     * Returns the cached target for given receiver class (or null if not cached).
+     */
+    public Target getTarget(Class<?> aClass)
+    {
+        // Look for receiver class (first entry is the common case)
+        Entries entries = _entries;
+        Class<?>[] classes = entries._classes;
+        for (int i = 0; i < classes.length; i++) {
+            if (classes[i] == aClass) {
+                _hitCount++;
+                _totalHitCount.increment();
+                return entries._targets[i];
+            }
+        }
+
+        // Record miss and return not found
+        _missCount++;
+        _totalMissCount.increment();
+        return null;
+    }
+
+    /**
+     * Adds a target for given receiver class (or marks call site megamorphic if limit reached).
+     */
+    public synchronized void addTarget(Class<?> aClass, Target aTarget)
+    {
+        // If already megamorphic, just return
+        if (_megamorphic)
+            return;
+
+        // If already added (by another thread), just return
+        Entries entries = _entries;
+        for (Class<?> cls : entries._classes)
+            if (cls == aClass)
+                return;
+
+        // If limit reached, go megamorphic and release targets
+        int count = entries._classes.length;
+        if (count >= POLYMORPHIC_LIMIT) {
+            _megamorphic = true;
+            _entries = new Entries(new Class<?>[0], new Target[0]);
+            _totalMegamorphicCount.increment();
+            return;
+        }
+
+        // Add class and target (copy arrays so lookups never see partial entries)
+        Class<?>[] classes = Arrays.copyOf(entries._classes, count + 1);
+        Target[] targets = Arrays.copyOf(entries._targets, count + 1);
+        classes[count] = aClass;
+        targets[count] = aTarget;
+        _entries = new Entries(classes, targets);
+    }
+
+    /**
+     * Returns whether call site is monomorphic (one receiver class cached).
+     */
+    public boolean isMonomorphic()  { return _entries._classes.length == 1; }
+
+    /**
+     * Returns whether call site has seen too many receiver classes to cache.
+     */
+    public boolean isMegamorphic()  { return _megamorphic; }
+
+    /**
+     * Returns the number of cache hits for call site.
+     */
+    public int getHitCount()  { return _hitCount; }
+
+    /**
+     * Returns the number of cache misses for call site.
+     */
+    public int getMissCount()  { return _missCount; }
+
+    /**
+     * Returns the total number of cache hits for all call sites.
+     */
+    public static long getTotalHitCount()  { return _totalHitCount.sum(); }
+
+    /**
+     * Returns the total number of cache misses for all call sites.
+     */
+    public static long getTotalMissCount()  { return _totalMissCount.sum(); }
+
+    /**
+     * Returns the total number of call sites that went megamorphic.
+     */
+    public static long getTotalMegamorphicCount()  { return _totalMegamorphicCount.sum(); }
+
+    /**
+     * Resets the total counters.
+     */
+    public static void resetTotalCounts()
+    {
+        _totalHitCount.reset();
+        _totalMissCount.reset();
+        _totalMegamorphicCount.reset();
+    }
+
+    /**
+     * Standard toString implementation.
+     */
+    public String toString()
+    {
+        int count = _entries._classes.length;
+        String state = _megamorphic ? "Megamorphic" : count <= 1 ? "Monomorphic" : "Polymorphic";
+        return "JSInlineCache { " + state + ", Classes=" + count + ", Hits=" + _hitCount + ", Misses=" + _missCount + " }";
+    }
+
+    /**
+     * The cached receiver classes and their targets.
+     */
+    private static class Entries {
+
+        // The receiver classes
+        private final Class<?>[]  _classes;
+
+        // The targets for receiver classes
+        private final Target[]  _targets;
+
+        /** Constructor. */
+        Entries(Class<?>[] theClasses, Target[] theTargets)
+        {
+            _classes = theClasses;
+            _targets = theTargets;
+        }
+    }
+
+    /**
+     * An interface for a resolved invocation target.
+     */
+    public interface Target {
+
+        /**
+         * Invokes target on given receiver with given args.
+         */
+        Object invoke(Object anOR, Object[] theArgs) throws Exception;
+    }
+
+    /**
+     * A target for a method resolved against the receiver class.
+     */
+    public static class MethodTarget implements Target {
+
+        // The resolver
+        private Resolver  _resolver;
+
+        // The method
+        private JavaMethod  _method;
+
+        /** Constructor. */
+        public MethodTarget(Resolver aResolver, JavaMethod aMethod)
+        {
+            _resolver = aResolver;
+            _method = aMethod;
+        }
+
+        @Override
+        public Object invoke(Object anOR, Object[] theArgs) throws Exception
+        {
+            return _resolver.invokeMethod(anOR, _method, theArgs);
+        }
+    }
+
+    /**
+     * A target for a PropObject property accessor method (isX(), getX(), setX(val)).
+     */
+    public static class PropTarget implements Target {
+
+        // The prop name
+        private String  _propName;
+
+        // Whether method is setter
+        private boolean  _setter;
+
+        /** Constructor. */
+        public PropTarget(String aPropName, boolean isSetter)
+        {
+            _propName = aPropName;
+            _setter = isSetter;
+        }
+
+        @Override
+        public Object invoke(Object anOR, Object[] theArgs)
+        {
+            PropObject propObject = (PropObject) anOR;
+            if (_setter) {
+                propObject.setPropValue(_propName, theArgs[0]);
+                return null;
+            }
+            return propObject.getPropValue(_propName);
+        }
+
+        /**
+         * Returns a PropTarget for given method name and arg count (or null if not accessor).
+         */
+        public static PropTarget getPropTargetForMethodName(String methName, int argCount)
+        {
+            if (methName.startsWith("set") && argCount > 0)
+                return new PropTarget(methName.substring(3), true);
+            if (methName.startsWith("get"))
+                return new PropTarget(methName.substring(3), false);
+            if (methName.startsWith("is"))
+                return new PropTarget(methName.substring(2), false);
+            return null;
+        }
+    }
+}
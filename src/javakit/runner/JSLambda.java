@@ -0,0 +1,877 @@
+/*
+ * Copyright (c) 2010, ReportMill Software. All rights reserved.
+ */
+package javakit.runner;
+import javakit.parse.*;
+import javakit.resolver.*;
+import snap.util.Convert;
+import snap.view.EventListener;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.*;
+import static javakit.runner.JSExprEvalUtils.*;
+
+/**
+ * This class adapts a lambda expression or method reference to a functional interface. Common java.util.function
+ * interfaces get plain Java lambda adapters (with non-boxing paths for the primitive specializations) and any other
+ * functional interface gets an instance of a proxy class that is generated once and cached per interface.
+ */
+public abstract class JSLambda {
+
+    // The expression evaluator
+    protected JSExprEval  _eval;
+
+    // The proxy class constructors for functional interfaces without a built-in adapter
+    private static Map<Class<?>,Constructor<?>>  _proxyConstrs = new ConcurrentHashMap<>();
+
+    // The method handles for interface default methods called on proxies
+    private static Map<Method,MethodHandle>  _defaultMethodHandles = new ConcurrentHashMap<>();
+
+    // Shared empty args
+    private static final Object[] EMPTY_ARGS = new Object[0];
+
+    /**
+     * Constructor.
+     */
+    protected JSLambda(JSExprEval anEval)
+    {
+        _eval = anEval;
+    }
+
+    /**
+     * Returns the expression evaluator for current thread (lambdas can be called from other threads).
+     */
+    protected JSExprEval getExprEval()
+    {
+        JSStmtEval stmtEval = _eval._stmtEval;
+        if (Thread.currentThread() == stmtEval._thread)
+            return _eval;
+        return stmtEval.getStmtEvalForCurrentThread()._exprEval;
+    }
+
+    /**
+     * Calls lambda with given args.
+     */
+    public abstract Object call(Object[] theArgs) throws Exception;
+
+    /**
+     * Calls lambda with given args and rethrows checked exceptions unchecked.
+     */
+    public Object callObj(Object ... theArgs)
+    {
+        try { return call(theArgs); }
+        catch (Exception e) { throw rethrow(e); }
+    }
+
+    /** Calls lambda for Predicate. */
+    public boolean callToBoolean(Object a)  { return Convert.boolValue(callObj(a)); }
+
+    /** Calls lambda for BiPredicate. */
+    public boolean callToBoolean(Object a, Object b)  { return Convert.boolValue(callObj(a, b)); }
+
+    /** Calls lambda for ToIntFunction. */
+    public int callToInt(Object a)  { return intValue(callObj(a)); }
+
+    /** Calls lambda for Comparator, ToIntBiFunction. */
+    public int callToInt(Object a, Object b)  { return intValue(callObj(a, b)); }
+
+    /** Calls lambda for ToLongFunction. */
+    public long callToLong(Object a)  { return longValue(callObj(a)); }
+
+    /** Calls lambda for ToDoubleFunction. */
+    public double callToDouble(Object a)  { return doubleValue(callObj(a)); }
+
+    /** Calls lambda for IntFunction, IntConsumer. */
+    public Object callIntToObj(int a)  { return callObj(a); }
+
+    /** Calls lambda for IntUnaryOperator. */
+    public int callIntToInt(int a)  { return intValue(callObj(a)); }
+
+    /** Calls lambda for IntBinaryOperator. */
+    public int callIntToInt(int a, int b)  { return intValue(callObj(a, b)); }
+
+    /** Calls lambda for IntPredicate. */
+    public boolean callIntToBoolean(int a)  { return Convert.boolValue(callObj(a)); }
+
+    /** Calls lambda for LongUnaryOperator. */
+    public long callLongToLong(long a)  { return longValue(callObj(a)); }
+
+    /** Calls lambda for LongBinaryOperator. */
+    public long callLongToLong(long a, long b)  { return longValue(callObj(a, b)); }
+
+    /** Calls lambda for LongPredicate. */
+    public boolean callLongToBoolean(long a)  { return Convert.boolValue(callObj(a)); }
+
+    /** Calls lambda for DoubleUnaryOperator. */
+    public double callDoubleToDouble(double a)  { return doubleValue(callObj(a)); }
+
+    /** Calls lambda for DoubleBinaryOperator. */
+    public double callDoubleToDouble(double a, double b)  { return doubleValue(callObj(a, b)); }
+
+    /** Calls lambda for DoublePredicate. */
+    public boolean callDoubleToBoolean(double a)  { return Convert.boolValue(callObj(a)); }
+
+    /**
+     * Returns an instance of given functional interface that calls this lambda.
+     */
+    public Object getInstanceForClass(Class<?> aClass)
+    {
+        // Handle common java.util.function interfaces (and Runnable, Comparator, EventListener)
+        Object adapter = getAdapterForClass(aClass);
+        if (adapter != null)
+            return adapter;
+
+        // Complain if not interface
+        if (!aClass.isInterface())
+            throw new RuntimeException("JSLambda.getInstanceForClass: Lambda class not interface: " + aClass.getName());
+
+        // Get cached proxy class constructor for interface and return new instance
+        Constructor<?> proxyConstr = _proxyConstrs.computeIfAbsent(aClass, JSLambda::getProxyConstructorForInterface);
+        try { return proxyConstr.newInstance(new LambdaHandler(aClass)); }
+        catch (Exception e) { throw rethrow(e); }
+    }
+
+    /**
+     * Returns a plain Java lambda adapter for given class, if common functional interface.
+     */
+    private Object getAdapterForClass(Class<?> aClass)
+    {
+        // Handle object functions
+        if (aClass == Runnable.class) return (Runnable) () -> callObj();
+        if (aClass == Supplier.class) return (Supplier<?>) () -> callObj();
+        if (aClass == Consumer.class) return (Consumer<?>) a -> callObj(a);
+        if (aClass == BiConsumer.class) return (BiConsumer<?,?>) (a,b) -> callObj(a, b);
+        if (aClass == Function.class) return (Function<?,?>) a -> callObj(a);
+        if (aClass == BiFunction.class) return (BiFunction<?,?,?>) (a,b) -> callObj(a, b);
+        if (aClass == UnaryOperator.class) return (UnaryOperator<?>) a -> callObj(a);
+        if (aClass == BinaryOperator.class) return (BinaryOperator<?>) (a,b) -> callObj(a, b);
+        if (aClass == Predicate.class) return (Predicate<?>) a -> callToBoolean(a);
+        if (aClass == BiPredicate.class) return (BiPredicate<?,?>) (a,b) -> callToBoolean(a, b);
+        if (aClass == Comparator.class) return (Comparator<?>) (a,b) -> callToInt(a, b);
+        if (aClass == ToIntFunction.class) return (ToIntFunction<?>) a -> callToInt(a);
+        if (aClass == ToLongFunction.class) return (ToLongFunction<?>) a -> callToLong(a);
+        if (aClass == ToDoubleFunction.class) return (ToDoubleFunction<?>) a -> callToDouble(a);
+
+        // Handle int functions
+        if (aClass == IntUnaryOperator.class) return (IntUnaryOperator) a -> callIntToInt(a);
+        if (aClass == IntBinaryOperator.class) return (IntBinaryOperator) (a,b) -> callIntToInt(a, b);
+        if (aClass == IntPredicate.class) return (IntPredicate) a -> callIntToBoolean(a);
+        if (aClass == IntFunction.class) return (IntFunction<?>) a -> callIntToObj(a);
+        if (aClass == IntConsumer.class) return (IntConsumer) a -> callIntToObj(a);
+
+        // Handle long functions
+        if (aClass == LongUnaryOperator.class) return (LongUnaryOperator) a -> callLongToLong(a);
+        if (aClass == LongBinaryOperator.class) return (LongBinaryOperator) (a,b) -> callLongToLong(a, b);
+        if (aClass == LongPredicate.class) return (LongPredicate) a -> callLongToBoolean(a);
+
+        // Handle double functions
+        if (aClass == DoubleUnaryOperator.class) return (DoubleUnaryOperator) a -> callDoubleToDouble(a);
+        if (aClass == DoubleBinaryOperator.class) return (DoubleBinaryOperator) (a,b) -> callDoubleToDouble(a, b);
+        if (aClass == DoublePredicate.class) return (DoublePredicate) a -> callDoubleToBoolean(a);
+
+        // Handle EventListener
+        if (aClass == EventListener.class) return (EventListener) e -> callObj(e);
+
+        // Return not found
+        return null;
+    }
+
+    /**
+     * Returns the proxy class constructor for given functional interface.
+     */
+    private static Constructor<?> getProxyConstructorForInterface(Class<?> aClass)
+    {
+        // Create proxy instance to get generated proxy class, then return its constructor
+        try {
+            Object proxy = Proxy.newProxyInstance(aClass.getClassLoader(), new Class<?>[] { aClass }, (p, m, a) -> null);
+            return proxy.getClass().getConstructor(InvocationHandler.class);
+        }
+        catch (Exception e) { throw new RuntimeException("JSLambda.getProxyConstructorForInterface: " + e); }
+    }
+
+    /**
+     * Returns the method handle for given interface default method.
+     */
+    private static MethodHandle getMethodHandleForDefaultMethod(Method aMethod)
+    {
+        try {
+            Class<?> declaringClass = aMethod.getDeclaringClass();
+            MethodHandles.Lookup lookup = MethodHandles.privateLookupIn(declaringClass, MethodHandles.lookup());
+            return lookup.unreflectSpecial(aMethod, declaringClass);
+        }
+        catch (Exception e) {
+            throw new UnsupportedOperationException("JSLambda: Can't call default method on lambda: " + aMethod);
+        }
+    }
+
+    /**
+     * Returns given exception as RuntimeException.
+     */
+    protected static RuntimeException rethrow(Throwable anExc)
+    {
+        if (anExc instanceof InvocationTargetException && anExc.getCause() != null)
+            anExc = anExc.getCause();
+        if (anExc instanceof RuntimeException)
+            return (RuntimeException) anExc;
+        if (anExc instanceof Error)
+            throw (Error) anExc;
+        return new RuntimeException(anExc);
+    }
+
+    /**
+     * An InvocationHandler for proxy instances: Calls lambda for interface method.
+     */
+    private class LambdaHandler implements InvocationHandler {
+
+        // The interface
+        private Class<?>  _class;
+
+        /** Constructor. */
+        LambdaHandler(Class<?> aClass)  { _class = aClass; }
+
+        @Override
+        public Object invoke(Object aProxy, Method aMethod, Object[] theArgs) throws Throwable
+        {
+            // Handle Object methods
+            if (aMethod.getDeclaringClass() == Object.class) {
+                switch (aMethod.getName()) {
+                    case "equals": return aProxy == theArgs[0];
+                    case "hashCode": return System.identityHashCode(aProxy);
+                    default: return "JSLambda<" + _class.getName() + ">@" + Integer.toHexString(System.identityHashCode(aProxy));
+                }
+            }
+
+            // Handle default method
+            if (aMethod.isDefault()) {
+                MethodHandle methodHandle = _defaultMethodHandles.computeIfAbsent(aMethod, JSLambda::getMethodHandleForDefaultMethod);
+                Object[] args = theArgs != null ? theArgs : EMPTY_ARGS;
+                return methodHandle.bindTo(aProxy).invokeWithArguments(args);
+            }
+
+            // Call lambda and return value converted to method return type
+            Object value = call(theArgs != null ? theArgs : EMPTY_ARGS);
+            Class<?> returnType = aMethod.getReturnType();
+            if (returnType == void.class)
+                return null;
+            return returnType.isPrimitive() ? castOrConvertValueToPrimitiveClass(value, returnType) : value;
+        }
+    }
+
+    /**
+     * A JSLambda for a lambda expression: Evaluates expression or block with params in new stack frame.
+     */
+    public static class Expr extends JSLambda {
+
+        // The "this" object for lambda body
+        private Object  _thisObj;
+
+        // The param local vars
+        private JavaLocalVar[]  _params;
+
+        // The body expression (if expression lambda)
+        private JSCompiledExpr  _bodyExpr;
+
+        // The body statement (if block lambda and compiled)
+        private JSCompiledStmt  _bodyStmt;
+
+        // The body block (if block lambda and interpreted)
+        private JStmtBlock  _bodyBlock;
+
+        /**
+         * Constructor for compiled body.
+         */
+        public Expr(JSExprEval anEval, Object anOR, JavaLocalVar[] theParams, JSCompiledExpr aBodyExpr, JSCompiledStmt aBodyStmt)
+        {
+            super(anEval);
+            _thisObj = anOR;
+            _params = theParams;
+            _bodyExpr = aBodyExpr;
+            _bodyStmt = aBodyStmt;
+        }
+
+        /**
+         * Constructor for interpreted lambda expression.
+         */
+        public Expr(JSExprEval anEval, Object anOR, JExprLambda aLambdaExpr)
+        {
+            super(anEval);
+            _thisObj = anOR;
+            _params = getParamsForLambdaExpr(aLambdaExpr);
+            JExpr bodyExpr = aLambdaExpr.getExpr();
+            _bodyExpr = bodyExpr != null ? new JSCompiledExpr.Interpreted(bodyExpr) : null;
+            _bodyBlock = aLambdaExpr.getBlock();
+        }
+
+        @Override
+        public Object call(Object[] theArgs) throws Exception
+        {
+            // Create stack frame and install params
+            JSExprEval eval = getExprEval();
+            JSVarStack varStack = pushStackFrame(eval);
+            try {
+                for (int i = 0, iMax = Math.min(theArgs.length, _params.length); i < iMax; i++)
+                    varStack.setStackValueForLocalVar(_params[i], theArgs[i]);
+
+                // Eval body
+                if (_bodyExpr != null)
+                    return _bodyExpr.eval(eval, _thisObj);
+                JSStmtEval stmtEval = eval._stmtEval;
+                if (_bodyStmt != null)
+                    return stmtEval.evalExecutable(_thisObj, _bodyStmt);
+                return stmtEval.evalExecutable(_thisObj, _bodyBlock);
+            }
+
+            // Pop stack frame
+            finally { popStackFrame(eval); }
+        }
+
+        @Override
+        public boolean callToBoolean(Object a)
+        {
+            if (_bodyExpr == null) return super.callToBoolean(a);
+            JSExprEval eval = getExprEval();
+            JSVarStack varStack = pushStackFrame(eval);
+            try {
+                varStack.setStackValueForLocalVar(_params[0], a);
+                return _bodyExpr.evalBoolean(eval, _thisObj);
+            }
+            catch (Exception e) { throw rethrow(e); }
+            finally { popStackFrame(eval); }
+        }
+
+        @Override
+        public int callToInt(Object a)
+        {
+            if (_bodyExpr == null) return super.callToInt(a);
+            JSExprEval eval = getExprEval();
+            JSVarStack varStack = pushStackFrame(eval);
+            try {
+                varStack.setStackValueForLocalVar(_params[0], a);
+                return _bodyExpr.evalInt(eval, _thisObj);
+            }
+            catch (Exception e) { throw rethrow(e); }
+            finally { popStackFrame(eval); }
+        }
+
+        @Override
+        public double callToDouble(Object a)
+        {
+            if (_bodyExpr == null) return super.callToDouble(a);
+            JSExprEval eval = getExprEval();
+            JSVarStack varStack = pushStackFrame(eval);
+            try {
+                varStack.setStackValueForLocalVar(_params[0], a);
+                return _bodyExpr.evalDouble(eval, _thisObj);
+            }
+            catch (Exception e) { throw rethrow(e); }
+            finally { popStackFrame(eval); }
+        }
+
+        @Override
+        public Object callIntToObj(int a)
+        {
+            if (_bodyExpr == null) return super.callIntToObj(a);
+            JSExprEval eval = getExprEval();
+            JSVarStack varStack = pushStackFrame(eval);
+            try {
+                setIntParam(varStack, 0, a);
+                return _bodyExpr.eval(eval, _thisObj);
+            }
+            catch (Exception e) { throw rethrow(e); }
+            finally { popStackFrame(eval); }
+        }
+
+        @Override
+        public int callIntToInt(int a)
+        {
+            if (_bodyExpr == null) return super.callIntToInt(a);
+            JSExprEval eval = getExprEval();
+            JSVarStack varStack = pushStackFrame(eval);
+            try {
+                setIntParam(varStack, 0, a);
+                return _bodyExpr.evalInt(eval, _thisObj);
+            }
+            catch (Exception e) { throw rethrow(e); }
+            finally { popStackFrame(eval); }
+        }
+
+        @Override
+        public int callIntToInt(int a, int b)
+        {
+            if (_bodyExpr == null) return super.callIntToInt(a, b);
+            JSExprEval eval = getExprEval();
+            JSVarStack varStack = pushStackFrame(eval);
+            try {
+                setIntParam(varStack, 0, a);
+                setIntParam(varStack, 1, b);
+                return _bodyExpr.evalInt(eval, _thisObj);
+            }
+            catch (Exception e) { throw rethrow(e); }
+            finally { popStackFrame(eval); }
+        }
+
+        @Override
+        public boolean callIntToBoolean(int a)
+        {
+            if (_bodyExpr == null) return super.callIntToBoolean(a);
+            JSExprEval eval = getExprEval();
+            JSVarStack varStack = pushStackFrame(eval);
+            try {
+                setIntParam(varStack, 0, a);
+                return _bodyExpr.evalBoolean(eval, _thisObj);
+            }
+            catch (Exception e) { throw rethrow(e); }
+            finally { popStackFrame(eval); }
+        }
+
+        @Override
+        public long callLongToLong(long a)
+        {
+            if (_bodyExpr == null) return super.callLongToLong(a);
+            JSExprEval eval = getExprEval();
+            JSVarStack varStack = pushStackFrame(eval);
+            try {
+                setLongParam(varStack, 0, a);
+                return _bodyExpr.evalLong(eval, _thisObj);
+            }
+            catch (Exception e) { throw rethrow(e); }
+            finally { popStackFrame(eval); }
+        }
+
+        @Override
+        public long callLongToLong(long a, long b)
+        {
+            if (_bodyExpr == null) return super.callLongToLong(a, b);
+            JSExprEval eval = getExprEval();
+            JSVarStack varStack = pushStackFrame(eval);
+            try {
+                setLongParam(varStack, 0, a);
+                setLongParam(varStack, 1, b);
+                return _bodyExpr.evalLong(eval, _thisObj);
+            }
+            catch (Exception e) { throw rethrow(e); }
+            finally { popStackFrame(eval); }
+        }
+
+        @Override
+        public boolean callLongToBoolean(long a)
+        {
+            if (_bodyExpr == null) return super.callLongToBoolean(a);
+            JSExprEval eval = getExprEval();
+            JSVarStack varStack = pushStackFrame(eval);
+            try {
+                setLongParam(varStack, 0, a);
+                return _bodyExpr.evalBoolean(eval, _thisObj);
+            }
+            catch (Exception e) { throw rethrow(e); }
+            finally { popStackFrame(eval); }
+        }
+
+        @Override
+        public double callDoubleToDouble(double a)
+        {
+            if (_bodyExpr == null) return super.callDoubleToDouble(a);
+            JSExprEval eval = getExprEval();
+            JSVarStack varStack = pushStackFrame(eval);
+            try {
+                setDoubleParam(varStack, 0, a);
+                return _bodyExpr.evalDouble(eval, _thisObj);
+            }
+            catch (Exception e) { throw rethrow(e); }
+            finally { popStackFrame(eval); }
+        }
+
+        @Override
+        public double callDoubleToDouble(double a, double b)
+        {
+            if (_bodyExpr == null) return super.callDoubleToDouble(a, b);
+            JSExprEval eval = getExprEval();
+            JSVarStack varStack = pushStackFrame(eval);
+            try {
+                setDoubleParam(varStack, 0, a);
+                setDoubleParam(varStack, 1, b);
+                return _bodyExpr.evalDouble(eval, _thisObj);
+            }
+            catch (Exception e) { throw rethrow(e); }
+            finally { popStackFrame(eval); }
+        }
+
+        @Override
+        public boolean callDoubleToBoolean(double a)
+        {
+            if (_bodyExpr == null) return super.callDoubleToBoolean(a);
+            JSExprEval eval = getExprEval();
+            JSVarStack varStack = pushStackFrame(eval);
+            try {
+                setDoubleParam(varStack, 0, a);
+                return _bodyExpr.evalBoolean(eval, _thisObj);
+            }
+            catch (Exception e) { throw rethrow(e); }
+            finally { popStackFrame(eval); }
+        }
+
+        /**
+         * Pushes stack frame for given evaluator and returns var stack (and binds thread for script code, if fork).
+         */
+        private JSVarStack pushStackFrame(JSExprEval anEval)
+        {
+            anEval._stmtEval.enterThread();
+            JSVarStack varStack = anEval._varStack;
+            varStack.pushStackFrame();
+            return varStack;
+        }
+
+        /**
+         * Pops stack frame for lambda call (and releases thread for script code, if fork).
+         */
+        private void popStackFrame(JSExprEval anEval)
+        {
+            anEval._varStack.popStackFrame();
+            anEval._stmtEval.exitThread();
+        }
+
+        /**
+         * Sets int param at given index (unboxed if param has primitive slot).
+         */
+        private void setIntParam(JSVarStack varStack, int anIndex, int aValue)
+        {
+            JavaLocalVar param = _params[anIndex];
+            int index = param.getIndexInStackFrame();
+            switch (param.getSlotType()) {
+                case Int: varStack.setIntValue(aValue, index); break;
+                case Long: varStack.setLongValue(aValue, index); break;
+                case Double: varStack.setDoubleValue(aValue, index); break;
+                default: varStack.setStackValue(aValue, index);
+            }
+        }
+
+        /**
+         * Sets long param at given index (unboxed if param has primitive slot).
+         */
+        private void setLongParam(JSVarStack varStack, int anIndex, long aValue)
+        {
+            JavaLocalVar param = _params[anIndex];
+            int index = param.getIndexInStackFrame();
+            switch (param.getSlotType()) {
+                case Int: varStack.setIntValue((int) aValue, index); break;
+                case Long: varStack.setLongValue(aValue, index); break;
+                case Double: varStack.setDoubleValue(aValue, index); break;
+                default: varStack.setStackValue(aValue, index);
+            }
+        }
+
+        /**
+         * Sets double param at given index (unboxed if param has primitive slot).
+         */
+        private void setDoubleParam(JSVarStack varStack, int anIndex, double aValue)
+        {
+            JavaLocalVar param = _params[anIndex];
+            int index = param.getIndexInStackFrame();
+            switch (param.getSlotType()) {
+                case Int: varStack.setIntValue((int) aValue, index); break;
+                case Long: varStack.setLongValue((long) aValue, index); break;
+                case Double: varStack.setDoubleValue(aValue, index); break;
+                default: varStack.setStackValue(aValue, index);
+            }
+        }
+
+        /**
+         * Returns the param local vars for given lambda expression.
+         */
+        public static JavaLocalVar[] getParamsForLambdaExpr(JExprLambda aLambdaExpr)
+        {
+            List<JVarDecl> varDecls = aLambdaExpr.getParams();
+            JavaLocalVar[] params = new JavaLocalVar[varDecls.size()];
+            for (int i = 0; i < params.length; i++) {
+                JavaDecl decl = varDecls.get(i).getDecl();
+                if (!(decl instanceof JavaLocalVar))
+                    throw new RuntimeException("JSLambda.getParamsForLambdaExpr: Can't resolve lambda param: " + varDecls.get(i).getName());
+                params[i] = (JavaLocalVar) decl;
+            }
+            return params;
+        }
+    }
+
+    /**
+     * A JSLambda for a method reference (Type::staticMethod, expr::method, Type::instanceMethod, Type::new).
+     * The target is resolved from the runtime arg classes and cached until arg classes change.
+     */
+    public static class MethodRef extends JSLambda {
+
+        // The resolver
+        private Resolver  _resolver;
+
+        // The bound receiver (for expr::method)
+        private Object  _receiver;
+
+        // The class (for Type::method and Type::new)
+        private Class<?>  _class;
+
+        // The method name
+        private String  _name;
+
+        // The last resolved target
+        private volatile Target  _target;
+
+        /**
+         * Constructor.
+         */
+        public MethodRef(JSExprEval anEval, Resolver aResolver, Object aReceiver, Class<?> aClass, String aName)
+        {
+            super(anEval);
+            _resolver = aResolver;
+            _receiver = aReceiver;
+            _class = aClass;
+            _name = aName;
+        }
+
+        @Override
+        public Object call(Object[] theArgs) throws Exception
+        {
+            // Bind thread for script code (if fork) and call
+            JSStmtEval stmtEval = getExprEval()._stmtEval;
+            stmtEval.enterThread();
+            try { return callImpl(theArgs); }
+            finally { stmtEval.exitThread(); }
+        }
+
+        /**
+         * Calls method reference target for given args.
+         */
+        private Object callImpl(Object[] theArgs) throws Exception
+        {
+            // Get cached target for arg classes (or resolve new one)
+            Target target = _target;
+            if (target == null || !target.isForArgs(theArgs))
+                _target = target = getTargetForArgs(theArgs);
+
+            // Handle array constructor
+            if (target._kind == Target.ARRAY)
+                return Array.newInstance(_class.getComponentType(), intValue(theArgs[0]));
+
+            // Handle constructor
+            if (target._kind == Target.CONSTRUCTOR)
+                return _resolver.invokeConstructor(_class, target._constructor, theArgs);
+
+            // Handle unbound instance method: First arg is receiver
+            if (target._kind == Target.UNBOUND) {
+                Object[] args = Arrays.copyOfRange(theArgs, 1, theArgs.length);
+                return _resolver.invokeMethod(theArgs[0], target._method, args);
+            }
+
+            // Handle static or bound method
+            return _resolver.invokeMethod(_receiver, target._method, theArgs);
+        }
+
+        /**
+         * Resolves the target for given args.
+         */
+        private Target getTargetForArgs(Object[] theArgs)
+        {
+            // Handle constructor
+            if (_name.equals("new")) {
+                if (_class.isArray())
+                    return new Target(theArgs, Target.ARRAY, null, null);
+                JavaClass javaClass = _resolver.getJavaClassForClass(_class);
+                JavaConstructor constr = JavaClassUtils.getCompatibleConstructor(javaClass, getTypesForArgs(theArgs, 0));
+                if (constr != null)
+                    return new Target(theArgs, Target.CONSTRUCTOR, null, constr);
+            }
+
+            // Handle bound receiver
+            else if (_receiver != null) {
+                JavaClass javaClass = _resolver.getJavaClassForClass(_receiver.getClass());
+                JavaMethod method = JavaClassUtils.getCompatibleMethodAll(javaClass, _name, getTypesForArgs(theArgs, 0));
+                if (method != null)
+                    return new Target(theArgs, Target.BOUND, method, null);
+            }
+
+            // Handle class: Look for static method, then instance method on first arg
+            else if (_class != null) {
+                JavaClass javaClass = _resolver.getJavaClassForClass(_class);
+                JavaMethod method = JavaClassUtils.getCompatibleMethodAll(javaClass, _name, getTypesForArgs(theArgs, 0));
+                if (method != null && method.isStatic())
+                    return new Target(theArgs, Target.STATIC, method, null);
+                if (theArgs.length > 0) {
+                    Object receiver = theArgs[0];
+                    JavaClass receiverClass = receiver != null ? _resolver.getJavaClassForClass(receiver.getClass()) : javaClass;
+                    method = JavaClassUtils.getCompatibleMethodAll(receiverClass, _name, getTypesForArgs(theArgs, 1));
+                    if (method != null && !method.isStatic())
+                        return new Target(theArgs, Target.UNBOUND, method, null);
+                }
+            }
+
+            // Complain
+            String className = _class != null ? _class.getName() : _receiver != null ? _receiver.getClass().getName() : "null";
+            throw new RuntimeException("JSLambda.MethodRef: Can't resolve method reference: " + className + "::" + _name);
+        }
+
+        /**
+         * Returns the class if given method ref prefix expression is a type reference (Type::method, Type::new).
+         */
+        public static Class<?> getClassForPrefixExpr(JExpr aPrefixExpr)
+        {
+            // If this/super, return null
+            if (aPrefixExpr instanceof JExprId) {
+                String name = ((JExprId) aPrefixExpr).getName();
+                if (name.equals("this") || name.equals("super"))
+                    return null;
+            }
+
+            // If prefix decl is class, return real class
+            JavaDecl decl = aPrefixExpr.getDecl();
+            if (decl instanceof JavaClass && (aPrefixExpr instanceof JExprId || aPrefixExpr instanceof JExprType || aPrefixExpr instanceof JExprChain))
+                return ((JavaClass) decl).getRealClass();
+            return null;
+        }
+
+        /**
+         * Returns the types for given args starting at given index.
+         */
+        private JavaType[] getTypesForArgs(Object[] theArgs, int aStart)
+        {
+            JavaType[] types = new JavaType[theArgs.length - aStart];
+            for (int i = 0; i < types.length; i++) {
+                Object arg = theArgs[i + aStart];
+                types[i] = arg != null ? _resolver.getJavaClassForClass(arg.getClass()) : null;
+            }
+            return types;
+        }
+    }
+
+    /**
+     * A JSLambda for a method reference to a method declared in script (this::method, ScriptClass::method): Calls method
+     * through compiled local method (or interpreter if not compiled).
+     */
+    public static class LocalMethodRef extends JSLambda {
+
+        // The "this" object for method
+        private Object  _thisObj;
+
+        // The method decl
+        private JMethodDecl  _methodDecl;
+
+        // The compiled local method (or null if interpreted)
+        private JSCompiledExpr.LocalMethod  _localMethod;
+
+        /**
+         * Constructor.
+         */
+        public LocalMethodRef(JSExprEval anEval, Object aThisObj, JMethodDecl aMethodDecl, JSCompiledExpr.LocalMethod aLocalMethod)
+        {
+            super(anEval);
+            _thisObj = aThisObj;
+            _methodDecl = aMethodDecl;
+            _localMethod = aLocalMethod;
+        }
+
+        @Override
+        public Object call(Object[] theArgs) throws Exception
+        {
+            // Bind thread for script code (if fork) and call method
+            JSExprEval eval = getExprEval();
+            JSStmtEval stmtEval = eval._stmtEval;
+            stmtEval.enterThread();
+            try {
+                if (_localMethod != null)
+                    return _localMethod.invoke(eval, _thisObj, theArgs);
+                return eval.evalMethodCallExprForMethodDecl(_thisObj, _methodDecl, theArgs);
+            }
+            finally { stmtEval.exitThread(); }
+        }
+
+        /**
+         * Returns the method decl if given method ref is to a method declared in script (this::method or
+         * ScriptClass::method, with lambda method param count) - otherwise null.
+         */
+        public static JMethodDecl getMethodDeclForMethodRef(JExprMethodRef aMethodRef)
+        {
+            // Get prefix name (just return if prefix isn't identifier)
+            JExpr prefixExpr = aMethodRef.getExpr();
+            JExprId methodId = aMethodRef.getId();
+            if (!(prefixExpr instanceof JExprId) || methodId == null)
+                return null;
+            String prefixName = ((JExprId) prefixExpr).getName();
+
+            // Get enclosing class decl (just return if prefix isn't this or class decl name)
+            JClassDecl classDecl = aMethodRef.getParent(JClassDecl.class);
+            if (classDecl == null || !prefixName.equals("this") && !prefixName.equals(classDecl.getName()))
+                return null;
+
+            // Get lambda method param count
+            JavaClass lambdaClass = aMethodRef.getEvalClass();
+            Class<?> realClass = lambdaClass != null ? lambdaClass.getRealClass() : null;
+            int paramCount = realClass != null ? getLambdaParamCount(realClass) : -1;
+
+            // Return method decl for name (and param count)
+            String name = methodId.getName();
+            for (JMethodDecl methodDecl : classDecl.getMethodDecls()) {
+                if (methodDecl.getName().equals(name) && (paramCount < 0 || methodDecl.getParameters().size() == paramCount))
+                    return methodDecl;
+            }
+            return null;
+        }
+
+        /**
+         * Returns the param count of abstract method of given functional interface (or -1 if not found).
+         */
+        private static int getLambdaParamCount(Class<?> aClass)
+        {
+            for (Method method : aClass.getMethods()) {
+                if (!Modifier.isAbstract(method.getModifiers()))
+                    continue;
+                try { Object.class.getMethod(method.getName(), method.getParameterTypes()); }
+                catch (NoSuchMethodException e) { return method.getParameterCount(); }
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * A resolved method reference target, with the arg classes it was resolved for.
+     */
+    private static class Target {
+
+        // The arg classes
+        private Class<?>[]  _argClasses;
+
+        // The kind of target
+        private int  _kind;
+
+        // The method (if method target)
+        private JavaMethod  _method;
+
+        // The constructor (if constructor target)
+        private JavaConstructor  _constructor;
+
+        // Constants for kind
+        private static final int STATIC = 0, BOUND = 1, UNBOUND = 2, CONSTRUCTOR = 3, ARRAY = 4;
+
+        /** Constructor. */
+        Target(Object[] theArgs, int aKind, JavaMethod aMethod, JavaConstructor aConstructor)
+        {
+            _argClasses = new Class<?>[theArgs.length];
+            for (int i = 0; i < theArgs.length; i++)
+                _argClasses[i] = theArgs[i] != null ? theArgs[i].getClass() : null;
+            _kind = aKind;
+            _method = aMethod;
+            _constructor = aConstructor;
+        }
+
+        /** Returns whether target was resolved for given args. */
+        boolean isForArgs(Object[] theArgs)
+        {
+            if (theArgs.length != _argClasses.length)
+                return false;
+            for (int i = 0; i < theArgs.length; i++) {
+                Class<?> argClass = theArgs[i] != null ? theArgs[i].getClass() : null;
+                if (argClass != _argClasses[i])
+                    return false;
+            }
+            return true;
+        }
+    }
+}
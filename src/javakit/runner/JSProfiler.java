@@ -0,0 +1,467 @@
+/*
+ * Copyright (c) 2010, ReportMill Software. All rights reserved.
+ */
+package javakit.runner;
+import javakit.parse.JStmt;
+import java.util.*;
+
+/**
+ * This class profiles a run of JSStmtEval: It records per statement execution counts, self time and total time
+ * (Instrument mode) or samples the current statement and method stack of the run thread at an interval (Sample mode,
+ * cheap enough to leave on). Results map back to source lines and can be exported in collapsed-stack (flame graph)
+ * format. When no profiler is set, evaluators skip all profiling code.
+ *
+ * Recorded results (statement stats and call tree) are only changed with profiler locked, so reports can be requested
+ * while run is in progress.
+ */
+public class JSProfiler {
+
+    // The mode
+    private Mode  _mode;
+
+    // The sample interval in millis (Sample mode)
+    private long  _sampleIntervalMillis = 5;
+
+    // The stats for each statement
+    private Map<JStmt,StmtStats>  _stmtStats = new HashMap<>();
+
+    // The root of the call tree (method stacks with statement lines as leaves)
+    private CallNode  _rootNode = new CallNode(null, "main");
+
+    // The active statement frames (Instrument mode)
+    private Frame[]  _frames = new Frame[64];
+
+    // The number of active statement frames
+    private int  _frameCount;
+
+    // The current call tree node (Instrument mode)
+    private CallNode  _node = _rootNode;
+
+    // The method names of current call stack
+    private volatile String[]  _methodStack = new String[64];
+
+    // The current call stack depth
+    private volatile int  _methodDepth;
+
+    // The statement evaluator being profiled
+    private JSStmtEval  _stmtEval;
+
+    // The sampler thread (Sample mode)
+    private Thread  _sampler;
+
+    // Whether sampler should keep running
+    private volatile boolean  _sampling;
+
+    // The total number of samples
+    private long  _sampleCount;
+
+    // The profiling modes
+    public enum Mode { Instrument, Sample }
+
+    /**
+     * Constructor.
+     */
+    public JSProfiler(Mode aMode)
+    {
+        _mode = aMode;
+    }
+
+    /**
+     * Returns the mode.
+     */
+    public Mode getMode()  { return _mode; }
+
+    /**
+     * Returns whether profiler instruments every statement.
+     */
+    public boolean isInstrument()  { return _mode == Mode.Instrument; }
+
+    /**
+     * Returns the sample interval in millis.
+     */
+    public long getSampleIntervalMillis()  { return _sampleIntervalMillis; }
+
+    /**
+     * Sets the sample interval in millis.
+     */
+    public void setSampleIntervalMillis(long aValue)  { _sampleIntervalMillis = Math.max(aValue, 1); }
+
+    /**
+     * Returns the total number of samples (Sample mode).
+     */
+    public synchronized long getSampleCount()  { return _sampleCount; }
+
+    /**
+     * Called when run starts on given statement evaluator.
+     */
+    public void start(JSStmtEval aStmtEval)
+    {
+        // Reset run state
+        _stmtEval = aStmtEval;
+        _frameCount = 0;
+        _node = _rootNode;
+        _methodDepth = 0;
+
+        // If Sample mode, start sampler thread
+        if (_mode == Mode.Sample) {
+            _sampling = true;
+            _sampler = new Thread(this::runSampler, "JSProfiler-Sampler");
+            _sampler.setDaemon(true);
+            _sampler.start();
+        }
+    }
+
+    /**
+     * Called when run stops.
+     */
+    public void stop()
+    {
+        // Stop sampler and wait for it
+        _sampling = false;
+        if (_sampler != null) {
+            _sampler.interrupt();
+            try { _sampler.join(); }
+            catch (InterruptedException e) { Thread.currentThread().interrupt(); }
+            _sampler = null;
+        }
+        _stmtEval = null;
+    }
+
+    /**
+     * Clears recorded results.
+     */
+    public synchronized void reset()
+    {
+        _stmtStats.clear();
+        _rootNode = _node = new CallNode(null, "main");
+        _sampleCount = 0;
+    }
+
+    /**
+     * Called before statement executes (Instrument mode).
+     */
+    public void enterStmt(JStmt aStmt)
+    {
+        // Get next frame
+        if (_frameCount == _frames.length)
+            _frames = Arrays.copyOf(_frames, _frameCount * 2);
+        Frame frame = _frames[_frameCount];
+        if (frame == null)
+            frame = _frames[_frameCount] = new Frame();
+        _frameCount++;
+
+        // Configure frame and set start time last
+        synchronized (this) {
+            frame._stats = getStmtStats(aStmt);
+        }
+        frame._node = _node;
+        frame._childNanos = 0;
+        frame._startNanos = System.nanoTime();
+    }
+
+    /**
+     * Called after statement executes (Instrument mode).
+     */
+    public void exitStmt()
+    {
+        // Pop frame and get elapsed time
+        Frame frame = _frames[--_frameCount];
+        long elapsed = System.nanoTime() - frame._startNanos;
+
+        // Add elapsed to parent frame child time
+        long selfNanos = elapsed - frame._childNanos;
+        if (_frameCount > 0)
+            _frames[_frameCount - 1]._childNanos += elapsed;
+
+        // Update stats and add self time to call tree
+        synchronized (this) {
+            StmtStats stats = frame._stats;
+            stats._count++;
+            stats._totalNanos += elapsed;
+            stats._selfNanos += selfNanos;
+            frame._node.getChild(stats._label)._value += selfNanos;
+        }
+    }
+
+    /**
+     * Called when local method is entered.
+     */
+    public void enterMethod(String aName)
+    {
+        // Push method name
+        int depth = _methodDepth;
+        String[] methodStack = _methodStack;
+        if (depth == methodStack.length)
+            _methodStack = methodStack = Arrays.copyOf(methodStack, depth * 2);
+        methodStack[depth] = aName;
+        _methodDepth = depth + 1;
+
+        // If Instrument mode, update call tree node
+        if (_mode == Mode.Instrument) {
+            synchronized (this) {
+                _node = _node.getChild(aName);
+            }
+        }
+    }
+
+    /**
+     * Called when local method exits.
+     */
+    public void exitMethod()
+    {
+        _methodDepth--;
+        if (_mode == Mode.Instrument && _node._parent != null)
+            _node = _node._parent;
+    }
+
+    /**
+     * Runs sampler loop (Sample mode).
+     */
+    private void runSampler()
+    {
+        while (_sampling) {
+            try { Thread.sleep(_sampleIntervalMillis); }
+            catch (InterruptedException e) { break; }
+            sample();
+        }
+    }
+
+    /**
+     * Records a sample of run thread current statement and method stack.
+     */
+    private synchronized void sample()
+    {
+        // Get current statement (just return if none)
+        JSStmtEval stmtEval = _stmtEval;
+        JStmt stmt = stmtEval != null ? stmtEval._currentStmt : null;
+        if (stmt == null)
+            return;
+
+        // Update statement stats
+        StmtStats stats = getStmtStats(stmt);
+        stats._sampleCount++;
+        _sampleCount++;
+
+        // Add sample to call tree (stack is read racily, so clamp depth to array)
+        String[] methodStack = _methodStack;
+        int depth = Math.min(_methodDepth, methodStack.length);
+        CallNode node = _rootNode;
+        for (int i = 0; i < depth; i++) {
+            String name = methodStack[i];
+            if (name != null)
+                node = node.getChild(name);
+        }
+        node.getChild(stats._label)._value++;
+    }
+
+    /**
+     * Returns the stats for given statement (creating if needed).
+     */
+    private StmtStats getStmtStats(JStmt aStmt)
+    {
+        StmtStats stats = _stmtStats.get(aStmt);
+        if (stats == null)
+            _stmtStats.put(aStmt, stats = new StmtStats(aStmt));
+        return stats;
+    }
+
+    /**
+     * Returns the statement stats sorted by self time (or samples in Sample mode), hottest first.
+     */
+    public synchronized List<StmtStats> getStmtStats()
+    {
+        List<StmtStats> stmtStats = new ArrayList<>(_stmtStats.values());
+        Comparator<StmtStats> comparator = _mode == Mode.Sample ? Comparator.comparingLong(StmtStats::getSampleCount) :
+            Comparator.comparingLong(StmtStats::getSelfNanos);
+        stmtStats.sort(comparator.reversed());
+        return stmtStats;
+    }
+
+    /**
+     * Returns a hot spot report of the given number of hottest source lines.
+     */
+    public synchronized String getHotSpotReport(int aCount)
+    {
+        // Aggregate stats by line
+        Map<Integer,StmtStats> lineStats = new HashMap<>();
+        for (StmtStats stats : _stmtStats.values()) {
+            StmtStats lineStat = lineStats.get(stats.getLineIndex());
+            if (lineStat == null)
+                lineStats.put(stats.getLineIndex(), lineStat = new StmtStats(stats._stmt));
+            lineStat._count += stats._count;
+            lineStat._selfNanos += stats._selfNanos;
+            lineStat._totalNanos = Math.max(lineStat._totalNanos, stats._totalNanos);
+            lineStat._sampleCount += stats._sampleCount;
+        }
+
+        // Sort lines
+        List<StmtStats> lines = new ArrayList<>(lineStats.values());
+        Comparator<StmtStats> comparator = _mode == Mode.Sample ? Comparator.comparingLong(StmtStats::getSampleCount) :
+            Comparator.comparingLong(StmtStats::getSelfNanos);
+        lines.sort(comparator.reversed());
+
+        // Write header and lines
+        StringBuilder sb = new StringBuilder();
+        if (_mode == Mode.Sample) {
+            sb.append(String.format("%6s %10s %7s  %s%n", "Line", "Samples", "%", "Statement"));
+            for (StmtStats line : lines.subList(0, Math.min(aCount, lines.size()))) {
+                double percent = _sampleCount > 0 ? line._sampleCount * 100d / _sampleCount : 0;
+                sb.append(String.format("%6d %10d %6.1f%%  %s%n", line.getLineIndex() + 1, line._sampleCount, percent, line.getStmtString()));
+            }
+        }
+        else {
+            sb.append(String.format("%6s %10s %12s %12s  %s%n", "Line", "Count", "Self ms", "Total ms", "Statement"));
+            for (StmtStats line : lines.subList(0, Math.min(aCount, lines.size()))) {
+                sb.append(String.format("%6d %10d %12.3f %12.3f  %s%n", line.getLineIndex() + 1, line._count,
+                    line._selfNanos / 1e6, line._totalNanos / 1e6, line.getStmtString()));
+            }
+        }
+
+        // Return
+        return sb.toString();
+    }
+
+    /**
+     * Returns the call tree in collapsed-stack format (one "main;method;line N value" per line), for flame graph tools.
+     * Values are microseconds of self time (Instrument mode) or sample counts (Sample mode).
+     */
+    public synchronized String getCollapsedStacks()
+    {
+        StringBuilder sb = new StringBuilder();
+        appendCollapsedStacks(sb, _rootNode, _rootNode._name);
+        return sb.toString();
+    }
+
+    /**
+     * Appends collapsed stacks for given node and its children.
+     */
+    private void appendCollapsedStacks(StringBuilder aSB, CallNode aNode, String aPath)
+    {
+        long value = _mode == Mode.Instrument ? aNode._value / 1000 : aNode._value;
+        if (value > 0)
+            aSB.append(aPath).append(' ').append(value).append('\n');
+        for (CallNode child : aNode._children.values())
+            appendCollapsedStacks(aSB, child, aPath + ';' + child._name);
+    }
+
+    /**
+     * Standard toString implementation.
+     */
+    public String toString()
+    {
+        return "JSProfiler { Mode=" + _mode + ", Statements=" + _stmtStats.size() + ", Samples=" + _sampleCount + " }";
+    }
+
+    /**
+     * The recorded stats for a statement.
+     */
+    public static class StmtStats {
+
+        // The statement
+        private JStmt  _stmt;
+
+        // The call tree label
+        private String  _label;
+
+        // The execution count (Instrument mode)
+        private long  _count;
+
+        // The total and self time in nanos (Instrument mode)
+        private long  _totalNanos, _selfNanos;
+
+        // The number of samples (Sample mode)
+        private long  _sampleCount;
+
+        /** Constructor. */
+        public StmtStats(JStmt aStmt)
+        {
+            _stmt = aStmt;
+            _label = "line " + (aStmt.getLineIndex() + 1);
+        }
+
+        /** Returns the statement. */
+        public JStmt getStmt()  { return _stmt; }
+
+        /** Returns the source line index of statement. */
+        public int getLineIndex()  { return _stmt.getLineIndex(); }
+
+        /** Returns the execution count. */
+        public long getCount()  { return _count; }
+
+        /** Returns the total time in nanos (includes nested statements and recursive executions). */
+        public long getTotalNanos()  { return _totalNanos; }
+
+        /** Returns the self time in nanos (excludes nested statements). */
+        public long getSelfNanos()  { return _selfNanos; }
+
+        /** Returns the number of samples. */
+        public long getSampleCount()  { return _sampleCount; }
+
+        /** Returns the first line of statement text. */
+        public String getStmtString()
+        {
+            String str = _stmt.getString().trim();
+            int newlineIndex = str.indexOf('\n');
+            return newlineIndex > 0 ? str.substring(0, newlineIndex).trim() + " ..." : str;
+        }
+
+        /** Standard toString implementation. */
+        public String toString()
+        {
+            return "StmtStats { Line=" + (getLineIndex() + 1) + ", Count=" + _count + ", SelfNanos=" + _selfNanos +
+                ", TotalNanos=" + _totalNanos + ", Samples=" + _sampleCount + " }";
+        }
+    }
+
+    /**
+     * A node in call tree.
+     */
+    private static class CallNode {
+
+        // The parent node
+        private CallNode  _parent;
+
+        // The name (method name or statement line)
+        private String  _name;
+
+        // The self time in nanos (Instrument mode) or sample count (Sample mode)
+        private long  _value;
+
+        // The child nodes
+        private Map<String,CallNode>  _children = new LinkedHashMap<>();
+
+        /** Constructor. */
+        CallNode(CallNode aParent, String aName)
+        {
+            _parent = aParent;
+            _name = aName;
+        }
+
+        /** Returns the child node for given name (creating if needed). */
+        CallNode getChild(String aName)
+        {
+            CallNode child = _children.get(aName);
+            if (child == null)
+                _children.put(aName, child = new CallNode(this, aName));
+            return child;
+        }
+    }
+
+    /**
+     * An active statement frame (Instrument mode).
+     */
+    private static class Frame {
+
+        // The statement stats
+        private StmtStats  _stats;
+
+        // The call tree node when statement started
+        private CallNode  _node;
+
+        // The start time in nanos
+        private long  _startNanos;
+
+        // The time in nested statements in nanos
+        private long  _childNanos;
+    }
+}
@@ -0,0 +1,427 @@
+/*
+ * Copyright (c) 2010, ReportMill Software. All rights reserved.
+ */
+package javakit.runner;
+import javakit.parse.*;
+import javakit.resolver.JavaDecl;
+import javakit.resolver.JavaLocalVar;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.*;
+
+/**
+ * This class records the top-level statements of a JavaShell run (source text, top-level local vars referenced and
+ * assigned, var values after each statement and console output), so the next run of an edited script can skip
+ * statements that are unchanged and don't depend on a change: Skipped statements just restore their recorded var
+ * values and replay their output.
+ *
+ * A statement is re-run if it changed, if it references a var written by a re-run statement, or if it created or
+ * mutated an object that a re-run statement references (since recorded object references hold end-of-run state).
+ * If script text is unchanged since last run, all statements are re-run (script may depend on time, random or I/O).
+ */
+public class JSRunHistory {
+
+    // The statement records of last run
+    private List<StmtRecord>  _records = new ArrayList<>();
+
+    // The script text of last run
+    private String  _scriptText;
+
+    // The script text outside top-level statements (imports, class and method decls) of last run
+    private String  _contextText;
+
+    // Whether last run completed all statements
+    private boolean  _complete;
+
+    // Constant for value of var not known before statement
+    private static final Object UNKNOWN_VALUE = new Object();
+
+    /**
+     * Constructor.
+     */
+    public JSRunHistory()  { }
+
+    /**
+     * Clears the history, so next run runs all statements.
+     */
+    public synchronized void clear()
+    {
+        _records.clear();
+        _scriptText = null;
+        _contextText = null;
+        _complete = false;
+    }
+
+    /**
+     * Returns a run plan for given statements of given JFile (or null if statements can't be tracked incrementally).
+     */
+    public synchronized RunPlan getRunPlan(JFile aJFile, JStmt[] theStmts)
+    {
+        // Get top-level vars (if any var name declared twice, just return)
+        Map<JavaLocalVar,String> topLevelVars = new HashMap<>();
+        Map<String,JavaLocalVar> topLevelVarsByName = new HashMap<>();
+        for (JStmt stmt : theStmts) {
+            if (!(stmt instanceof JStmtVarDecl))
+                continue;
+            for (JVarDecl varDecl : ((JStmtVarDecl) stmt).getVarDecls()) {
+                JavaDecl decl = varDecl.getDecl();
+                if (!(decl instanceof JavaLocalVar) || topLevelVarsByName.containsKey(varDecl.getName()))
+                    return null;
+                topLevelVars.put((JavaLocalVar) decl, varDecl.getName());
+                topLevelVarsByName.put(varDecl.getName(), (JavaLocalVar) decl);
+            }
+        }
+
+        // Create records for statements
+        StmtRecord[] newRecords = new StmtRecord[theStmts.length];
+        for (int i = 0; i < theStmts.length; i++)
+            newRecords[i] = new StmtRecord(theStmts[i], topLevelVars);
+
+        // Create plan and return
+        String scriptText = aJFile.getJavaFileString();
+        String contextText = getContextText(aJFile, theStmts);
+        return new RunPlan(newRecords, scriptText, contextText, topLevelVarsByName);
+    }
+
+    /**
+     * Called when run finishes to make plan records the history for next run.
+     */
+    protected synchronized void finishRun(RunPlan aRunPlan, boolean isComplete)
+    {
+        _records = aRunPlan._doneRecords;
+        _scriptText = aRunPlan._scriptText;
+        _contextText = aRunPlan._contextText;
+        _complete = isComplete;
+    }
+
+    /**
+     * Returns the indexes of last run records matching given statements (or -1), matching unchanged leading statements
+     * and (if last run completed) unchanged trailing statements.
+     */
+    private int[] getOldIndexes(StmtRecord[] newRecords, String aScriptText, String aContextText)
+    {
+        // Create indexes
+        int newCount = newRecords.length;
+        int[] oldIndexes = new int[newCount];
+        Arrays.fill(oldIndexes, -1);
+
+        // If script unchanged (explicit re-run), just return so all statements run
+        if (aScriptText == null || aScriptText.equals(_scriptText))
+            return oldIndexes;
+
+        // If context changed (imports, methods, etc.), just return
+        if (!Objects.equals(aContextText, _contextText))
+            return oldIndexes;
+
+        // Match leading statements
+        int oldCount = _records.size();
+        int prefix = 0;
+        while (prefix < newCount && prefix < oldCount && newRecords[prefix]._text.equals(_records.get(prefix)._text)) {
+            oldIndexes[prefix] = prefix;
+            prefix++;
+        }
+
+        // Match trailing statements (only if last run completed, otherwise old records don't cover trailing statements)
+        if (_complete) {
+            for (int i = 0; i < newCount - prefix && i < oldCount - prefix; i++) {
+                int newIndex = newCount - 1 - i, oldIndex = oldCount - 1 - i;
+                if (!newRecords[newIndex]._text.equals(_records.get(oldIndex)._text))
+                    break;
+                oldIndexes[newIndex] = oldIndex;
+            }
+        }
+
+        // Return
+        return oldIndexes;
+    }
+
+    /**
+     * Returns the var values of last run before each record (as cumulative maps of values after preceding records).
+     */
+    private List<Map<String,Object>> getOldStates()
+    {
+        List<Map<String,Object>> states = new ArrayList<>(_records.size() + 1);
+        Map<String,Object> state = new HashMap<>();
+        states.add(state);
+        for (StmtRecord record : _records) {
+            state = new HashMap<>(state);
+            state.putAll(record._outValues);
+            states.add(state);
+        }
+        return states;
+    }
+
+    /**
+     * Returns whether value is immutable (so a recorded reference to it is still valid when restored).
+     */
+    private static boolean isImmutableValue(Object aValue)
+    {
+        return aValue == null || aValue instanceof String || aValue instanceof Integer || aValue instanceof Long ||
+            aValue instanceof Double || aValue instanceof Float || aValue instanceof Short || aValue instanceof Byte ||
+            aValue instanceof Character || aValue instanceof Boolean || aValue instanceof BigInteger ||
+            aValue instanceof BigDecimal || aValue instanceof Enum || aValue instanceof Class;
+    }
+
+    /**
+     * Returns the text of given JFile outside given statements, with whitespace removed.
+     */
+    private static String getContextText(JFile aJFile, JStmt[] theStmts)
+    {
+        // Get file string and remove statement ranges (in reverse so indexes stay valid)
+        String javaString = aJFile.getJavaFileString();
+        StringBuilder sb = new StringBuilder(javaString != null ? javaString : "");
+        for (int i = theStmts.length - 1; i >= 0; i--) {
+            JStmt stmt = theStmts[i];
+            if (stmt == null)
+                continue;
+            int start = Math.min(stmt.getStartCharIndex(), sb.length());
+            int end = Math.min(stmt.getEndCharIndex(), sb.length());
+            sb.delete(start, end);
+        }
+
+        // Remove whitespace and return
+        return sb.toString().replaceAll("\\s+", "");
+    }
+
+    /**
+     * A plan for an incremental run: Which statements to run and the records to restore for skipped statements.
+     */
+    public class RunPlan {
+
+        // The records for new statements
+        private StmtRecord[]  _newRecords;
+
+        // The script text
+        private String  _scriptText;
+
+        // The context text
+        private String  _contextText;
+
+        // The top-level vars by name
+        private Map<String,JavaLocalVar>  _topLevelVars;
+
+        // The last run record for each new statement (or null if statement changed)
+        private StmtRecord[]  _oldRecords;
+
+        // Whether each statement needs to run
+        private boolean[]  _runStmts;
+
+        // The records of statements run or skipped so far in this run
+        private List<StmtRecord>  _doneRecords = new ArrayList<>();
+
+        // The record of statement currently running
+        private StmtRecord  _currentRecord;
+
+        /**
+         * Constructor.
+         */
+        protected RunPlan(StmtRecord[] newRecords, String aScriptText, String aContextText, Map<String,JavaLocalVar> topLevelVars)
+        {
+            _newRecords = newRecords;
+            _scriptText = aScriptText;
+            _contextText = aContextText;
+            _topLevelVars = topLevelVars;
+
+            // Get last run records for unchanged statements and var values of last run
+            int newCount = newRecords.length;
+            int[] oldIndexes = getOldIndexes(newRecords, aScriptText, aContextText);
+            List<Map<String,Object>> oldStates = getOldStates();
+            _oldRecords = new StmtRecord[newCount];
+            _runStmts = new boolean[newCount];
+
+            // Get last run states before each statement (changed statements get state after last unchanged statement)
+            List<Map<String,Object>> statesBefore = new ArrayList<>(newCount);
+            int oldPos = 0;
+            for (int i = 0; i < newCount; i++) {
+                if (oldIndexes[i] >= 0) {
+                    oldPos = oldIndexes[i];
+                    _oldRecords[i] = _records.get(oldPos);
+                }
+                else _runStmts[i] = true;
+                statesBefore.add(oldPos < oldStates.size() ? oldStates.get(oldPos) : Collections.emptyMap());
+                if (oldIndexes[i] >= 0)
+                    oldPos++;
+            }
+
+            // Iterate until no more statements are added
+            for (boolean changed = true; changed; ) {
+                changed = false;
+                Set<String> dirtyVars = new HashSet<>();
+
+                for (int i = 0; i < newCount; i++) {
+                    StmtRecord record = newRecords[i];
+
+                    // If statement not running, but references dirty var, mark to run
+                    if (!_runStmts[i] && !Collections.disjoint(record._refs, dirtyVars))
+                        _runStmts[i] = changed = true;
+                    if (!_runStmts[i])
+                        continue;
+
+                    // Add assigned vars and referenced mutable vars to dirty vars
+                    Map<String,Object> stateBefore = statesBefore.get(i);
+                    dirtyVars.addAll(record._defs);
+                    for (String varName : record._refs) {
+                        Object value = stateBefore.containsKey(varName) ? stateBefore.get(varName) : UNKNOWN_VALUE;
+                        if (isImmutableValue(value))
+                            continue;
+                        dirtyVars.add(varName);
+
+                        // Mark earlier statements that reference mutable var to run (they created or mutated it)
+                        for (int j = 0; j < i; j++) {
+                            if (!_runStmts[j] && newRecords[j]._refs.contains(varName))
+                                _runStmts[j] = changed = true;
+                        }
+                    }
+                }
+            }
+        }
+
+        /**
+         * Returns whether statement at given index needs to run.
+         */
+        public boolean isRunStmt(int anIndex)  { return _runStmts[anIndex]; }
+
+        /**
+         * Skips statement at given index: Restores its recorded var values to given stack and replays its output.
+         */
+        public void skipStmt(int anIndex, JSVarStack aVarStack, JavaShell.ShellClient aClient)
+        {
+            // Restore var values
+            StmtRecord oldRecord = _oldRecords[anIndex];
+            for (Map.Entry<String,Object> entry : oldRecord._outValues.entrySet()) {
+                JavaLocalVar localVar = _topLevelVars.get(entry.getKey());
+                if (localVar != null && localVar.getIndexInStackFrame() >= 0)
+                    aVarStack.setStackValueForLocalVar(localVar, entry.getValue());
+            }
+
+            // Replay output
+            if (aClient != null) {
+                for (Object output : oldRecord._outputs)
+                    aClient.processOutput(output);
+            }
+
+            // Add to done records
+            _doneRecords.add(oldRecord);
+        }
+
+        /**
+         * Called before statement at given index runs.
+         */
+        public void startStmt(int anIndex)
+        {
+            _currentRecord = _newRecords[anIndex];
+        }
+
+        /**
+         * Called after statement at given index runs: Records var values (if statement completed normally).
+         */
+        public void endStmt(int anIndex, JSVarStack aVarStack, boolean didComplete)
+        {
+            // Clear current record (if statement didn't complete, don't record, so next run will run it again)
+            StmtRecord record = _currentRecord;
+            _currentRecord = null;
+            if (!didComplete)
+                return;
+
+            // Record values of referenced vars
+            for (String varName : record._refs) {
+                JavaLocalVar localVar = _topLevelVars.get(varName);
+                if (localVar != null && localVar.getIndexInStackFrame() >= 0)
+                    record._outValues.put(varName, aVarStack.getStackValueForLocalVar(localVar));
+            }
+
+            // Add to done records
+            _doneRecords.add(record);
+        }
+
+        /**
+         * Adds console output to current statement record.
+         */
+        public void addOutput(Object anOutput)
+        {
+            StmtRecord record = _currentRecord;
+            if (record != null)
+                record._outputs.add(anOutput);
+        }
+    }
+
+    /**
+     * A record of a top-level statement: Source text, top-level vars referenced and assigned, var values after run
+     * and console output.
+     */
+    private static class StmtRecord {
+
+        // The statement source text
+        private String  _text;
+
+        // The names of top-level vars referenced and assigned (declared or assigned with =, +=, ++, etc.)
+        private Set<String>  _refs = new HashSet<>(), _defs = new HashSet<>();
+
+        // The values of referenced vars after statement ran
+        private Map<String,Object>  _outValues = new HashMap<>();
+
+        // The console output of statement
+        private List<Object>  _outputs = new ArrayList<>();
+
+        /**
+         * Constructor for given statement and top-level vars.
+         */
+        public StmtRecord(JStmt aStmt, Map<JavaLocalVar,String> topLevelVars)
+        {
+            _text = aStmt != null ? aStmt.getString() : "";
+            if (aStmt != null)
+                findRefsAndDefs(aStmt, topLevelVars);
+        }
+
+        /**
+         * Finds top-level vars referenced and assigned in given node.
+         */
+        private void findRefsAndDefs(JNode aNode, Map<JavaLocalVar,String> topLevelVars)
+        {
+            // Handle var decl
+            if (aNode instanceof JVarDecl) {
+                String varName = topLevelVars.get(aNode.getDecl());
+                if (varName != null) {
+                    _refs.add(varName);
+                    _defs.add(varName);
+                }
+            }
+
+            // Handle id
+            else if (aNode instanceof JExprId) {
+                String varName = topLevelVars.get(aNode.getDecl());
+                if (varName != null)
+                    _refs.add(varName);
+            }
+
+            // Handle assign
+            else if (aNode instanceof JExprAssign)
+                addDefForExpr(((JExprAssign) aNode).getIdExpr(), topLevelVars);
+
+            // Handle increment/decrement
+            else if (aNode instanceof JExprMath) {
+                JExprMath mathExpr = (JExprMath) aNode;
+                switch (mathExpr.getOp()) {
+                    case PreIncrement: case PreDecrement: case PostIncrement: case PostDecrement:
+                        addDefForExpr(mathExpr.getOperand(0), topLevelVars);
+                        break;
+                    default: break;
+                }
+            }
+
+            // Recurse into children
+            for (JNode child : aNode.getChildren())
+                findRefsAndDefs(child, topLevelVars);
+        }
+
+        /**
+         * Adds def for given assigned expression, if top-level var id.
+         */
+        private void addDefForExpr(JExpr anExpr, Map<JavaLocalVar,String> topLevelVars)
+        {
+            String varName = anExpr instanceof JExprId ? topLevelVars.get(anExpr.getDecl()) : null;
+            if (varName != null)
+                _defs.add(varName);
+        }
+    }
+}
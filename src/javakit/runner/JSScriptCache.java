@@ -0,0 +1,379 @@
+/*
+ * Copyright (c) 2010, ReportMill Software. All rights reserved.
+ */
+package javakit.runner;
+import javakit.parse.*;
+import javakit.project.JavaAgent;
+import javakit.project.Project;
+import javakit.resolver.Resolver;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.*;
+
+/**
+ * This class caches prepared scripts (parsed JFile with stack indexes set, statements and compiler with compiled
+ * evaluators) keyed by a hash of the source text, imports and class path, so re-running an unchanged script skips
+ * parse, resolve and prepare. Entries are evicted least recently used first when over memory or entry limits.
+ *
+ * A prepared script is used by one run at a time, since its JFile (lazy decls and eval types, node errors) and
+ * compiler aren't safe to share: If the cached script is in use, a concurrent run gets its own uncached parse.
+ * Prepared scripts use the agent JFile if it was parsed from current text, until the agent text changes.
+ */
+public class JSScriptCache {
+
+    // The prepared scripts by key (in access order for LRU)
+    private LinkedHashMap<String,PreparedScript>  _scripts = new LinkedHashMap<>(16, .75f, true);
+
+    // The estimated memory of cached scripts
+    private long  _memory;
+
+    // The maximum estimated memory of cached scripts
+    private long  _maxMemory = 64 * 1024 * 1024;
+
+    // The maximum number of cached scripts
+    private int  _maxCount = 256;
+
+    // The number of cache hits and misses
+    private long  _hitCount, _missCount;
+
+    // The class path fingerprints by resolver (recomputed when resolver class path version changes)
+    private Map<Resolver,ClassPathPrint>  _classPathPrints = new WeakHashMap<>();
+
+    // The shared instance
+    private static JSScriptCache  _shared = new JSScriptCache();
+
+    // The estimated memory per source char of a parsed, resolved and compiled script
+    private static final int BYTES_PER_CHAR = 128;
+
+    /**
+     * Constructor.
+     */
+    public JSScriptCache()  { }
+
+    /**
+     * Returns the maximum estimated memory of cached scripts.
+     */
+    public synchronized long getMaxMemory()  { return _maxMemory; }
+
+    /**
+     * Sets the maximum estimated memory of cached scripts.
+     */
+    public synchronized void setMaxMemory(long aValue)
+    {
+        _maxMemory = aValue;
+        trimToLimits();
+    }
+
+    /**
+     * Returns the maximum number of cached scripts.
+     */
+    public synchronized int getMaxCount()  { return _maxCount; }
+
+    /**
+     * Sets the maximum number of cached scripts.
+     */
+    public synchronized void setMaxCount(int aValue)
+    {
+        _maxCount = aValue;
+        trimToLimits();
+    }
+
+    /**
+     * Returns the number of cache hits.
+     */
+    public synchronized long getHitCount()  { return _hitCount; }
+
+    /**
+     * Returns the number of cache misses.
+     */
+    public synchronized long getMissCount()  { return _missCount; }
+
+    /**
+     * Returns a prepared script for given agent for use by one run (from cache if source, imports and class path are
+     * unchanged and cached script isn't in use). Caller must call PreparedScript.release() when run finishes.
+     */
+    public PreparedScript getPreparedScript(JavaAgent aJavaAgent)
+    {
+        // Get resolver (if not available, just prepare uncached)
+        Project proj = aJavaAgent.getProject();
+        Resolver resolver = proj != null ? proj.getResolver() : null;
+        String javaText = aJavaAgent.getJavaText();
+        if (resolver == null)
+            return new PreparedScript(aJavaAgent, javaText, null, 0, true);
+
+        // Get key and cached script (if found for same resolver and still valid, just return)
+        String key = getKey(aJavaAgent, javaText, resolver);
+        synchronized (this) {
+            PreparedScript script = _scripts.get(key);
+            if (script != null && script._resolver == resolver && script.isValid()) {
+
+                // If in use by another run, just prepare uncached script (with own JFile) for this run
+                if (script._inUse)
+                    return new PreparedScript(aJavaAgent, javaText, null, 0, false);
+                script._inUse = true;
+                _hitCount++;
+                return script;
+            }
+            _missCount++;
+        }
+
+        // Prepare script (in use by this run)
+        long memory = (long) javaText.length() * BYTES_PER_CHAR;
+        PreparedScript script = new PreparedScript(aJavaAgent, javaText, resolver, memory, true);
+        script._inUse = true;
+
+        // Add to cache and trim
+        synchronized (this) {
+            PreparedScript oldScript = _scripts.put(key, script);
+            if (oldScript != null)
+                _memory -= oldScript._memory;
+            _memory += memory;
+            trimToLimits();
+        }
+
+        // Return
+        return script;
+    }
+
+    /**
+     * Clears the cache.
+     */
+    public synchronized void clear()
+    {
+        _scripts.clear();
+        _memory = 0;
+    }
+
+    /**
+     * Removes least recently used scripts until cache is within limits.
+     */
+    private void trimToLimits()
+    {
+        Iterator<PreparedScript> iter = _scripts.values().iterator();
+        while ((_memory > _maxMemory || _scripts.size() > _maxCount) && iter.hasNext()) {
+            PreparedScript script = iter.next();
+            _memory -= script._memory;
+            iter.remove();
+        }
+    }
+
+    /**
+     * Returns the key for given agent, text and resolver: A hash of agent type, text, imports and class path fingerprint.
+     */
+    private String getKey(JavaAgent aJavaAgent, String javaText, Resolver aResolver)
+    {
+        // Get digest
+        MessageDigest digest = createDigest();
+
+        // Add agent type and text
+        updateDigest(digest, aJavaAgent.getClass().getName());
+        updateDigest(digest, javaText);
+
+        // Add imports (for Jepl)
+        JavaTextDoc javaTextDoc = aJavaAgent.getJavaTextDoc();
+        if (javaTextDoc instanceof JeplTextDoc) {
+            for (String importStr : ((JeplTextDoc) javaTextDoc).getImports())
+                updateDigest(digest, importStr);
+        }
+
+        // Add class path fingerprint
+        updateDigest(digest, getClassPathPrint(aResolver));
+
+        // Return hex string
+        return getHexString(digest.digest());
+    }
+
+    /**
+     * Returns the class path fingerprint for given resolver: A hash of path, length and modified time of each class
+     * path entry (and class files in directories). Cached until resolver class path version changes (on build).
+     */
+    private String getClassPathPrint(Resolver aResolver)
+    {
+        // Get cached print (if current for resolver class path version, just return)
+        int version = aResolver.getClassPathVersion();
+        synchronized (this) {
+            ClassPathPrint print = _classPathPrints.get(aResolver);
+            if (print != null && print._version == version)
+                return print._hash;
+        }
+
+        // Add class path entries to digest
+        MessageDigest digest = createDigest();
+        String[] classPaths = aResolver.getClassPaths();
+        if (classPaths != null) {
+            for (String classPath : classPaths)
+                updateDigestForClassPathFile(digest, new File(classPath));
+        }
+
+        // Get hash, add to cache and return
+        String hash = getHexString(digest.digest());
+        synchronized (this) {
+            _classPathPrints.put(aResolver, new ClassPathPrint(version, hash));
+        }
+        return hash;
+    }
+
+    /**
+     * Adds fingerprint of given class path file to digest: Path, length and modified time. For directories, adds class
+     * files inside instead (directory length and modified time don't change when contained classes are rebuilt).
+     */
+    private static void updateDigestForClassPathFile(MessageDigest aDigest, File aFile)
+    {
+        // Handle directory: Add contained files and directories (sorted for stable digest)
+        if (aFile.isDirectory()) {
+            File[] files = aFile.listFiles();
+            if (files == null)
+                return;
+            Arrays.sort(files);
+            for (File file : files)
+                if (file.isDirectory() || file.getName().endsWith(".class"))
+                    updateDigestForClassPathFile(aDigest, file);
+            return;
+        }
+
+        // Handle file
+        updateDigest(aDigest, aFile.getPath() + ':' + aFile.length() + ':' + aFile.lastModified());
+    }
+
+    /**
+     * Returns a new digest.
+     */
+    private static MessageDigest createDigest()
+    {
+        try { return MessageDigest.getInstance("SHA-256"); }
+        catch (Exception e) { throw new RuntimeException("JSScriptCache.createDigest: " + e); }
+    }
+
+    /**
+     * Returns hex string for given bytes.
+     */
+    private static String getHexString(byte[] theBytes)
+    {
+        StringBuilder sb = new StringBuilder(theBytes.length * 2);
+        for (byte b : theBytes)
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        return sb.toString();
+    }
+
+    /**
+     * Adds given string to digest (with terminator so adjacent strings can't run together).
+     */
+    private static void updateDigest(MessageDigest aDigest, String aString)
+    {
+        aDigest.update(aString.getBytes(StandardCharsets.UTF_8));
+        aDigest.update((byte) 0);
+    }
+
+    /**
+     * Returns the shared instance.
+     */
+    public static JSScriptCache getShared()  { return _shared; }
+
+    /**
+     * A class path fingerprint for a resolver class path version.
+     */
+    private static class ClassPathPrint {
+
+        // The resolver class path version
+        private final int  _version;
+
+        // The hash
+        private final String  _hash;
+
+        /** Constructor. */
+        ClassPathPrint(int aVersion, String aHash)
+        {
+            _version = aVersion;
+            _hash = aHash;
+        }
+    }
+
+    /**
+     * A prepared script: Parsed JFile with var stack indexes, statements and a compiler holding compiled evaluators.
+     */
+    public static class PreparedScript {
+
+        // The JFile
+        private JFile  _jfile;
+
+        // The statements to run (null if no main method)
+        private JStmt[]  _stmts;
+
+        // The resolver
+        private Resolver  _resolver;
+
+        // The estimated memory
+        private long  _memory;
+
+        // The compiler
+        private JSCompiler  _compiler;
+
+        // Whether script is in use by a run (set with cache locked, cleared by run on release)
+        private volatile boolean  _inUse;
+
+        // The agent if JFile is agent JFile (or null if parsed for script) and agent text change count when shared
+        private JavaAgent  _agent;
+        private int  _agentTextChangeCount;
+
+        /**
+         * Constructor: Parses (or gets agent JFile if allowed and current for text), resolves and prepares script.
+         */
+        protected PreparedScript(JavaAgent aJavaAgent, String aJavaText, Resolver aResolver, long aMemory, boolean isShareAgentJFile)
+        {
+            // Get agent JFile if parsed from text (get text change count first, so any change after marks it invalid)
+            int textChangeCount = aJavaAgent.getTextChangeCount();
+            JFile agentJFile = isShareAgentJFile ? aJavaAgent.getJFileForText(aJavaText) : null;
+            if (agentJFile != null) {
+                _jfile = agentJFile;
+                _agent = aJavaAgent;
+                _agentTextChangeCount = textChangeCount;
+            }
+
+            // Otherwise parse new JFile
+            else _jfile = aJavaAgent.createJFile();
+
+            // Set var stack indexes
+            Simpiler.setVarStackIndexForJFile(_jfile);
+
+            // Get statements and compile
+            _stmts = aJavaAgent.getStatementsForJFile(_jfile);
+            _compiler = new JSCompiler();
+            if (_stmts != null) {
+                for (JStmt stmt : _stmts)
+                    if (stmt != null && stmt.getErrors() == NodeError.NO_ERRORS)
+                        _compiler.getCompiledStmt(stmt);
+            }
+
+            // Set resolver and memory
+            _resolver = aResolver;
+            _memory = aMemory;
+        }
+
+        /**
+         * Returns the JFile.
+         */
+        public JFile getJFile()  { return _jfile; }
+
+        /**
+         * Returns the statements to run (null if no main method).
+         */
+        public JStmt[] getStatements()  { return _stmts; }
+
+        /**
+         * Returns the compiler (compiled statements and method bodies are only valid for this script's JFile).
+         */
+        public JSCompiler getCompiler()  { return _compiler; }
+
+        /**
+         * Returns whether script is still valid: True unless JFile is agent JFile and agent text has changed since
+         * (editor can update agent JFile in place).
+         */
+        public boolean isValid()  { return _agent == null || _agent.getTextChangeCount() == _agentTextChangeCount; }
+
+        /**
+         * Called when run finishes, so cached script can be used by next run.
+         */
+        public void release()  { _inUse = false; }
+    }
+}
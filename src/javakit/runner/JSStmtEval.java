@@ -3,6 +3,8 @@
  */
 package javakit.runner;
 import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CopyOnWriteArrayList;
 import javakit.parse.*;
 import snap.util.Convert;
 import snap.util.ListUtils;
@@ -17,10 +19,10 @@ public class JSStmtEval {
     protected JSExprEval _exprEval;
 
     // Whether we hit a break statement
-    private boolean  _breakWasHit;
+    protected boolean  _breakWasHit;
 
     // Whether we hit a continue statement
-    private boolean  _continueWasHit;
+    protected boolean  _continueWasHit;
 
     // Holds a return value if return was hit
     protected Object  _returnValueHit;
@@ -28,11 +30,49 @@ public class JSStmtEval {
     // A Yield count
     private long  _lastYield;
 
-    // Whether to stop current run
-    protected boolean  _stopRun;
+    // Whether to stop current run (volatile, since bytecode compiled loops check it from run thread)
+    protected volatile boolean  _stopRun;
+
+    // The number of loop back-edges taken (used to find hot methods)
+    protected long  _backEdgeCount;
+
+    // The execution budget for current run (null for none)
+    protected JSBudget  _budget;
+
+    // The number of statements executed in current run (block statements and loop iterations)
+    protected long  _stmtCount;
+
+    // The statement count already flushed to budget run count and the number of budget checks (used by JSBudget)
+    protected long  _budgetStmtCount;
+    protected int  _budgetCheckCount;
+
+    // The block statement currently executing (for budget reports)
+    protected JStmt  _currentStmt;
+
+    // The profiler for runs (null if not profiling)
+    protected JSProfiler  _profiler;
+
+    // The thread this evaluator runs on
+    protected Thread  _thread;
+
+    // The evaluator this evaluator was forked from (null if this is the run evaluator)
+    protected JSStmtEval  _root;
+
+    // The evaluators forked for other threads calling script lambdas (parallel streams, executors, ForkJoin)
+    private ThreadLocal<JSStmtEval>  _threadForks = new ThreadLocal<>();
+
+    // The list of all forked evaluators (so stop can reach them)
+    private List<JSStmtEval>  _forks = new CopyOnWriteArrayList<>();
+
+    // The shell capturing console output of current run (bound to fork threads while they run script code)
+    protected JavaShell  _shell;
+
+    // The depth of script calls on fork thread and the shell bound to thread before outermost call
+    private int  _threadCallDepth;
+    private JavaShell  _threadShellBefore;
 
     // Constant representing a returned null value
-    private Object NULL_RETURN_VALUE = new Object();
+    protected Object NULL_RETURN_VALUE = new Object();
 
     /**
      * Constructor.
@@ -43,6 +83,83 @@ public class JSStmtEval {
 
         // Create ExprEval
         _exprEval = new JSExprEval(this);
+        _thread = Thread.currentThread();
+    }
+
+    /**
+     * Constructor for evaluator forked from given run evaluator for current thread.
+     */
+    protected JSStmtEval(JSStmtEval aRoot)
+    {
+        this();
+        _root = aRoot;
+        _budget = aRoot._budget;
+        _stopRun = aRoot._stopRun;
+        _exprEval._resolver = aRoot._exprEval._resolver;
+        _exprEval._thisObj = aRoot._exprEval._thisObj;
+    }
+
+    /**
+     * Returns the evaluator for current thread: This evaluator if on its thread, otherwise a fork with its own
+     * var stack and control flow state, so script lambdas and methods can run on many threads at once.
+     */
+    public JSStmtEval getStmtEvalForCurrentThread()
+    {
+        // If on this evaluator thread, just return
+        Thread thread = Thread.currentThread();
+        if (thread == _thread)
+            return this;
+
+        // If on run thread, return run evaluator
+        JSStmtEval root = _root != null ? _root : this;
+        if (thread == root._thread)
+            return root;
+
+        // Get fork for current thread (create if missing)
+        JSStmtEval fork = root._threadForks.get();
+        if (fork == null) {
+            fork = new JSStmtEval(root);
+            root._threadForks.set(fork);
+            root._forks.add(fork);
+            if (fork._budget != null)
+                fork._budget.addThread(thread);
+        }
+
+        // Return
+        return fork;
+    }
+
+    /**
+     * Called when script code starts on current thread: If fork, binds run shell to thread for outermost call.
+     */
+    public void enterThread()
+    {
+        if (_root == null || _threadCallDepth++ > 0)
+            return;
+        _threadShellBefore = JavaShellUtils.getShellForCurrentThread();
+        JavaShellUtils.setShellForCurrentThread(_root._shell);
+    }
+
+    /**
+     * Called when script code finishes on current thread: If fork, restores thread shell after outermost call.
+     */
+    public void exitThread()
+    {
+        if (_root == null || --_threadCallDepth > 0)
+            return;
+        JavaShellUtils.setShellForCurrentThread(_threadShellBefore);
+        _threadShellBefore = null;
+    }
+
+    /**
+     * Stops current run (on run thread and all forked threads).
+     */
+    public void stopRun()
+    {
+        JSStmtEval root = _root != null ? _root : this;
+        root._stopRun = true;
+        for (JSStmtEval fork : root._forks)
+            fork._stopRun = true;
     }
 
     /**
@@ -65,6 +182,31 @@ public class JSStmtEval {
         }
     }
 
+    /**
+     * Executes compiled top level statements.
+     */
+    public Object evalExecutable(Object anOR, JSCompiledStmt aStmt) throws Exception
+    {
+        // Set this object (and restore on return, since this can be a method call in the middle of an expression)
+        Object thisObj = _exprEval._thisObj;
+        _exprEval._thisObj = anOR;
+
+        // Eval statement and return
+        try {
+            _returnValueHit = null;
+            Object returnVal = aStmt.eval(this, anOR);
+            if (returnVal == NULL_RETURN_VALUE)
+                returnVal = null;
+            return returnVal;
+        }
+
+        // Reset ReturnValueHit and this object
+        finally {
+            _returnValueHit = null;
+            _exprEval._thisObj = thisObj;
+        }
+    }
+
     /**
      * Evaluate JStmt.
      */
@@ -131,12 +273,17 @@ public class JSStmtEval {
 
         // Handle switch statement
         if (aStmt instanceof JStmtSwitch)
-            throw new RuntimeException("JSStmtEval: switch Statement not implemented");
+            return evalSwitchStmt(anOR, (JStmtSwitch) aStmt);
 
         // Handle sync statement
         if (aStmt instanceof JStmtSynchronized) {
             JStmtSynchronized syncStmt = (JStmtSynchronized) aStmt;
-            return evalStmt(anOR, syncStmt.getBlock());
+            Object lockObj = evalExpr(syncStmt.getExpression());
+            if (lockObj == null)
+                throw new NullPointerException("JSStmtEval: synchronized on null");
+            synchronized (lockObj) {
+                return evalStmt(anOR, syncStmt.getBlock());
+            }
         }
 
         // Handle throw statement
@@ -164,13 +311,22 @@ public class JSStmtEval {
      */
     public Object evalBlockStmt(Object anOR, JStmtBlock aBlockStmt) throws Exception
     {
-        // Get statements
+        // Get statements and profiler (if instrumenting)
         List<JStmt> statements = aBlockStmt.getStatements();
         Object returnVal = null;
+        JSProfiler profiler = _profiler != null && _profiler.isInstrument() ? _profiler : null;
 
         // Iterate over statements and evaluate each
         for (JStmt stmt : statements) {
-            Object rval = evalStmt(anOR, stmt);
+            _currentStmt = stmt;
+            _stmtCount++;
+            Object rval;
+            if (profiler != null) {
+                profiler.enterStmt(stmt);
+                try { rval = evalStmt(anOR, stmt); }
+                finally { profiler.exitStmt(); }
+            }
+            else rval = evalStmt(anOR, stmt);
             if (stmt instanceof JStmtReturn)
                 returnVal = rval;
             if (_breakWasHit || _continueWasHit || _stopRun || _returnValueHit != null)
@@ -191,6 +347,56 @@ public class JSStmtEval {
         return val;
     }
 
+    /**
+     * Evaluate JStmtSwitch: Finds matching case (or default) and evaluates statements from there (with fall through).
+     */
+    public Object evalSwitchStmt(Object anOR, JStmtSwitch aSwitchStmt) throws Exception
+    {
+        // Get selector key
+        Object value = evalExpr(aSwitchStmt.getExpr());
+        if (value == null)
+            throw new NullPointerException("JSStmtEval: Switch selector is null: " + aSwitchStmt.getExpr());
+        JSCompiledStmt.Switch.KeyType keyType = JSCompiledStmt.Switch.getKeyTypeForValue(value);
+        Object key = JSCompiledStmt.Switch.getKeyForValue(value, keyType);
+
+        // Find matching case index (or default)
+        List<JStmtSwitchCase> switchCases = aSwitchStmt.getSwitchCases();
+        int caseIndex = -1;
+        for (int i = 0, iMax = switchCases.size(); i < iMax && caseIndex < 0; i++) {
+            JStmtSwitchCase switchCase = switchCases.get(i);
+            if (switchCase.isDefault())
+                continue;
+            JExpr labelExpr = switchCase.getExpr();
+            Object labelKey = keyType == JSCompiledStmt.Switch.KeyType.Enum ? labelExpr.getName() :
+                JSCompiledStmt.Switch.getKeyForValue(evalExpr(labelExpr), keyType);
+            if (key.equals(labelKey))
+                caseIndex = i;
+        }
+        for (int i = 0, iMax = switchCases.size(); i < iMax && caseIndex < 0; i++)
+            if (switchCases.get(i).isDefault())
+                caseIndex = i;
+        if (caseIndex < 0)
+            return null;
+
+        // Evaluate statements from matching case through following cases until break
+        for (int i = caseIndex, iMax = switchCases.size(); i < iMax; i++) {
+            for (JStmt stmt : switchCases.get(i).getStatements()) {
+                _currentStmt = stmt;
+                _stmtCount++;
+                evalStmt(anOR, stmt);
+                if (_breakWasHit) {
+                    _breakWasHit = false;
+                    return null;
+                }
+                if (_continueWasHit || _stopRun || _returnValueHit != null)
+                    return _returnValueHit;
+            }
+        }
+
+        // Return
+        return null;
+    }
+
     /**
      * Evaluate JStmtReturn.
      */
@@ -268,16 +474,13 @@ public class JSStmtEval {
             // Evaluate block statements
             evalStmt(anOR, blockStmt);
 
-            // Execute update statements
-            for (JStmtExpr updateStmt : updateStmts) {
+            // If break was hit, break
+            if (handleBreakCheck())
+                return _returnValueHit;
 
-                // Eval statements
+            // Execute update statements
+            for (JStmtExpr updateStmt : updateStmts)
                 evalStmt(anOR, updateStmt);
-
-                // If break was hit, break
-                if (handleBreakCheck())
-                    return _returnValueHit;
-            }
         }
 
         // Return
@@ -435,8 +638,15 @@ public class JSStmtEval {
      * This method checks and returns whether a break statement was hit in a loop.
      * For Browser, this checks whether a frame has passed and does a yield every 40 millis for progress bar.
      */
-    private boolean handleBreakCheck()
+    protected boolean handleBreakCheck()
     {
+        // Count back-edge and check budget and thread interrupt
+        _backEdgeCount++;
+        _stmtCount++;
+        if (_budget != null)
+            _budget.check(this);
+        checkInterrupted();
+
         // Check for BreakWasHit
         if (_breakWasHit || _stopRun) {
             _breakWasHit = false;
@@ -463,4 +673,85 @@ public class JSStmtEval {
         // Return no break
         return false;
     }
-}
\ No newline at end of file
+
+    /**
+     * Called by bytecode compiled methods at loop back-edges to stop run if requested.
+     */
+    public void checkCompiledBackEdge()
+    {
+        checkInterrupted();
+        if (_stopRun)
+            throw new CancellationException("JSStmtEval: Run stopped");
+        _stmtCount++;
+        if (_budget != null)
+            _budget.check(this);
+    }
+
+    /**
+     * Called on local method entry to check budget and thread interrupt.
+     */
+    public void checkMethodEntry()
+    {
+        if (_budget != null)
+            _budget.check(this);
+        checkInterrupted();
+    }
+
+    /**
+     * Stops run if current thread was interrupted (e.g., Future.cancel(true) from JavaShellPool).
+     */
+    private void checkInterrupted()
+    {
+        if (!_stopRun && Thread.currentThread().isInterrupted())
+            stopRun();
+    }
+
+    /**
+     * Returns the execution budget for current run (null for none).
+     */
+    public JSBudget getBudget()  { return _budget; }
+
+    /**
+     * Sets the execution budget for runs (null for none).
+     */
+    public void setBudget(JSBudget aBudget)  { _budget = aBudget; }
+
+    /**
+     * Returns the profiler for runs (null if not profiling).
+     */
+    public JSProfiler getProfiler()  { return _profiler; }
+
+    /**
+     * Sets the profiler for runs (null if not profiling).
+     */
+    public void setProfiler(JSProfiler aProfiler)  { _profiler = aProfiler; }
+
+    /**
+     * Resets run state and starts budget and profiler (if set) for a new run on current thread.
+     */
+    public void startRun()
+    {
+        _thread = Thread.currentThread();
+        _shell = JavaShellUtils.getShellForCurrentThread();
+        _threadForks = new ThreadLocal<>();
+        _forks.clear();
+        _stopRun = false;
+        _stmtCount = 0;
+        _budgetStmtCount = 0;
+        _budgetCheckCount = 0;
+        _currentStmt = null;
+        if (_budget != null)
+            _budget.start();
+        if (_profiler != null)
+            _profiler.start(this);
+    }
+
+    /**
+     * Called when run finishes to stop profiler (if set).
+     */
+    public void endRun()
+    {
+        if (_profiler != null)
+            _profiler.stop();
+    }
+}
@@ -6,16 +6,26 @@ import javakit.parse.JExpr;
 import javakit.parse.JNode;
 import javakit.resolver.JavaDecl;
 import javakit.resolver.JavaLocalVar;
+import snap.util.Convert;
 import java.util.*;
 
 /**
  * A class to manage variables in a running interpreter session.
+ *
+ * Local vars with primitive int/long/double slot types (see JavaLocalVar.getSlotType()) are stored unboxed in
+ * parallel long/double arrays at the same index, so counted loops don't allocate.
  */
 public class JSVarStack {
 
     // The stack
     private Object[]  _stack = new Object[100];
 
+    // The stack for int and long values
+    private long[]  _longStack = new long[100];
+
+    // The stack for double values
+    private double[]  _doubleStack = new double[100];
+
     // The stack length
     private int  _stackLength;
 
@@ -62,12 +72,110 @@ public class JSVarStack {
      */
     public void setStackValue(Object aValue, int anIndex)
     {
+        int index = getStackIndexForSet(anIndex);
+        _stack[index] = aValue;
+    }
+
+    /**
+     * Returns an int stack value at index.
+     */
+    public int getIntValue(int anIndex)
+    {
+        return (int) _longStack[anIndex + _frameIndex];
+    }
+
+    /**
+     * Sets an int stack value at index.
+     */
+    public void setIntValue(int aValue, int anIndex)
+    {
+        int index = getStackIndexForSet(anIndex);
+        _longStack[index] = aValue;
+    }
+
+    /**
+     * Returns a long stack value at index.
+     */
+    public long getLongValue(int anIndex)
+    {
+        return _longStack[anIndex + _frameIndex];
+    }
+
+    /**
+     * Sets a long stack value at index.
+     */
+    public void setLongValue(long aValue, int anIndex)
+    {
+        int index = getStackIndexForSet(anIndex);
+        _longStack[index] = aValue;
+    }
+
+    /**
+     * Returns a double stack value at index.
+     */
+    public double getDoubleValue(int anIndex)
+    {
+        return _doubleStack[anIndex + _frameIndex];
+    }
+
+    /**
+     * Sets a double stack value at index.
+     */
+    public void setDoubleValue(double aValue, int anIndex)
+    {
+        int index = getStackIndexForSet(anIndex);
+        _doubleStack[index] = aValue;
+    }
+
+    /**
+     * Returns the absolute stack index for given frame index, growing stack if needed.
+     */
+    private int getStackIndexForSet(int anIndex)
+    {
+        // Get absolute index and update stack length
         int index = anIndex + _frameIndex;
-        _stackLength = Math.max(_stackLength, index + 1);
-        if (_stackLength > _stack.length)
-            _stack = Arrays.copyOf(_stack, _stackLength * 2);
+        if (index < _stackLength)
+            return index;
+        _stackLength = index + 1;
+
+        // If stack arrays too small, grow them
+        if (_stackLength > _stack.length) {
+            int newLength = _stackLength * 2;
+            _stack = Arrays.copyOf(_stack, newLength);
+            _longStack = Arrays.copyOf(_longStack, newLength);
+            _doubleStack = Arrays.copyOf(_doubleStack, newLength);
+        }
 
-        _stack[index] = aValue;
+        // Return
+        return index;
+    }
+
+    /**
+     * Returns a stack value for given local var (boxed if stored in primitive slot).
+     */
+    public Object getStackValueForLocalVar(JavaLocalVar aLocalVar)
+    {
+        int index = aLocalVar.getIndexInStackFrame();
+        switch (aLocalVar.getSlotType()) {
+            case Int: return getIntValue(index);
+            case Long: return getLongValue(index);
+            case Double: return getDoubleValue(index);
+            default: return getStackValue(index);
+        }
+    }
+
+    /**
+     * Sets a stack value for given local var (unboxed if stored in primitive slot).
+     */
+    public void setStackValueForLocalVar(JavaLocalVar aLocalVar, Object aValue)
+    {
+        int index = aLocalVar.getIndexInStackFrame();
+        switch (aLocalVar.getSlotType()) {
+            case Int: setIntValue(Convert.intValue(aValue), index); break;
+            case Long: setLongValue(Convert.longValue(aValue), index); break;
+            case Double: setDoubleValue(Convert.doubleValue(aValue), index); break;
+            default: setStackValue(aValue, index);
+        }
     }
 
     /**
@@ -81,7 +189,7 @@ public class JSVarStack {
             JavaLocalVar localVar = (JavaLocalVar) varDecl;
             int indexInStackFrame = localVar.getIndexInStackFrame();
             if (indexInStackFrame >= 0) {
-                Object value = getStackValue(indexInStackFrame);
+                Object value = getStackValueForLocalVar(localVar);
                 return value;
             }
         }
@@ -102,7 +210,7 @@ public class JSVarStack {
             JavaLocalVar localVar = (JavaLocalVar) varDecl;
             int indexInStackFrame = localVar.getIndexInStackFrame();
             if (indexInStackFrame >= 0) {
-                setStackValue(aValue, indexInStackFrame);
+                setStackValueForLocalVar(localVar, aValue);
                 return true;
             }
         }
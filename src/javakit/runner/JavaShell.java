@@ -4,7 +4,7 @@
 package javakit.runner;
 import javakit.parse.*;
 import javakit.project.JavaAgent;
-import snap.util.CharSequenceUtils;
+import snap.util.SnapUtils;
 import java.io.PrintStream;
 
 /**
@@ -15,28 +15,33 @@ public class JavaShell {
     // A Statement evaluator
     private JSStmtEval _stmtEval;
 
+    // The compiler to turn statements into pre-resolved evaluators
+    private JSCompiler  _compiler;
+
     // An object to act as "this"
     private Object  _thisObject = new Object();
 
     // The client
-    private static ShellClient  _client;
+    private ShellClient  _client;
 
     // Whether error was hit
     private boolean  _errorWasHit;
 
-    // Current console out object
-    private ConsoleOutput  _consoleOut;
+    // Whether Jepl runs are incremental (skip statements unchanged since last run that don't depend on changes), off by default
+    private boolean  _incremental;
+
+    // The history of last run (for incremental runs)
+    private JSRunHistory  _runHistory = new JSRunHistory();
 
-    // Current console err object
-    private ConsoleOutput  _consoleErr;
+    // The plan of current incremental run
+    private volatile JSRunHistory.RunPlan  _runPlan;
 
-    // The public out and err PrintStreams
-    private PrintStream  _stdOut = System.out;
-    private PrintStream  _stdErr = System.err;
+    // The stack size of thread to run scripts on (or 0 to run on calling thread)
+    private long  _runThreadStackSize;
 
-    // Proxy standard out/err to capture console
-    private PrintStream  _shellOut = new JavaShellUtils.ProxyPrintStream(this, _stdOut);
-    private PrintStream  _shellErr = new JavaShellUtils.ProxyPrintStream(this,_stdErr);
+    // The console out and err buffers
+    protected JavaShellUtils.ConsoleBuffer  _consoleOut = new JavaShellUtils.ConsoleBuffer(this, STANDARD_OUT);
+    protected JavaShellUtils.ConsoleBuffer  _consoleErr = new JavaShellUtils.ConsoleBuffer(this, STANDARD_ERR);
 
     // Constants
     public static final String STANDARD_OUT = "Standard Out";
@@ -54,65 +59,213 @@ public class JavaShell {
     /**
      * Returns the client.
      */
-    public static ShellClient getClient()  { return _client; }
+    public ShellClient getClient()  { return _client; }
 
     /**
      * Sets the client.
      */
     public void setClient(ShellClient aClient)
     {
+        // If client changed, clear run history (recorded values and output belong to last client)
+        if (aClient != _client)
+            _runHistory.clear();
         _client = aClient;
     }
 
+    /**
+     * Returns whether Jepl runs are incremental: Statements unchanged since last run that don't depend on changed
+     * statements are skipped (restoring their var values and replaying their output).
+     */
+    public boolean isIncremental()  { return _incremental; }
+
+    /**
+     * Sets whether Jepl runs are incremental.
+     */
+    public void setIncremental(boolean aValue)
+    {
+        _incremental = aValue;
+        _runHistory.clear();
+    }
+
+    /**
+     * Returns the stack size of thread to run scripts on (or 0 to run on calling thread, the default).
+     */
+    public long getRunThreadStackSize()  { return _runThreadStackSize; }
+
+    /**
+     * Sets the stack size of thread to run scripts on. This is a fallback for scripts with deep recursion: Runs leave
+     * the calling thread (which waits for them) and each reserves given stack size.
+     */
+    public void setRunThreadStackSize(long aValue)  { _runThreadStackSize = aValue; }
+
+    /**
+     * Clears the history of last run, so next run runs all statements.
+     */
+    public void clearRunHistory()  { _runHistory.clear(); }
+
+    /**
+     * Evaluate string, running all statements (even if incremental).
+     */
+    public void runJavaCodeFull(JavaTextDoc javaTextDoc)
+    {
+        _runHistory.clear();
+        runJavaCode(javaTextDoc);
+    }
+
     /**
      * Evaluate string.
      */
     public void runJavaCode(JavaTextDoc javaTextDoc)
+    {
+        // If no run thread stack size, TeaVM or already on big enough stack, just run on this thread
+        long stackSize = _runThreadStackSize;
+        Thread thisThread = Thread.currentThread();
+        boolean isBigStack = thisThread instanceof JavaShellUtils.BigStackThread &&
+            ((JavaShellUtils.BigStackThread) thisThread).getStackSize() >= stackSize;
+        if (stackSize <= 0 || SnapUtils.isTeaVM || isBigStack) {
+            runJavaCodeImpl(javaTextDoc);
+            return;
+        }
+
+        // Run on big stack thread (so script recursion can go deeper than default thread stack allows)
+        Throwable[] runError = new Throwable[1];
+        Thread runThread = new JavaShellUtils.BigStackThread(() -> {
+            try { runJavaCodeImpl(javaTextDoc); }
+            catch (Throwable t) { runError[0] = t; }
+        }, "JavaShell-Run", stackSize);
+        runThread.start();
+
+        // Wait for run to finish (if this thread is interrupted, stop run and keep waiting)
+        boolean interrupted = false;
+        while (runThread.isAlive()) {
+            try { runThread.join(); }
+            catch (InterruptedException e) {
+                interrupted = true;
+                interrupt();
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+
+        // Rethrow run error
+        if (runError[0] instanceof RuntimeException)
+            throw (RuntimeException) runError[0];
+        if (runError[0] instanceof Error)
+            throw (Error) runError[0];
+    }
+
+    /**
+     * Evaluate string on current thread.
+     */
+    protected void runJavaCodeImpl(JavaTextDoc javaTextDoc)
     {
         // Reset VarStack
         _stmtEval._exprEval._varStack.reset();
 
-        // Set var stack indexes in AST
+        // Get prepared script for this run (parsed, with var stack indexes set and compiled) - from cache if unchanged
         JavaAgent javaAgent = javaTextDoc.getAgent();
-        JFile jfile = javaAgent.getJFile();
-        Simpiler.setVarStackIndexForJFile(jfile);
+        JSScriptCache.PreparedScript script = JSScriptCache.getShared().getPreparedScript(javaAgent);
 
         // Get parsed statements
-        JStmt[] javaStmts = javaAgent.getJFileStatements();
+        JStmt[] javaStmts = script.getStatements();
         if (javaStmts == null) {
             System.err.println("JavaShell.runJavaCode: No main method");
+            script.release();
             return;
         }
 
-        // Set System out/err to catch console output
-        System.setOut(_shellOut);
-        System.setErr(_shellErr);
+        // Get compiler (compiled statements and method bodies are only valid for this script's JFile)
+        _compiler = script.getCompiler();
 
-        // Clear StopRun
-        _stmtEval._stopRun = _errorWasHit = false;
+        // Capture console output of this thread (and threads it starts) for this shell
+        JavaShellUtils.startConsoleCapture(this);
 
-        // Iterate over lines and eval each
-        for (JStmt stmt : javaStmts) {
+        // Get incremental run plan (Jepl only)
+        boolean isIncremental = _incremental && javaTextDoc instanceof JeplTextDoc;
+        JSRunHistory.RunPlan runPlan = isIncremental ? _runHistory.getRunPlan(script.getJFile(), javaStmts) : null;
+        if (runPlan == null)
+            _runHistory.clear();
+        _runPlan = runPlan;
+        JSVarStack varStack = _stmtEval._exprEval._varStack;
+        boolean isComplete = false;
 
-            // Get Statement (if null, just set empty string value and continue)
-            if (stmt == null)
-                continue;
+        // Clear StopRun and start budget
+        _stmtEval.startRun();
+        _errorWasHit = false;
 
-            // Evaluate statement
-            Object lineVal = evalStatement(stmt);
+        // Iterate over lines and eval each (and stop console capture when done)
+        try {
+            for (int i = 0; i < javaStmts.length; i++) {
+
+                // Get Statement (if null, just set empty string value and continue)
+                JStmt stmt = javaStmts[i];
+                if (stmt == null)
+                    continue;
+
+                // If incremental and statement doesn't need to run, restore its values and output from last run
+                if (runPlan != null && !runPlan.isRunStmt(i)) {
+                    runPlan.skipStmt(i, varStack, _client);
+                    continue;
+                }
+
+                // Evaluate statement
+                if (runPlan != null)
+                    runPlan.startStmt(i);
+                Object lineVal = evalStatement(stmt);
+
+                // If incremental, flush console so output is recorded with statement, and record statement
+                if (runPlan != null) {
+                    _consoleOut.flush(true);
+                    _consoleErr.flush(true);
+                    runPlan.endStmt(i, varStack, !_stmtEval._stopRun && !_errorWasHit);
+                }
+
+                // Process output
+                //if (_client != null && lineVal != null)
+                //    _client.processOutput(lineVal);
+
+                // If StopRun hit, break
+                if (_stmtEval._stopRun || _errorWasHit)
+                    break;
+            }
+            isComplete = !_stmtEval._stopRun && !_errorWasHit;
+        }
+        finally {
+            if (runPlan != null)
+                _runHistory.finishRun(runPlan, isComplete);
+            _runPlan = null;
+            _stmtEval.endRun();
+            _consoleOut.finish();
+            _consoleErr.finish();
+            JavaShellUtils.stopConsoleCapture();
+            script.release();
+        }
+    }
 
-            // Process output
-            //if (_client != null && lineVal != null)
-            //    _client.processOutput(lineVal);
+    /**
+     * Returns the profiler for runs (null if not profiling).
+     */
+    public JSProfiler getProfiler()  { return _stmtEval.getProfiler(); }
 
-            // If StopRun hit, break
-            if (_stmtEval._stopRun || _errorWasHit)
-                break;
-        }
+    /**
+     * Sets the profiler for runs (null if not profiling).
+     */
+    public void setProfiler(JSProfiler aProfiler)
+    {
+        _stmtEval.setProfiler(aProfiler);
+    }
+
+    /**
+     * Returns the execution budget for runs (null for none).
+     */
+    public JSBudget getBudget()  { return _stmtEval.getBudget(); }
 
-        // Restore System out/err
-        System.setOut(_stdOut);
-        System.setErr(_stdErr);
+    /**
+     * Sets the execution budget for runs (null for none).
+     */
+    public void setBudget(JSBudget aBudget)
+    {
+        _stmtEval.setBudget(aBudget);
     }
 
     /**
@@ -120,7 +273,7 @@ public class JavaShell {
      */
     public void interrupt()
     {
-        _stmtEval._stopRun = true;
+        _stmtEval.stopRun();
     }
 
     /**
@@ -142,15 +295,36 @@ public class JavaShell {
             return aStmt.getErrors();
         }
 
-        // Eval statement
+        // Compile and eval statement
         Object val;
         try {
-            val = _stmtEval.evalExecutable(_thisObject, aStmt);
+            JSCompiledStmt compiledStmt = _compiler.getCompiledStmt(aStmt);
+            _stmtEval._currentStmt = aStmt;
+            JSProfiler profiler = _stmtEval.getProfiler();
+            if (profiler != null && profiler.isInstrument()) {
+                profiler.enterStmt(aStmt);
+                try { val = _stmtEval.evalExecutable(_thisObject, compiledStmt); }
+                finally { profiler.exitStmt(); }
+            }
+            else val = _stmtEval.evalExecutable(_thisObject, compiledStmt);
+        }
+
+        // Handle stack overflow (script recursion too deep): Report with statement line
+        catch (StackOverflowError e) {
+            _stmtEval._exprEval._varStack.reset();
+            JStmt stmt = _stmtEval._currentStmt != null ? _stmtEval._currentStmt : aStmt;
+            String msg = "JavaShell: Stack overflow (recursion too deep) at line " + (stmt.getLineIndex() + 1);
+            JavaShellUtils.getStdErr().println(msg);
+            val = e;
+            _errorWasHit = true;
         }
 
         // Handle statement eval exception: Try expression
         catch (Exception e) {
-            e.printStackTrace(_stdErr);
+            PrintStream stdErr = JavaShellUtils.getStdErr();
+            if (e instanceof JSBudget.BudgetExceededException)
+                stdErr.println(e.getMessage());
+            else e.printStackTrace(stdErr);
             val = e;
             _errorWasHit = true;
         }
@@ -160,37 +334,18 @@ public class JavaShell {
     }
 
     /**
-     * Appends output.
+     * Sends console output to client.
      */
-    protected void appendOut(String aString)
+    protected void processConsoleOutput(ConsoleOutput aConsoleOutput)
     {
-        // Get/update ConsoleOut with string
-        if (_consoleOut == null)
-            _consoleOut = new ConsoleOutput(STANDARD_OUT, aString);
-        else _consoleOut._string += aString;
-
-        // If newline, process and clear
-        if (CharSequenceUtils.isLastCharNewline(_consoleOut.getString())) {
-            _client.processOutput(_consoleOut);
-            _consoleOut = null;
-        }
-    }
-
-    /**
-     * Appends error.
-     */
-    protected void appendErr(String aString)
-    {
-        // Get/update ConsoleOut with string
-        if (_consoleErr == null)
-            _consoleErr = new ConsoleOutput(STANDARD_ERR, aString);
-        else _consoleErr._string += aString;
-
-        // If newline, process and clear
-        if (CharSequenceUtils.isLastCharNewline(_consoleErr.getString())) {
-            _client.processOutput(_consoleErr);
-            _consoleErr = null;
-        }
+        // If incremental run, record output with current statement
+        JSRunHistory.RunPlan runPlan = _runPlan;
+        if (runPlan != null)
+            runPlan.addOutput(aConsoleOutput);
+
+        ShellClient client = _client;
+        if (client != null)
+            client.processOutput(aConsoleOutput);
     }
 
     /**
@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2010, ReportMill Software. All rights reserved.
+ */
+package javakit.runner;
+import javakit.parse.JavaTextDoc;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class runs JavaShell code for many sessions in parallel. Each run gets its own JavaShell (with its own var stack,
+ * compiled code and console capture) and idle shells are reused. Runs execute on given ExecutorService, so callers can
+ * provide a virtual thread executor where available.
+ */
+public class JavaShellPool {
+
+    // The executor to run shells on
+    private ExecutorService  _executor;
+
+    // The idle shells available for reuse
+    private ConcurrentLinkedDeque<JavaShell>  _idleShells = new ConcurrentLinkedDeque<>();
+
+    // The budget for each run (null for none)
+    private JSBudget  _budget;
+
+    // The stack size of thread to run each script on (or 0 to run on pool thread)
+    private long  _runThreadStackSize;
+
+    // A counter for thread names
+    private static AtomicInteger  _threadCount = new AtomicInteger();
+
+    /**
+     * Constructor for given number of platform threads.
+     */
+    public JavaShellPool(int aThreadCount)
+    {
+        this(Executors.newFixedThreadPool(aThreadCount, runnable -> {
+            Thread thread = new Thread(runnable, "JavaShellPool-" + _threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }));
+    }
+
+    /**
+     * Constructor for given executor.
+     */
+    public JavaShellPool(ExecutorService anExecutor)
+    {
+        _executor = anExecutor;
+    }
+
+    /**
+     * Returns the budget for each run (null for none).
+     */
+    public JSBudget getBudget()  { return _budget; }
+
+    /**
+     * Sets the budget for each run (null for none). Budget limits are copied for each run.
+     */
+    public void setBudget(JSBudget aBudget)  { _budget = aBudget; }
+
+    /**
+     * Returns the stack size of thread to run each script on (or 0 to run on pool thread, the default).
+     */
+    public long getRunThreadStackSize()  { return _runThreadStackSize; }
+
+    /**
+     * Sets the stack size of thread to run each script on (see JavaShell.setRunThreadStackSize()).
+     */
+    public void setRunThreadStackSize(long aValue)  { _runThreadStackSize = aValue; }
+
+    /**
+     * Runs java code for given doc on pool, sending console output to given client. Future.cancel(true) stops the run
+     * (at next loop back-edge or method call).
+     */
+    public Future<?> runJavaCode(JavaTextDoc aJavaTextDoc, JavaShell.ShellClient aClient)
+    {
+        return _executor.submit(() -> runJavaCodeImpl(aJavaTextDoc, aClient));
+    }
+
+    /**
+     * Runs java code for given doc on current thread with shell from pool.
+     */
+    private void runJavaCodeImpl(JavaTextDoc aJavaTextDoc, JavaShell.ShellClient aClient)
+    {
+        // Get idle shell (or create new one) and configure for run
+        JavaShell javaShell = _idleShells.pollFirst();
+        if (javaShell == null)
+            javaShell = new JavaShell();
+        javaShell.clearRunHistory();
+        javaShell.setClient(aClient);
+        javaShell.setRunThreadStackSize(_runThreadStackSize);
+        javaShell.setBudget(_budget != null ? new JSBudget(_budget.getMaxStatementCount(), _budget.getMaxTimeMillis(), _budget.getMaxAllocatedBytes()) : null);
+
+        // Run code and return shell to pool
+        try { javaShell.runJavaCode(aJavaTextDoc); }
+        finally {
+            javaShell.setClient(null);
+            _idleShells.addFirst(javaShell);
+        }
+    }
+
+    /**
+     * Shuts down pool (running scripts finish, but no new runs are accepted).
+     */
+    public void shutdown()
+    {
+        _executor.shutdown();
+        _idleShells.clear();
+    }
+}
@@ -3,19 +3,113 @@
  */
 package javakit.runner;
 import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
 
 /**
  * Utility methods and support for JavaShell.
  */
 public class JavaShellUtils {
 
+    // The shell capturing console output for current thread (bound to other threads only while they run script code)
+    private static final ThreadLocal<JavaShell>  _threadShell = new ThreadLocal<>();
+
+    // The real System out/err while console capture is installed
+    private static PrintStream  _stdOut, _stdErr;
+
+    // The number of shells currently capturing console output
+    private static int  _captureCount;
+
     /**
-     * A PrintStream to stand in for System.out and System.err.
+     * Starts capturing console output of current thread for given shell. Installs System out/err proxies for first shell.
      */
-    protected static class ProxyPrintStream extends PrintStream {
+    public static synchronized void startConsoleCapture(JavaShell aShell)
+    {
+        // If first capture, install proxies
+        if (_captureCount++ == 0) {
+            _stdOut = System.out;
+            _stdErr = System.err;
+            System.setOut(new ProxyPrintStream(_stdOut, false));
+            System.setErr(new ProxyPrintStream(_stdErr, true));
+        }
 
-        // The JavaShell
-        private JavaShell  _javaShell;
+        // Set shell for thread
+        _threadShell.set(aShell);
+    }
+
+    /**
+     * Stops capturing console output of current thread. Restores System out/err when last shell stops.
+     */
+    public static synchronized void stopConsoleCapture()
+    {
+        // Clear shell for thread
+        _threadShell.remove();
+
+        // If last capture, restore System out/err
+        if (--_captureCount == 0) {
+            System.setOut(_stdOut);
+            System.setErr(_stdErr);
+            _stdOut = _stdErr = null;
+        }
+    }
+
+    /**
+     * Returns the shell capturing console output for current thread (or null).
+     */
+    public static JavaShell getShellForCurrentThread()  { return _threadShell.get(); }
+
+    /**
+     * Sets the shell capturing console output for current thread (or null), for script code called on other threads.
+     */
+    public static void setShellForCurrentThread(JavaShell aShell)
+    {
+        if (aShell != null)
+            _threadShell.set(aShell);
+        else _threadShell.remove();
+    }
+
+    /**
+     * Returns the real standard out (not captured).
+     */
+    public static synchronized PrintStream getStdOut()  { return _stdOut != null ? _stdOut : System.out; }
+
+    /**
+     * Returns the real standard err (not captured).
+     */
+    public static synchronized PrintStream getStdErr()  { return _stdErr != null ? _stdErr : System.err; }
+
+    /**
+     * A daemon thread with a big stack to run scripts with deep recursion.
+     */
+    public static class BigStackThread extends Thread {
+
+        // The requested stack size
+        private long  _stackSize;
+
+        /**
+         * Constructor.
+         */
+        public BigStackThread(Runnable aRunnable, String aName, long aStackSize)
+        {
+            super(null, aRunnable, aName, aStackSize);
+            _stackSize = aStackSize;
+            setDaemon(true);
+        }
+
+        /**
+         * Returns the requested stack size.
+         */
+        public long getStackSize()  { return _stackSize; }
+    }
+
+    /**
+     * A PrintStream to stand in for System.out and System.err: Writes to real stream and sends to shell for current thread.
+     */
+    protected static class ProxyPrintStream extends PrintStream {
 
         // Whether is standard err
         private boolean  _stdErr;
@@ -23,41 +117,221 @@ public class JavaShellUtils {
         /**
          * Constructor.
          */
-        public ProxyPrintStream(JavaShell javaShell, PrintStream printStream)
+        public ProxyPrintStream(PrintStream printStream, boolean isStdErr)
         {
             super(printStream);
-            _javaShell = javaShell;
-            _stdErr = printStream == System.err;
+            _stdErr = isStdErr;
         }
 
         /**
-         * Override to send to ScanView.
+         * Override to send to shell console.
          */
         public void write(int b)
         {
             // Do normal version
             super.write(b);
 
-            // Write char to console
-            String str = String.valueOf(Character.valueOf((char) b));
-            if (_stdErr)
-                _javaShell.appendErr(str);
-            else _javaShell.appendOut(str);
+            // Write byte to console buffer of shell for current thread
+            ConsoleBuffer consoleBuffer = getConsoleBuffer();
+            if (consoleBuffer != null)
+                consoleBuffer.write(b);
         }
 
         /**
-         * Override to send to ScanView.
+         * Override to send to shell console.
          */
         public void write(byte[] buf, int off, int len)
         {
             // Do normal version
             super.write(buf, off, len);
 
-            // Write buff to console
-            String str = new String(buf, off, len);
-            if (_stdErr)
-                _javaShell.appendErr(str);
-            else _javaShell.appendOut(str);
+            // Write bytes to console buffer of shell for current thread
+            ConsoleBuffer consoleBuffer = getConsoleBuffer();
+            if (consoleBuffer != null)
+                consoleBuffer.write(buf, off, len);
+        }
+
+        /**
+         * Returns the console buffer of shell for current thread (flushing out before err to keep them in order).
+         */
+        private ConsoleBuffer getConsoleBuffer()
+        {
+            JavaShell javaShell = _threadShell.get();
+            if (javaShell == null)
+                return null;
+            if (_stdErr) {
+                javaShell._consoleOut.flush(true);
+                return javaShell._consoleErr;
+            }
+            return javaShell._consoleOut;
+        }
+    }
+
+    /**
+     * A buffer to capture console bytes for a shell: Decodes bytes to chars in place and sends text to shell client
+     * in batches of whole lines when enough text is pending or enough time has passed. Text over MAX_CHARS per run
+     * is dropped and reported with a truncation marker.
+     */
+    protected static class ConsoleBuffer {
+
+        // The shell
+        private JavaShell  _javaShell;
+
+        // The console output name (STANDARD_OUT or STANDARD_ERR)
+        private String  _name;
+
+        // The decoder for bytes
+        private CharsetDecoder  _decoder;
+
+        // The pending bytes and decoded chars
+        private ByteBuffer  _bytes = ByteBuffer.allocate(BUFFER_SIZE);
+        private CharBuffer  _chars = CharBuffer.allocate(BUFFER_SIZE);
+
+        // The decoded text not yet sent to client
+        private StringBuilder  _text = new StringBuilder();
+
+        // The time of last flush
+        private long  _lastFlushTime;
+
+        // The number of chars captured and dropped for current run
+        private long  _charCount, _droppedCount;
+
+        // The buffer size for bytes and chars
+        private static final int BUFFER_SIZE = 8192;
+
+        // The number of pending chars that trigger a flush
+        public static int FLUSH_CHARS = 16384;
+
+        // The time in millis since last flush that triggers a flush at next newline
+        public static long FLUSH_MILLIS = 50;
+
+        // The maximum number of chars captured per run (after that, output is dropped)
+        public static long MAX_CHARS = 16 * 1024 * 1024;
+
+        /**
+         * Constructor.
+         */
+        public ConsoleBuffer(JavaShell aShell, String aName)
+        {
+            _javaShell = aShell;
+            _name = aName;
+            _decoder = Charset.defaultCharset().newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        }
+
+        /**
+         * Writes a byte.
+         */
+        public synchronized void write(int b)
+        {
+            _bytes.put((byte) b);
+            if (!_bytes.hasRemaining())
+                decodeBytes();
+            if (b == '\n')
+                flushIfNeeded();
+        }
+
+        /**
+         * Writes bytes.
+         */
+        public synchronized void write(byte[] buf, int off, int len)
+        {
+            // Copy bytes to buffer, decoding whenever buffer fills
+            while (len > 0) {
+                int count = Math.min(len, _bytes.remaining());
+                _bytes.put(buf, off, count);
+                off += count;
+                len -= count;
+                if (!_bytes.hasRemaining())
+                    decodeBytes();
+            }
+
+            // Flush if needed
+            flushIfNeeded();
+        }
+
+        /**
+         * Decodes pending bytes to text (incomplete multibyte chars stay in byte buffer).
+         */
+        private void decodeBytes()
+        {
+            _bytes.flip();
+            while (true) {
+                CoderResult result = _decoder.decode(_bytes, _chars, false);
+                appendChars();
+                if (!result.isOverflow())
+                    break;
+            }
+            _bytes.compact();
+        }
+
+        /**
+         * Appends decoded chars to text (or drops them if over max).
+         */
+        private void appendChars()
+        {
+            _chars.flip();
+            int count = _chars.remaining();
+            long allowed = Math.max(0, Math.min(count, MAX_CHARS - _charCount));
+            if (allowed > 0)
+                _text.append(_chars.array(), 0, (int) allowed);
+            _droppedCount += count - allowed;
+            _charCount += allowed;
+            _chars.clear();
+        }
+
+        /**
+         * Flushes if enough text is pending or enough time has passed since last flush.
+         */
+        private void flushIfNeeded()
+        {
+            if (_text.length() + _bytes.position() >= FLUSH_CHARS || System.currentTimeMillis() - _lastFlushTime >= FLUSH_MILLIS)
+                flush(false);
+        }
+
+        /**
+         * Sends pending text to client: Whole lines only, unless given all flag is set.
+         */
+        public synchronized void flush(boolean doAll)
+        {
+            // Decode pending bytes
+            if (_bytes.position() > 0)
+                decodeBytes();
+
+            // Get end of text to send (just return if nothing to send)
+            int end = doAll ? _text.length() : _text.lastIndexOf("\n") + 1;
+            if (end <= 0)
+                return;
+
+            // Get text and remove from buffer
+            String str = _text.substring(0, end);
+            _text.delete(0, end);
+            _lastFlushTime = System.currentTimeMillis();
+
+            // Send to shell (client call blocks writer, so a slow client applies backpressure)
+            _javaShell.processConsoleOutput(new JavaShell.ConsoleOutput(_name, str));
+        }
+
+        /**
+         * Called when run finishes to flush all text and report dropped text.
+         */
+        public synchronized void finish()
+        {
+            // Flush all text
+            flush(true);
+
+            // If text was dropped, send truncation marker
+            if (_droppedCount > 0) {
+                String msg = "\n[Console output truncated: " + _droppedCount + " chars dropped]\n";
+                _javaShell.processConsoleOutput(new JavaShell.ConsoleOutput(_name, msg));
+            }
+
+            // Reset for next run
+            _text.setLength(0);
+            _bytes.clear();
+            _decoder.reset();
+            _charCount = _droppedCount = 0;
         }
     }
 }
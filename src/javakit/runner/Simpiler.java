@@ -1,6 +1,10 @@
 package javakit.runner;
 import javakit.parse.*;
+import javakit.resolver.JavaField;
 import javakit.resolver.JavaLocalVar;
+import snap.util.SnapUtils;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
 import java.util.List;
 
 /**
@@ -8,6 +12,9 @@ import java.util.List;
  */
 public class Simpiler {
 
+    // A marker value for expressions that can't be evaluated at compile time
+    public static final Object NOT_CONSTANT = new Object();
+
     /**
      * Compile.
      */
@@ -40,6 +47,10 @@ public class Simpiler {
         if (aNode instanceof JStmtBlock)
             setVarStackIndexForBlockStmt((JStmtBlock) aNode, anIndex);
 
+        // Handle switch statement: Case statements share one scope
+        else if (aNode instanceof JStmtSwitch)
+            setVarStackIndexForSwitchStmt((JStmtSwitch) aNode, anIndex);
+
         // Handle WithVarDecls: JExecutableDecl, JStmtFor, JStmtTryCatch, JExprLambda
         else if (aNode instanceof WithVarDecls)
             setVarStackIndexForNodeWithVarDecls(aNode, anIndex);
@@ -77,10 +88,12 @@ public class Simpiler {
             if (initExpr != null)
                 setVarStackIndexForNode(initExpr, 0);
 
-            // Set localVar.IndexInStackFrame
+            // Set localVar.IndexInStackFrame and SlotType
             JavaLocalVar localVar = (JavaLocalVar) varDecl.getDecl();
-            if (localVar != null)
+            if (localVar != null) {
                 localVar.setIndexInStackFrame(anIndex + i);
+                localVar.setSlotType(getSlotTypeForVarDecl(varDecl, localVar));
+            }
         }
 
         // If node is also WithBlockStmt, recurse in
@@ -95,13 +108,46 @@ public class Simpiler {
         return anIndex + varDeclCount;
     }
 
+    /**
+     * Returns the stack slot type for given var decl: Primitive int/long/double vars get unboxed slots.
+     */
+    private static JavaLocalVar.SlotType getSlotTypeForVarDecl(JVarDecl aVarDecl, JavaLocalVar aLocalVar)
+    {
+        if (aVarDecl.getArrayCount() > 0)
+            return JavaLocalVar.SlotType.Object;
+        return JavaLocalVar.SlotType.getSlotTypeForType(aLocalVar.getEvalType());
+    }
+
     /**
      * Sets var stack index for block statement.
      */
     private static void setVarStackIndexForBlockStmt(JStmtBlock blockStmt, int anIndex)
     {
-        // Get block statement statements
         List<JStmt> stmts = blockStmt.getStatements();
+        setVarStackIndexForStmts(stmts, anIndex);
+    }
+
+    /**
+     * Sets var stack index for switch statement: Statements of all cases share one scope.
+     */
+    private static void setVarStackIndexForSwitchStmt(JStmtSwitch switchStmt, int anIndex)
+    {
+        // Handle selector expression
+        JExpr selectorExpr = switchStmt.getExpr();
+        if (selectorExpr != null)
+            setVarStackIndexForNode(selectorExpr, anIndex);
+
+        // Iterate over cases and set for statements (continuing var index from previous cases)
+        int varIndex = anIndex;
+        for (JStmtSwitchCase switchCase : switchStmt.getSwitchCases())
+            varIndex = setVarStackIndexForStmts(switchCase.getStatements(), varIndex);
+    }
+
+    /**
+     * Sets var stack index for statements in one scope and returns the new index after adding var decls.
+     */
+    private static int setVarStackIndexForStmts(List<JStmt> stmts, int anIndex)
+    {
         int varIndex = anIndex;
 
         // Iterate over statements and bump varIndex for VarDecl stmts, but handle others normally
@@ -114,5 +160,67 @@ public class Simpiler {
             // Handle any other statement normally
             else setVarStackIndexForNode(stmt, varIndex);
         }
+
+        // Return new index
+        return varIndex;
+    }
+
+    /**
+     * Returns the folded value for given math op and constant operand values (or NOT_CONSTANT if op can't be folded).
+     */
+    public static Object getFoldedValueForMathOp(JExprMath.Op anOp, Object aVal1, Object aVal2)
+    {
+        // Handle unary: Only fold Not and Negate (increments have side effects)
+        if (aVal2 == NOT_CONSTANT) {
+            if (anOp == JExprMath.Op.Not && aVal1 instanceof Boolean)
+                return !((Boolean) aVal1);
+            if (anOp == JExprMath.Op.Negate && JSExprEvalUtils.isNumberOrChar(aVal1))
+                return JSExprEvalUtils.negate(aVal1);
+            return NOT_CONSTANT;
+        }
+
+        // Don't fold reference equality of objects (String literals may or may not be the same instance)
+        if ((anOp == JExprMath.Op.Equal || anOp == JExprMath.Op.NotEqual) &&
+            !(JSExprEvalUtils.isNumberOrChar(aVal1) && JSExprEvalUtils.isNumberOrChar(aVal2)) &&
+            !(aVal1 instanceof Boolean && aVal2 instanceof Boolean))
+            return NOT_CONSTANT;
+
+        // Evaluate op (if it fails, e.g. integer divide by zero, leave it to runtime)
+        try { return JSExprEvalUtils.evalBinaryOp(anOp, aVal1, aVal2); }
+        catch (RuntimeException e) { return NOT_CONSTANT; }
+    }
+
+    /**
+     * Returns the folded value for given constant value cast to given primitive class (or NOT_CONSTANT).
+     */
+    public static Object getFoldedValueForCast(Object aValue, Class<?> aClass)
+    {
+        if (aClass == null || !aClass.isPrimitive() || !JSExprEvalUtils.isNumberOrChar(aValue))
+            return NOT_CONSTANT;
+        return JSExprEvalUtils.castOrConvertValueToPrimitiveClass(aValue, aClass);
+    }
+
+    /**
+     * Returns the constant value for given field if static final primitive or String (or NOT_CONSTANT).
+     */
+    public static Object getConstantValueForField(JavaField aJavaField)
+    {
+        // Get field (just return if not available)
+        Field field = aJavaField != null && !SnapUtils.isTeaVM ? aJavaField.getField() : null;
+        if (field == null)
+            return NOT_CONSTANT;
+
+        // If not public static final primitive/String, just return
+        int mods = field.getModifiers();
+        if (!Modifier.isStatic(mods) || !Modifier.isFinal(mods) || !Modifier.isPublic(mods))
+            return NOT_CONSTANT;
+        if (!field.getType().isPrimitive() && field.getType() != String.class)
+            return NOT_CONSTANT;
+        if (!Modifier.isPublic(field.getDeclaringClass().getModifiers()))
+            return NOT_CONSTANT;
+
+        // Return value
+        try { return field.get(null); }
+        catch (Exception | LinkageError e) { return NOT_CONSTANT; }
     }
 }